@@ -2,26 +2,31 @@ package at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin;
 
 import at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.core.*;
 import at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.core.model.HandoverData;
+import at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.core.model.MerkleInclusionProof;
 import at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.core.model.TransactionReference;
 import at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.core.model.WorkflowHandoverData;
 import at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.core.model.WorkflowInstance;
 import at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.crawler.BlockChainCrawler;
 import at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.crawler.BlockcypherMainnetCrawler;
 import at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.crawler.BlockcypherTestnetCrawler;
+import at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.crawler.model.ParsedOutput;
+import at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.crawler.model.ParsedTransaction;
 import at.ac.tuwien.infosys.prybila.runtimeVerification.utils.RuntimeVerificationException;
 import at.ac.tuwien.infosys.prybila.runtimeVerification.utils.RuntimeVerificationUtils;
+import com.google.common.util.concurrent.AsyncFunction;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 import org.bitcoinj.core.*;
-import org.bitcoinj.net.discovery.DnsDiscovery;
+import org.bitcoinj.core.listeners.OnTransactionBroadcastListener;
 import org.bitcoinj.params.MainNetParams;
 import org.bitcoinj.params.TestNet3Params;
 import org.bitcoinj.script.Script;
 import org.bitcoinj.script.ScriptBuilder;
-import org.bitcoinj.store.BlockStore;
 import org.bitcoinj.store.BlockStoreException;
-import org.bitcoinj.store.SPVBlockStore;
+import org.bitcoinj.wallet.CoinSelection;
+import org.bitcoinj.wallet.DefaultCoinSelector;
 import org.bitcoinj.wallet.SendRequest;
 import org.bitcoinj.wallet.UnreadableWalletException;
 import org.bitcoinj.wallet.Wallet;
@@ -31,21 +36,20 @@ import org.springframework.context.annotation.Scope;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.PreDestroy;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
 
 /**
  * Holds a connection to the Bitcoin Network and the local files corresponding to it.
  * Can be open during the entire execution or open/closed for each transaction.
  * The internal wallet and blockStore are saved periodically to a file.
+ * The blockStore, BlockChain and PeerGroup are shared with all other connections of the JVM to the same network.
  * <p>
  * start transaction = openConnection() open connection includes loading local block chain and syncing it with online block chain
  * commit transaction = closeConnection() close connection includes persisting of local block chain copy to file
@@ -65,9 +69,18 @@ public class BitcoinConnection {
     protected NetworkParameters networkParameters;
 
     protected Wallet wallet;
-    protected BlockStore blockStore;
+    protected SharedNetworkLayer sharedNetworkLayer;
     protected BlockChain blockChain;
     protected PeerGroup peerGroup;
+    protected ConfirmationTracker confirmationTracker;
+    protected RebroadcastScheduler rebroadcastScheduler;
+    protected KeyPool keyPool;
+    protected FundingPool fundingPool;
+
+    /**
+     * Part of a funding coin which is reserved for the fee of the start transaction.
+     */
+    private Coin fundingPoolFeeReserve;
 
     private RuntimeVerificationUtils runtimeVerificationUtils;
     private TransactionBuilder transactionBuilder;
@@ -77,8 +90,89 @@ public class BitcoinConnection {
     private BlockChainCrawler blockChainCrawler;
     private int minBroadcastPeers;
 
+    /**
+     * Number of keys which are derived at once by the KeyPool.
+     */
+    private static final int keyPoolBatchSize = 20;
+
+    /**
+     * Number of pooled keys below which the KeyPool is refilled in the background.
+     */
+    private static final int keyPoolLowWaterMark = 5;
+
     public static final int maxNumOfBroadCastTries = 10;
 
+    /**
+     * Maximal number of transactions observed from peers which are kept for local lookups.
+     */
+    private static final int maxNumOfObservedTransactions = 10000;
+
+    /**
+     * Transactions announced by the peers of the PeerGroup, kept in insertion order.
+     */
+    private final Map<Sha256Hash, Transaction> observedTransactions = new LinkedHashMap<Sha256Hash, Transaction>() {
+        private static final long serialVersionUID = -4415227680873015529L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Transaction> eldest) {
+            return size() > maxNumOfObservedTransactions;
+        }
+    };
+
+    private final OnTransactionBroadcastListener observedTransactionListener = new OnTransactionBroadcastListener() {
+        @Override
+        public void onTransaction(Peer peer, Transaction transaction) {
+            synchronized (observedTransactions) {
+                observedTransactions.put(transaction.getHash(), transaction);
+            }
+            //a held transaction which is announced by a peer was settled by another participant
+            synchronized (heldTransactions) {
+                if (heldTransactions.remove(transaction.getHash()) != null) {
+                    anchoringProofsOfHeldTransactions.remove(transaction.getHash());
+                    saveHeldTransactions();
+                }
+            }
+            if (isWatchedHandoverTransaction(transaction)) {
+                for (Consumer<Transaction> handoverTransactionListener : handoverTransactionListeners) {
+                    handoverTransactionListener.accept(transaction);
+                }
+            }
+            unwatchHandoverAddressesSpentBy(transaction);
+        }
+    };
+
+    /**
+     * Informed about every transaction announced by a peer which pays to or spends a watched handover address.
+     */
+    private final List<Consumer<Transaction>> handoverTransactionListeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Complete transactions which are held off-chain instead of being broadcast, kept in the order in which they were
+     * held. Includes the held transactions received from handover partners.
+     * The held transactions are persisted in the heldTransactionsFile next to the walletFile.
+     */
+    private final Map<Sha256Hash, Transaction> heldTransactions = new LinkedHashMap<>();
+
+    /**
+     * Verified proofs of the held transactions which were anchored as part of a batch, own or received ones.
+     * Guarded by the lock of heldTransactions and persisted along with them.
+     */
+    private final Map<Sha256Hash, MerkleInclusionProof> anchoringProofsOfHeldTransactions = new HashMap<>();
+
+    private final MerkleInclusionProofSerializer merkleInclusionProofSerializer = new MerkleInclusionProofSerializer();
+
+    private File heldTransactionsFile;
+
+    /**
+     * Completes as soon as the block chain was synchronised after opening the connection.
+     */
+    private SettableFuture<Void> chainSynchronisationFuture;
+
+    /**
+     * Duration of each phase of openConnection() in milliseconds, in the order of execution.
+     */
+    private final Map<String, Long> startupTimingsInMS = Collections.synchronizedMap(new LinkedHashMap<>());
+
     public BitcoinConnection() {
         connectionOpen = false;
         runtimeVerificationUtils = new RuntimeVerificationUtils();
@@ -94,19 +188,174 @@ public class BitcoinConnection {
      */
     public Coin getBalance() {
         openConnectionGuard("getBalance");
-        Coin balance = wallet.getBalance();
+        synchronisedChainGuard("getBalance");
+        //the coin selector of the wallet skips the coins of the funding pool
+        Coin balance = wallet.getBalance(new DefaultCoinSelector());
         logger.debug("Returning balance of wallet " + balance.toFriendlyString());
         return balance;
     }
 
+    /**
+     * Returns an unused receiving key of the wallet.
+     * The keys are taken from the KeyPool, which derives them in batches from the deterministic key chain.
+     */
     public ECKey getNewKeyFromWallet() {
         openConnectionGuard("getNewKeyFromWallet");
-        ECKey receiveKey = new ECKey();
-        wallet.importKey(receiveKey);
+        ECKey receiveKey = keyPool.takeKey();
         logger.debug("Returning new key for wallet " + receiveKey);
         return receiveKey;
     }
 
+    /**
+     * Returns the transaction with the given hash if it is known to the wallet, was observed from a peer or is held.
+     * Returns null if the transaction is not known locally or the connection is not open.
+     */
+    public Transaction getLocallyKnownTransaction(String txHash) {
+        if (!connectionOpen || txHash == null) {
+            return null;
+        }
+        Sha256Hash hash = Sha256Hash.wrap(txHash);
+        Transaction transaction = wallet.getTransaction(hash);
+        if (transaction != null) {
+            return transaction;
+        }
+        synchronized (observedTransactions) {
+            transaction = observedTransactions.get(hash);
+        }
+        if (transaction != null) {
+            return transaction;
+        }
+        synchronized (heldTransactions) {
+            return heldTransactions.get(hash);
+        }
+    }
+
+    /**
+     * Returns all transactions known to the wallet, observed from peers or held.
+     * Returns an empty list if the connection is not open.
+     */
+    public List<Transaction> getLocallyKnownTransactions() {
+        List<Transaction> transactions = new ArrayList<>();
+        if (!connectionOpen) {
+            return transactions;
+        }
+        transactions.addAll(wallet.getTransactions(false));
+        synchronized (observedTransactions) {
+            transactions.addAll(observedTransactions.values());
+        }
+        synchronized (heldTransactions) {
+            transactions.addAll(heldTransactions.values());
+        }
+        return transactions;
+    }
+
+    /**
+     * Returns true if the given output belongs to or is watched by the wallet.
+     * Transactions spending such an output are received by the wallet.
+     */
+    public boolean isObservedByWallet(TransactionOutput transactionOutput) {
+        return connectionOpen && transactionOutput.isMineOrWatched(wallet);
+    }
+
+    /**
+     * Adds the given P2SH addresses of handover tokens to the watched addresses of the wallet.
+     * The bloom filter of the PeerGroup is updated, hence the peers push every transaction paying to or spending one
+     * of these addresses as soon as it enters their mempool. Addresses which are already watched are ignored.
+     * The address of a token is removed from the watched addresses as soon as a transaction spending it is seen.
+     */
+    public void watchHandoverAddresses(List<Address> p2shAddresses) {
+        openConnectionGuard("watchHandoverAddresses");
+        List<Address> newAddresses = new ArrayList<>();
+        for (Address p2shAddress : p2shAddresses) {
+            if (!wallet.isAddressWatched(p2shAddress) && !newAddresses.contains(p2shAddress)) {
+                newAddresses.add(p2shAddress);
+            }
+        }
+        if (newAddresses.isEmpty()) {
+            return;
+        }
+        //only transactions from now on are relevant, the fast catch up time of the PeerGroup is not moved back
+        wallet.addWatchedAddresses(newAddresses, Utils.currentTimeSeconds());
+        logger.debug("Watching the handover addresses " + newAddresses);
+    }
+
+    /**
+     * Removes the given P2SH addresses of handover tokens from the watched addresses of the wallet, e.g. if the
+     * expected handover is not published anymore. Addresses which are not watched are ignored.
+     */
+    public void unwatchHandoverAddresses(List<Address> p2shAddresses) {
+        openConnectionGuard("unwatchHandoverAddresses");
+        List<Address> watchedAddresses = new ArrayList<>();
+        for (Address p2shAddress : p2shAddresses) {
+            if (wallet.isAddressWatched(p2shAddress) && !watchedAddresses.contains(p2shAddress)) {
+                watchedAddresses.add(p2shAddress);
+            }
+        }
+        if (watchedAddresses.isEmpty()) {
+            return;
+        }
+        wallet.removeWatchedAddresses(watchedAddresses);
+        logger.debug("No longer watching the handover addresses " + watchedAddresses);
+    }
+
+    /**
+     * Stops watching the P2SH addresses of the handover tokens spent by the given transaction.
+     * Every token is spent only once, hence the watch list and the bloom filter do not grow without bound.
+     */
+    private void unwatchHandoverAddressesSpentBy(Transaction transaction) {
+        if (!connectionOpen) {
+            return;
+        }
+        List<Address> spentAddresses = new ArrayList<>();
+        for (TransactionInput input : transaction.getInputs()) {
+            Transaction parent = getLocallyKnownTransaction(input.getOutpoint().getHash().toString());
+            if (parent == null || input.getOutpoint().getIndex() >= parent.getOutputs().size()) {
+                continue;
+            }
+            TransactionOutput spentOutput = parent.getOutput(input.getOutpoint().getIndex());
+            if (spentOutput.getScriptPubKey().isPayToScriptHash() && spentOutput.isWatched(wallet)) {
+                spentAddresses.add(spentOutput.getAddressFromP2SH(networkParameters));
+            }
+        }
+        if (!spentAddresses.isEmpty()) {
+            unwatchHandoverAddresses(spentAddresses);
+        }
+    }
+
+    /**
+     * Registers a listener which is called by a network thread for every transaction announced by a peer
+     * which pays to or spends a watched handover address.
+     */
+    public void addHandoverTransactionListener(Consumer<Transaction> handoverTransactionListener) {
+        handoverTransactionListeners.add(handoverTransactionListener);
+    }
+
+    public void removeHandoverTransactionListener(Consumer<Transaction> handoverTransactionListener) {
+        handoverTransactionListeners.remove(handoverTransactionListener);
+    }
+
+    /**
+     * Returns true if one of the outputs of the given transaction or one of the outputs it spends is watched.
+     */
+    private boolean isWatchedHandoverTransaction(Transaction transaction) {
+        if (!connectionOpen || handoverTransactionListeners.isEmpty()) {
+            return false;
+        }
+        for (TransactionOutput output : transaction.getOutputs()) {
+            if (output.isWatched(wallet)) {
+                return true;
+            }
+        }
+        for (TransactionInput input : transaction.getInputs()) {
+            Transaction parent = getLocallyKnownTransaction(input.getOutpoint().getHash().toString());
+            if (parent != null && input.getOutpoint().getIndex() < parent.getOutputs().size() &&
+                    parent.getOutput(input.getOutpoint().getIndex()).isWatched(wallet)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Resets the internal wallet. Should only be used in emergencies.
      * CAVE: Results in loss of internal balance.
@@ -117,13 +366,72 @@ public class BitcoinConnection {
 
     /**
      * Prepares and opens the connection to the bitcoin network.
+     * Blocks until the block chain is synchronised.
      * <p>
      * Note: can only be called once.
      */
     public void openConnection(NetworkParameters networkParameters, File storeFile, File walletFile, File checkpointFile) throws UnreadableWalletException, IOException, BlockStoreException {
+        openConnectionLocally(networkParameters, storeFile, walletFile, checkpointFile);
+        //Perform initial download of block chain.
+        startConnection();
+        chainSynchronisationFuture.set(null);
+        logger.debug("A new Bitcoin connection was successfully opened.");
+    }
+
+    /**
+     * Prepares and opens the connection to the bitcoin network, but synchronises the block chain in the background.
+     * The wallet can be used for local operations, e.g. key handling and template creation, as soon as this method
+     * returns. Operations which depend on the block chain wait until the synchronisation is finished.
+     * Returns a future which completes as soon as the block chain was synchronised.
+     * <p>
+     * Note: can only be called once.
+     */
+    public ListenableFuture<Void> openConnectionInBackground(NetworkParameters networkParameters, File storeFile, File walletFile, File checkpointFile) throws UnreadableWalletException, IOException, BlockStoreException {
+        openConnectionLocally(networkParameters, storeFile, walletFile, checkpointFile);
+        final Context context = Context.get();
+        final SettableFuture<Void> future = chainSynchronisationFuture;
+        Thread synchronisationThread = new Thread(() -> {
+            Context.propagate(context);
+            try {
+                startConnection();
+                future.set(null);
+                logger.debug("The block chain of the Bitcoin connection was synchronised.");
+            } catch (RuntimeException e) {
+                logger.warn("The synchronisation of the block chain failed.", e);
+                future.setException(e);
+            }
+        }, "ChainSynchronisation");
+        synchronisationThread.setDaemon(true);
+        synchronisationThread.start();
+        return future;
+    }
+
+    /**
+     * Returns a future which completes as soon as the block chain was synchronised after opening the connection.
+     */
+    public ListenableFuture<Void> getChainSynchronisationFuture() {
+        openConnectionGuard("getChainSynchronisationFuture");
+        return chainSynchronisationFuture;
+    }
+
+    /**
+     * Returns the duration of each phase of opening the connection in milliseconds, in the order of execution.
+     */
+    public Map<String, Long> getStartupTimingsInMS() {
+        synchronized (startupTimingsInMS) {
+            return new LinkedHashMap<>(startupTimingsInMS);
+        }
+    }
+
+    /**
+     * Loads the local files and attaches the wallet to the network layer without synchronising the block chain.
+     */
+    private void openConnectionLocally(NetworkParameters networkParameters, File storeFile, File walletFile, File checkpointFile) throws UnreadableWalletException, IOException, BlockStoreException {
         closedConnectionGuard("openConnection");
         logger.debug("Starting to open a new Bitcoin connection.");
         setInputParams(checkpointFile, storeFile, walletFile, networkParameters);
+        Context.getOrCreate(networkParameters);
+        startupTimingsInMS.clear();
 
         String token = new RuntimeVerificationUtils().readCrawlerTokenFromProperties();
 
@@ -136,11 +444,8 @@ public class BitcoinConnection {
         logger.debug("Loading wallet and blockstore if existing.");
         //Init API objects and load data from files.
         initConnection();
-        logger.debug("Starting peergroup synchronization.");
-        //Open connections to Bitcoin peers and perform initial download of block chain.
-        startConnection();
+        chainSynchronisationFuture = SettableFuture.create();
         connectionOpen = true;
-        logger.debug("A new Bitcoin connection was successfully opened.");
     }
 
     /**
@@ -150,6 +455,7 @@ public class BitcoinConnection {
     public void closeConnection() throws IOException, BlockStoreException {
         openConnectionGuard("closeConnection");
         logger.debug("Starting to close the Bitcoin connection.");
+        chainSynchronisationFuture.setException(new CancellationException("The connection was closed before the block chain was synchronised."));
         stopBitcoinConnection();
         connectionOpen = false;
         logger.debug("The Bitcoin connection was closed.");
@@ -157,7 +463,7 @@ public class BitcoinConnection {
 
     /**
      * Broadcasts the given Transaction to the network.
-     * If the checkFirst flag is set, the blockChainCrawler checks if the transaction can be found online before
+     * If the checkFirst flag is set, it is checked if the transaction was already published before
      * performing a broadcast.
      * Waits waitMaxSeconds seconds for an initial broadcast confirmation.
      * If maxTries is exceeded a RuntimeVerificationException is thrown.
@@ -176,10 +482,13 @@ public class BitcoinConnection {
     }
 
     /**
-     * Broadcasts the given SendRequest to the network until it can be seen by the crawler APIy
-     * If the checkFirst flag is set, the blockChainCrawler checks if the transaction can be found online before
-     * performing a broadcast.
-     * Waits waitMaxSeconds seconds for an initial broadcast confirmation.
+     * Broadcasts the given SendRequest to the network until it was seen by at least one peer.
+     * If the checkFirst flag is set, the confidence of the transaction and the wallet are used to check if the
+     * transaction was already published before performing a broadcast. The blockChainCrawler is only queried if
+     * the local view is ambiguous.
+     * The broadcast and all further rebroadcasts are performed by the RebroadcastScheduler, which keeps owning the
+     * transaction until it reached depthUntilConfirmed.
+     * Waits at most waitMaxSeconds seconds per broadcast try for the transaction to be seen by a peer.
      * If maxTries is exceeded a RuntimeVerificationException is thrown.
      * Installs a callback for the confirmation to log the successful confirmation. Requires the depthUntilConfirmed parameter for this.
      * Note: Execution is blocked until a broadcast confirmation is received.
@@ -187,20 +496,18 @@ public class BitcoinConnection {
      */
     private void publishSendRequest(SendRequest sendRequest, boolean checkFirst, int maxTries, int waitMaxSeconds, int depthUntilConfirmed, boolean logRequest) throws IOException, ExecutionException, InterruptedException {
         openConnectionGuard("publishSendRequest");
+        synchronisedChainGuard("publishSendRequest");
         boolean isFoundOnline = false;
         if (checkFirst) {
-            isFoundOnline = performOnlineCheck(sendRequest, logRequest);
+            isFoundOnline = isAlreadyPublished(sendRequest, logRequest);
         }
-        int numTries = 0;
-        while (!isFoundOnline) {
-            if (numTries > maxTries) {
-                throw new RuntimeVerificationException("Number of broadcast tries exceeded maxTries " + maxTries + ".");
+        if (!isFoundOnline) {
+            ListenableFuture<Transaction> seenByPeersFuture = scheduleBroadcast(sendRequest.tx, depthUntilConfirmed);
+            try {
+                seenByPeersFuture.get((long) waitMaxSeconds * Math.max(1, maxTries), TimeUnit.SECONDS);
+            } catch (TimeoutException e) {
+                throw new RuntimeVerificationException("The transaction " + sendRequest.tx.getHashAsString() + " was not seen by any peer after " + maxTries + " tries.");
             }
-            performBroadcast(sendRequest, waitMaxSeconds);
-            //give the api time to update
-            sleepForMS(800);
-            isFoundOnline = performOnlineCheck(sendRequest, logRequest);
-            numTries++;
         }
         installCallbackListenerForConfirmationOfTransaction(sendRequest, depthUntilConfirmed);
         logger.debug("The sendRequest " + sendRequest + " with the included transaction " + sendRequest.tx + " was published.");
@@ -221,12 +528,35 @@ public class BitcoinConnection {
         });
     }
 
-    private void sleepForMS(int ms) {
-        try {
-            Thread.sleep(ms);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+    /**
+     * Decides if the given transaction was already published through the local view on the network.
+     * Transactions in the block chain or announced back by at least one peer are published. A pending transaction of
+     * the wallet which was not announced by any peer is not published.
+     * Only in the remaining ambiguous cases, i.e. the transaction is unknown to the wallet, dead or in conflict,
+     * the blockChainCrawler is queried.
+     */
+    private boolean isAlreadyPublished(SendRequest sendRequest, boolean logRequest) throws IOException {
+        String txHash = sendRequest.tx.getHashAsString();
+        Transaction transactionOfWallet = wallet.getTransaction(sendRequest.tx.getHash());
+        TransactionConfidence confidence = sendRequest.tx.getConfidence();
+        switch (confidence.getConfidenceType()) {
+            case BUILDING:
+                logger.debug("Result of local online check: The transaction tx " + txHash + " is part of the block chain.");
+                return true;
+            case PENDING:
+                if (confidence.numBroadcastPeers() > 0) {
+                    logger.debug("Result of local online check: The transaction tx " + txHash + " was announced by " + confidence.numBroadcastPeers() + " peers.");
+                    return true;
+                }
+                if (transactionOfWallet != null) {
+                    logger.debug("Result of local online check: The transaction tx " + txHash + " was not yet announced by any peer.");
+                    return false;
+                }
+                break;
+            default:
+                break;
         }
+        return performOnlineCheck(sendRequest, logRequest);
     }
 
     private boolean performOnlineCheck(SendRequest sendRequest, boolean logRequest) throws IOException {
@@ -244,25 +574,26 @@ public class BitcoinConnection {
         return isFoundOnline;
     }
 
-    private void performBroadcast(SendRequest sendRequest, int waitMaxSeconds) throws IOException, ExecutionException, InterruptedException {
-        String txHash = sendRequest.tx.getHashAsString();
-        logger.debug("Broadcasting tx " + txHash);
-        logger2.debug("Broadcasting transaction with txHash " + txHash);
-        wallet.maybeCommitTx(sendRequest.tx);
-        TransactionBroadcast broadcast = peerGroup.broadcastTransaction(sendRequest.tx);
-        //block until broadcast confirmation.
-        try {
-            broadcast.future().get(waitMaxSeconds, TimeUnit.SECONDS);
-        } catch (TimeoutException e) {
-            logger.warn("Initial broadcast of " + sendRequest.tx.getHashAsString() + " did not return a confirmation in " + waitMaxSeconds + " seconds.");
+    /**
+     * Commits the given transaction to the wallet and hands it over to the RebroadcastScheduler.
+     * If the wallet already knows the transaction, the wallet's instance is used.
+     * Returns a future which completes as soon as the transaction was seen by at least one peer.
+     */
+    private ListenableFuture<Transaction> scheduleBroadcast(Transaction tx, int depthUntilConfirmed) throws IOException {
+        Transaction transactionOfWallet = wallet.getTransaction(tx.getHash());
+        if (transactionOfWallet == null) {
+            wallet.maybeCommitTx(tx);
+            wallet.saveToFile(walletFile);
+            transactionOfWallet = tx;
         }
-        logger2.debug("Transaction was broadcast with txHash " + txHash);
-        wallet.saveToFile(walletFile);
+        unwatchHandoverAddressesSpentBy(transactionOfWallet);
+        logger2.debug("Scheduling broadcast of transaction with txHash " + tx.getHashAsString());
+        return rebroadcastScheduler.register(transactionOfWallet, depthUntilConfirmed);
     }
 
     /**
      * Broadcasts the SendRequest contained in the given Handover to the network.
-     * If the checkFirst flag is set, the blockChainCrawler checks if the transaction can be found online before
+     * If the checkFirst flag is set, it is checked if the transaction was already published before
      * performing a broadcast.
      * Waits waitMaxSeconds seconds for an initial broadcast confirmation.
      * If maxTries is exceeded a RuntimeVerificationException is thrown.
@@ -281,57 +612,436 @@ public class BitcoinConnection {
     /**
      * Blocks until the transaction contained in the given handoverData has reached the given confirmation depth or the
      * waitMaxMinutes timeout expired.
-     * To be more multithreading friendly. The waiting for confirmation is done iteratively with sleep() calls in between.
+     * The waiting is driven by the block and confidence events of the ConfirmationTracker, no polling is performed.
      * Returns true if the task was completed.
      */
     public boolean waitForConfirmationDepth(HandoverData handoverData, int depth, int waitMaxMinutes) throws ExecutionException, InterruptedException {
-        ListenableFuture<TransactionConfidence> future = handoverData.getTransactionReference().getSendRequest().tx.getConfidence().getDepthFuture(depth);
+        return getConfirmationDepthFuture(handoverData, depth, waitMaxMinutes).get();
+    }
+
+    /**
+     * Returns a future which completes with true as soon as the transaction contained in the given handoverData has
+     * reached the given confirmation depth or with false if the waitMaxMinutes timeout expired before.
+     */
+    public ListenableFuture<Boolean> getConfirmationDepthFuture(HandoverData handoverData, int depth, int waitMaxMinutes) {
+        openConnectionGuard("getConfirmationDepthFuture");
         logger.debug("Starting to wait for " + waitMaxMinutes + " minutes to reach " + depth + " confirmations for handoverData " + handoverData);
-        int secondsToWait = waitMaxMinutes * 60;
-        boolean gotConfirmation = false;
-        while(secondsToWait > 0 && !gotConfirmation) {
+        return confirmationTracker.trackConfirmationDepth(
+                handoverData.getTransactionReference().getSendRequest().tx, depth, waitMaxMinutes, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Hands the transaction contained in the given handoverData over to the RebroadcastScheduler, which broadcasts it
+     * in the background until it has reached the given confirmation depth.
+     * Does not block, callers subscribe to the returned future. It completes with true as soon as the depth is reached
+     * or with false if the waitMaxMinutesForDepthConfirmation timeout expired before.
+     */
+    public ListenableFuture<Boolean> publishHandoverPointInBackground(HandoverData handoverData, int depth, int waitMaxMinutesForDepthConfirmation) throws IOException {
+        openConnectionGuard("publishHandoverPointInBackground");
+        synchronisedChainGuard("publishHandoverPointInBackground");
+        scheduleBroadcast(handoverData.getTransactionReference().getBitcoinJTransaction(), depth);
+        return getConfirmationDepthFuture(handoverData, depth, waitMaxMinutesForDepthConfirmation);
+    }
+
+    /**
+     * Re-registers an own transaction, e.g. from the handover storage after a restart, at the RebroadcastScheduler.
+     * Transactions which have already reached the given depth are ignored.
+     */
+    public void resumeRebroadcastOfHandoverPoint(HandoverData handoverData, int depth) throws IOException {
+        openConnectionGuard("resumeRebroadcastOfHandoverPoint");
+        synchronisedChainGuard("resumeRebroadcastOfHandoverPoint");
+        Transaction tx = handoverData.getTransactionReference().getBitcoinJTransaction();
+        TransactionConfidence confidence = tx.getConfidence();
+        if (confidence.getConfidenceType() == TransactionConfidence.ConfidenceType.BUILDING &&
+                confidence.getDepthInBlocks() >= depth) {
+            return;
+        }
+        try {
+            scheduleBroadcast(tx, depth);
+        } catch (VerificationException e) {
+            logger.warn("The stored transaction " + tx.getHashAsString() + " could not be committed to the wallet and is not rebroadcast.", e);
+        }
+    }
+
+    /**
+     * Holds the transaction of the given handoverData off-chain instead of broadcasting it.
+     * The transaction is found by getLocallyKnownTransaction() until it is settled by settleHeldTransaction().
+     */
+    public void holdHandoverPoint(HandoverData handoverData) {
+        openConnectionGuard("holdHandoverPoint");
+        Transaction tx = handoverData.getTransactionReference().getBitcoinJTransaction();
+        synchronized (heldTransactions) {
+            heldTransactions.put(tx.getHash(), tx);
+            saveHeldTransactions();
+        }
+        logger.debug("Holding transaction " + tx.getHashAsString() + " off-chain.");
+    }
+
+    /**
+     * Holds the given serialized transactions received from a handover partner off-chain.
+     * The transactions must be ordered parents first. Every transaction must be a workflow transaction and all of its
+     * inputs must be valid. Parents which are not known locally are looked up by the blockChainCrawler.
+     * Throws a RuntimeVerificationException otherwise.
+     * Transactions which are already known to the wallet or were observed from peers are ignored.
+     */
+    public void holdReceivedTransactions(List<byte[]> serializedTransactions) {
+        openConnectionGuard("holdReceivedTransactions");
+        for (byte[] serializedTransaction : serializedTransactions) {
+            Transaction tx = transactionSerializer.deserializeTransaction(networkParameters, serializedTransaction);
+            Transaction knownTransaction = getLocallyKnownTransaction(tx.getHashAsString());
+            if (knownTransaction != null && !isHeldTransaction(tx.getHashAsString())) {
+                continue;
+            }
+            //throws a RuntimeVerificationException if it is no workflow transaction
+            new TransactionStructureVerifier(TransactionReference.getReferenceForVerificationOnly(tx));
+            List<TransactionInput> inputsToVerify = new ArrayList<>();
+            List<TransactionOutput> connectedOutputs = new ArrayList<>();
+            for (TransactionInput input : tx.getInputs()) {
+                inputsToVerify.add(input);
+                connectedOutputs.add(getConnectedOutputOfReceivedInput(tx, input));
+            }
             try {
-                future.get(3, TimeUnit.SECONDS);
-                gotConfirmation = true;
-            } catch (TimeoutException e) {
-                secondsToWait -= 3;
+                transactionBuilder.verifyInputs(inputsToVerify, connectedOutputs);
+            } catch (VerificationException e) {
+                throw new RuntimeVerificationException("The received transaction " + tx.getHashAsString() + " does not spend its inputs correctly.", e);
+            }
+            synchronized (heldTransactions) {
+                heldTransactions.put(tx.getHash(), tx);
+            }
+        }
+        synchronized (heldTransactions) {
+            saveHeldTransactions();
+        }
+    }
+
+    /**
+     * Returns the output spent by the given input of a received transaction, from the locally known parent or else
+     * from the blockChainCrawler. Throws a RuntimeVerificationException if the parent is unknown.
+     */
+    private TransactionOutput getConnectedOutputOfReceivedInput(Transaction tx, TransactionInput input) {
+        String parentHash = input.getOutpoint().getHash().toString();
+        int outputIndex = (int) input.getOutpoint().getIndex();
+        Transaction parent = getLocallyKnownTransaction(parentHash);
+        if (parent != null && outputIndex < parent.getOutputs().size()) {
+            return parent.getOutput(outputIndex);
+        }
+        ParsedTransaction parsedParent = null;
+        if (parent == null && blockChainCrawler != null) {
+            try {
+                parsedParent = blockChainCrawler.getTransactionInformation(parentHash, true, false);
+            } catch (IOException | RuntimeVerificationException e) {
+                logger.debug("The parent " + parentHash + " was not found by the crawler.", e);
+            }
+        }
+        if (parsedParent == null || parsedParent.getOutputs() == null || outputIndex >= parsedParent.getOutputs().size()) {
+            throw new RuntimeVerificationException("The received transaction " + tx.getHashAsString() + " spends the unknown output "
+                    + outputIndex + " of " + parentHash + ".");
+        }
+        ParsedOutput parsedOutput = parsedParent.getOutputs().get(outputIndex);
+        return new TransactionOutput(networkParameters, null, Coin.valueOf(parsedOutput.getValue()), parsedOutput.getScriptBytes());
+    }
+
+    /**
+     * Returns true if the transaction with the given hash is held off-chain.
+     */
+    public boolean isHeldTransaction(String txHash) {
+        synchronized (heldTransactions) {
+            return txHash != null && heldTransactions.containsKey(Sha256Hash.wrap(txHash));
+        }
+    }
+
+    /**
+     * Returns the held transactions with the given hashes in serialized form and ordered parents first.
+     * Hashes of transactions which are not held are ignored.
+     */
+    public List<byte[]> serializeHeldTransactions(Collection<String> txHashes) {
+        List<Transaction> transactions = new ArrayList<>();
+        synchronized (heldTransactions) {
+            for (String txHash : txHashes) {
+                Transaction heldTransaction = heldTransactions.get(Sha256Hash.wrap(txHash));
+                if (heldTransaction != null && !transactions.contains(heldTransaction)) {
+                    transactions.add(heldTransaction);
+                }
+            }
+        }
+        List<byte[]> serializedTransactions = new ArrayList<>();
+        for (Transaction transaction : sortParentsFirst(transactions)) {
+            serializedTransactions.add(transactionSerializer.serializeTransaction(transaction));
+        }
+        return serializedTransactions;
+    }
+
+    /**
+     * Stores the given verified proof of a held transaction. Proofs of transactions which are not held are ignored.
+     */
+    public void addAnchoringProofOfHeldTransaction(MerkleInclusionProof anchoringProof) {
+        Sha256Hash txHash = Sha256Hash.wrap(anchoringProof.getLeafTxHash());
+        synchronized (heldTransactions) {
+            if (heldTransactions.containsKey(txHash)) {
+                anchoringProofsOfHeldTransactions.put(txHash, anchoringProof);
+                saveHeldTransactions();
+            }
+        }
+    }
+
+    /**
+     * Returns the proof of the held transaction with the given hash or null if it is not held or not anchored yet.
+     */
+    public MerkleInclusionProof getAnchoringProofOfHeldTransaction(String txHash) {
+        synchronized (heldTransactions) {
+            return txHash == null ? null : anchoringProofsOfHeldTransactions.get(Sha256Hash.wrap(txHash));
+        }
+    }
+
+    /**
+     * Returns the proofs of the held transactions with the given hashes in serialized form.
+     * Hashes of transactions which are not held or not anchored yet are ignored.
+     */
+    public List<byte[]> serializeAnchoringProofsOfHeldTransactions(Collection<String> txHashes) {
+        List<byte[]> serializedProofs = new ArrayList<>();
+        for (String txHash : new LinkedHashSet<>(txHashes)) {
+            MerkleInclusionProof anchoringProof = getAnchoringProofOfHeldTransaction(txHash);
+            if (anchoringProof != null) {
+                serializedProofs.add(merkleInclusionProofSerializer.serializeProof(anchoringProof));
             }
-            if (gotConfirmation) {
-                try {
-                    Thread.sleep(3000);
-                } catch (InterruptedException ignore) {
+        }
+        return serializedProofs;
+    }
+
+    /**
+     * Returns the hash of the held transaction which spends the given output or null if there is none.
+     */
+    public String getHeldSpendingTransactionHash(String txHash, long outputIndex) {
+        synchronized (heldTransactions) {
+            for (Transaction heldTransaction : heldTransactions.values()) {
+                for (TransactionInput input : heldTransaction.getInputs()) {
+                    if (input.getOutpoint().getIndex() == outputIndex &&
+                            input.getOutpoint().getHash().toString().equals(txHash)) {
+                        return heldTransaction.getHashAsString();
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the hashes of all held transactions with an output to the given address.
+     */
+    public List<String> getHeldTransactionHashesOfAddress(String address) {
+        List<String> txHashes = new ArrayList<>();
+        synchronized (heldTransactions) {
+            for (Transaction heldTransaction : heldTransactions.values()) {
+                for (TransactionOutput output : heldTransaction.getOutputs()) {
+                    Address outputAddress = output.getScriptPubKey().isPayToScriptHash() ?
+                            output.getAddressFromP2SH(networkParameters) : output.getAddressFromP2PKHScript(networkParameters);
+                    if (outputAddress != null && outputAddress.toBase58().equals(address)) {
+                        txHashes.add(heldTransaction.getHashAsString());
+                        break;
+                    }
+                }
+            }
+        }
+        return txHashes;
+    }
+
+    /**
+     * Ends the holding of the transaction with the given hash and hands it over to the RebroadcastScheduler.
+     * All held parents of the transaction must have been settled before. The transaction stays held if it could not be
+     * handed over.
+     * Returns a future which completes as soon as the transaction was seen by at least one peer.
+     */
+    public ListenableFuture<Transaction> settleHeldTransaction(String txHash, int depthUntilConfirmed) throws IOException {
+        openConnectionGuard("settleHeldTransaction");
+        synchronisedChainGuard("settleHeldTransaction");
+        Transaction tx;
+        synchronized (heldTransactions) {
+            tx = heldTransactions.remove(Sha256Hash.wrap(txHash));
+            saveHeldTransactions();
+        }
+        if (tx == null) {
+            throw new RuntimeVerificationException("The transaction " + txHash + " is not held.");
+        }
+        logger.debug("Settling held transaction " + txHash);
+        try {
+            ListenableFuture<Transaction> broadcastFuture = scheduleBroadcast(tx, depthUntilConfirmed);
+            synchronized (heldTransactions) {
+                if (anchoringProofsOfHeldTransactions.remove(tx.getHash()) != null) {
+                    saveHeldTransactions();
                 }
-                secondsToWait -= 3;
             }
+            return broadcastFuture;
+        } catch (IOException | RuntimeException e) {
+            synchronized (heldTransactions) {
+                heldTransactions.put(tx.getHash(), tx);
+                saveHeldTransactions();
+            }
+            throw e;
         }
-        return gotConfirmation;
     }
 
     /**
-     * Performs a series of transaction broadcast actions and confirmation waiting actions.
-     * If the checkOnlineBeforePublishing flag is set, the blockChainCrawler checks if the transaction
-     * can be found online before performing a broadcast.
-     * Returns true if the given transaction has reached its confirmation depth during this procedure.
+     * Settles the held transactions with the given hashes as a package, ordered parents first.
+     * Every transaction is only broadcast after its predecessor in the package was seen by at least one peer, hence
+     * peers do not receive a transaction before its parent. Hashes of transactions which are not held are ignored.
+     * Returns a future which completes as soon as the last transaction of the package was seen by at least one peer.
      */
-    public boolean performAggressivePublishing(HandoverData handoverData, int depth, int waitMaxMinutesForDepthConfirmation, boolean checkOnlineBeforePublishing, int waitMaxSecondsForBroadcastConfirmation) throws IOException, ExecutionException, InterruptedException {
-        //publish for the first time
-        logger.debug("Starting aggressive publishing.");
-        logger.debug("First try of aggressive publishing.");
-        publishHandoverPoint(handoverData, checkOnlineBeforePublishing, maxNumOfBroadCastTries, waitMaxSecondsForBroadcastConfirmation, depth, false);
-        boolean confirmationReached = waitForConfirmationDepth(handoverData, depth, waitMaxMinutesForDepthConfirmation);
-        if (!confirmationReached) {
-            //publish for the second time
-            logger.debug("Second try of aggressive publishing.");
-            publishHandoverPoint(handoverData, checkOnlineBeforePublishing, maxNumOfBroadCastTries, waitMaxSecondsForBroadcastConfirmation, depth, false);
-            confirmationReached = waitForConfirmationDepth(handoverData, depth, waitMaxMinutesForDepthConfirmation);
-            if (!confirmationReached) {
-                //publish for the third time
-                logger.debug("Third try of aggressive publishing.");
-                publishHandoverPoint(handoverData, checkOnlineBeforePublishing, maxNumOfBroadCastTries, waitMaxSecondsForBroadcastConfirmation, depth, false);
-                confirmationReached = waitForConfirmationDepth(handoverData, depth, waitMaxMinutesForDepthConfirmation);
+    public ListenableFuture<Transaction> settleHeldTransactionPackage(Collection<String> txHashes, int depthUntilConfirmed) {
+        openConnectionGuard("settleHeldTransactionPackage");
+        List<Transaction> heldPackage = new ArrayList<>();
+        synchronized (heldTransactions) {
+            for (String txHash : txHashes) {
+                Transaction heldTransaction = heldTransactions.get(Sha256Hash.wrap(txHash));
+                if (heldTransaction != null && !heldPackage.contains(heldTransaction)) {
+                    heldPackage.add(heldTransaction);
+                }
+            }
+        }
+        ListenableFuture<Transaction> settlementFuture = Futures.immediateFuture(null);
+        for (Transaction heldTransaction : sortParentsFirst(heldPackage)) {
+            settlementFuture = Futures.transform(settlementFuture, (AsyncFunction<Transaction, Transaction>) parent -> {
+                //it was announced by a peer in the meantime
+                if (!isHeldTransaction(heldTransaction.getHashAsString())) {
+                    return Futures.immediateFuture(heldTransaction);
+                }
+                return settleHeldTransaction(heldTransaction.getHashAsString(), depthUntilConfirmed);
+            });
+        }
+        if (!heldPackage.isEmpty()) {
+            logger.debug("Settling a package of " + heldPackage.size() + " held transactions.");
+        }
+        return settlementFuture;
+    }
+
+    /**
+     * Creates a transaction which anchors the given Merkle root of a batch of handovers and hands it over to the
+     * RebroadcastScheduler. The fee is paid from the wallet.
+     * Returns the anchor transaction.
+     */
+    public Transaction anchorMerkleRoot(byte[] merkleRoot, int depthUntilConfirmed) throws InsufficientMoneyException, IOException {
+        openConnectionGuard("anchorMerkleRoot");
+        synchronisedChainGuard("anchorMerkleRoot");
+        SendRequest sendRequest = transactionBuilder.createMerkleRootAnchorTransaction(merkleRoot, networkParameters);
+        wallet.completeTx(sendRequest);
+        scheduleBroadcast(sendRequest.tx, depthUntilConfirmed);
+        logger.debug("Anchoring Merkle root " + Sha256Hash.wrap(merkleRoot) + " with tx " + sendRequest.tx.getHashAsString());
+        return sendRequest.tx;
+    }
+
+    /**
+     * Orders the given transactions such that every transaction follows the given transactions it spends.
+     */
+    private List<Transaction> sortParentsFirst(List<Transaction> transactions) {
+        List<Transaction> remaining = new ArrayList<>(transactions);
+        List<Transaction> sorted = new ArrayList<>();
+        Set<Sha256Hash> sortedHashes = new HashSet<>();
+        while (!remaining.isEmpty()) {
+            Iterator<Transaction> iterator = remaining.iterator();
+            boolean progress = false;
+            while (iterator.hasNext()) {
+                Transaction candidate = iterator.next();
+                boolean parentsSorted = true;
+                for (TransactionInput input : candidate.getInputs()) {
+                    Sha256Hash parentHash = input.getOutpoint().getHash();
+                    if (!sortedHashes.contains(parentHash) && containsTransaction(remaining, parentHash)) {
+                        parentsSorted = false;
+                        break;
+                    }
+                }
+                if (parentsSorted) {
+                    sorted.add(candidate);
+                    sortedHashes.add(candidate.getHash());
+                    iterator.remove();
+                    progress = true;
+                }
+            }
+            if (!progress) {
+                throw new RuntimeVerificationException("The held transactions contain a cycle.");
+            }
+        }
+        return sorted;
+    }
+
+    private boolean containsTransaction(List<Transaction> transactions, Sha256Hash txHash) {
+        for (Transaction transaction : transactions) {
+            if (transaction.getHash().equals(txHash)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Persists the held transactions followed by their anchoring proofs.
+     * Must be called while holding the lock of heldTransactions.
+     */
+    private void saveHeldTransactions() {
+        if (heldTransactionsFile == null) {
+            return;
+        }
+        ArrayList<byte[]> serializedTransactions = new ArrayList<>();
+        for (Transaction heldTransaction : heldTransactions.values()) {
+            serializedTransactions.add(transactionSerializer.serializeTransaction(heldTransaction));
+        }
+        ArrayList<byte[]> serializedProofs = new ArrayList<>();
+        for (MerkleInclusionProof anchoringProof : anchoringProofsOfHeldTransactions.values()) {
+            serializedProofs.add(merkleInclusionProofSerializer.serializeProof(anchoringProof));
+        }
+        try (ObjectOutputStream objOut = new ObjectOutputStream(new FileOutputStream(heldTransactionsFile))) {
+            objOut.writeObject(serializedTransactions);
+            objOut.writeObject(serializedProofs);
+        } catch (IOException e) {
+            logger.warn("The held transactions could not be saved.", e);
+        }
+    }
+
+    /**
+     * Loads the held transactions from the heldTransactionsFile if it exists.
+     */
+    private void loadHeldTransactions() {
+        heldTransactionsFile = new File(walletFile.getPath() + ".held");
+        if (!runtimeVerificationUtils.fileExists(heldTransactionsFile)) {
+            return;
+        }
+        try (ObjectInputStream objIn = new ObjectInputStream(new FileInputStream(heldTransactionsFile))) {
+            Object storedObject = objIn.readObject();
+            if (!(storedObject instanceof List)) {
+                throw new IOException("The file " + heldTransactionsFile + " contains no list of held transactions.");
+            }
+            List<?> serializedTransactions = (List<?>) storedObject;
+            synchronized (heldTransactions) {
+                for (Object serializedTransaction : serializedTransactions) {
+                    Transaction heldTransaction = transactionSerializer.deserializeTransaction(networkParameters, (byte[]) serializedTransaction);
+                    heldTransactions.put(heldTransaction.getHash(), heldTransaction);
+                }
+            }
+            logger.debug("Loaded " + serializedTransactions.size() + " held transactions.");
+            loadAnchoringProofsOfHeldTransactions(objIn);
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            logger.warn("The held transactions could not be loaded.", e);
+        }
+    }
+
+    /**
+     * Loads the anchoring proofs which follow the held transactions. Files written before the anchoring proofs were
+     * persisted end after the held transactions.
+     */
+    private void loadAnchoringProofsOfHeldTransactions(ObjectInputStream objIn) throws IOException, ClassNotFoundException {
+        Object storedObject;
+        try {
+            storedObject = objIn.readObject();
+        } catch (EOFException e) {
+            return;
+        }
+        if (!(storedObject instanceof List)) {
+            throw new IOException("The file " + heldTransactionsFile + " contains no list of anchoring proofs.");
+        }
+        synchronized (heldTransactions) {
+            for (Object serializedProof : (List<?>) storedObject) {
+                MerkleInclusionProof anchoringProof = merkleInclusionProofSerializer.deserializeProof((byte[]) serializedProof);
+                anchoringProofsOfHeldTransactions.put(Sha256Hash.wrap(anchoringProof.getLeafTxHash()), anchoringProof);
             }
         }
-        return confirmationReached;
     }
 
     /**
@@ -413,21 +1123,32 @@ public class BitcoinConnection {
      */
     public HandoverData createStartWFTransaction(WorkflowInstance workflowInstance, int timestamp, Coin tokenSize) throws InsufficientMoneyException {
         openConnectionGuard("createStartWFTransaction");
+        synchronisedChainGuard("createStartWFTransaction");
         ECKey keyToSendWFStartTo = getNewKeyFromWallet();
         Address addressStartWFIsSentTo = keyToSendWFStartTo.toAddress(networkParameters);
 
         WorkflowHandoverData workflowHandoverDataStart
                 = workflowExecutionPointFactory.createWorkflowStartPoint(workflowInstance, timestamp);
 
-        SendRequest sendRequest = transactionBuilder.createWorkflowStartTransaction(
-                addressStartWFIsSentTo,
-                tokenSize,
-                workflowHandoverDataStart,
-                networkParameters);
-
-        //let the framework choose appropriate inputs and config the fee and change output
-        sendRequest.shuffleOutputs = false;
-        wallet.completeTx(sendRequest);
+        SendRequest sendRequest = null;
+        TransactionOutput fundingCoin = fundingPool == null ? null : fundingPool.claimCoin(tokenSize.add(fundingPoolFeeReserve));
+        if (fundingCoin != null) {
+            //fund the start with exactly the claimed coin, the change is returned to the wallet
+            sendRequest = createStartWFSendRequest(addressStartWFIsSentTo, tokenSize, workflowHandoverDataStart);
+            sendRequest.coinSelector = (target, candidates) -> new CoinSelection(fundingCoin.getValue(), Collections.singletonList(fundingCoin));
+            try {
+                wallet.completeTx(sendRequest);
+            } catch (InsufficientMoneyException e) {
+                logger.debug("The funding coin " + fundingCoin.getOutPointFor() + " does not cover the fee, using the coin selection of the wallet.");
+                fundingPool.releaseCoin(fundingCoin);
+                sendRequest = null;
+            }
+        }
+        if (sendRequest == null) {
+            //let the framework choose appropriate inputs and config the fee and change output
+            sendRequest = createStartWFSendRequest(addressStartWFIsSentTo, tokenSize, workflowHandoverDataStart);
+            wallet.completeTx(sendRequest);
+        }
 
         HandoverData wfStartPoint = new HandoverData(
                 workflowHandoverDataStart,
@@ -441,6 +1162,41 @@ public class BitcoinConnection {
         return wfStartPoint;
     }
 
+    private SendRequest createStartWFSendRequest(Address addressStartWFIsSentTo, Coin tokenSize, WorkflowHandoverData workflowHandoverDataStart) {
+        SendRequest sendRequest = transactionBuilder.createWorkflowStartTransaction(
+                addressStartWFIsSentTo,
+                tokenSize,
+                workflowHandoverDataStart,
+                networkParameters);
+        sendRequest.shuffleOutputs = false;
+        return sendRequest;
+    }
+
+    /**
+     * Gives the funding coin claimed for the given start transaction back to the funding pool.
+     * Must be called if the start transaction is not committed to the wallet.
+     */
+    public void releaseFundingOfStartWFTransaction(HandoverData startOfWF) {
+        if (fundingPool != null) {
+            fundingPool.releaseCoinsOf(startOfWF.getTransactionReference().getBitcoinJTransaction());
+        }
+    }
+
+    /**
+     * Starts to fan the balance of the wallet out into numberOfCoins confirmed outputs of coinValue.
+     * Afterwards every workflow start claims its own confirmed output worth at least its token size and feeReserve.
+     */
+    public void enableFundingPool(int numberOfCoins, Coin coinValue, Coin feeReserve) {
+        openConnectionGuard("enableFundingPool");
+        synchronisedChainGuard("enableFundingPool");
+        if (fundingPool != null) {
+            return;
+        }
+        fundingPoolFeeReserve = feeReserve;
+        fundingPool = new FundingPool(wallet, rebroadcastScheduler, numberOfCoins, coinValue);
+        logger.debug("Enabled the funding pool with " + numberOfCoins + " coins of " + coinValue.toFriendlyString());
+    }
+
     /**
      * Creates a handover transaction template without off- and on-chain signatures.
      * The transaction contained in the returned HandoverData must be signed off-chain by the handover partner.
@@ -759,44 +1515,67 @@ public class BitcoinConnection {
 
     /**
      * Initializes the connection to the supplied network and loads the files supplied in the Constructor.
+     * The wallet is attached to the SharedNetworkLayer of the networkParameters, which is created by the first
+     * connection of the JVM and shared with all other connections to the same network.
      */
     private void initConnection() throws BlockStoreException, IOException, UnreadableWalletException {
+        long start = System.currentTimeMillis();
         loadWallet();
-        loadBlockStore();
-        //SPV implementation of the block chain
-        blockChain = new BlockChain(networkParameters, wallet, blockStore);
+        loadHeldTransactions();
+        keyPool = new KeyPool(wallet, keyPoolBatchSize, keyPoolLowWaterMark);
+        startupTimingsInMS.put("walletLoad", System.currentTimeMillis() - start);
+        start = System.currentTimeMillis();
+        sharedNetworkLayer = SharedNetworkLayer.attachWallet(networkParameters, storeFile, checkpointFile, wallet, minBroadcastPeers);
+        blockChain = sharedNetworkLayer.getBlockChain();
+        confirmationTracker = sharedNetworkLayer.getConfirmationTracker();
         initPeerGroup();
+        startupTimingsInMS.put("networkLayerAttach", System.currentTimeMillis() - start);
     }
 
     /**
-     * Starts the connection to the supplied network
-     * and synchronises the Block Chain.
+     * Synchronises the Block Chain of the shared network layer.
      * <p>
      * IMPORTANT: The connection must be closed by stopBitcoinConnection()
      */
     private void startConnection() {
-        //connect to Bitcoin Network peers
-        peerGroup.start();
-        //download chain headers
-        peerGroup.downloadBlockChain();
+        logger.debug("Starting peergroup synchronization.");
+        long start = System.currentTimeMillis();
+        //download chain headers, returns immediately if another connection already synchronised the chain
+        sharedNetworkLayer.downloadBlockChain();
+        startupTimingsInMS.put("chainSync", System.currentTimeMillis() - start);
     }
 
     /**
      * Stops the connection to the bitcion network and
      */
     private void stopBitcoinConnection() throws IOException, BlockStoreException {
-        peerGroup.stop();
+        peerGroup.removeOnTransactionBroadcastListener(observedTransactionListener);
+        sharedNetworkLayer.detachWallet(wallet);
+        keyPool.shutdown();
+        if (fundingPool != null) {
+            fundingPool.shutdown();
+        }
         wallet.saveToFile(walletFile);
-        blockStore.close();
+        sharedNetworkLayer = null;
         blockChain = null;
+        confirmationTracker = null;
+        rebroadcastScheduler = null;
+        keyPool = null;
+        fundingPool = null;
         peerGroup = null;
         wallet = null;
-        blockStore = null;
         checkpointFile = null;
         storeFile = null;
         walletFile = null;
         networkParameters = null;
         blockChainCrawler = null;
+        synchronized (observedTransactions) {
+            observedTransactions.clear();
+        }
+        synchronized (heldTransactions) {
+            heldTransactions.clear();
+            heldTransactionsFile = null;
+        }
     }
 
     /**
@@ -813,36 +1592,13 @@ public class BitcoinConnection {
     }
 
     /**
-     * Loads the blockStore from storeFile or creates a new one.
-     * Synchronises the blockStore with the checkpointFile if it was supplied.
-     */
-    private void loadBlockStore() throws IOException, BlockStoreException {
-        boolean storeFileIsFresh = !storeFile.exists();
-        if (!storeFileIsFresh) {
-            logger.debug("Loading store file " + storeFile.toString());
-        }
-        blockStore = new SPVBlockStore(networkParameters, storeFile);
-        if (storeFileIsFresh && runtimeVerificationUtils.fileExists(checkpointFile)) {
-            if (storeFileIsFresh) {
-                logger.debug("Loading checkpoint file to update block store before synchronization. File: " + checkpointFile.toString());
-            }
-            //load checkpoint into file
-            InputStream checkpointFileIS = new FileInputStream(checkpointFile);
-            CheckpointManager.checkpoint(networkParameters, checkpointFileIS, blockStore, wallet.getEarliestKeyCreationTime());
-        }
-    }
-
-    /**
-     * Sets up a PeerGroup which uses DnsDiscovery.
+     * Uses the shared PeerGroup, which uses DnsDiscovery, and remembers the transactions announced by its peers.
      */
     private void initPeerGroup() {
-        peerGroup = new PeerGroup(networkParameters, blockChain);
-        peerGroup.addWallet(wallet);
-        peerGroup.addPeerDiscovery(new DnsDiscovery(networkParameters));
-        //ensure that at least minBroadcastPeers peers are used for broadcast
-        if (minBroadcastPeers > peerGroup.getMinBroadcastConnections()) {
-            peerGroup.setMinBroadcastConnections(minBroadcastPeers);
-        }
+        peerGroup = sharedNetworkLayer.getPeerGroup();
+        rebroadcastScheduler = sharedNetworkLayer.getRebroadcastScheduler();
+        //remember transactions announced by peers for local lookups
+        peerGroup.addOnTransactionBroadcastListener(observedTransactionListener);
     }
 
     /**
@@ -871,6 +1627,24 @@ public class BitcoinConnection {
         }
     }
 
+    /**
+     * Blocks until the block chain was synchronised after opening the connection.
+     * Throws a RuntimeVerificationException if the synchronisation failed or the thread was interrupted.
+     */
+    protected void synchronisedChainGuard(String methodName) {
+        if (chainSynchronisationFuture.isDone()) {
+            return;
+        }
+        logger.debug(methodName + "(): Waiting for the synchronisation of the block chain.");
+        try {
+            chainSynchronisationFuture.get();
+        } catch (InterruptedException | ExecutionException e) {
+            String msg = methodName + "(): The block chain could not be synchronised.";
+            logger.warn(msg);
+            throw new RuntimeVerificationException(msg, e);
+        }
+    }
+
     /**
      * Throws a RuntimeVerificationException if the connection is open.
      */
@@ -0,0 +1,203 @@
+package at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.bitcoinj.core.*;
+import org.bitcoinj.core.listeners.NewBestBlockListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Tracks the confirmation depth of transactions without blocking a thread per waiting transaction.
+ * A single listener is registered on the TransactionConfidence of every tracked transaction and on the block chain.
+ * All bookkeeping is done by one scheduler thread, which evaluates the waiting futures on every depth or block event
+ * and completes them immediately once their depth is reached.
+ * A future completes with true if the depth was reached and with false on a timeout, a dead transaction or shutdown.
+ */
+public class ConfirmationTracker {
+
+    private final Logger logger = LoggerFactory.getLogger(ConfirmationTracker.class);
+
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * All waiting futures per tracked transaction. Only accessed by the scheduler thread.
+     */
+    private final Map<Sha256Hash, TrackedTransaction> trackedTransactions = new HashMap<>();
+
+    private final NewBestBlockListener newBestBlockListener;
+
+    private final AbstractBlockChain blockChain;
+
+    private boolean shutdown;
+
+    public ConfirmationTracker(AbstractBlockChain blockChain) {
+        this.blockChain = blockChain;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ConfirmationTracker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.newBestBlockListener = new NewBestBlockListener() {
+            @Override
+            public void notifyNewBestBlock(StoredBlock block) throws VerificationException {
+                evaluateAllTrackedTransactions();
+            }
+        };
+        blockChain.addNewBestBlockListener(scheduler, newBestBlockListener);
+    }
+
+    /**
+     * Returns a future which completes with true as soon as the given transaction has reached the given depth
+     * or with false if the timeout expired before.
+     */
+    public ListenableFuture<Boolean> trackConfirmationDepth(Transaction transaction, int depth, long timeout, TimeUnit timeUnit) {
+        final SettableFuture<Boolean> future = SettableFuture.create();
+        final TransactionConfidence confidence = transaction.getConfidence();
+        try {
+            scheduler.execute(() -> registerWaiter(transaction.getHash(), confidence, depth, timeUnit.toMillis(timeout), future));
+        } catch (RejectedExecutionException e) {
+            future.set(false);
+        }
+        return future;
+    }
+
+    /**
+     * Returns the number of transactions which are currently waited for.
+     */
+    public int getNumberOfTrackedTransactions() {
+        try {
+            return scheduler.submit(trackedTransactions::size).get();
+        } catch (InterruptedException | ExecutionException | RejectedExecutionException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Removes all listeners and completes all waiting futures with false.
+     */
+    public void shutdown() {
+        blockChain.removeNewBestBlockListener(newBestBlockListener);
+        try {
+            scheduler.submit(() -> {
+                shutdown = true;
+                for (TrackedTransaction trackedTransaction : trackedTransactions.values()) {
+                    trackedTransaction.complete(false);
+                }
+                trackedTransactions.clear();
+            }).get();
+        } catch (InterruptedException | ExecutionException | RejectedExecutionException e) {
+            logger.warn("Error while shutting down the confirmation tracker.", e);
+        }
+        scheduler.shutdownNow();
+    }
+
+    private void registerWaiter(Sha256Hash txHash, TransactionConfidence confidence, int depth, long timeoutInMS, SettableFuture<Boolean> future) {
+        if (shutdown) {
+            future.set(false);
+            return;
+        }
+        TrackedTransaction trackedTransaction = trackedTransactions.get(txHash);
+        if (trackedTransaction == null) {
+            trackedTransaction = new TrackedTransaction(txHash, confidence);
+            trackedTransactions.put(txHash, trackedTransaction);
+            confidence.addEventListener(scheduler, trackedTransaction);
+        }
+        final Waiter waiter = new Waiter(depth, future);
+        trackedTransaction.waiters.add(waiter);
+        final TrackedTransaction finalTrackedTransaction = trackedTransaction;
+        waiter.timeout = scheduler.schedule(() -> {
+            waiter.future.set(false);
+            finalTrackedTransaction.waiters.remove(waiter);
+            untrackIfDone(finalTrackedTransaction);
+        }, timeoutInMS, TimeUnit.MILLISECONDS);
+        evaluate(trackedTransaction);
+    }
+
+    private void evaluateAllTrackedTransactions() {
+        for (TrackedTransaction trackedTransaction : new ArrayList<>(trackedTransactions.values())) {
+            evaluate(trackedTransaction);
+        }
+    }
+
+    /**
+     * Completes all waiters of the given transaction whose depth was reached.
+     */
+    private void evaluate(TrackedTransaction trackedTransaction) {
+        TransactionConfidence confidence = trackedTransaction.confidence;
+        if (confidence.getConfidenceType() == TransactionConfidence.ConfidenceType.DEAD) {
+            logger.warn("The tracked transaction " + trackedTransaction.txHash + " is dead.");
+            trackedTransaction.complete(false);
+        } else if (confidence.getConfidenceType() == TransactionConfidence.ConfidenceType.BUILDING) {
+            int currentDepth = confidence.getDepthInBlocks();
+            Iterator<Waiter> iterator = trackedTransaction.waiters.iterator();
+            while (iterator.hasNext()) {
+                Waiter waiter = iterator.next();
+                if (currentDepth >= waiter.depth) {
+                    waiter.complete(true);
+                    iterator.remove();
+                }
+            }
+        }
+        untrackIfDone(trackedTransaction);
+    }
+
+    private void untrackIfDone(TrackedTransaction trackedTransaction) {
+        if (trackedTransaction.waiters.isEmpty()) {
+            trackedTransaction.confidence.removeEventListener(trackedTransaction);
+            trackedTransactions.remove(trackedTransaction.txHash);
+        }
+    }
+
+    /**
+     * A tracked transaction with its single registered confidence listener.
+     */
+    private class TrackedTransaction implements TransactionConfidence.Listener {
+
+        private final Sha256Hash txHash;
+        private final TransactionConfidence confidence;
+        private final List<Waiter> waiters = new ArrayList<>();
+
+        private TrackedTransaction(Sha256Hash txHash, TransactionConfidence confidence) {
+            this.txHash = txHash;
+            this.confidence = confidence;
+        }
+
+        @Override
+        public void onConfidenceChanged(TransactionConfidence confidence, ChangeReason reason) {
+            //called on the scheduler thread
+            if (trackedTransactions.get(txHash) == this) {
+                evaluate(this);
+            }
+        }
+
+        private void complete(boolean result) {
+            for (Waiter waiter : waiters) {
+                waiter.complete(result);
+            }
+            waiters.clear();
+        }
+    }
+
+    private static class Waiter {
+
+        private final int depth;
+        private final SettableFuture<Boolean> future;
+        private ScheduledFuture<?> timeout;
+
+        private Waiter(int depth, SettableFuture<Boolean> future) {
+            this.depth = depth;
+            this.future = future;
+        }
+
+        private void complete(boolean result) {
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+            future.set(result);
+        }
+    }
+}
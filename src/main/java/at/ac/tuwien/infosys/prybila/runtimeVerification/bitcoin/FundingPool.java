@@ -0,0 +1,273 @@
+package at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import org.bitcoinj.core.*;
+import org.bitcoinj.crypto.DeterministicKey;
+import org.bitcoinj.wallet.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pool of confirmed wallet outputs which are used to fund workflow starts.
+ * Every start claims its own confirmed coin, hence concurrent starts neither select the same outputs nor wait on the
+ * confirmation of unconfirmed change.
+ * The pool proactively fans the spendable balance of the wallet out into numberOfCoins outputs of coinValue with a
+ * single fan-out transaction as soon as less than half of the coins are ready. Only one fan-out is in flight at once.
+ * The coinValue grows to the largest value which was claimed so far.
+ * While the pool is enabled, the coin selector of the wallet skips the claimed coins and the pool coins, hence
+ * ordinary sends do not spend them. A claim which is neither spent nor released expires after CLAIM_TIMEOUT_IN_MINUTES.
+ */
+public class FundingPool {
+
+    private static final long REPLENISH_INTERVAL_IN_SECONDS = 60;
+
+    private static final long CLAIM_TIMEOUT_IN_MINUTES = 10;
+
+    private final Logger logger = LoggerFactory.getLogger(FundingPool.class);
+
+    private final Wallet wallet;
+
+    private final RebroadcastScheduler rebroadcastScheduler;
+
+    private final int numberOfCoins;
+
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * Claim times in milliseconds by the outpoints of coins which were claimed but not yet spent by a committed
+     * transaction. Read by the coin selector of the wallet without holding the lock of the pool.
+     */
+    private final Map<TransactionOutPoint, Long> claimedCoins = new ConcurrentHashMap<>();
+
+    private volatile Coin coinValue;
+
+    /**
+     * The fan-out transaction which is not yet confirmed, null if none is in flight.
+     */
+    private Transaction pendingFanOut;
+
+    public FundingPool(Wallet wallet, RebroadcastScheduler rebroadcastScheduler, int numberOfCoins, Coin coinValue) {
+        this.wallet = wallet;
+        this.rebroadcastScheduler = rebroadcastScheduler;
+        this.numberOfCoins = numberOfCoins;
+        this.coinValue = coinValue;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "FundingPool");
+            thread.setDaemon(true);
+            return thread;
+        });
+        wallet.setCoinSelector(new NonPoolCoinSelector());
+        final Context context = Context.get();
+        scheduler.execute(() -> Context.propagate(context));
+        scheduler.scheduleWithFixedDelay(this::replenish, 0, REPLENISH_INTERVAL_IN_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Claims the smallest confirmed and unclaimed coin of the wallet which is worth at least the given value.
+     * Returns null if no such coin is available.
+     * A claimed coin must be spent by a transaction committed to the wallet or released by releaseCoin().
+     */
+    public synchronized TransactionOutput claimCoin(Coin requiredValue) {
+        if (requiredValue.isGreaterThan(coinValue)) {
+            coinValue = requiredValue;
+        }
+        pruneClaims();
+        TransactionOutput claimedCoin = null;
+        for (TransactionOutput candidate : getReadyCoins(requiredValue)) {
+            if (claimedCoin == null || candidate.getValue().isLessThan(claimedCoin.getValue())) {
+                claimedCoin = candidate;
+            }
+        }
+        if (claimedCoin != null) {
+            claimedCoins.put(claimedCoin.getOutPointFor(), System.currentTimeMillis());
+            logger.debug("Claimed funding coin " + claimedCoin.getOutPointFor() + " of " + claimedCoin.getValue().toFriendlyString());
+        }
+        scheduleReplenish();
+        return claimedCoin;
+    }
+
+    /**
+     * Gives a claimed coin which was not spent back to the pool.
+     */
+    public synchronized void releaseCoin(TransactionOutput coin) {
+        claimedCoins.remove(coin.getOutPointFor());
+    }
+
+    /**
+     * Gives the claimed coins spent by the given transaction back to the pool, e.g. if it was never committed.
+     */
+    public synchronized void releaseCoinsOf(Transaction transaction) {
+        for (TransactionInput input : transaction.getInputs()) {
+            claimedCoins.remove(input.getOutpoint());
+        }
+    }
+
+    /**
+     * Returns the number of confirmed and unclaimed coins which are worth at least coinValue.
+     */
+    public synchronized int getNumberOfReadyCoins() {
+        pruneClaims();
+        return getReadyCoins(coinValue).size();
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+        wallet.setCoinSelector(new DefaultCoinSelector());
+    }
+
+    private void scheduleReplenish() {
+        try {
+            scheduler.execute(this::replenish);
+        } catch (RejectedExecutionException e) {
+            //already shut down
+        }
+    }
+
+    /**
+     * Fans the spendable balance out into new coins if less than half of numberOfCoins coins are ready.
+     */
+    private synchronized void replenish() {
+        try {
+            if (pendingFanOut != null) {
+                if (pendingFanOut.getConfidence().getConfidenceType() == TransactionConfidence.ConfidenceType.PENDING) {
+                    return;
+                }
+                pendingFanOut = null;
+            }
+            pruneClaims();
+            int readyCoins = getReadyCoins(coinValue).size();
+            if (readyCoins * 2 >= numberOfCoins) {
+                return;
+            }
+            Coin spendableBalance = wallet.getBalance(new UnclaimedCoinSelector());
+            //keep one coin worth of balance for the fee and the change
+            int coinsToCreate = (int) Math.min(numberOfCoins - readyCoins, spendableBalance.divide(coinValue) - 1);
+            if (coinsToCreate < 2) {
+                return;
+            }
+            fanOut(coinsToCreate);
+        } catch (RuntimeException | InsufficientMoneyException e) {
+            logger.warn("The funding pool could not be replenished.", e);
+        }
+    }
+
+    private void fanOut(int coinsToCreate) throws InsufficientMoneyException {
+        Transaction fanOut = new Transaction(wallet.getParams());
+        //derive all receiving keys at once, the bloom filter is only updated once
+        for (DeterministicKey key : wallet.freshKeys(KeyChain.KeyPurpose.RECEIVE_FUNDS, coinsToCreate)) {
+            fanOut.addOutput(coinValue, key.toAddress(wallet.getParams()));
+        }
+        SendRequest sendRequest = SendRequest.forTx(fanOut);
+        sendRequest.coinSelector = new UnclaimedCoinSelector();
+        wallet.completeTx(sendRequest);
+        wallet.commitTx(sendRequest.tx);
+        pendingFanOut = sendRequest.tx;
+        logger.info("Fanning out " + coinsToCreate + " funding coins of " + coinValue.toFriendlyString() + " with tx " + sendRequest.tx.getHashAsString());
+        Futures.addCallback(rebroadcastScheduler.register(sendRequest.tx, 1), new FutureCallback<Transaction>() {
+            @Override
+            public void onSuccess(Transaction result) {
+            }
+
+            @Override
+            public void onFailure(Throwable throwable) {
+                logger.warn("The fan-out transaction " + sendRequest.tx.getHashAsString() + " was not published.", throwable);
+            }
+        });
+    }
+
+    /**
+     * Returns all confirmed and unclaimed spend candidates which are worth at least the given value.
+     */
+    private List<TransactionOutput> getReadyCoins(Coin minimumValue) {
+        List<TransactionOutput> readyCoins = new ArrayList<>();
+        for (TransactionOutput candidate : wallet.calculateAllSpendCandidates(true, true)) {
+            if (candidate.getParentTransactionDepthInBlocks() > 0 &&
+                    !candidate.getValue().isLessThan(minimumValue) &&
+                    !claimedCoins.containsKey(candidate.getOutPointFor())) {
+                readyCoins.add(candidate);
+            }
+        }
+        return readyCoins;
+    }
+
+    /**
+     * Returns true if the given output is worth at least coinValue, but too small to be split into two coins.
+     * Such outputs are kept for workflow starts and are not used to fund a fan-out.
+     */
+    private boolean isPoolCoin(TransactionOutput output) {
+        return !output.getValue().isLessThan(coinValue) && output.getValue().isLessThan(coinValue.multiply(2));
+    }
+
+    /**
+     * Removes all claims of coins which were spent by a transaction committed to the wallet and all expired claims.
+     */
+    private void pruneClaims() {
+        long expiredBefore = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(CLAIM_TIMEOUT_IN_MINUTES);
+        Iterator<Map.Entry<TransactionOutPoint, Long>> iterator = claimedCoins.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<TransactionOutPoint, Long> claim = iterator.next();
+            TransactionOutPoint outPoint = claim.getKey();
+            Transaction parent = wallet.getTransaction(outPoint.getHash());
+            if (parent == null || !parent.getOutput(outPoint.getIndex()).isAvailableForSpending()) {
+                iterator.remove();
+            } else if (claim.getValue() < expiredBefore) {
+                logger.warn("The claim of funding coin " + outPoint + " expired without being spent.");
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Selects the largest selectable outputs which are neither claimed by a workflow start nor kept as pool coins.
+     */
+    private class UnclaimedCoinSelector implements CoinSelector {
+
+        @Override
+        public CoinSelection select(Coin target, List<TransactionOutput> candidates) {
+            List<TransactionOutput> sortedCandidates = new ArrayList<>(candidates);
+            sortedCandidates.sort((a, b) -> b.getValue().compareTo(a.getValue()));
+            List<TransactionOutput> selected = new ArrayList<>();
+            long total = 0;
+            for (TransactionOutput candidate : sortedCandidates) {
+                if (total >= target.value) {
+                    break;
+                }
+                if (claimedCoins.containsKey(candidate.getOutPointFor()) ||
+                        isPoolCoin(candidate) ||
+                        !DefaultCoinSelector.isSelectable(candidate.getParentTransaction())) {
+                    continue;
+                }
+                selected.add(candidate);
+                total += candidate.getValue().value;
+            }
+            return new CoinSelection(Coin.valueOf(total), selected);
+        }
+    }
+
+    /**
+     * Coin selector of the wallet, selects like the DefaultCoinSelector but skips claimed coins and pool coins.
+     */
+    private class NonPoolCoinSelector implements CoinSelector {
+
+        private final CoinSelector defaultCoinSelector = new DefaultCoinSelector();
+
+        @Override
+        public CoinSelection select(Coin target, List<TransactionOutput> candidates) {
+            List<TransactionOutput> nonPoolCandidates = new ArrayList<>();
+            for (TransactionOutput candidate : candidates) {
+                if (!claimedCoins.containsKey(candidate.getOutPointFor()) && !isPoolCoin(candidate)) {
+                    nonPoolCandidates.add(candidate);
+                }
+            }
+            return defaultCoinSelector.select(target, nonPoolCandidates);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin;
+
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.crypto.DeterministicKey;
+import org.bitcoinj.wallet.KeyChain;
+import org.bitcoinj.wallet.Wallet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Pool of pre-derived receiving keys of a wallet.
+ * The keys are derived from the deterministic key chain of the wallet instead of being created randomly and imported
+ * one by one. The pool is refilled in batches by a background thread as soon as it falls below a low water mark,
+ * hence the wallet adds the keys of a batch at once and the bloom filter of the PeerGroup is only recalculated
+ * once per refill. Taking a key is a lock free poll unless the pool ran empty.
+ * Every taken key stays issued in the key chain, since the outputs paid to it must remain spendable and traceable.
+ * Hence the key set and the bloom filter of the wallet still grow by one key per handover, only the number of
+ * filter recalculations is reduced.
+ */
+public class KeyPool {
+
+    private final Logger logger = LoggerFactory.getLogger(KeyPool.class);
+
+    private final Wallet wallet;
+
+    private final int batchSize;
+
+    private final int lowWaterMark;
+
+    private final Queue<ECKey> pooledKeys = new ConcurrentLinkedQueue<>();
+
+    private final ExecutorService refillExecutor;
+
+    private final AtomicBoolean refillScheduled = new AtomicBoolean(false);
+
+    public KeyPool(Wallet wallet, int batchSize, int lowWaterMark) {
+        this.wallet = wallet;
+        this.batchSize = Math.max(1, batchSize);
+        this.lowWaterMark = Math.max(0, Math.min(lowWaterMark, this.batchSize - 1));
+        if (wallet.isDeterministicUpgradeRequired()) {
+            //wallets which only contain imported keys get a deterministic key chain seeded by their oldest key
+            logger.info("Upgrading the wallet to a deterministic key chain.");
+            wallet.upgradeToDeterministic(null);
+        }
+        this.refillExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "KeyPoolRefill");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduleRefill();
+    }
+
+    /**
+     * Returns an unused receiving key of the wallet, including its private key.
+     * Derives a batch of keys on the calling thread if the pool is empty.
+     */
+    public ECKey takeKey() {
+        ECKey key = pooledKeys.poll();
+        while (key == null) {
+            refill();
+            key = pooledKeys.poll();
+        }
+        if (pooledKeys.size() <= lowWaterMark) {
+            scheduleRefill();
+        }
+        return key;
+    }
+
+    /**
+     * Returns the number of keys which are ready to be taken.
+     */
+    public int getNumberOfPooledKeys() {
+        return pooledKeys.size();
+    }
+
+    /**
+     * Stops the background refilling. The pooled keys remain issued in the wallet, at most one batch is not used.
+     */
+    public void shutdown() {
+        refillExecutor.shutdownNow();
+    }
+
+    private void scheduleRefill() {
+        if (refillScheduled.compareAndSet(false, true)) {
+            try {
+                refillExecutor.execute(() -> {
+                    try {
+                        refill();
+                    } finally {
+                        refillScheduled.set(false);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                refillScheduled.set(false);
+            }
+        }
+    }
+
+    /**
+     * Issues a batch of keys of the deterministic key chain at once and derives their private keys.
+     */
+    private synchronized void refill() {
+        if (pooledKeys.size() > lowWaterMark) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        List<DeterministicKey> freshKeys = wallet.freshKeys(KeyChain.KeyPurpose.RECEIVE_FUNDS, batchSize);
+        for (DeterministicKey freshKey : freshKeys) {
+            //detach the key from its chain, the private key is derived once here instead of on every signature
+            pooledKeys.add(ECKey.fromPrivateAndPrecalculatedPublic(freshKey.getPrivKeyBytes(), freshKey.getPubKey()));
+        }
+        logger.debug("Derived " + freshKeys.size() + " keys for the key pool in " + (System.currentTimeMillis() - start) + "ms");
+    }
+}
@@ -0,0 +1,203 @@
+package at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.bitcoinj.core.PeerGroup;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * Owns all unconfirmed own transactions and rebroadcasts them in the background until they reach their
+ * confirmation depth.
+ * The peers which announced a transaction back to us are counted by its TransactionConfidence. A transaction is only
+ * rebroadcast if it was seen by less than minBroadcastPeers peers. The checks are repeated with an exponential backoff.
+ * All bookkeeping is done by one scheduler thread, the broadcasts themselves do not block it.
+ */
+public class RebroadcastScheduler {
+
+    private static final long INITIAL_BACKOFF_IN_MS = 30 * 1000;
+    private static final long MAXIMUM_BACKOFF_IN_MS = 30 * 60 * 1000;
+
+    private final Logger logger = LoggerFactory.getLogger(RebroadcastScheduler.class);
+
+    private final ScheduledExecutorService scheduler;
+
+    private final PeerGroup peerGroup;
+
+    private final int minBroadcastPeers;
+
+    /**
+     * All owned transactions. Only accessed by the scheduler thread.
+     */
+    private final Map<Sha256Hash, OwnedTransaction> ownedTransactions = new HashMap<>();
+
+    private boolean shutdown;
+
+    public RebroadcastScheduler(PeerGroup peerGroup, int minBroadcastPeers) {
+        this.peerGroup = peerGroup;
+        this.minBroadcastPeers = Math.max(1, minBroadcastPeers);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "RebroadcastScheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Takes ownership of the given transaction until it has reached the given confirmation depth or is dead.
+     * The transaction is broadcast immediately unless it was already seen by enough peers.
+     * Registering an already owned transaction does not cause an additional broadcast.
+     * Returns a future which completes as soon as the transaction was seen by at least one peer or is part of the
+     * block chain. It fails if the transaction is dead or the scheduler was shut down.
+     */
+    public ListenableFuture<Transaction> register(Transaction transaction, int depthUntilConfirmed) {
+        SettableFuture<Transaction> seenByPeersFuture = SettableFuture.create();
+        try {
+            scheduler.execute(() -> {
+                if (shutdown) {
+                    seenByPeersFuture.setException(new CancellationException("The rebroadcast scheduler was shut down."));
+                    return;
+                }
+                OwnedTransaction ownedTransaction = ownedTransactions.get(transaction.getHash());
+                if (ownedTransaction == null) {
+                    ownedTransaction = new OwnedTransaction(transaction, depthUntilConfirmed);
+                    ownedTransactions.put(transaction.getHash(), ownedTransaction);
+                    logger.debug("Taking ownership of transaction " + transaction.getHashAsString());
+                    check(ownedTransaction);
+                } else {
+                    ownedTransaction.depthUntilConfirmed = Math.max(ownedTransaction.depthUntilConfirmed, depthUntilConfirmed);
+                }
+                Futures.addCallback(ownedTransaction.seenByPeersFuture, new FutureCallback<Transaction>() {
+                    @Override
+                    public void onSuccess(Transaction result) {
+                        seenByPeersFuture.set(result);
+                    }
+
+                    @Override
+                    public void onFailure(Throwable throwable) {
+                        seenByPeersFuture.setException(throwable);
+                    }
+                });
+            });
+        } catch (RejectedExecutionException e) {
+            seenByPeersFuture.setException(e);
+        }
+        return seenByPeersFuture;
+    }
+
+    /**
+     * Returns the number of transactions which are currently owned by the scheduler.
+     */
+    public int getNumberOfOwnedTransactions() {
+        try {
+            return scheduler.submit(ownedTransactions::size).get();
+        } catch (InterruptedException | ExecutionException | RejectedExecutionException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Stops all rebroadcasts. Waiting futures fail with a CancellationException.
+     */
+    public void shutdown() {
+        try {
+            scheduler.submit(() -> {
+                shutdown = true;
+                for (OwnedTransaction ownedTransaction : ownedTransactions.values()) {
+                    ownedTransaction.seenByPeersFuture.setException(new CancellationException("The rebroadcast scheduler was shut down."));
+                }
+                ownedTransactions.clear();
+            }).get();
+        } catch (InterruptedException | ExecutionException | RejectedExecutionException e) {
+            logger.warn("Error while shutting down the rebroadcast scheduler.", e);
+        }
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Releases the transaction if it is confirmed or dead, rebroadcasts it if it was not seen by enough peers
+     * and schedules the next check.
+     */
+    private void check(OwnedTransaction ownedTransaction) {
+        if (shutdown || ownedTransactions.get(ownedTransaction.transaction.getHash()) != ownedTransaction) {
+            return;
+        }
+        String txHash = ownedTransaction.transaction.getHashAsString();
+        TransactionConfidence confidence = ownedTransaction.transaction.getConfidence();
+        switch (confidence.getConfidenceType()) {
+            case DEAD:
+                logger.warn("The owned transaction " + txHash + " is dead and will no longer be rebroadcast.");
+                ownedTransaction.seenByPeersFuture.setException(new CancellationException("The transaction " + txHash + " is dead."));
+                ownedTransactions.remove(ownedTransaction.transaction.getHash());
+                return;
+            case BUILDING:
+                ownedTransaction.seenByPeersFuture.set(ownedTransaction.transaction);
+                if (confidence.getDepthInBlocks() >= ownedTransaction.depthUntilConfirmed) {
+                    logger.debug("The owned transaction " + txHash + " was confirmed and is released.");
+                    ownedTransactions.remove(ownedTransaction.transaction.getHash());
+                    return;
+                }
+                break;
+            default:
+                int numBroadcastPeers = confidence.numBroadcastPeers();
+                if (numBroadcastPeers > 0) {
+                    ownedTransaction.seenByPeersFuture.set(ownedTransaction.transaction);
+                }
+                if (numBroadcastPeers < minBroadcastPeers) {
+                    broadcast(ownedTransaction, numBroadcastPeers);
+                }
+        }
+        long backoffInMS = Math.min(MAXIMUM_BACKOFF_IN_MS, INITIAL_BACKOFF_IN_MS << Math.min(ownedTransaction.numberOfChecks, 16));
+        ownedTransaction.numberOfChecks++;
+        scheduler.schedule(() -> check(ownedTransaction), backoffInMS, TimeUnit.MILLISECONDS);
+    }
+
+    private void broadcast(OwnedTransaction ownedTransaction, int numBroadcastPeers) {
+        String txHash = ownedTransaction.transaction.getHashAsString();
+        logger.debug("Broadcasting tx " + txHash + " (seen by " + numBroadcastPeers + " peers, check " + ownedTransaction.numberOfChecks + ")");
+        ListenableFuture<Transaction> broadcastFuture;
+        try {
+            broadcastFuture = peerGroup.broadcastTransaction(ownedTransaction.transaction).future();
+        } catch (RuntimeException e) {
+            logger.warn("Broadcast of tx " + txHash + " failed.", e);
+            return;
+        }
+        Futures.addCallback(broadcastFuture, new FutureCallback<Transaction>() {
+            @Override
+            public void onSuccess(Transaction result) {
+                logger.debug("Transaction was broadcast with txHash " + txHash);
+                ownedTransaction.seenByPeersFuture.set(ownedTransaction.transaction);
+            }
+
+            @Override
+            public void onFailure(Throwable throwable) {
+                logger.warn("Broadcast of tx " + txHash + " was not accepted and will no longer be rebroadcast.", throwable);
+                ownedTransaction.seenByPeersFuture.setException(throwable);
+                ownedTransactions.remove(ownedTransaction.transaction.getHash());
+            }
+        }, scheduler);
+    }
+
+    private static class OwnedTransaction {
+
+        private final Transaction transaction;
+        private final SettableFuture<Transaction> seenByPeersFuture;
+        private int depthUntilConfirmed;
+        private int numberOfChecks;
+
+        private OwnedTransaction(Transaction transaction, int depthUntilConfirmed) {
+            this.transaction = transaction;
+            this.depthUntilConfirmed = depthUntilConfirmed;
+            this.seenByPeersFuture = SettableFuture.create();
+        }
+    }
+}
@@ -0,0 +1,320 @@
+package at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin;
+
+import at.ac.tuwien.infosys.prybila.runtimeVerification.utils.RuntimeVerificationException;
+import at.ac.tuwien.infosys.prybila.runtimeVerification.utils.RuntimeVerificationUtils;
+import org.bitcoinj.core.AbstractBlockChain;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.BlockChain;
+import org.bitcoinj.core.CheckpointManager;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.PeerGroup;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.VerificationException;
+import org.bitcoinj.net.discovery.DnsDiscovery;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.SPVBlockStore;
+import org.bitcoinj.wallet.Wallet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Network layer which is shared by all BitcoinConnections of one JVM which use the same NetworkParameters.
+ * Holds a single blockStore, BlockChain and PeerGroup to which the wallets of the connections are attached.
+ * The ConfirmationTracker and RebroadcastScheduler only depend on the transactions and are shared as well.
+ * <p>
+ * The layer is created by the first attached wallet and uses its storeFile, checkpointFile and minBroadcastPeers,
+ * differing settings of later wallets are logged and ignored. It is stopped as soon as the last wallet was detached.
+ * A wallet which has seen a different number of blocks than the shared chain is caught up before it is attached,
+ * since the BlockChain would otherwise roll the shared blockStore back and replay the blocks into the synchronised
+ * wallets a second time. The blocks it missed are taken from the shared blockStore and downloaded from a peer of the
+ * shared PeerGroup. Only a wallet whose last seen block is not in the shared blockStore, e.g. because it lags behind
+ * more blocks than the store keeps, gets a network layer of its own on its own storeFile.
+ */
+public class SharedNetworkLayer {
+
+    private static final Logger logger = LoggerFactory.getLogger(SharedNetworkLayer.class);
+
+    /**
+     * The open network layers per NetworkParameters id.
+     */
+    private static final Map<String, SharedNetworkLayer> sharedNetworkLayers = new HashMap<>();
+
+    /**
+     * Maximal number of times a lagging wallet is caught up, if new blocks arrive while it is caught up.
+     */
+    private static final int maxCatchUpAttempts = 3;
+
+    private static final long blockDownloadTimeoutInSeconds = 60;
+
+    private final NetworkParameters networkParameters;
+    private final File storeFile;
+    private final File checkpointFile;
+    private final int minBroadcastPeers;
+
+    private final BlockStore blockStore;
+    private final SharedBlockChain blockChain;
+    private final PeerGroup peerGroup;
+    private final ConfirmationTracker confirmationTracker;
+    private final RebroadcastScheduler rebroadcastScheduler;
+
+    private int numberOfAttachedWallets;
+
+    /**
+     * Attaches the given wallet to the network layer of the given NetworkParameters.
+     * Creates and starts the network layer if no wallet is attached to it yet.
+     * IMPORTANT: Every attached wallet must be detached by detachWallet()
+     */
+    public static SharedNetworkLayer attachWallet(NetworkParameters networkParameters, File storeFile, File checkpointFile,
+                                                  Wallet wallet, int minBroadcastPeers) throws IOException, BlockStoreException {
+        synchronized (sharedNetworkLayers) {
+            SharedNetworkLayer sharedNetworkLayer = sharedNetworkLayers.get(networkParameters.getId());
+            if (sharedNetworkLayer == null) {
+                sharedNetworkLayer = new SharedNetworkLayer(networkParameters, storeFile, checkpointFile, wallet, minBroadcastPeers);
+                sharedNetworkLayers.put(networkParameters.getId(), sharedNetworkLayer);
+                sharedNetworkLayer.blockChain.addWallet(wallet);
+            } else if (!sharedNetworkLayer.catchUpAndAddWallet(wallet)) {
+                int chainHeight = sharedNetworkLayer.blockChain.getBestChainHeight();
+                if (sharedNetworkLayer.storeFile.equals(storeFile)) {
+                    throw new RuntimeVerificationException("The wallet has seen " + wallet.getLastBlockSeenHeight()
+                            + " blocks, which are not in the shared store file " + storeFile + " with " + chainHeight + " blocks.");
+                }
+                logger.warn("The wallet has seen " + wallet.getLastBlockSeenHeight() + " blocks, which are not in the shared chain with "
+                        + chainHeight + " blocks. Using a network layer of its own on " + storeFile);
+                sharedNetworkLayer = new SharedNetworkLayer(networkParameters, storeFile, checkpointFile, wallet, minBroadcastPeers);
+                sharedNetworkLayer.blockChain.addWallet(wallet);
+            } else {
+                sharedNetworkLayer.logConflictingConfiguration(storeFile, checkpointFile, minBroadcastPeers);
+            }
+            sharedNetworkLayer.peerGroup.addWallet(wallet);
+            sharedNetworkLayer.numberOfAttachedWallets++;
+            logger.debug(sharedNetworkLayer.numberOfAttachedWallets + " wallets are attached to the network layer of " + networkParameters.getId());
+            return sharedNetworkLayer;
+        }
+    }
+
+    /**
+     * Returns the number of wallets attached to the network layer of the given NetworkParameters.
+     */
+    public static int getNumberOfAttachedWallets(NetworkParameters networkParameters) {
+        synchronized (sharedNetworkLayers) {
+            SharedNetworkLayer sharedNetworkLayer = sharedNetworkLayers.get(networkParameters.getId());
+            return sharedNetworkLayer == null ? 0 : sharedNetworkLayer.numberOfAttachedWallets;
+        }
+    }
+
+    /**
+     * Replays the blocks of the shared chain the given wallet has not seen yet and adds it to the shared BlockChain.
+     * A wallet which has seen more blocks than the shared chain is added after the shared chain was synchronised.
+     * Returns false if the wallet could not be caught up, the wallet is not added then.
+     */
+    private boolean catchUpAndAddWallet(Wallet wallet) throws BlockStoreException {
+        if (wallet.getLastBlockSeenHeight() > blockChain.getBestChainHeight()) {
+            downloadBlockChain();
+        }
+        for (int attempt = 0; attempt < maxCatchUpAttempts; attempt++) {
+            LinkedList<StoredBlock> missedBlocks = getBlocksAfter(wallet.getLastBlockSeenHash(), wallet.getLastBlockSeenHeight());
+            if (missedBlocks == null) {
+                return false;
+            }
+            if (!missedBlocks.isEmpty()) {
+                logger.info("Catching up a wallet with the " + missedBlocks.size() + " blocks it missed of the shared chain.");
+            }
+            for (StoredBlock missedBlock : missedBlocks) {
+                replayBlock(wallet, missedBlock);
+            }
+            if (blockChain.addWalletIfSynchronised(wallet)) {
+                return true;
+            }
+        }
+        logger.warn("The shared chain grew faster than a lagging wallet was caught up.");
+        return false;
+    }
+
+    /**
+     * Returns the blocks of the shared chain after the given block in ascending order.
+     * Returns an empty list for a wallet which has not seen any block yet or is synchronised with the shared chain.
+     * Returns null if the given block is not in the shared blockStore.
+     */
+    private LinkedList<StoredBlock> getBlocksAfter(Sha256Hash lastBlockSeenHash, int lastBlockSeenHeight) throws BlockStoreException {
+        LinkedList<StoredBlock> blocks = new LinkedList<>();
+        if (lastBlockSeenHash == null || lastBlockSeenHeight <= 0) {
+            return blocks;
+        }
+        StoredBlock block = blockChain.getChainHead();
+        while (block != null && block.getHeight() > lastBlockSeenHeight) {
+            blocks.addFirst(block);
+            block = block.getPrev(blockStore);
+        }
+        if (block == null || !block.getHeader().getHash().equals(lastBlockSeenHash)) {
+            return null;
+        }
+        return blocks;
+    }
+
+    /**
+     * Passes the transactions of the given block and the block itself to the wallet like the BlockChain does.
+     * The blockStore only holds the headers, the block is downloaded from a peer.
+     */
+    private void replayBlock(Wallet wallet, StoredBlock storedBlock) {
+        Block block;
+        try {
+            block = peerGroup.waitForPeers(1).get(blockDownloadTimeoutInSeconds, TimeUnit.SECONDS).get(0)
+                    .getBlock(storedBlock.getHeader().getHash()).get(blockDownloadTimeoutInSeconds, TimeUnit.SECONDS);
+        } catch (InterruptedException | ExecutionException | TimeoutException e) {
+            throw new RuntimeVerificationException("Failed to download block " + storedBlock.getHeight()
+                    + " to catch up a lagging wallet.", e);
+        }
+        try {
+            int relativityOffset = 0;
+            for (Transaction transaction : block.getTransactions()) {
+                wallet.receiveFromBlock(transaction, storedBlock, AbstractBlockChain.NewBlockType.BEST_CHAIN, relativityOffset++);
+            }
+            wallet.notifyNewBestBlock(storedBlock);
+        } catch (VerificationException e) {
+            throw new RuntimeVerificationException("Failed to replay block " + storedBlock.getHeight()
+                    + " into a lagging wallet.", e);
+        }
+    }
+
+    private void logConflictingConfiguration(File storeFile, File checkpointFile, int minBroadcastPeers) {
+        if (!this.storeFile.equals(storeFile)) {
+            logger.warn("Using the shared store file " + this.storeFile + " instead of " + storeFile);
+        }
+        if (checkpointFile != null && !checkpointFile.equals(this.checkpointFile)) {
+            logger.warn("Using the checkpoint file " + this.checkpointFile + " of the shared store instead of " + checkpointFile);
+        }
+        if (minBroadcastPeers != this.minBroadcastPeers) {
+            logger.warn("Using " + this.minBroadcastPeers + " instead of " + minBroadcastPeers + " minimal broadcast peers of the shared network layer.");
+        }
+    }
+
+    private SharedNetworkLayer(NetworkParameters networkParameters, File storeFile, File checkpointFile, Wallet wallet,
+                               int minBroadcastPeers) throws IOException, BlockStoreException {
+        this.networkParameters = networkParameters;
+        this.storeFile = storeFile;
+        this.checkpointFile = checkpointFile;
+        this.minBroadcastPeers = minBroadcastPeers;
+        logger.debug("Creating the shared network layer of " + networkParameters.getId());
+        blockStore = loadBlockStore(checkpointFile, wallet);
+        //SPV implementation of the block chain
+        blockChain = new SharedBlockChain(networkParameters, blockStore);
+        confirmationTracker = new ConfirmationTracker(blockChain);
+        peerGroup = new PeerGroup(networkParameters, blockChain);
+        peerGroup.addPeerDiscovery(new DnsDiscovery(networkParameters));
+        //ensure that at least minBroadcastPeers peers are used for broadcast
+        if (minBroadcastPeers > peerGroup.getMinBroadcastConnections()) {
+            peerGroup.setMinBroadcastConnections(minBroadcastPeers);
+        }
+        rebroadcastScheduler = new RebroadcastScheduler(peerGroup, minBroadcastPeers);
+        //connect to Bitcoin Network peers
+        peerGroup.start();
+    }
+
+    /**
+     * Detaches the given wallet. Stops the network layer if it was the last attached wallet.
+     */
+    public void detachWallet(Wallet wallet) throws BlockStoreException {
+        synchronized (sharedNetworkLayers) {
+            peerGroup.removeWallet(wallet);
+            blockChain.removeWallet(wallet);
+            numberOfAttachedWallets--;
+            if (numberOfAttachedWallets > 0) {
+                return;
+            }
+            logger.debug("Stopping the shared network layer of " + networkParameters.getId());
+            //a network layer of a single wallet is not registered
+            sharedNetworkLayers.remove(networkParameters.getId(), this);
+            rebroadcastScheduler.shutdown();
+            peerGroup.stop();
+            confirmationTracker.shutdown();
+            blockStore.close();
+        }
+    }
+
+    /**
+     * Synchronises the block chain with the peers.
+     * Concurrent downloads are serialized, since the PeerGroup only supports one download listener at a time.
+     * Returns immediately if the chain is already synchronised.
+     */
+    public synchronized void downloadBlockChain() {
+        peerGroup.downloadBlockChain();
+    }
+
+    public BlockChain getBlockChain() {
+        return blockChain;
+    }
+
+    public PeerGroup getPeerGroup() {
+        return peerGroup;
+    }
+
+    public ConfirmationTracker getConfirmationTracker() {
+        return confirmationTracker;
+    }
+
+    public RebroadcastScheduler getRebroadcastScheduler() {
+        return rebroadcastScheduler;
+    }
+
+    /**
+     * Loads the blockStore from storeFile or creates a new one.
+     * Synchronises the blockStore with the checkpointFile if it was supplied.
+     */
+    private BlockStore loadBlockStore(File checkpointFile, Wallet wallet) throws IOException, BlockStoreException {
+        boolean storeFileIsFresh = !storeFile.exists();
+        if (!storeFileIsFresh) {
+            logger.debug("Loading store file " + storeFile.toString());
+        }
+        BlockStore blockStore = new SPVBlockStore(networkParameters, storeFile);
+        if (storeFileIsFresh && new RuntimeVerificationUtils().fileExists(checkpointFile)) {
+            logger.debug("Loading checkpoint file to update block store before synchronization. File: " + checkpointFile.toString());
+            //load checkpoint into file
+            try (InputStream checkpointFileIS = new FileInputStream(checkpointFile)) {
+                CheckpointManager.checkpoint(networkParameters, checkpointFileIS, blockStore, wallet.getEarliestKeyCreationTime());
+            }
+        }
+        return blockStore;
+    }
+
+    /**
+     * BlockChain which can add a wallet atomically with the check of its height.
+     */
+    private static class SharedBlockChain extends BlockChain {
+
+        private SharedBlockChain(NetworkParameters networkParameters, BlockStore blockStore) throws BlockStoreException {
+            super(networkParameters, blockStore);
+        }
+
+        /**
+         * Adds the given wallet if it has seen as many blocks as the chain or no block at all.
+         * No block is added to the chain meanwhile, so the wallet misses none and the blockStore is not rolled back.
+         */
+        private boolean addWalletIfSynchronised(Wallet wallet) {
+            lock.lock();
+            try {
+                int walletHeight = wallet.getLastBlockSeenHeight();
+                if (walletHeight > 0 && walletHeight != getBestChainHeight()) {
+                    return false;
+                }
+                addWallet(wallet);
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
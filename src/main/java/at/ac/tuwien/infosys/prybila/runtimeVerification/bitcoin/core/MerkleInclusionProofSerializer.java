@@ -0,0 +1,68 @@
+package at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.core;
+
+import at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.core.model.MerkleInclusionProof;
+import at.ac.tuwien.infosys.prybila.runtimeVerification.utils.RuntimeVerificationException;
+import org.bitcoinj.core.Sha256Hash;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Converts a MerkleInclusionProof from/to the byte representation which is sent along with the held transactions.
+ * The leaf hash, the anchor transaction hash and the Merkle root are followed by the number of levels and a side
+ * flag and the sibling hash per level.
+ */
+public class MerkleInclusionProofSerializer {
+
+    private static final int sizeOfHash = 32;
+
+    private static final int sizeOfHeader = 3 * sizeOfHash + 1;
+
+    /**
+     * The batch of a proof has less than 2^maxDepth leafs.
+     */
+    private static final int maxDepth = 64;
+
+    public byte[] serializeProof(MerkleInclusionProof proof) {
+        List<byte[]> siblingHashes = proof.getSiblingHashes();
+        boolean[] siblingIsLeft = proof.getSiblingIsLeft();
+        byte[] proofBytes = new byte[sizeOfHeader + siblingHashes.size() * (sizeOfHash + 1)];
+        System.arraycopy(Sha256Hash.wrap(proof.getLeafTxHash()).getBytes(), 0, proofBytes, 0, sizeOfHash);
+        System.arraycopy(Sha256Hash.wrap(proof.getAnchorTxHash()).getBytes(), 0, proofBytes, sizeOfHash, sizeOfHash);
+        System.arraycopy(proof.getMerkleRoot(), 0, proofBytes, 2 * sizeOfHash, sizeOfHash);
+        proofBytes[3 * sizeOfHash] = (byte) siblingHashes.size();
+        int position = sizeOfHeader;
+        for (int i = 0; i < siblingHashes.size(); i++) {
+            proofBytes[position] = (byte) (siblingIsLeft[i] ? 1 : 0);
+            System.arraycopy(siblingHashes.get(i), 0, proofBytes, position + 1, sizeOfHash);
+            position += sizeOfHash + 1;
+        }
+        return proofBytes;
+    }
+
+    /**
+     * Throws a RuntimeVerificationException if the given bytes are no serialized proof.
+     */
+    public MerkleInclusionProof deserializeProof(byte[] proofBytes) {
+        if (proofBytes == null || proofBytes.length < sizeOfHeader) {
+            throw new RuntimeVerificationException("The received anchoring proof is too short.");
+        }
+        int depth = proofBytes[3 * sizeOfHash] & 0xFF;
+        if (depth > maxDepth || proofBytes.length != sizeOfHeader + depth * (sizeOfHash + 1)) {
+            throw new RuntimeVerificationException("The received anchoring proof of depth " + depth + " has an invalid length.");
+        }
+        String leafTxHash = Sha256Hash.wrap(Arrays.copyOfRange(proofBytes, 0, sizeOfHash)).toString();
+        String anchorTxHash = Sha256Hash.wrap(Arrays.copyOfRange(proofBytes, sizeOfHash, 2 * sizeOfHash)).toString();
+        byte[] merkleRoot = Arrays.copyOfRange(proofBytes, 2 * sizeOfHash, 3 * sizeOfHash);
+        List<byte[]> siblingHashes = new ArrayList<>();
+        boolean[] siblingIsLeft = new boolean[depth];
+        int position = sizeOfHeader;
+        for (int i = 0; i < depth; i++) {
+            siblingIsLeft[i] = proofBytes[position] != 0;
+            siblingHashes.add(Arrays.copyOfRange(proofBytes, position + 1, position + 1 + sizeOfHash));
+            position += sizeOfHash + 1;
+        }
+        return new MerkleInclusionProof(leafTxHash, siblingHashes, siblingIsLeft, merkleRoot, anchorTxHash);
+    }
+}
@@ -0,0 +1,72 @@
+package at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.core;
+
+import at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.crawler.model.ParsedOutput;
+import at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.crawler.model.ParsedTransaction;
+import org.bitcoinj.script.Script;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.bitcoinj.script.ScriptOpCodes.OP_RETURN;
+
+/**
+ * Converts the Merkle root of a batch of handovers from/to an OP_RETURN byte block
+ */
+public class MerkleRootDataBlockConverter {
+
+    private static final byte[] batchRootMarker = "Handover batch.".getBytes();
+
+    private static final int sizeOfMerkleRoot = 32;
+
+    /**
+     * Returns the datablock anchoring the given Merkle root, i.e. the marker followed by the root.
+     */
+    public byte[] serializeToMerkleRootBlock(byte[] merkleRoot) {
+        byte[] dataBlock = Arrays.copyOf(batchRootMarker, batchRootMarker.length + sizeOfMerkleRoot);
+        System.arraycopy(merkleRoot, 0, dataBlock, batchRootMarker.length, sizeOfMerkleRoot);
+        return dataBlock;
+    }
+
+    /**
+     * Returns the Merkle root contained in the given datablock or null if it is not a Merkle root block.
+     */
+    public byte[] getMerkleRootOfDataBlock(byte[] dataBlock) {
+        if (dataBlock == null || dataBlock.length != batchRootMarker.length + sizeOfMerkleRoot) {
+            return null;
+        }
+        if (!Arrays.equals(Arrays.copyOf(dataBlock, batchRootMarker.length), batchRootMarker)) {
+            return null;
+        }
+        return Arrays.copyOfRange(dataBlock, batchRootMarker.length, dataBlock.length);
+    }
+
+    /**
+     * Returns true if one of the given output scripts is an OP_RETURN output anchoring the given Merkle root.
+     */
+    public boolean anchorsMerkleRoot(List<byte[]> outputScripts, byte[] merkleRoot) {
+        for (byte[] outputScript : outputScripts) {
+            Script dataScript = new Script(outputScript);
+            if (dataScript.getChunks().size() != 2 || dataScript.getChunks().get(0).opcode != OP_RETURN) {
+                continue;
+            }
+            if (Arrays.equals(getMerkleRootOfDataBlock(dataScript.getChunks().get(1).data), merkleRoot)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if the given transaction found by a crawler has an OP_RETURN output anchoring the given Merkle root.
+     */
+    public boolean anchorsMerkleRoot(ParsedTransaction anchorTransaction, byte[] merkleRoot) {
+        List<byte[]> outputScripts = new ArrayList<>();
+        if (anchorTransaction.getOutputs() != null) {
+            for (ParsedOutput parsedOutput : anchorTransaction.getOutputs()) {
+                outputScripts.add(parsedOutput.getScriptBytes());
+            }
+        }
+        return anchorsMerkleRoot(outputScripts, merkleRoot);
+    }
+}
@@ -0,0 +1,87 @@
+package at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.core;
+
+import at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.core.model.MerkleInclusionProof;
+import at.ac.tuwien.infosys.prybila.runtimeVerification.utils.RuntimeVerificationException;
+import org.bitcoinj.core.Sha256Hash;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds the Merkle tree over a batch of handover transactions.
+ * Inner nodes are the double SHA-256 of the concatenated child hashes, like in the transaction tree of a Bitcoin block.
+ * Unlike there, the last node of a level with an odd number of nodes is promoted unchanged to the next level instead of
+ * being paired with itself. Otherwise the leaves [a, b, c] and [a, b, c, c] would result in the same root.
+ */
+public class MerkleTreeBuilder {
+
+    private final List<String> leafTxHashes;
+
+    /**
+     * All levels of the tree, starting with the leaves and ending with the root.
+     */
+    private final List<List<byte[]>> levels;
+
+    public MerkleTreeBuilder(List<String> leafTxHashes) {
+        if (leafTxHashes == null || leafTxHashes.isEmpty()) {
+            throw new RuntimeVerificationException("A Merkle tree requires at least one leaf.");
+        }
+        this.leafTxHashes = new ArrayList<>(leafTxHashes);
+        this.levels = new ArrayList<>();
+        List<byte[]> currentLevel = new ArrayList<>();
+        for (String leafTxHash : leafTxHashes) {
+            currentLevel.add(Sha256Hash.wrap(leafTxHash).getBytes());
+        }
+        levels.add(currentLevel);
+        while (currentLevel.size() > 1) {
+            List<byte[]> nextLevel = new ArrayList<>();
+            for (int i = 0; i < currentLevel.size(); i += 2) {
+                if (i + 1 < currentLevel.size()) {
+                    nextLevel.add(hashPair(currentLevel.get(i), currentLevel.get(i + 1)));
+                } else {
+                    nextLevel.add(currentLevel.get(i));
+                }
+            }
+            levels.add(nextLevel);
+            currentLevel = nextLevel;
+        }
+    }
+
+    /**
+     * Returns the double SHA-256 of the concatenation of the given node hashes.
+     */
+    public static byte[] hashPair(byte[] left, byte[] right) {
+        return Sha256Hash.hashTwice(left, 0, left.length, right, 0, right.length);
+    }
+
+    public byte[] getMerkleRoot() {
+        return levels.get(levels.size() - 1).get(0);
+    }
+
+    /**
+     * Returns the inclusion proof of the leaf with the given index for a root anchored in the given transaction.
+     * Levels on which the node was promoted without sibling contribute no sibling hash.
+     */
+    public MerkleInclusionProof getInclusionProof(int leafIndex, String anchorTxHash) {
+        if (leafIndex < 0 || leafIndex >= leafTxHashes.size()) {
+            throw new RuntimeVerificationException("The Merkle tree has no leaf with index " + leafIndex + ".");
+        }
+        List<byte[]> siblingHashes = new ArrayList<>();
+        List<Boolean> siblingIsLeftOfLevels = new ArrayList<>();
+        int index = leafIndex;
+        for (int level = 0; level < levels.size() - 1; level++) {
+            List<byte[]> nodes = levels.get(level);
+            int siblingIndex = index % 2 == 0 ? index + 1 : index - 1;
+            if (siblingIndex < nodes.size()) {
+                siblingHashes.add(nodes.get(siblingIndex));
+                siblingIsLeftOfLevels.add(index % 2 == 1);
+            }
+            index /= 2;
+        }
+        boolean[] siblingIsLeft = new boolean[siblingIsLeftOfLevels.size()];
+        for (int i = 0; i < siblingIsLeft.length; i++) {
+            siblingIsLeft[i] = siblingIsLeftOfLevels.get(i);
+        }
+        return new MerkleInclusionProof(leafTxHashes.get(leafIndex), siblingHashes, siblingIsLeft, getMerkleRoot(), anchorTxHash);
+    }
+}
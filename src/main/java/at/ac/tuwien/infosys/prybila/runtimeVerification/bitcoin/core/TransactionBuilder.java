@@ -13,6 +13,9 @@ import org.bitcoinj.wallet.SendRequest;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
 
 import static org.bitcoinj.script.ScriptOpCodes.*;
 
@@ -22,6 +25,17 @@ import static org.bitcoinj.script.ScriptOpCodes.*;
  */
 public class TransactionBuilder {
 
+    /**
+     * Minimal number of inputs of a transaction whose inputs are signed and verified in parallel.
+     * Below, the ECDSA operations are cheaper than forking them.
+     */
+    private static final int minNumOfInputsForParallelProcessing = 4;
+
+    /**
+     * Pool to sign and verify the inputs of wide join transactions, shared by all builders.
+     */
+    private static final ForkJoinPool inputProcessingPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
     private WorkflowDataBlockConverter workflowDataBlockConverter;
 
     public TransactionBuilder() {
@@ -299,17 +313,23 @@ public class TransactionBuilder {
                 request, allInputsScriptLength, addressesToRedeemPreviousP2SHOutput.size());
 
         //Sign inputs of transaction
-        for (int i = 0; i < addressesToRedeemPreviousP2SHOutput.size(); i++) {
-            Script redeemScriptForPreviousTransaction = redeemScriptsForPreviousTransaction.get(i);
-            ECKey keyForPreviousTransaction = keysForPreviousTransaction.get(i);
-            TransactionInput transactionInput = transactionInputs.get(i);
-            Sha256Hash hashForSignature = request.tx.hashForSignature(i, redeemScriptForPreviousTransaction, Transaction.SigHash.ALL, false);
-            ECKey.ECDSASignature signature = keyForPreviousTransaction.sign(hashForSignature);
-            Script validSigScript = createP2SHRedeemScriptCombinedWithPublicKeyAndSignature(redeemScriptForPreviousTransaction, keyForPreviousTransaction, signature);
-
-            transactionInput.setScriptSig(validSigScript);
-            transactionInput.verify(transactionInput.getConnectedOutput());
+        //The signature hash of an input does not cover the sigScripts, hence all inputs are signed before setting them.
+        final Transaction transaction = request.tx;
+        ECKey.ECDSASignature[] signatures = new ECKey.ECDSASignature[transactionInputs.size()];
+        forEachInput(transactionInputs.size(), i -> {
+            Sha256Hash hashForSignature = transaction.hashForSignature(i, redeemScriptsForPreviousTransaction.get(i), Transaction.SigHash.ALL, false);
+            signatures[i] = keysForPreviousTransaction.get(i).sign(hashForSignature);
+        });
+        for (int i = 0; i < transactionInputs.size(); i++) {
+            Script validSigScript = createP2SHRedeemScriptCombinedWithPublicKeyAndSignature(
+                    redeemScriptsForPreviousTransaction.get(i), keysForPreviousTransaction.get(i), signatures[i]);
+            transactionInputs.get(i).setScriptSig(validSigScript);
         }
+        List<TransactionOutput> connectedOutputs = new ArrayList<>();
+        for (TransactionInput transactionInput : transactionInputs) {
+            connectedOutputs.add(transactionInput.getConnectedOutput());
+        }
+        verifyInputs(transactionInputs, connectedOutputs);
 
         TransactionStructureVerifier transactionStructureVerifier = new TransactionStructureVerifier(
                 TransactionReference.getReferenceForVerificationOnly(request.tx));
@@ -374,6 +394,17 @@ public class TransactionBuilder {
         return sendRequest;
     }
 
+    /**
+     * Creates a transaction anchoring the Merkle root of a batch of handovers in its OP_RETURN output.
+     * The transaction does not move any token.
+     * NOTE: This transaction must still be finished with "wallet.completeTx(request);"
+     */
+    public SendRequest createMerkleRootAnchorTransaction(byte[] merkleRoot, NetworkParameters networkParameters) {
+        SendRequest request = SendRequest.forTx(new Transaction(networkParameters));
+        addDatablockOutputToTransaction(request.tx, new MerkleRootDataBlockConverter().serializeToMerkleRootBlock(merkleRoot));
+        return request;
+    }
+
     /**
      * Returns the OP_RETURN data of the given transaction.
      */
@@ -393,6 +424,32 @@ public class TransactionBuilder {
         addDatablockOutputToTransaction(transaction, newDatablock);
     }
 
+    /**
+     * Verifies that the given inputs correctly spend the connected outputs with the same index.
+     * Throws a VerificationException otherwise.
+     * Wide transactions are verified in parallel, the transaction of the inputs must not be modified meanwhile.
+     */
+    public void verifyInputs(List<TransactionInput> inputs, List<TransactionOutput> connectedOutputs) {
+        if (inputs.size() != connectedOutputs.size()) {
+            throw new RuntimeVerificationException("Not every input to verify is connected to an output.");
+        }
+        forEachInput(inputs.size(), i -> inputs.get(i).verify(connectedOutputs.get(i)));
+    }
+
+    /**
+     * Performs the given action for every input index, in parallel if there are enough inputs.
+     * Exceptions of the action are rethrown.
+     */
+    private void forEachInput(int numOfInputs, IntConsumer action) {
+        if (numOfInputs < minNumOfInputsForParallelProcessing) {
+            for (int i = 0; i < numOfInputs; i++) {
+                action.accept(i);
+            }
+            return;
+        }
+        inputProcessingPool.submit(() -> IntStream.range(0, numOfInputs).parallel().forEach(action)).join();
+    }
+
     /**
      * Combines the P2SH redeem script with the pubKey and the signature in order to be a valid sigScript for the
      * Handover transaction input.
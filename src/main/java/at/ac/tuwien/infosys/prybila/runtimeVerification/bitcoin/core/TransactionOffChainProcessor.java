@@ -3,18 +3,25 @@ package at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.core;
 import at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.core.model.TransactionReference;
 import at.ac.tuwien.infosys.prybila.runtimeVerification.utils.RuntimeVerificationException;
 import org.bitcoinj.core.*;
-import org.bitcoinj.script.ScriptBuilder;
 import org.bitcoinj.script.ScriptChunk;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.security.MessageDigest;
 import java.util.List;
 
+import static org.bitcoinj.script.ScriptOpCodes.OP_PUSHDATA1;
+import static org.bitcoinj.script.ScriptOpCodes.OP_RETURN;
+
 /**
  * Enables off chain transaction signing and validation as defined in the workflow runtime crawler concept.
  */
 public class TransactionOffChainProcessor {
 
+    /**
+     * Reusable SHA-256 digest of every thread, the adjusted transaction is streamed into it.
+     */
+    private static final ThreadLocal<MessageDigest> digests = ThreadLocal.withInitial(Sha256Hash::newDigest);
+
     /**
      * Signs the content of transaction with the given key.
      * Returns the signature as byte[] encoded in DER.
@@ -24,55 +31,130 @@ public class TransactionOffChainProcessor {
         return privateKey.sign(hash).encodeToDER();
     }
 
-    private Sha256Hash getOffChainHashOfTransaction(Transaction transaction, NetworkParameters parameters) throws IOException {
-        Transaction transactionCopy = copyAndAdjustTransaction(transaction, parameters);
-        ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(
-                transactionCopy.getMessageSize() == Message.UNKNOWN_LENGTH ? 256 : transactionCopy.getMessageSize());
-        transactionCopy.bitcoinSerialize(bos);
-        Sha256Hash hash = Sha256Hash.twiceOf(bos.toByteArray());
-        bos.close();
-        return hash;
-    }
-
     /**
-     * Creates a copy and adjusts the transaction before hashing, if necessary.
-     * Removes the on-chain signature in the sigScript if present.
-     * Removes the off-chain signature in the OP_RETURN data block if present.
+     * Returns the double SHA-256 of the adjusted transaction, i.e. the hash covered by the off-chain signature.
+     * The adjusted transaction is not built, its serialization is streamed into the digest:
+     * The on-chain signature in the sigScript is skipped if present.
+     * The off-chain signature in the OP_RETURN data block is replaced by the padding of an unsigned block if present.
      * Throws a RuntimeVerificationException if the transaction does not fit the expected handover-transaction structure.
      */
-    private Transaction copyAndAdjustTransaction(Transaction transaction, NetworkParameters parameters) {
+    public Sha256Hash getOffChainHashOfTransaction(Transaction transaction, NetworkParameters parameters) {
         TransactionStructureVerifier transactionStructureVerifier = new TransactionStructureVerifier(
                 TransactionReference.getReferenceForVerificationOnly(transaction)
         );
         if (!transactionStructureVerifier.isWFHandoverTransaction()) {
             throw new RuntimeVerificationException("The given transaction " + transaction + " is not a common handover transaction.");
         }
+        MessageDigest digest = digests.get();
+        digest.reset();
+        byte[] buffer = new byte[32];
+
+        writeUint32(digest, buffer, transaction.getVersion());
+        List<TransactionInput> inputs = transaction.getInputs();
+        writeVarInt(digest, buffer, inputs.size());
+        for (int i = 0; i < inputs.size(); i++) {
+            TransactionInput input = inputs.get(i);
+            TransactionOutPoint outpoint = input.getOutpoint();
+            byte[] previousTxHash = outpoint.getHash().getBytes();
+            for (int j = 0; j < previousTxHash.length; j++) {
+                buffer[j] = previousTxHash[previousTxHash.length - 1 - j];
+            }
+            digest.update(buffer, 0, previousTxHash.length);
+            writeUint32(digest, buffer, outpoint.getIndex());
+            byte[] scriptBytes = input.getScriptBytes();
+            int startOfScript = i == 0 ? getStartOfScriptWithoutOnChainSignature(input) : 0;
+            writeVarInt(digest, buffer, scriptBytes.length - startOfScript);
+            digest.update(scriptBytes, startOfScript, scriptBytes.length - startOfScript);
+            writeUint32(digest, buffer, input.getSequenceNumber());
+        }
 
-        //create copy
-        Transaction copy = parameters.getDefaultSerializer().makeTransaction(transaction.bitcoinSerialize());
-
-        //check and adjust the input sigScript
-        TransactionInput transactionInput = copy.getInput(0);
-        ScriptChunk lastChunkOfScript = transactionInput.getScriptSig().getChunks().get(0);
-        //If the last part of the input-sigScript does not have the size of a public key it is considered to be a signature.
-        if (lastChunkOfScript.data.length != 33) {
-            ScriptBuilder scriptBuilderForReducedScript = new ScriptBuilder();
-            //Ignore the topmost script part
-            List<ScriptChunk> chunks = transactionInput.getScriptSig().getChunks();
-            for (int i = 1; i < chunks.size(); i++) {
-                scriptBuilderForReducedScript.addChunk(chunks.get(i));
+        List<TransactionOutput> outputs = transaction.getOutputs();
+        writeVarInt(digest, buffer, outputs.size());
+        for (int i = 0; i < outputs.size(); i++) {
+            TransactionOutput output = outputs.get(i);
+            byte[] dataBlockWithoutSignature = i == 1 ? getDataBlockWithoutSignature(output) : null;
+            if (dataBlockWithoutSignature == null) {
+                writeInt64(digest, buffer, output.getValue().value);
+                byte[] scriptBytes = output.getScriptBytes();
+                writeVarInt(digest, buffer, scriptBytes.length);
+                digest.update(scriptBytes);
+            } else {
+                //same output as the one created by TransactionBuilder.replaceOpReturnBlockWithNewOne
+                writeInt64(digest, buffer, Coin.ZERO.value);
+                writeOpReturnScript(digest, buffer, dataBlockWithoutSignature);
             }
-            transactionInput.setScriptSig(scriptBuilderForReducedScript.build());
         }
+        writeUint32(digest, buffer, transaction.getLockTime());
+
+        byte[] singleHash = digest.digest();
+        return Sha256Hash.wrap(digest.digest(singleHash));
+    }
+
+    /**
+     * Returns the index of the sigScript after the on-chain signature or 0 if the sigScript contains no signature.
+     * If the topmost part of the sigScript does not have the size of a public key it is considered to be a signature.
+     */
+    private int getStartOfScriptWithoutOnChainSignature(TransactionInput transactionInput) {
+        List<ScriptChunk> chunks = transactionInput.getScriptSig().getChunks();
+        if (chunks.get(0).data.length == 33) {
+            return 0;
+        }
+        return chunks.size() > 1 ? chunks.get(1).getStartLocationInProgram() : transactionInput.getScriptBytes().length;
+    }
 
-        TransactionOutput opReturnOutput = copy.getOutput(1);
+    /**
+     * Returns the data block of the given OP_RETURN output without the off-chain signature or null if it contains none.
+     * The data block was already parsed by the TransactionStructureVerifier, hence the signature is not decoded again.
+     */
+    private byte[] getDataBlockWithoutSignature(TransactionOutput opReturnOutput) {
         byte[] opReturnData = opReturnOutput.getScriptPubKey().getChunks().get(1).data;
-        WorkflowDataBlockConverter workflowDataBlockConverter = new WorkflowDataBlockConverter(opReturnData);
-        if (workflowDataBlockConverter.getSignature() != null) {
-            byte[] dataBlockWithoutSignature = workflowDataBlockConverter.serializeToSignedDataBlock(false);
-            new TransactionBuilder().replaceOpReturnBlockWithNewOne(dataBlockWithoutSignature, copy);
+        return WorkflowDataBlockConverter.getDataBlockWithoutSignature(opReturnData);
+    }
+
+    /**
+     * Writes the length prefixed OP_RETURN script with the given data, encoded like the ScriptBuilder does.
+     */
+    private void writeOpReturnScript(MessageDigest digest, byte[] buffer, byte[] data) {
+        if (data.length < 2 || data.length > 0xFF) {
+            throw new RuntimeVerificationException("The provided datablock was not well formed.");
+        }
+        boolean needsPushDataOpCode = data.length >= OP_PUSHDATA1;
+        writeVarInt(digest, buffer, data.length + (needsPushDataOpCode ? 3 : 2));
+        digest.update((byte) OP_RETURN);
+        if (needsPushDataOpCode) {
+            digest.update((byte) OP_PUSHDATA1);
+        }
+        digest.update((byte) data.length);
+        digest.update(data);
+    }
+
+    private void writeUint32(MessageDigest digest, byte[] buffer, long value) {
+        Utils.uint32ToByteArrayLE(value, buffer, 0);
+        digest.update(buffer, 0, 4);
+    }
+
+    private void writeInt64(MessageDigest digest, byte[] buffer, long value) {
+        Utils.uint64ToByteArrayLE(value, buffer, 0);
+        digest.update(buffer, 0, 8);
+    }
+
+    /**
+     * Writes the given count as Bitcoin VarInt, see org.bitcoinj.core.VarInt.
+     */
+    private void writeVarInt(MessageDigest digest, byte[] buffer, long value) {
+        if (value < 0xFD) {
+            digest.update((byte) value);
+        } else if (value <= 0xFFFF) {
+            digest.update((byte) 0xFD);
+            digest.update((byte) value);
+            digest.update((byte) (value >> 8));
+        } else if (value <= 0xFFFFFFFFL) {
+            digest.update((byte) 0xFE);
+            writeUint32(digest, buffer, value);
+        } else {
+            digest.update((byte) 0xFF);
+            writeInt64(digest, buffer, value);
         }
-        return copy;
     }
 
     /**
@@ -184,6 +184,32 @@ public class WorkflowDataBlockConverter implements Serializable {
         return signedDataBlock;
     }
 
+    /**
+     * Returns the given handover data block with the off-chain signature replaced by the padding of an unsigned block,
+     * i.e. the block returned by serializeToSignedDataBlock(false), or null if the block contains no signature.
+     * Expects a well-formed handover data block, the signature itself is neither decoded nor validated.
+     */
+    public static byte[] getDataBlockWithoutSignature(byte[] signedDataBlock) {
+        if (signedDataBlock.length != sizeOfHandoverBlock) {
+            return null;
+        }
+        int lengthOfDataPrecedingSignature = sizeOfLengthField + sizeOfDatablockField;
+        if (signedDataBlock[0] == lengthOfDataPrecedingSignature) {
+            return null;
+        }
+        boolean signatureIsEmpty = true;
+        for (int i = lengthOfDataPrecedingSignature; i < signedDataBlock.length && signatureIsEmpty; i++) {
+            signatureIsEmpty = signedDataBlock[i] == 0;
+        }
+        if (signatureIsEmpty) {
+            return null;
+        }
+        byte[] dataBlockWithoutSignature = new byte[sizeOfHandoverBlock];
+        dataBlockWithoutSignature[0] = (byte) sizeOfDatablockField;
+        System.arraycopy(signedDataBlock, sizeOfLengthField, dataBlockWithoutSignature, sizeOfLengthField, sizeOfDatablockField);
+        return dataBlockWithoutSignature;
+    }
+
     /**
      * Returns a workflow data block with a start marker attached.
      * {lengthOfData:1byte}{wfDataBlock:7byte}{wfStartMarker:wfStartMarker.getBytes().length}
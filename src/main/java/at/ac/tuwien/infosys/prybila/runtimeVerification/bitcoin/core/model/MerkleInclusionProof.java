@@ -0,0 +1,100 @@
+package at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.core.model;
+
+import at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.core.MerkleTreeBuilder;
+import org.bitcoinj.core.Sha256Hash;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Proof that a handover transaction is a leaf of a batch whose Merkle root was anchored in the block chain.
+ * Contains the sibling hashes on the path from the leaf to the root and the hash of the anchor transaction.
+ */
+public class MerkleInclusionProof implements Serializable {
+
+    private static final long serialVersionUID = -2871553470389402217L;
+
+    /**
+     * Hash of the handover transaction, i.e. the leaf of the tree.
+     */
+    private String leafTxHash;
+
+    /**
+     * Sibling hashes from the leaf level up to the level below the root.
+     * Levels on which the node has no sibling are skipped, the node is promoted unchanged there.
+     */
+    private List<byte[]> siblingHashes;
+
+    /**
+     * Flags indicating if the sibling of the same level is the left node of the pair.
+     */
+    private boolean[] siblingIsLeft;
+
+    private byte[] merkleRoot;
+
+    /**
+     * Hash of the transaction whose OP_RETURN output contains the merkleRoot.
+     */
+    private String anchorTxHash;
+
+    public MerkleInclusionProof(String leafTxHash, List<byte[]> siblingHashes, boolean[] siblingIsLeft, byte[] merkleRoot, String anchorTxHash) {
+        this.leafTxHash = leafTxHash;
+        this.siblingHashes = siblingHashes;
+        this.siblingIsLeft = siblingIsLeft;
+        this.merkleRoot = merkleRoot;
+        this.anchorTxHash = anchorTxHash;
+    }
+
+    /**
+     * Recomputes the Merkle root from the leaf and the sibling hashes.
+     */
+    public byte[] computeMerkleRoot() {
+        byte[] currentHash = Sha256Hash.wrap(leafTxHash).getBytes();
+        for (int i = 0; i < siblingHashes.size(); i++) {
+            if (siblingIsLeft[i]) {
+                currentHash = MerkleTreeBuilder.hashPair(siblingHashes.get(i), currentHash);
+            } else {
+                currentHash = MerkleTreeBuilder.hashPair(currentHash, siblingHashes.get(i));
+            }
+        }
+        return currentHash;
+    }
+
+    /**
+     * Returns true if the proof belongs to the given transaction and leads to the stored Merkle root.
+     */
+    public boolean isValidFor(String txHash) {
+        return leafTxHash.equals(txHash) && Arrays.equals(computeMerkleRoot(), merkleRoot);
+    }
+
+    public String getLeafTxHash() {
+        return leafTxHash;
+    }
+
+    public List<byte[]> getSiblingHashes() {
+        return siblingHashes;
+    }
+
+    public boolean[] getSiblingIsLeft() {
+        return siblingIsLeft;
+    }
+
+    public byte[] getMerkleRoot() {
+        return merkleRoot;
+    }
+
+    public String getAnchorTxHash() {
+        return anchorTxHash;
+    }
+
+    @Override
+    public String toString() {
+        return "MerkleInclusionProof{" +
+                "leafTxHash='" + leafTxHash + '\'' +
+                ", depth=" + siblingHashes.size() +
+                ", merkleRoot=" + Sha256Hash.wrap(merkleRoot) +
+                ", anchorTxHash='" + anchorTxHash + '\'' +
+                '}';
+    }
+}
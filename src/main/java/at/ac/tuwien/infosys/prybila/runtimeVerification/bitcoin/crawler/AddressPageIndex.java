@@ -0,0 +1,81 @@
+package at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.crawler;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Index over the already fetched address pages of a crawler.
+ * Maps each output (txHash, outputIndex) referenced on an address page to the txHash of the transaction spending it.
+ * An address page only needs to be fetched once per crawling pass, all outputs on that page are resolved through the index.
+ * If the index is persistent, already known spending transactions are kept across passes and must not be fetched again.
+ */
+public class AddressPageIndex {
+
+    private Set<String> indexedAddresses;
+
+    private Map<String, String> spentByOfOutput;
+
+    private boolean persistent;
+
+    public AddressPageIndex(boolean persistent) {
+        this.persistent = persistent;
+        this.indexedAddresses = new HashSet<>();
+        this.spentByOfOutput = new HashMap<>();
+    }
+
+    /**
+     * Returns true if the page of the given address was already indexed during the current pass.
+     */
+    public boolean isIndexed(String address) {
+        return indexedAddresses.contains(address);
+    }
+
+    /**
+     * Marks the page of the given address as indexed for the current pass.
+     */
+    public void markAsIndexed(String address) {
+        indexedAddresses.add(address);
+    }
+
+    /**
+     * Stores the spending transaction of the given output.
+     * Null values are ignored.
+     */
+    public void putSpentBy(String txHash, int outputIndex, String spentBy) {
+        if (txHash == null || spentBy == null) {
+            return;
+        }
+        spentByOfOutput.put(getKey(txHash, outputIndex), spentBy);
+    }
+
+    /**
+     * Returns the txHash of the transaction spending the given output or null if it is unknown.
+     */
+    public String getSpentBy(String txHash, int outputIndex) {
+        if (txHash == null) {
+            return null;
+        }
+        return spentByOfOutput.get(getKey(txHash, outputIndex));
+    }
+
+    /**
+     * Starts a new crawling pass.
+     * All address pages must be fetched again, known spending transactions are only kept if the index is persistent.
+     */
+    public void startNewPass() {
+        indexedAddresses.clear();
+        if (!persistent) {
+            spentByOfOutput.clear();
+        }
+    }
+
+    public boolean isPersistent() {
+        return persistent;
+    }
+
+    private String getKey(String txHash, int outputIndex) {
+        return txHash + ":" + outputIndex;
+    }
+}
@@ -16,6 +16,7 @@ import org.slf4j.Logger;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * Abstract interfaces and utility methods for the needed BlockChain crawling functionality.
@@ -23,7 +24,19 @@ import java.util.*;
  */
 public abstract class BlockChainCrawler {
 
+    private static final long INITIAL_BACKOFF_IN_MS = 1000;
+    private static final long MAXIMUM_BACKOFF_IN_MS = 64000;
+
+    /**
+     * Shared by all crawlers in order to reuse the open connections to the API.
+     */
+    private static final CloseableHttpClient httpclient = HttpClients.custom()
+            .setMaxConnPerRoute(20)
+            .setMaxConnTotal(50)
+            .build();
+
     private String restURLToRetrieveTransactions;
+    private int maxRetriesOnRateLimit;
     protected Logger logger;
     protected Map<String, JsonObject> cache;
     protected boolean useCache;
@@ -45,6 +58,15 @@ public abstract class BlockChainCrawler {
         utils.notEmpty(topLevelElementsConfirmingThatObjectIsATransaction);
         this.restURLToRetrieveTransactions = restURLToRetrieveTransactions;
         this.topLevelElementsConfirmingThatObjectIsATransaction = topLevelElementsConfirmingThatObjectIsATransaction;
+        this.maxRetriesOnRateLimit = utils.readCrawlerMaxRetriesFromProperties();
+    }
+
+    /**
+     * Constructor for crawlers which do not submit REST requests themselves.
+     */
+    protected BlockChainCrawler() {
+        cache = new HashMap<>();
+        useCache = false;
     }
 
     /**
@@ -90,12 +112,106 @@ public abstract class BlockChainCrawler {
         return convertToTransaction(jsonObject, simple, logRequest);
     }
 
+    /**
+     * Returns the online-information about all transactions with the given hashes.
+     * Transactions which were not found by the crawler are not contained in the resulting map.
+     */
+    public Map<String, ParsedTransaction> getTransactionInformation(Collection<String> txHashes) throws IOException {
+        return getTransactionInformation(txHashes, false, true);
+    }
+
+    /**
+     * Returns the online-information about all transactions with the given hashes, mapped by their txHash.
+     * The hashes are requested in batches of at most getMaximumBatchSize() elements.
+     * If a batch request fails or some of its transactions are missing in the response, the missing transactions
+     * are requested one by one. Transactions which are still not found are not contained in the resulting map.
+     * If the simple flag is set to true, no child elements to a transaction will be fetched.
+     * Accepts a flag if the resulting REST requests should be logged.
+     */
+    public Map<String, ParsedTransaction> getTransactionInformation(Collection<String> txHashes, boolean simple, boolean logRequest) throws IOException {
+        Map<String, ParsedTransaction> result = new LinkedHashMap<>();
+        if (txHashes == null || txHashes.isEmpty()) {
+            return result;
+        }
+        List<String> uniqueTxHashes = new ArrayList<>(new LinkedHashSet<>(txHashes));
+        Map<String, JsonObject> foundJsonObjects = new HashMap<>();
+        List<String> txHashesToRequest = new ArrayList<>();
+        for (String txHash : uniqueTxHashes) {
+            String url = getURLOfTransaction(txHash);
+            if (useCache && cache.containsKey(url) && cache.get(url) != null) {
+                foundJsonObjects.put(txHash, cache.get(url));
+            } else {
+                txHashesToRequest.add(txHash);
+            }
+        }
+        int batchSize = Math.max(1, getMaximumBatchSize());
+        for (int i = 0; i < txHashesToRequest.size(); i += batchSize) {
+            List<String> batch = txHashesToRequest.subList(i, Math.min(i + batchSize, txHashesToRequest.size()));
+            if (batch.size() > 1) {
+                try {
+                    foundJsonObjects.putAll(getTransactionInformationAsJson(batch, logRequest));
+                } catch (IOException | RuntimeException e) {
+                    logger.warn("Batch request for " + batch.size() + " transactions failed. Falling back to single requests.", e);
+                }
+            }
+            //partial failure, request the remaining transactions one by one
+            for (String txHash : batch) {
+                if (foundJsonObjects.containsKey(txHash)) {
+                    continue;
+                }
+                JsonObject jsonObject = getTransactionInformationAsJson(txHash, logRequest);
+                if (jsonObject != null) {
+                    foundJsonObjects.put(txHash, jsonObject);
+                }
+            }
+        }
+        for (String txHash : uniqueTxHashes) {
+            JsonObject jsonObject = foundJsonObjects.get(txHash);
+            if (jsonObject != null) {
+                result.put(txHash, convertToTransaction(jsonObject, simple, logRequest));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of transactions that can be requested at once through the API.
+     * A value of 1 disables batch requests.
+     */
+    protected int getMaximumBatchSize() {
+        return 1;
+    }
+
+    /**
+     * Returns the URL to request the given (possibly already joined) transaction hashes.
+     */
+    protected String getURLOfTransaction(String txHash) {
+        return String.format(restURLToRetrieveTransactions, txHash);
+    }
+
+    /**
+     * Requests the given transactions in a single batch request.
+     * Returns the found transactions mapped by their txHash. Transactions not contained in the response are omitted.
+     * Must only be called with batches that do not exceed getMaximumBatchSize().
+     * Crawlers whose API supports batch requests override this, by default the transactions are requested one by one.
+     */
+    protected Map<String, JsonObject> getTransactionInformationAsJson(List<String> txHashes, boolean logRequest) throws IOException {
+        Map<String, JsonObject> foundJsonObjects = new LinkedHashMap<>();
+        for (String txHash : txHashes) {
+            JsonObject jsonObject = getTransactionInformationAsJson(txHash, logRequest);
+            if (jsonObject != null) {
+                foundJsonObjects.put(txHash, jsonObject);
+            }
+        }
+        return foundJsonObjects;
+    }
+
     /**
      * Returns the online-information about the transaction with the given hash as JSON object or null.
      * Accepts a flag if the resulting REST requests should be logged.
      */
     protected JsonObject getTransactionInformationAsJson(String txHash, boolean logRequest) throws IOException {
-        JsonObject jsonObject = getJsonObjectFromURL(String.format(restURLToRetrieveTransactions, txHash), logRequest);
+        JsonObject jsonObject = getJsonObjectFromURL(getURLOfTransaction(txHash), logRequest);
         if (jsonObject == null) {
             jsonObject = new JsonObject();
         }
@@ -114,7 +230,7 @@ public abstract class BlockChainCrawler {
     }
 
 
-    private boolean isTransaction(JsonObject txObject) {
+    protected boolean isTransaction(JsonObject txObject) {
         for (String toplevelElement : topLevelElementsConfirmingThatObjectIsATransaction) {
             if (txObject.get(toplevelElement) == null) {
                 return false;
@@ -142,6 +258,34 @@ public abstract class BlockChainCrawler {
         return null;
     }
 
+    /**
+     * Returns the objects of the JSON array found at the given URL or null if the response was not a valid JSON array.
+     * Each object is checked and filtered through applyAdditionalCheckAndFilter.
+     * The responses to batch requests are not cached.
+     */
+    protected List<JsonObject> getJsonObjectsFromURL(String url, boolean logRequest) throws IOException {
+        String jsonArrayAsString = getContentOfUrl(url, logRequest);
+        JsonArray parsedArray;
+        try {
+            JsonParser parser = new JsonParser();
+            parsedArray = parser.parse(jsonArrayAsString).getAsJsonArray();
+        } catch (Exception e) {
+            //response was not a valid JSON array
+            return null;
+        }
+        List<JsonObject> parsedObjects = new ArrayList<>();
+        for (JsonElement element : parsedArray) {
+            if (!element.isJsonObject()) {
+                continue;
+            }
+            JsonObject parsedObject = applyAdditionalCheckAndFilter(element.getAsJsonObject());
+            if (parsedObject != null) {
+                parsedObjects.add(parsedObject);
+            }
+        }
+        return parsedObjects;
+    }
+
     /**
      * Returns all confirmed and unconfirmed transactions related to this address.
      */
@@ -201,23 +345,40 @@ public abstract class BlockChainCrawler {
 
     /**
      * Simple method to submit GET requests and return the result.
+     * If the API signals an exceeded request limit, the request is repeated after an exponential backoff with jitter
+     * which respects the waiting time requested by the API. After maxRetriesOnRateLimit attempts the
+     * RateLimitExceededException is passed on.
      * Accepts a flag if the request should be logged.
      */
     protected String getContentOfUrl(String url, boolean logRequest) throws IOException {
         if (logRequest) {
             logger.debug("Submitting get request on " + url);
         }
-        CloseableHttpClient httpclient = HttpClients.createDefault();
         HttpGet httpGet = new HttpGet(url);
-        CloseableHttpResponse response1 = httpclient.execute(httpGet);
-        throwExceptionOnError(response1);
-        String body;
-        try {
-            HttpEntity entity = response1.getEntity();
-            body = EntityUtils.toString(entity);
-            EntityUtils.consume(entity);
-        } finally {
-            response1.close();
+        String body = null;
+        int retry = 0;
+        while (body == null) {
+            long backoffInMS = 0;
+            CloseableHttpResponse response1 = httpclient.execute(httpGet);
+            try {
+                throwExceptionOnError(response1);
+                HttpEntity entity = response1.getEntity();
+                body = EntityUtils.toString(entity);
+                EntityUtils.consume(entity);
+            } catch (RateLimitExceededException e) {
+                if (retry >= maxRetriesOnRateLimit) {
+                    throw e;
+                }
+                backoffInMS = getBackoffInMS(e.getRetryAfterInMS(), retry);
+                retry++;
+                logger.warn("Request limit exceeded on " + url + ". Retrying in " + backoffInMS + " ms (attempt " + retry + " of " + maxRetriesOnRateLimit + ").");
+                onRateLimitExceeded(backoffInMS);
+            } finally {
+                response1.close();
+            }
+            if (backoffInMS > 0) {
+                sleepForMS((int) backoffInMS);
+            }
         }
         throttleRequestSpeed();
         if (logRequest) {
@@ -227,7 +388,29 @@ public abstract class BlockChainCrawler {
     }
 
     /**
-     * Returns true if the response is an error
+     * Returns the time to wait before the given retry.
+     * The exponential backoff is randomized with a jitter of up to 50% and is never shorter than the waiting time
+     * requested by the API.
+     */
+    protected long getBackoffInMS(Long retryAfterInMS, int retry) {
+        long exponentialBackoff = Math.min(MAXIMUM_BACKOFF_IN_MS, INITIAL_BACKOFF_IN_MS << Math.min(retry, 16));
+        long backoffWithJitter = exponentialBackoff / 2 + ThreadLocalRandom.current().nextLong(exponentialBackoff / 2 + 1);
+        if (retryAfterInMS != null) {
+            return Math.max(retryAfterInMS, backoffWithJitter);
+        }
+        return backoffWithJitter;
+    }
+
+    /**
+     * Called before waiting for a retry after the API signaled an exceeded request limit.
+     * Can be used to slow down subsequent requests.
+     */
+    protected void onRateLimitExceeded(long backoffInMS) {
+    }
+
+    /**
+     * Throws an exception if the response is an error.
+     * Throws a RateLimitExceededException if the request limit of the API was exceeded.
      */
     protected abstract void throwExceptionOnError(CloseableHttpResponse response) throws RuntimeException;
 
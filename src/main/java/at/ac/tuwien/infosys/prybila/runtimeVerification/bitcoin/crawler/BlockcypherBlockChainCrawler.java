@@ -5,28 +5,46 @@ import at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.crawler.model.Pa
 import at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.crawler.model.ParsedTransaction;
 import at.ac.tuwien.infosys.prybila.runtimeVerification.utils.RuntimeVerificationUtils;
 import com.google.gson.JsonObject;
+import org.apache.http.Header;
 import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.utils.DateUtils;
 import org.bitcoinj.core.Transaction;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
+import java.util.*;
 
 /**
  * Blockchain crawler using the REST API of https://api.blockcypher.com
  * Free plan as per 19.07.2016: "Classic requests, up to 3 requests/sec and 200 requests/hr"
+ * Batch requests (txs/h1;h2;h3) count as one request per batched element.
  */
 public abstract class BlockcypherBlockChainCrawler extends BlockChainCrawler {
 
+    /**
+     * The request limit of blockcypher applies to all requests of a token, so one rate limiter is shared per token.
+     */
+    private static final Map<String, RequestRateLimiter> rateLimiterPerToken = new HashMap<>();
+
     private String restURLToRetrieveAddress;
-    private int speedThrottle;
+    private RequestRateLimiter rateLimiter;
+    private int batchSize;
+    private AddressPageIndex addressPageIndex;
 
     public BlockcypherBlockChainCrawler(String restURLToRetrieveTransactions, String restURLToRetrieveAddress, String token) {
+        this(restURLToRetrieveTransactions, restURLToRetrieveAddress, token, new RuntimeVerificationUtils().readCrawlerThrottlingFromProperties());
+    }
+
+    /**
+     * Allows to override the throttling of the properties file, e.g. for a local stand-in server of the API.
+     */
+    protected BlockcypherBlockChainCrawler(String restURLToRetrieveTransactions, String restURLToRetrieveAddress, String token, int speedThrottle) {
         super(restURLToRetrieveTransactions + "?token=" + token, Arrays.asList("hash", "addresses", "total", "inputs", "outputs"));
         this.restURLToRetrieveAddress = restURLToRetrieveAddress + "?token=" + token;
-        this.speedThrottle = new RuntimeVerificationUtils().readCrawlerThrottlingFromProperties();
+        RuntimeVerificationUtils utils = new RuntimeVerificationUtils();
+        this.rateLimiter = getRateLimiterOfToken(token, speedThrottle);
+        this.batchSize = utils.readCrawlerBatchSizeFromProperties();
+        this.addressPageIndex = new AddressPageIndex(utils.readCrawlerPersistentAddressIndexFromProperties());
     }
 
     @Override
@@ -43,6 +61,10 @@ public abstract class BlockcypherBlockChainCrawler extends BlockChainCrawler {
         if (jsonObject == null) {
             return null;
         }
+        if (!useCache) {
+            //outside of a crawling pass, address pages are only reused for the outputs of a single transaction
+            addressPageIndex.startNewPass();
+        }
         ParsedTransaction parsedTransaction = new ParsedTransaction();
         parsedTransaction.setHash(getFieldAsString(jsonObject, "hash"));
         parsedTransaction.setConfirmations(getFieldAsInteger(jsonObject, "confirmations"));
@@ -73,10 +95,11 @@ public abstract class BlockcypherBlockChainCrawler extends BlockChainCrawler {
     private void collectOutputs(JsonObject jsonObject, ParsedTransaction parsedTransaction, String txHash, boolean simple, boolean logRequest) {
         List<JsonObject> outputs = getObjectsFromArray(jsonObject, "outputs");
         List<ParsedOutput> parsedOutputs = new ArrayList<>();
-        for (JsonObject output : outputs) {
+        for (int i = 0; i < outputs.size(); i++) {
+            JsonObject output = outputs.get(i);
             ParsedOutput parsedOutput = new ParsedOutput();
             parsedOutput.setAddresses(getEntriesOfPrimitiveArray(output.get("addresses")));
-            conditionalSetSpentBy(parsedOutput, output, txHash, simple, logRequest);
+            conditionalSetSpentBy(parsedOutput, output, txHash, i, simple, logRequest);
             parsedOutput.setValue(getFieldAsInteger(output, "value"));
             parsedOutput.setScriptAsHexString(getFieldAsString(output, "script"));
             parsedOutputs.add(parsedOutput);
@@ -86,9 +109,9 @@ public abstract class BlockcypherBlockChainCrawler extends BlockChainCrawler {
 
     /**
      * Tries to set the spentBy field directly from the json object or, if the following transaction is still
-     * unconfirmed, via the address page.
+     * unconfirmed, via the address page index.
      */
-    private void conditionalSetSpentBy(ParsedOutput parsedOutput, JsonObject output, String txHash, boolean simple, boolean logRequest) {
+    private void conditionalSetSpentBy(ParsedOutput parsedOutput, JsonObject output, String txHash, int outputIndex, boolean simple, boolean logRequest) {
         String spentBy = getSpentByDirectlyFromOutput(output);
         if (spentBy != null) {
             parsedOutput.setSpent_by(spentBy);
@@ -101,19 +124,35 @@ public abstract class BlockcypherBlockChainCrawler extends BlockChainCrawler {
             return;
         }
         //take the long way through address requests instead, this is required if the following tx was not yet confirmed
-        List<JsonObject> txMetaInformationOfAddresses = null;
         try {
-            txMetaInformationOfAddresses = getCompleteTxInformationForAllAddresses(parsedOutput.getAddresses(), logRequest);
+            parsedOutput.setSpent_by(getSpentByFromAddressPages(parsedOutput.getAddresses(), txHash, outputIndex, logRequest));
         } catch (IOException e) {
             LoggerFactory.getLogger(BlockcypherBlockChainCrawler.class).warn("An error occured while setting the 'spent_by' field.", e);
-            return;
         }
-        for (JsonObject txRef : txMetaInformationOfAddresses) {
-            String txHashInRef = getFieldAsString(txRef, "tx_hash");
-            if (txHashInRef != null && txHashInRef.equals(txHash)) {
-                parsedOutput.setSpent_by(getFieldAsString(txRef, "spent_by"));
+    }
+
+    /**
+     * Returns the txHash of the transaction spending the given output as listed on the address pages or null.
+     * Only the pages of addresses which were not yet indexed during the current pass are fetched.
+     */
+    private String getSpentByFromAddressPages(List<String> addresses, String txHash, int outputIndex, boolean logRequest) throws IOException {
+        String spentBy = addressPageIndex.getSpentBy(txHash, outputIndex);
+        if (spentBy != null || addresses == null) {
+            return spentBy;
+        }
+        for (String address : addresses) {
+            if (addressPageIndex.isIndexed(address)) {
+                continue;
+            }
+            for (JsonObject txRef : getCompleteTxInformationForAllAddresses(Arrays.asList(address), logRequest)) {
+                Integer outputIndexInRef = getFieldAsInteger(txRef, "tx_output_n");
+                if (outputIndexInRef != null && outputIndexInRef >= 0) {
+                    addressPageIndex.putSpentBy(getFieldAsString(txRef, "tx_hash"), outputIndexInRef, getFieldAsString(txRef, "spent_by"));
+                }
             }
+            addressPageIndex.markAsIndexed(address);
         }
+        return addressPageIndex.getSpentBy(txHash, outputIndex);
     }
 
     /**
@@ -129,26 +168,21 @@ public abstract class BlockcypherBlockChainCrawler extends BlockChainCrawler {
         //it does not matter which input we are using
         String previousTxHash = transactionTemplate.getInput(0).getOutpoint().getHash().toString();
         int outputIndex = (int) transactionTemplate.getInput(0).getOutpoint().getIndex();
+        //check if the spending transaction is already known from a previous pass
+        String knownSpentBy = addressPageIndex.getSpentBy(previousTxHash, outputIndex);
+        if (knownSpentBy != null) {
+            return getTransactionInformation(knownSpentBy);
+        }
         ParsedTransaction previousTxFoundOnline = getTransactionInformation(previousTxHash);
         ParsedOutput connectedOutput = previousTxFoundOnline.getOutputs().get(outputIndex);
         //check if handoverTemplate was already confirmed online
         if (connectedOutput.getSpent_by() != null) {
             return getTransactionInformation(connectedOutput.getSpent_by());
         }
-        //take the long way through address requests instead
-        List<JsonObject> txMetaInformationOfAddresses = getCompleteTxInformationForAllAddresses(connectedOutput.getAddresses(), true);
-        for (JsonObject txRef : txMetaInformationOfAddresses) {
-            String txHashInRef = getFieldAsString(txRef, "tx_hash");
-            if (txHashInRef != null && txHashInRef.equals(previousTxHash)) {
-                //additional sanity check
-                int outputIndexInRef = getFieldAsInteger(txRef, "tx_output_n");
-                if (outputIndexInRef == outputIndex) {
-                    String spentByInRef = getFieldAsString(txRef, "spent_by");
-                    if (spentByInRef != null) {
-                        return getTransactionInformation(spentByInRef);
-                    }
-                }
-            }
+        //take the long way through the address pages instead
+        String spentByInRef = getSpentByFromAddressPages(connectedOutput.getAddresses(), previousTxHash, outputIndex, true);
+        if (spentByInRef != null) {
+            return getTransactionInformation(spentByInRef);
         }
         return null;
     }
@@ -165,17 +199,100 @@ public abstract class BlockcypherBlockChainCrawler extends BlockChainCrawler {
         return txHashes;
     }
 
+    @Override
+    public void activateCache() {
+        super.activateCache();
+        addressPageIndex.startNewPass();
+    }
+
+    @Override
+    public void deactivateCache() {
+        super.deactivateCache();
+        addressPageIndex.startNewPass();
+    }
+
+    @Override
+    protected int getMaximumBatchSize() {
+        return batchSize;
+    }
+
+    @Override
+    protected Map<String, JsonObject> getTransactionInformationAsJson(List<String> txHashes, boolean logRequest) throws IOException {
+        Map<String, JsonObject> foundTransactions = new HashMap<>();
+        List<JsonObject> jsonObjects = getJsonObjectsFromURL(getURLOfTransaction(String.join(";", txHashes)), logRequest);
+        //the first element was already throttled by the request itself
+        for (int i = 1; i < txHashes.size(); i++) {
+            throttleRequestSpeed();
+        }
+        if (jsonObjects == null) {
+            return foundTransactions;
+        }
+        for (JsonObject jsonObject : jsonObjects) {
+            //elements of a failed lookup contain an error message instead of a transaction
+            if (!isTransaction(jsonObject)) {
+                continue;
+            }
+            String txHash = getFieldAsString(jsonObject, "hash");
+            if (txHash == null || !txHashes.contains(txHash)) {
+                continue;
+            }
+            foundTransactions.put(txHash, jsonObject);
+            if (useCache) {
+                cache.put(getURLOfTransaction(txHash), jsonObject);
+            }
+        }
+        return foundTransactions;
+    }
+
+    private static RequestRateLimiter getRateLimiterOfToken(String token, int speedThrottle) {
+        synchronized (rateLimiterPerToken) {
+            RequestRateLimiter rateLimiter = rateLimiterPerToken.get(token);
+            if (rateLimiter == null) {
+                rateLimiter = new RequestRateLimiter(speedThrottle);
+                rateLimiterPerToken.put(token, rateLimiter);
+            }
+            return rateLimiter;
+        }
+    }
+
     @Override
     protected void throttleRequestSpeed() {
         //throttle the speed according to the paid plan for blockcypher
-        sleepForMS(speedThrottle);
+        rateLimiter.throttle();
+    }
+
+    @Override
+    protected void onRateLimitExceeded(long backoffInMS) {
+        rateLimiter.onRateLimitExceeded(backoffInMS);
     }
 
     @Override
     protected void throwExceptionOnError(CloseableHttpResponse response) throws RuntimeException {
         int statusCode = response.getStatusLine().getStatusCode();
         if (statusCode == 429) {
-            throw new RuntimeException("Exceeded Request limit of BlockCipher");
+            throw new RateLimitExceededException("Exceeded Request limit of BlockCipher", getRetryAfterInMS(response));
+        }
+        rateLimiter.onSuccess();
+    }
+
+    /**
+     * Returns the waiting time of the Retry-After header in milliseconds or null if it is missing or malformed.
+     * The header contains either a number of seconds or a HTTP date.
+     */
+    private Long getRetryAfterInMS(CloseableHttpResponse response) {
+        Header retryAfterHeader = response.getFirstHeader("Retry-After");
+        if (retryAfterHeader == null || retryAfterHeader.getValue() == null) {
+            return null;
+        }
+        String retryAfter = retryAfterHeader.getValue().trim();
+        try {
+            return Math.max(0, Long.parseLong(retryAfter) * 1000);
+        } catch (NumberFormatException e) {
+            Date retryAfterDate = DateUtils.parseDate(retryAfter);
+            if (retryAfterDate == null) {
+                return null;
+            }
+            return Math.max(0, retryAfterDate.getTime() - System.currentTimeMillis());
         }
     }
 
@@ -0,0 +1,294 @@
+package at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.crawler;
+
+import at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.BitcoinConnection;
+import at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.crawler.model.ParsedInput;
+import at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.crawler.model.ParsedOutput;
+import at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.crawler.model.ParsedTransaction;
+import at.ac.tuwien.infosys.prybila.runtimeVerification.utils.RuntimeVerificationException;
+import at.ac.tuwien.infosys.prybila.runtimeVerification.utils.RuntimeVerificationUtils;
+import com.google.gson.JsonObject;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.bitcoinj.core.*;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Blockchain crawler which answers requests from the transactions known to the local BitcoinConnection first.
+ * These are the transactions of the wallet and the transactions observed from the peers of the PeerGroup.
+ * Only if a transaction is not known locally, or if the spending transaction of one of its outputs can not be
+ * observed by the local wallet, the request is passed on to the REST based fallback crawler.
+ * Without a fallback crawler, only locally known transactions are found.
+ * Transactions which are held off-chain by the BitcoinConnection are reported as unconfirmed transactions along with
+ * their anchoring proof, if they were anchored already, and are reported as spending transactions of the outputs
+ * they spend. A held transaction with an anchoring proof is confirmed as soon as its anchor transaction is.
+ */
+public class LocalBlockChainCrawler extends BlockChainCrawler {
+
+    private BlockChainCrawler fallbackCrawler;
+    private BitcoinConnection bitcoinConnection;
+    private RuntimeVerificationUtils utils;
+
+    public LocalBlockChainCrawler(BlockChainCrawler fallbackCrawler, BitcoinConnection bitcoinConnection) {
+        super();
+        utils = new RuntimeVerificationUtils();
+        utils.notNull(bitcoinConnection);
+        this.fallbackCrawler = fallbackCrawler;
+        this.bitcoinConnection = bitcoinConnection;
+        logger = LoggerFactory.getLogger(LocalBlockChainCrawler.class);
+    }
+
+    @Override
+    public ParsedTransaction getTransactionInformation(String txHash, boolean simple, boolean logRequest) throws IOException {
+        ParsedTransaction localTransaction = getLocalTransactionInformation(txHash, simple);
+        if (localTransaction != null) {
+            return localTransaction;
+        }
+        if (fallbackCrawler == null) {
+            throw new RuntimeVerificationException("The given transaction " + txHash + " was not found by the crawler.");
+        }
+        return addHeldSpendingTransactions(fallbackCrawler.getTransactionInformation(txHash, simple, logRequest));
+    }
+
+    @Override
+    public Map<String, ParsedTransaction> getTransactionInformation(Collection<String> txHashes, boolean simple, boolean logRequest) throws IOException {
+        Map<String, ParsedTransaction> result = new LinkedHashMap<>();
+        if (txHashes == null) {
+            return result;
+        }
+        List<String> missedTxHashes = new ArrayList<>();
+        for (String txHash : new LinkedHashSet<>(txHashes)) {
+            ParsedTransaction localTransaction = getLocalTransactionInformation(txHash, simple);
+            if (localTransaction != null) {
+                result.put(txHash, localTransaction);
+            } else {
+                missedTxHashes.add(txHash);
+            }
+        }
+        if (fallbackCrawler != null && !missedTxHashes.isEmpty()) {
+            for (Map.Entry<String, ParsedTransaction> entry : fallbackCrawler.getTransactionInformation(missedTxHashes, simple, logRequest).entrySet()) {
+                result.put(entry.getKey(), addHeldSpendingTransactions(entry.getValue()));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public ParsedTransaction getPublishedTransactionInformationOfHandoverTemplate(Transaction transactionTemplate) throws IOException {
+        //it does not matter which input we are using
+        TransactionOutPoint outpointOfTemplate = transactionTemplate.getInput(0).getOutpoint();
+        for (Transaction localTransaction : bitcoinConnection.getLocallyKnownTransactions()) {
+            if (!isUsable(localTransaction)) {
+                continue;
+            }
+            for (TransactionInput input : localTransaction.getInputs()) {
+                if (input.getOutpoint().getHash().equals(outpointOfTemplate.getHash()) &&
+                        input.getOutpoint().getIndex() == outpointOfTemplate.getIndex()) {
+                    return convertToTransaction(localTransaction);
+                }
+            }
+        }
+        if (fallbackCrawler == null) {
+            return null;
+        }
+        return fallbackCrawler.getPublishedTransactionInformationOfHandoverTemplate(transactionTemplate);
+    }
+
+    @Override
+    public List<String> getTxHashesOfAddress(String address) throws IOException {
+        //held transactions are not known online, they are reported before the history of the address
+        List<String> heldTxHashes = bitcoinConnection.getHeldTransactionHashesOfAddress(address);
+        //the complete history of an address is only available online
+        if (fallbackCrawler == null) {
+            if (!heldTxHashes.isEmpty()) {
+                return heldTxHashes;
+            }
+            throw new RuntimeVerificationException("The transactions of address " + address + " can not be resolved without a fallback crawler.");
+        }
+        List<String> txHashes = new ArrayList<>(heldTxHashes);
+        for (String txHash : fallbackCrawler.getTxHashesOfAddress(address)) {
+            if (!txHashes.contains(txHash)) {
+                txHashes.add(txHash);
+            }
+        }
+        return txHashes;
+    }
+
+    @Override
+    public boolean transactionIsUnconfirmed(ParsedTransaction parsedTransaction) {
+        if (parsedTransaction.getAnchoringProof() != null) {
+            try {
+                return transactionIsUnconfirmed(getTransactionInformation(parsedTransaction.getAnchoringProof().getAnchorTxHash(), true, false));
+            } catch (IOException | RuntimeVerificationException e) {
+                return true;
+            }
+        }
+        if (parsedTransaction.getBlockHeight() == null || parsedTransaction.getConfirmations() == null) {
+            return true;
+        }
+        return parsedTransaction.getBlockHeight().equals(-1) &&
+                parsedTransaction.getConfirmations().equals(0);
+    }
+
+    /**
+     * Returns the locally known transaction with the given hash as ParsedTransaction or null on a miss.
+     * If the simple flag is not set, a transaction is also considered a miss if one of its outputs is not spent
+     * according to the local data, but a spending transaction could not be observed by the local wallet.
+     * Unspendable and address-less outputs like the OP_RETURN data output are never spent and are not considered.
+     */
+    private ParsedTransaction getLocalTransactionInformation(String txHash, boolean simple) {
+        Transaction localTransaction = bitcoinConnection.getLocallyKnownTransaction(txHash);
+        if (localTransaction == null || !isUsable(localTransaction)) {
+            return null;
+        }
+        if (!simple) {
+            for (TransactionOutput output : localTransaction.getOutputs()) {
+                if (output.getScriptPubKey().isOpReturn() ||
+                        getAddressesOfOutput(output, localTransaction.getParams()) == null) {
+                    continue;
+                }
+                if (output.getSpentBy() == null && !bitcoinConnection.isObservedByWallet(output) &&
+                        bitcoinConnection.getHeldSpendingTransactionHash(txHash, output.getIndex()) == null) {
+                    return null;
+                }
+            }
+        }
+        ParsedTransaction parsedTransaction = convertToTransaction(localTransaction);
+        parsedTransaction.setAnchoringProof(bitcoinConnection.getAnchoringProofOfHeldTransaction(txHash));
+        return addHeldSpendingTransactions(parsedTransaction);
+    }
+
+    /**
+     * Sets the held transactions as spending transactions of the unspent outputs of the given transaction.
+     */
+    private ParsedTransaction addHeldSpendingTransactions(ParsedTransaction parsedTransaction) {
+        if (parsedTransaction == null || parsedTransaction.getOutputs() == null) {
+            return parsedTransaction;
+        }
+        for (int i = 0; i < parsedTransaction.getOutputs().size(); i++) {
+            ParsedOutput parsedOutput = parsedTransaction.getOutputs().get(i);
+            if (parsedOutput.getSpent_by() == null) {
+                parsedOutput.setSpent_by(bitcoinConnection.getHeldSpendingTransactionHash(parsedTransaction.getHash(), i));
+            }
+        }
+        return parsedTransaction;
+    }
+
+    /**
+     * Only transactions which are pending, part of the block chain or held off-chain are reported.
+     */
+    private boolean isUsable(Transaction transaction) {
+        if (bitcoinConnection.isHeldTransaction(transaction.getHashAsString())) {
+            return true;
+        }
+        TransactionConfidence.ConfidenceType confidenceType = transaction.getConfidence().getConfidenceType();
+        return confidenceType == TransactionConfidence.ConfidenceType.BUILDING ||
+                confidenceType == TransactionConfidence.ConfidenceType.PENDING;
+    }
+
+    /**
+     * Converts the given BitcoinJ transaction into the representation used by the REST crawlers.
+     * Unconfirmed transactions are reported with block height -1 and 0 confirmations.
+     */
+    private ParsedTransaction convertToTransaction(Transaction transaction) {
+        NetworkParameters networkParameters = transaction.getParams();
+        TransactionConfidence confidence = transaction.getConfidence();
+        ParsedTransaction parsedTransaction = new ParsedTransaction();
+        parsedTransaction.setHash(transaction.getHashAsString());
+        if (confidence.getConfidenceType() == TransactionConfidence.ConfidenceType.BUILDING) {
+            parsedTransaction.setConfirmations(confidence.getDepthInBlocks());
+            parsedTransaction.setBlockHeight(confidence.getAppearedAtChainHeight());
+            if (transaction.getAppearsInHashes() != null && !transaction.getAppearsInHashes().isEmpty()) {
+                parsedTransaction.setBlockHash(transaction.getAppearsInHashes().keySet().iterator().next().toString());
+            }
+        } else {
+            parsedTransaction.setConfirmations(0);
+            parsedTransaction.setBlockHeight(-1);
+        }
+
+        List<ParsedOutput> parsedOutputs = new ArrayList<>();
+        for (TransactionOutput output : transaction.getOutputs()) {
+            ParsedOutput parsedOutput = new ParsedOutput();
+            parsedOutput.setAddresses(getAddressesOfOutput(output, networkParameters));
+            parsedOutput.setValue((int) output.getValue().getValue());
+            parsedOutput.setScriptBytes(output.getScriptBytes());
+            if (output.getSpentBy() != null) {
+                parsedOutput.setSpent_by(output.getSpentBy().getParentTransaction().getHashAsString());
+            }
+            parsedOutputs.add(parsedOutput);
+        }
+        parsedTransaction.setOutputs(parsedOutputs);
+
+        List<ParsedInput> parsedInputs = new ArrayList<>();
+        for (TransactionInput input : transaction.getInputs()) {
+            ParsedInput parsedInput = new ParsedInput();
+            parsedInput.setScript(utils.byteArrayToHexString(input.getScriptBytes()));
+            parsedInput.setPrev_hash(input.getOutpoint().getHash().toString());
+            parsedInput.setOutput_index((int) input.getOutpoint().getIndex());
+            if (input.getValue() != null) {
+                parsedInput.setOutput_value((int) input.getValue().getValue());
+            }
+            if (input.getConnectedOutput() != null) {
+                parsedInput.setAddresses(getAddressesOfOutput(input.getConnectedOutput(), networkParameters));
+            }
+            parsedInputs.add(parsedInput);
+        }
+        parsedTransaction.setInputs(parsedInputs);
+        return parsedTransaction;
+    }
+
+    /**
+     * Returns the P2SH or P2PKH address of the given output as list or null.
+     */
+    private List<String> getAddressesOfOutput(TransactionOutput output, NetworkParameters networkParameters) {
+        if (output.getScriptPubKey().isPayToScriptHash()) {
+            return Arrays.asList(output.getAddressFromP2SH(networkParameters).toBase58());
+        } else if (output.getScriptPubKey().isSentToAddress()) {
+            return Arrays.asList(output.getAddressFromP2PKHScript(networkParameters).toBase58());
+        }
+        return null;
+    }
+
+    @Override
+    public void activateCache() {
+        super.activateCache();
+        if (fallbackCrawler != null) {
+            fallbackCrawler.activateCache();
+        }
+    }
+
+    @Override
+    public void deactivateCache() {
+        super.deactivateCache();
+        if (fallbackCrawler != null) {
+            fallbackCrawler.deactivateCache();
+        }
+    }
+
+    /**
+     * JSON objects are only returned by the REST API of the fallback crawler, hence it converts them.
+     */
+    @Override
+    protected ParsedTransaction convertToTransaction(JsonObject jsonObject, boolean simple, boolean logRequest) {
+        if (fallbackCrawler == null) {
+            throw new RuntimeVerificationException("JSON objects can not be converted without a fallback crawler.");
+        }
+        return addHeldSpendingTransactions(fallbackCrawler.convertToTransaction(jsonObject, simple, logRequest));
+    }
+
+    @Override
+    protected JsonObject applyAdditionalCheckAndFilter(JsonObject parsedObject) {
+        return parsedObject;
+    }
+
+    @Override
+    protected void throwExceptionOnError(CloseableHttpResponse response) throws RuntimeException {
+        //no REST requests are submitted by this crawler
+    }
+
+    @Override
+    protected void throttleRequestSpeed() {
+        //no REST requests are submitted by this crawler
+    }
+}
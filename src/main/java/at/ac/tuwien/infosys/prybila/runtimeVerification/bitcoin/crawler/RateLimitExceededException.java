@@ -0,0 +1,26 @@
+package at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.crawler;
+
+import at.ac.tuwien.infosys.prybila.runtimeVerification.utils.RuntimeVerificationException;
+
+/**
+ * Exception to be thrown if the API of a crawler rejected a request because the request limit was exceeded.
+ * Optionally carries the waiting time requested by the API through the Retry-After header.
+ */
+public class RateLimitExceededException extends RuntimeVerificationException {
+
+    private static final long serialVersionUID = -6127530594842147823L;
+
+    /**
+     * Requested waiting time before the next request in milliseconds or null if the API did not specify one.
+     */
+    private Long retryAfterInMS;
+
+    public RateLimitExceededException(String message, Long retryAfterInMS) {
+        super(message);
+        this.retryAfterInMS = retryAfterInMS;
+    }
+
+    public Long getRetryAfterInMS() {
+        return retryAfterInMS;
+    }
+}
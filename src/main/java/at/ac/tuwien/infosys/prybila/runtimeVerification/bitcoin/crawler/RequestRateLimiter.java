@@ -0,0 +1,67 @@
+package at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.crawler;
+
+/**
+ * Rate limiter that spaces the requests of all crawlers sharing it.
+ * The interval between two requests starts at the configured minimum. It is doubled on every rate limit signal
+ * of the API and slowly decreased again towards the minimum with every successful request.
+ */
+public class RequestRateLimiter {
+
+    private static final long MAXIMUM_INTERVAL_IN_MS = 60000;
+
+    private long minimumIntervalInMS;
+
+    private long currentIntervalInMS;
+
+    /**
+     * Point in time in milliseconds at which the next request slot starts.
+     */
+    private long nextRequestAllowedAt;
+
+    public RequestRateLimiter(long minimumIntervalInMS) {
+        this.minimumIntervalInMS = Math.max(0, minimumIntervalInMS);
+        this.currentIntervalInMS = this.minimumIntervalInMS;
+        this.nextRequestAllowedAt = 0;
+    }
+
+    /**
+     * Reserves the next free request slot and waits until it has passed.
+     */
+    public void throttle() {
+        long waitFor;
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            long slot = Math.max(now, nextRequestAllowedAt);
+            nextRequestAllowedAt = slot + currentIntervalInMS;
+            waitFor = nextRequestAllowedAt - now;
+        }
+        if (waitFor > 0) {
+            try {
+                Thread.sleep(waitFor);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Decreases the interval between two requests towards the minimum.
+     */
+    public synchronized void onSuccess() {
+        if (currentIntervalInMS > minimumIntervalInMS) {
+            currentIntervalInMS = Math.max(minimumIntervalInMS, currentIntervalInMS - Math.max(1, (currentIntervalInMS - minimumIntervalInMS) / 8));
+        }
+    }
+
+    /**
+     * Doubles the interval between two requests and pauses all requests for at least the given time.
+     */
+    public synchronized void onRateLimitExceeded(long pauseInMS) {
+        currentIntervalInMS = Math.min(MAXIMUM_INTERVAL_IN_MS, Math.max(1, currentIntervalInMS * 2));
+        nextRequestAllowedAt = Math.max(nextRequestAllowedAt, System.currentTimeMillis() + pauseInMS);
+    }
+
+    public synchronized long getCurrentIntervalInMS() {
+        return currentIntervalInMS;
+    }
+}
@@ -1,5 +1,7 @@
 package at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.crawler.model;
 
+import at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.core.model.MerkleInclusionProof;
+
 import java.io.Serializable;
 import java.util.List;
 
@@ -8,6 +10,11 @@ import java.util.List;
  */
 public class ParsedTransaction implements Serializable {
 
+    /**
+     * Fixed to the UID of the stored transactions prior to the anchoringProof, hence they remain readable.
+     */
+    private static final long serialVersionUID = 5772256539942854966L;
+
     private String hash;
 
     private Integer confirmations;
@@ -20,6 +27,12 @@ public class ParsedTransaction implements Serializable {
 
     private List<ParsedInput> inputs;
 
+    /**
+     * Proof that the transaction, which is held off-chain, is part of a batch anchored in the block chain.
+     * Only set by the LocalBlockChainCrawler for held transactions which were anchored, it is not verified yet.
+     */
+    private MerkleInclusionProof anchoringProof;
+
     public String getHash() {
         return hash;
     }
@@ -60,6 +73,14 @@ public class ParsedTransaction implements Serializable {
         this.inputs = inputs;
     }
 
+    public MerkleInclusionProof getAnchoringProof() {
+        return anchoringProof;
+    }
+
+    public void setAnchoringProof(MerkleInclusionProof anchoringProof) {
+        this.anchoringProof = anchoringProof;
+    }
+
     public String getBlockHash() {
         return blockHash;
     }
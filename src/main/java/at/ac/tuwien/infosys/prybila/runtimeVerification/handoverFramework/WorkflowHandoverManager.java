@@ -1,16 +1,21 @@
 package at.ac.tuwien.infosys.prybila.runtimeVerification.handoverFramework;
 
 import at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.BitcoinConnection;
+import at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.core.MerkleInclusionProofSerializer;
+import at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.core.MerkleTreeBuilder;
 import at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.core.WorkflowExecutionPointFactory;
 import at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.core.model.HandoverData;
+import at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.core.model.MerkleInclusionProof;
 import at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.core.model.WorkflowHandoverData;
 import at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.core.model.WorkflowHandoverType;
 import at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.core.model.WorkflowInstance;
 import at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.crawler.BlockChainCrawler;
 import at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.crawler.BlockcypherMainnetCrawler;
 import at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.crawler.BlockcypherTestnetCrawler;
+import at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.crawler.LocalBlockChainCrawler;
 import at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.crawler.model.ParsedOutput;
 import at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.crawler.model.ParsedTransaction;
+import at.ac.tuwien.infosys.prybila.runtimeVerification.handoverFramework.core.AnchoringProofVerifier;
 import at.ac.tuwien.infosys.prybila.runtimeVerification.handoverFramework.core.BasicCryptographyManager;
 import at.ac.tuwien.infosys.prybila.runtimeVerification.handoverFramework.core.OwnIdentityProvider;
 import at.ac.tuwien.infosys.prybila.runtimeVerification.handoverFramework.core.TokenSizeEstimator;
@@ -20,6 +25,10 @@ import at.ac.tuwien.infosys.prybila.runtimeVerification.handoverFramework.core.m
 import at.ac.tuwien.infosys.prybila.runtimeVerification.handoverFramework.core.model.WorkflowGraphStep;
 import at.ac.tuwien.infosys.prybila.runtimeVerification.utils.RuntimeVerificationException;
 import at.ac.tuwien.infosys.prybila.runtimeVerification.utils.RuntimeVerificationUtils;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 import org.bitcoinj.core.*;
 import org.bitcoinj.params.MainNetParams;
 import org.bitcoinj.params.TestNet3Params;
@@ -36,6 +45,10 @@ import java.io.*;
 import java.math.BigInteger;
 import java.util.*;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Predicate;
 
@@ -70,10 +83,69 @@ public class WorkflowHandoverManager {
     private static final int maxBroadcastTries = 10;
     private static final int depthUntilConfirmed = 1;
     private static final int waitMaxMinutesForConfirmation = 90;
+    /**
+     * Total wait of a blocking publish, the budget of the three former publish-then-wait rounds.
+     */
+    private static final int waitMaxMinutesForPublishing = 3 * waitMaxMinutesForConfirmation;
     private static final int waitMaxSecondsForBroadcast = 30;
 
+    /**
+     * Number of WF steps for which the coins of the funding pool are sized initially.
+     */
+    private static final int numOfStepsOfFundingCoins = 10;
+
+    /**
+     * Number of confirmed coins which are kept ready to fund workflow starts. The funding pool is disabled if 0.
+     */
+    private int numberOfPreSplitFundingCoins = 0;
+
+    /**
+     * Window in which completed handovers are held off-chain before the Merkle root of the batch is anchored.
+     * Batched anchoring is disabled if 0. It adds an anchor transaction per window, the handovers are settled as usual.
+     */
+    private long batchedAnchoringWindowInMS = 0;
+
+    private ScheduledExecutorService batchedAnchoringScheduler;
+
+    /**
+     * Number of held handovers of a workflow instance at which the held chain is settled on-chain as a package.
+     * Handovers are only held for the off-chain settlement if greater than 0.
+     */
+    private int offChainHandoversPerSettlement = 0;
+
     private final ReentrantLock handoverInitPhaseLock =  new ReentrantLock(true);
 
+    /**
+     * Notified on the releasing thread whenever handoverInitPhaseLock became free, e.g. to grant it to a queued handover.
+     * The listeners must not block.
+     */
+    private final List<Runnable> lockReleaseListeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Completes as soon as the manager is ready for operations which depend on the block chain.
+     */
+    private final SettableFuture<Void> readinessFuture = SettableFuture.create();
+
+    /**
+     * Duration of each startup phase in milliseconds, in the order of execution.
+     */
+    private final Map<String, Long> startupTimingsInMS = Collections.synchronizedMap(new LinkedHashMap<>());
+
+    /**
+     * Notified whenever a peer pushes a transaction of a watched handover address.
+     */
+    private final Object handoverObservationMonitor = new Object();
+
+    /**
+     * Number of pushed transactions of watched handover addresses. Guarded by the handoverObservationMonitor.
+     */
+    private long numOfObservedHandoverTransactions = 0;
+
+    /**
+     * Maximal time between two lookups while waiting for a handover without being notified by a peer.
+     */
+    private static final long handoverObservationPollIntervalInMS = 2000;
+
     public WorkflowHandoverManager(
             String networkParametersId,
             String pathToStoreFile,
@@ -142,9 +214,15 @@ public class WorkflowHandoverManager {
         return file;
     }
 
+    /**
+     * Loads the handover storage and opens the BitcoinConnection.
+     * The block chain is synchronised in the background, hence the Spring context does not wait for the chain sync
+     * of every manager one after another. Local operations are available immediately, operations depending on the
+     * block chain wait within the BitcoinConnection until the synchronisation is finished.
+     */
     @PostConstruct
     private void init() throws Exception {
-        //Context.getOrCreate(params);
+        long start = System.currentTimeMillis();
         if (runtimeVerificationUtils.fileExists(handoverStorageFile)) {
             if (handoverStorageFile.length() > 0) {
                 graphStorage = loadHandoverStorage();
@@ -153,11 +231,356 @@ public class WorkflowHandoverManager {
         if (graphStorage == null) {
             graphStorage = new HashMap<>();
         }
-        bitcoinConnection.openConnection(networkParameters, storeFile, walletFile, checkpointFile);
+        startupTimingsInMS.put("handoverStorageLoad", System.currentTimeMillis() - start);
+        ListenableFuture<Void> chainSynchronisationFuture =
+                bitcoinConnection.openConnectionInBackground(networkParameters, storeFile, walletFile, checkpointFile);
+        //answer requests from the local wallet and observed transactions first, query the REST API only on a miss
+        blockChainCrawler = new LocalBlockChainCrawler(blockChainCrawler, bitcoinConnection);
+        bitcoinConnection.addHandoverTransactionListener(transaction -> {
+            synchronized (handoverObservationMonitor) {
+                numOfObservedHandoverTransactions++;
+                handoverObservationMonitor.notifyAll();
+            }
+        });
+        Futures.addCallback(chainSynchronisationFuture, new FutureCallback<Void>() {
+            @Override
+            public void onSuccess(Void result) {
+                try {
+                    resumeRebroadcastOfOwnedHandovers();
+                    enableFundingPoolIfConfigured();
+                } catch (RuntimeVerificationException e) {
+                    //the connection was closed in the meantime
+                    readinessFuture.setException(e);
+                    return;
+                }
+                readinessFuture.set(null);
+                logStartupTimings();
+            }
+
+            @Override
+            public void onFailure(Throwable throwable) {
+                logger.warn("The WorkflowHandoverManager did not become ready.", throwable);
+                readinessFuture.setException(throwable);
+            }
+        });
+    }
+
+    /**
+     * Lets the BitcoinConnection keep numberOfPreSplitFundingCoins confirmed coins ready for workflow starts.
+     * The coins are sized by the TokenSizeEstimator and grow with the largest token which was requested.
+     */
+    private void enableFundingPoolIfConfigured() {
+        if (numberOfPreSplitFundingCoins > 0) {
+            long start = System.currentTimeMillis();
+            bitcoinConnection.enableFundingPool(
+                    numberOfPreSplitFundingCoins,
+                    tokenSizeEstimator.calculateFundingCoinSizeForWF(numOfStepsOfFundingCoins, 0),
+                    tokenSizeEstimator.getFeeReserveForWFStart());
+            startupTimingsInMS.put("fundingPoolEnable", System.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * Sets the number of confirmed coins which are kept ready to fund workflow starts.
+     * Must be set before the manager is initialized, 0 disables the funding pool.
+     */
+    public void setNumberOfPreSplitFundingCoins(int numberOfPreSplitFundingCoins) {
+        this.numberOfPreSplitFundingCoins = numberOfPreSplitFundingCoins;
+    }
+
+    /**
+     * Enables the batched anchoring of handovers if the given window is greater than 0.
+     * Completed handovers are then held off-chain instead of being published. At the end of every window, the Merkle
+     * root of all own handovers held so far is anchored by a single transaction and every handover keeps its
+     * inclusion proof. Held handovers are settled, i.e. published, as soon as a following end, split or join
+     * transaction spends their token on-chain.
+     * This does not save on-chain transactions: every held handover is still settled by its own transaction and
+     * every window adds an anchor transaction. It only lets handovers complete without waiting for their broadcast
+     * while the batch is committed on-chain early.
+     */
+    public synchronized void setBatchedAnchoringWindowInMS(long batchedAnchoringWindowInMS) {
+        if (batchedAnchoringScheduler != null) {
+            batchedAnchoringScheduler.shutdownNow();
+            batchedAnchoringScheduler = null;
+        }
+        this.batchedAnchoringWindowInMS = batchedAnchoringWindowInMS;
+        if (batchedAnchoringWindowInMS <= 0) {
+            return;
+        }
+        batchedAnchoringScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "BatchedAnchoring");
+            thread.setDaemon(true);
+            return thread;
+        });
+        final Context context = Context.getOrCreate(networkParameters);
+        batchedAnchoringScheduler.execute(() -> Context.propagate(context));
+        batchedAnchoringScheduler.scheduleWithFixedDelay(() -> {
+            try {
+                anchorHeldHandovers();
+            } catch (Exception e) {
+                logger.warn("The held handovers could not be anchored.", e);
+            }
+        }, batchedAnchoringWindowInMS, batchedAnchoringWindowInMS, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized boolean isBatchedAnchoringEnabled() {
+        return batchedAnchoringWindowInMS > 0;
+    }
+
+    /**
+     * Enables the off-chain chaining of handovers if the given number is greater than 0.
+     * Completed handovers are then held off-chain and passed on to the next participant together with the token.
+     * As soon as the given number of handovers of a workflow instance is held, the chain is settled on-chain as
+     * a package. The chain is also settled when the workflow is ended, split or joined.
+     * Use Integer.MAX_VALUE to settle at these points only.
+     */
+    public synchronized void setOffChainHandoversPerSettlement(int offChainHandoversPerSettlement) {
+        this.offChainHandoversPerSettlement = offChainHandoversPerSettlement;
+    }
+
+    /**
+     * Returns true if completed handovers are held off-chain instead of being published,
+     * i.e. if batched anchoring or the off-chain chaining of handovers is enabled.
+     */
+    public synchronized boolean isHoldingHandoversOffChain() {
+        return isBatchedAnchoringEnabled() || offChainHandoversPerSettlement > 0;
+    }
+
+    /**
+     * Anchors all own handovers which are held off-chain and not yet anchored with a single transaction containing
+     * the Merkle root of the batch. The inclusion proof of every handover is stored at its WorkflowGraphStep.
+     * The handovers remain held until they are settled.
+     * Returns the number of anchored handovers.
+     */
+    public synchronized int anchorHeldHandovers() throws InsufficientMoneyException, IOException {
+        List<WorkflowGraphStep> unanchoredSteps = new ArrayList<>();
+        List<String> leafTxHashes = new ArrayList<>();
+        for (WorkflowGraphStep workflowGraphRoot : graphStorage.values()) {
+            for (WorkflowGraphStep workflowGraphStep : runtimeVerificationUtils.graphToList(workflowGraphRoot)) {
+                if (isHeldOwnHandover(workflowGraphStep) && workflowGraphStep.getAnchoringProof() == null &&
+                        !leafTxHashes.contains(workflowGraphStep.getHandoverData().getTransactionReference().getTxHash())) {
+                    unanchoredSteps.add(workflowGraphStep);
+                    leafTxHashes.add(workflowGraphStep.getHandoverData().getTransactionReference().getTxHash());
+                }
+            }
+        }
+        if (unanchoredSteps.isEmpty()) {
+            return 0;
+        }
+        MerkleTreeBuilder merkleTree = new MerkleTreeBuilder(leafTxHashes);
+        Transaction anchorTransaction = bitcoinConnection.anchorMerkleRoot(merkleTree.getMerkleRoot(), depthUntilConfirmed);
+        for (int i = 0; i < unanchoredSteps.size(); i++) {
+            MerkleInclusionProof anchoringProof = merkleTree.getInclusionProof(i, anchorTransaction.getHashAsString());
+            unanchoredSteps.get(i).setAnchoringProof(anchoringProof);
+            //sent to the receivers along with the held transaction
+            bitcoinConnection.addAnchoringProofOfHeldTransaction(anchoringProof);
+        }
+        saveHandoverStorage();
+        logger.info("Anchored " + unanchoredSteps.size() + " held handovers with tx " + anchorTransaction.getHashAsString());
+        return unanchoredSteps.size();
+    }
+
+    /**
+     * Returns true if the given step is a completed handover of us which is held off-chain.
+     */
+    private boolean isHeldOwnHandover(WorkflowGraphStep workflowGraphStep) {
+        return workflowGraphStep.wasInitiatedByUs() &&
+                workflowGraphStep.getHandoverData().containsBitcoinJTransaction() &&
+                !workflowGraphStep.getHandoverData().isTemplate() &&
+                bitcoinConnection.isHeldTransaction(workflowGraphStep.getHandoverData().getTransactionReference().getTxHash());
+    }
+
+    /**
+     * Settles all held transactions of the given steps and their ancestors as a package, parents first.
+     * Returns a future which completes as soon as the last transaction of the package was seen by a peer.
+     */
+    private ListenableFuture<Transaction> settleHeldHandovers(List<WorkflowGraphStep> workflowGraphSteps) {
+        List<String> txHashesParentsFirst = new ArrayList<>();
+        Set<Integer> visitedStepIds = new HashSet<>();
+        for (WorkflowGraphStep workflowGraphStep : workflowGraphSteps) {
+            collectHeldTxHashesParentsFirst(workflowGraphStep, visitedStepIds, txHashesParentsFirst);
+        }
+        return bitcoinConnection.settleHeldTransactionPackage(txHashesParentsFirst, depthUntilConfirmed);
+    }
+
+    private void collectHeldTxHashesParentsFirst(WorkflowGraphStep workflowGraphStep, Set<Integer> visitedStepIds, List<String> txHashes) {
+        if (!visitedStepIds.add(workflowGraphStep.getId())) {
+            return;
+        }
+        if (workflowGraphStep.getParents() != null) {
+            for (WorkflowGraphStep parent : workflowGraphStep.getParents()) {
+                collectHeldTxHashesParentsFirst(parent, visitedStepIds, txHashes);
+            }
+        }
+        if (workflowGraphStep.getHandoverData().getTransactionReference() == null ||
+                workflowGraphStep.getHandoverData().isTemplate()) {
+            return;
+        }
+        String txHash = workflowGraphStep.getHandoverData().getTransactionReference().getTxHash();
+        if (bitcoinConnection.isHeldTransaction(txHash)) {
+            txHashes.add(txHash);
+        }
+    }
+
+    /**
+     * Waits until the settlement of the held ancestors of the given step was seen by the peers.
+     * Required before a transaction spending the token of a held handover can be published.
+     * Must not be called synchronized on the manager, hence the manager is usable while waiting.
+     */
+    private void awaitSettlement(WorkflowGraphStep workflowGraphStep, ListenableFuture<Transaction> settlement) {
+        try {
+            settlement.get(maxBroadcastTries * waitMaxSecondsForBroadcast, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            throw new RuntimeVerificationException("The held handovers preceding " + workflowGraphStep + " could not be settled.", e);
+        }
+    }
+
+    /**
+     * Publishes the given step as soon as the settlement of its held ancestors was seen by the peers.
+     * Must not be called synchronized on the manager, hence the manager is usable while waiting.
+     */
+    private void publishAfterSettlement(WorkflowGraphStep workflowGraphStep, ListenableFuture<Transaction> settlement) throws IOException, ExecutionException, InterruptedException {
+        awaitSettlement(workflowGraphStep, settlement);
+        synchronized (this) {
+            bitcoinConnection.publishHandoverPoint(workflowGraphStep.getHandoverData(), false, maxBroadcastTries, waitMaxSecondsForBroadcast, depthUntilConfirmed);
+        }
+    }
+
+    /**
+     * Settles the held chain of the given step as a package if it reached offChainHandoversPerSettlement handovers.
+     * Does not wait for the broadcast.
+     */
+    private void settleHeldHandoversAtCheckpoint(WorkflowGraphStep workflowGraphStep) {
+        if (offChainHandoversPerSettlement <= 0) {
+            return;
+        }
+        List<String> heldTxHashes = new ArrayList<>();
+        collectHeldTxHashesParentsFirst(workflowGraphStep, new HashSet<>(), heldTxHashes);
+        if (heldTxHashes.size() < offChainHandoversPerSettlement) {
+            return;
+        }
+        logger.debug("Settling " + heldTxHashes.size() + " held handovers at checkpoint " + workflowGraphStep);
+        Futures.addCallback(settleHeldHandovers(Collections.singletonList(workflowGraphStep)), new FutureCallback<Transaction>() {
+            @Override
+            public void onSuccess(Transaction result) {
+            }
+
+            @Override
+            public void onFailure(Throwable throwable) {
+                logger.warn("The held handovers preceding " + workflowGraphStep + " could not be settled.", throwable);
+            }
+        });
+    }
+
+    /**
+     * Returns all held transactions of the given workflow instance in serialized form, ordered parents first.
+     * A receiver requires them to verify a handover whose preceding handovers were not yet settled.
+     */
+    public synchronized List<byte[]> getSerializedHeldTransactionsOfInstance(short workflowId) {
+        return bitcoinConnection.serializeHeldTransactions(getTxHashesOfInstance(workflowId));
+    }
+
+    /**
+     * Returns the anchoring proofs of all held transactions of the given workflow instance which were anchored
+     * already, in serialized form. Sent along with the held transactions.
+     */
+    public synchronized List<byte[]> getSerializedAnchoringProofsOfInstance(short workflowId) {
+        return bitcoinConnection.serializeAnchoringProofsOfHeldTransactions(getTxHashesOfInstance(workflowId));
+    }
+
+    private List<String> getTxHashesOfInstance(short workflowId) {
+        workflowExists(workflowId);
+        List<String> txHashes = new ArrayList<>();
+        for (WorkflowGraphStep workflowGraphStep : runtimeVerificationUtils.graphToList(graphStorage.get(new WorkflowInstance(workflowId)))) {
+            if (workflowGraphStep.getHandoverData().getTransactionReference() != null &&
+                    !workflowGraphStep.getHandoverData().isTemplate()) {
+                txHashes.add(workflowGraphStep.getHandoverData().getTransactionReference().getTxHash());
+            }
+        }
+        return txHashes;
+    }
+
+    /**
+     * Holds the given serialized handover transactions received from a sender off-chain, hence they are found
+     * by the local crawler during the handover. The transactions must be ordered parents first.
+     * The given anchoring proofs are verified first and stored with their held transactions. A proof whose anchor
+     * transaction is not found yet is dropped, the transaction is then treated as not anchored.
+     * Throws a RuntimeVerificationException if a proof is invalid.
+     */
+    public synchronized void holdReceivedHandovers(List<byte[]> serializedTransactions, List<byte[]> serializedAnchoringProofs) throws IOException {
+        AnchoringProofVerifier anchoringProofVerifier = new AnchoringProofVerifier(blockChainCrawler);
+        MerkleInclusionProofSerializer merkleInclusionProofSerializer = new MerkleInclusionProofSerializer();
+        List<MerkleInclusionProof> anchoringProofs = new ArrayList<>();
+        for (byte[] serializedAnchoringProof : serializedAnchoringProofs) {
+            MerkleInclusionProof anchoringProof = merkleInclusionProofSerializer.deserializeProof(serializedAnchoringProof);
+            if (anchoringProofVerifier.isAnchored(anchoringProof, anchoringProof.getLeafTxHash())) {
+                anchoringProofs.add(anchoringProof);
+            } else {
+                logger.debug("The anchor transaction of the held transaction " + anchoringProof.getLeafTxHash() + " was not found yet.");
+            }
+        }
+        bitcoinConnection.holdReceivedTransactions(serializedTransactions);
+        for (MerkleInclusionProof anchoringProof : anchoringProofs) {
+            bitcoinConnection.addAnchoringProofOfHeldTransaction(anchoringProof);
+        }
+    }
+
+    /**
+     * Returns a future which completes as soon as the block chain was synchronised
+     * and the rebroadcasting of the own handovers was resumed.
+     */
+    public ListenableFuture<Void> getReadinessFuture() {
+        return readinessFuture;
+    }
+
+    /**
+     * Returns the duration of each startup phase of the manager and its BitcoinConnection in milliseconds.
+     */
+    public Map<String, Long> getStartupTimingsInMS() {
+        Map<String, Long> startupTimings = new LinkedHashMap<>();
+        synchronized (startupTimingsInMS) {
+            startupTimings.putAll(startupTimingsInMS);
+        }
+        startupTimings.putAll(bitcoinConnection.getStartupTimingsInMS());
+        return startupTimings;
+    }
+
+    private void logStartupTimings() {
+        StringBuilder sb = new StringBuilder("Startup of WorkflowHandoverManager for wallet ").append(walletFile.getName()).append(":");
+        for (Map.Entry<String, Long> phase : getStartupTimingsInMS().entrySet()) {
+            sb.append(" ").append(phase.getKey()).append("=").append(phase.getValue()).append("ms");
+        }
+        logger.info(sb.toString());
+    }
+
+    /**
+     * Hands all own, not yet confirmed transactions of the handover storage over to the background rebroadcasting
+     * of the BitcoinConnection. Required to continue the publishing after a restart.
+     */
+    private synchronized void resumeRebroadcastOfOwnedHandovers() {
+        long start = System.currentTimeMillis();
+        for (WorkflowGraphStep workflowGraphRoot : graphStorage.values()) {
+            for (WorkflowGraphStep workflowGraphStep : runtimeVerificationUtils.graphToList(workflowGraphRoot)) {
+                if (workflowGraphStep.wasInitiatedByUs() &&
+                        workflowGraphStep.getHandoverData().containsBitcoinJTransaction() &&
+                        !workflowGraphStep.getHandoverData().isTemplate() &&
+                        !isHeldOwnHandover(workflowGraphStep)) {
+                    try {
+                        bitcoinConnection.resumeRebroadcastOfHandoverPoint(workflowGraphStep.getHandoverData(), depthUntilConfirmed);
+                    } catch (IOException e) {
+                        logger.warn("Could not resume the rebroadcast of " + workflowGraphStep, e);
+                    }
+                }
+            }
+        }
+        startupTimingsInMS.put("rebroadcastResume", System.currentTimeMillis() - start);
     }
 
     @PreDestroy
     private void close() {
+        if (batchedAnchoringScheduler != null) {
+            batchedAnchoringScheduler.shutdownNow();
+        }
         try {
             saveHandoverStorage();
         } catch (IOException e) {
@@ -229,29 +652,40 @@ public class WorkflowHandoverManager {
                 tokenSizeForWF);
         WorkflowGraphStep startHandover = new WorkflowGraphStep(ownIdentity, ownIdentity, startOfWF, null, null, idProvider.getNextId());
         graphStorage.put(newWF, startHandover);
-        saveHandoverStorage();
-        bitcoinConnection.publishHandoverPoint(startOfWF, false, maxBroadcastTries, waitMaxSecondsForBroadcast, depthUntilConfirmed);
+        try {
+            saveHandoverStorage();
+            bitcoinConnection.publishHandoverPoint(startOfWF, false, maxBroadcastTries, waitMaxSecondsForBroadcast, depthUntilConfirmed);
+        } catch (Exception e) {
+            //a funding coin spent by a committed start is released anyway
+            bitcoinConnection.releaseFundingOfStartWFTransaction(startOfWF);
+            throw e;
+        }
         logger.debug("Finished workflow starting async");
         return startHandover.getId();
     }
 
     /**
      * Creates and publishes a start marker for the given workflow instance.
-     * Blocks until the published transaction is confirmed.
+     * Blocks until the published transaction is confirmed, the manager stays usable while waiting.
      * The workflow with the given id must not yet exist.
      * Returns the id of the newly created step.
      */
-    public synchronized int startWorkflow(short workflowId, int numOfExpectedSteps, int numOfExpectedSplits) throws InsufficientMoneyException, ExecutionException, InterruptedException, IOException {
+    public int startWorkflow(short workflowId, int numOfExpectedSteps, int numOfExpectedSplits) throws InsufficientMoneyException, ExecutionException, InterruptedException, IOException {
         logger.debug(String.format(
                 "Starting workflow (workflowId=%s, numOfExpectedSteps=%s, numOfExpectedSplits=%s)",
                 "" + workflowId, "" + numOfExpectedSteps, "" + numOfExpectedSplits));
-        int startStepId = startWorkflowAsync(workflowId, numOfExpectedSteps, numOfExpectedSplits);
-        HandoverData startOfWF = graphStorage.get(new WorkflowInstance(workflowId)).getHandoverData();
-        logger.debug(String.format(
-                "Waiting for workflow start to reach depth (depthUntilConfirmed=%s)",
-                "" + depthUntilConfirmed));
-        saveHandoverStorage();
-        bitcoinConnection.performAggressivePublishing(startOfWF, depthUntilConfirmed, waitMaxMinutesForConfirmation, true, waitMaxSecondsForBroadcast);
+        int startStepId;
+        ListenableFuture<Boolean> confirmationFuture;
+        synchronized (this) {
+            startStepId = startWorkflowAsync(workflowId, numOfExpectedSteps, numOfExpectedSplits);
+            HandoverData startOfWF = graphStorage.get(new WorkflowInstance(workflowId)).getHandoverData();
+            logger.debug(String.format(
+                    "Waiting for workflow start to reach depth (depthUntilConfirmed=%s)",
+                    "" + depthUntilConfirmed));
+            saveHandoverStorage();
+            confirmationFuture = bitcoinConnection.publishHandoverPointInBackground(startOfWF, depthUntilConfirmed, waitMaxMinutesForPublishing);
+        }
+        confirmationFuture.get();
         logger.debug("Finished workflow starting");
         return startStepId;
     }
@@ -259,91 +693,102 @@ public class WorkflowHandoverManager {
     /**
      * Creates and publishes an end marker for the given workflow instance.
      * Does not wait for the published transaction to be confirmed.
+     * Held preceding handovers are settled first, the manager stays usable while waiting for the settlement.
      * The workflow with the given id must already exist, it must have been started by us
      * and it must exclusively be under our control.
      * The relaxedOwnerShip flag enables the publishing of an end marker, even if the wf was not started by us.
      * The reactOnPreviousTemplate flag enables the publishing of an end marker, even if the last stored step has not been completed. The next previous step is tried instead.
      */
-    public synchronized void endWorkflowAsync(short workflowId, boolean relaxedOwnerShip, boolean reactOnPreviousTemplate) throws InterruptedException, ExecutionException, IOException {
+    public void endWorkflowAsync(short workflowId, boolean relaxedOwnerShip, boolean reactOnPreviousTemplate) throws InterruptedException, ExecutionException, IOException {
         logger.debug(String.format(
                 "Ending workflow async (workflowId=%s, relaxedOwnerShip=%s)", workflowId, relaxedOwnerShip));
-        //workflow must exist
-        workflowExists(workflowId);
-        WorkflowInstance wfToEnd = new WorkflowInstance(workflowId);
-        /*if (!reactOnPreviousTemplate) {
-            updateWorkflowDataWithOnlineInformation(wfToEnd);
-        }*/
-        WorkflowGraphStep workflowDataRoot = graphStorage.get(wfToEnd);
-        workflowWasNotEnded(workflowDataRoot);
-        Identity ownIdentity = ownIdentityProvider.getOwnIdentity();
-        WorkflowGraphStep singleLeafOfGraph;
-        if (!relaxedOwnerShip) {
-            //workflow must have been started by us
-            workflowWasStartedBy(workflowDataRoot, ownIdentity);
-            //workflow must belong to us
-            singleLeafOfGraph = workflowHasSingleLeafAndCurrentlyBelongsTo(workflowDataRoot, ownIdentity);
-        } else {
-            singleLeafOfGraph = workflowHasSingleLeaf(workflowDataRoot, ownIdentity);
-        }
+        WorkflowGraphStep endHandover;
+        ListenableFuture<Transaction> settlement;
+        synchronized (this) {
+            //workflow must exist
+            workflowExists(workflowId);
+            WorkflowInstance wfToEnd = new WorkflowInstance(workflowId);
+            /*if (!reactOnPreviousTemplate) {
+                updateWorkflowDataWithOnlineInformation(wfToEnd);
+            }*/
+            WorkflowGraphStep workflowDataRoot = graphStorage.get(wfToEnd);
+            workflowWasNotEnded(workflowDataRoot);
+            Identity ownIdentity = ownIdentityProvider.getOwnIdentity();
+            WorkflowGraphStep singleLeafOfGraph;
+            if (!relaxedOwnerShip) {
+                //workflow must have been started by us
+                workflowWasStartedBy(workflowDataRoot, ownIdentity);
+                //workflow must belong to us
+                singleLeafOfGraph = workflowHasSingleLeafAndCurrentlyBelongsTo(workflowDataRoot, ownIdentity);
+            } else {
+                singleLeafOfGraph = workflowHasSingleLeaf(workflowDataRoot, ownIdentity);
+            }
 
-        if (!reactOnPreviousTemplate) {
-            //the current handover is not in a template state (i.e. was finished)
-            workflowStepIsNotInTemplateState(singleLeafOfGraph);
-        } else {
-            if (singleLeafOfGraph.getHandoverData().isTemplate()) {
-                //this is most likely a handover and therefore has only a single parent.
-                singleLeafOfGraph = singleLeafOfGraph.getParents().get(0);
+            if (!reactOnPreviousTemplate) {
+                //the current handover is not in a template state (i.e. was finished)
+                workflowStepIsNotInTemplateState(singleLeafOfGraph);
+            } else {
+                if (singleLeafOfGraph.getHandoverData().isTemplate()) {
+                    //this is most likely a handover and therefore has only a single parent.
+                    singleLeafOfGraph = singleLeafOfGraph.getParents().get(0);
+                }
             }
+            HandoverData endOfWF = bitcoinConnection.createEndWFTransaction(
+                    singleLeafOfGraph.getHandoverData(),
+                    runtimeVerificationUtils.getCurrentTimeInUnixTimestamp());
+            endHandover = new WorkflowGraphStep(ownIdentity, ownIdentity, endOfWF, Arrays.asList(singleLeafOfGraph), null, idProvider.getNextId());
+            singleLeafOfGraph.setChildren(Arrays.asList(endHandover));
+            graphStorage.put(wfToEnd, workflowDataRoot);
+            saveHandoverStorage();
+            settlement = settleHeldHandovers(Collections.singletonList(endHandover));
         }
-        HandoverData endOfWF = bitcoinConnection.createEndWFTransaction(
-                singleLeafOfGraph.getHandoverData(),
-                runtimeVerificationUtils.getCurrentTimeInUnixTimestamp());
-        WorkflowGraphStep endHandover = new WorkflowGraphStep(ownIdentity, ownIdentity, endOfWF, Arrays.asList(singleLeafOfGraph), null, idProvider.getNextId());
-        singleLeafOfGraph.setChildren(Arrays.asList(endHandover));
-        graphStorage.put(wfToEnd, workflowDataRoot);
-        saveHandoverStorage();
-        bitcoinConnection.publishHandoverPoint(endOfWF, false, maxBroadcastTries, waitMaxSecondsForBroadcast, depthUntilConfirmed);
+        publishAfterSettlement(endHandover, settlement);
         logger.debug("Finished workflow ending async");
     }
 
-    public synchronized void endWorkflowAsync(short workflowId) throws InterruptedException, ExecutionException, IOException {
+    public void endWorkflowAsync(short workflowId) throws InterruptedException, ExecutionException, IOException {
         endWorkflowAsync(workflowId, false, false);
     }
 
     /**
      * Creates and publishes an end marker for the given workflow instance.
-     * Blocks until the published transaction is confirmed.
+     * Blocks until the published transaction is confirmed, the manager stays usable while waiting.
      * The workflow with the given id must already exist, it must have been started by us
      * and it must exclusively be under our control.
      * The relaxedOwnerShip flag enables the publishing of an end marker, even if the wf was not started by us.
      * The reactOnPreviousTemplate flag enables the publishing of an end marker, even if the last stored step has not been completed. The next previous step is tried instead.
      */
-    public synchronized void endWorkflow(short workflowId, boolean relaxedOwnerShip, boolean reactOnPreviousTemplate) throws InterruptedException, ExecutionException, IOException {
+    public void endWorkflow(short workflowId, boolean relaxedOwnerShip, boolean reactOnPreviousTemplate) throws InterruptedException, ExecutionException, IOException {
         logger.debug(String.format(
                 "Ending workflow (workflowId=%s, relaxedOwnerShip=%s)", workflowId, relaxedOwnerShip));
         endWorkflowAsync(workflowId, relaxedOwnerShip, reactOnPreviousTemplate);
-        WorkflowGraphStep workflowDataRoot = graphStorage.get(new WorkflowInstance(workflowId));
-        HandoverData endOfWf = workflowHasSingleLeafAndCurrentlyBelongsTo(workflowDataRoot, ownIdentityProvider.getOwnIdentity()).getHandoverData();
-        saveHandoverStorage();
-        logger.debug(String.format(
-                "Waiting for workflow end to reach depth (depthUntilConfirmed=%s)",
-                "" + depthUntilConfirmed));
-        bitcoinConnection.performAggressivePublishing(endOfWf, depthUntilConfirmed, waitMaxMinutesForConfirmation, true, waitMaxSecondsForBroadcast);
+        ListenableFuture<Boolean> confirmationFuture;
+        synchronized (this) {
+            WorkflowGraphStep workflowDataRoot = graphStorage.get(new WorkflowInstance(workflowId));
+            HandoverData endOfWf = workflowHasSingleLeafAndCurrentlyBelongsTo(workflowDataRoot, ownIdentityProvider.getOwnIdentity()).getHandoverData();
+            saveHandoverStorage();
+            logger.debug(String.format(
+                    "Waiting for workflow end to reach depth (depthUntilConfirmed=%s)",
+                    "" + depthUntilConfirmed));
+            confirmationFuture = bitcoinConnection.publishHandoverPointInBackground(endOfWf, depthUntilConfirmed, waitMaxMinutesForPublishing);
+        }
+        confirmationFuture.get();
         logger.debug("Finished workflow ending");
     }
 
-    public synchronized void endWorkflow(short workflowId) throws InterruptedException, ExecutionException, IOException {
+    public void endWorkflow(short workflowId) throws InterruptedException, ExecutionException, IOException {
         endWorkflow(workflowId, false, false);
     }
 
     /**
      * Creates and publishes a split marker for the given workflow instance.
      * Does not wait for the published transaction to be confirmed.
+     * Held preceding handovers are settled first, the manager stays usable while waiting for the settlement.
      * The workflow with the given id must already exist and the provided
      * fromStep must be a leaf under our control.
      * Returns the id of the newly created step.
      */
-    public synchronized int splitWorkflowAsync(
+    public int splitWorkflowAsync(
             short workflowId,
             int fromStepId,
             int outputIndexOfPreviousTransactionToUse,
@@ -355,43 +800,48 @@ public class WorkflowHandoverManager {
                 "" + workflowId, fromStepId,
                 "" + outputIndexOfPreviousTransactionToUse,
                 "" + numberOfSplitPaths));
-        //workflow must exist
-        workflowExists(workflowId);
-        WorkflowInstance wfToSplit = new WorkflowInstance(workflowId);
-        WorkflowGraphStep workflowRoot = graphStorage.get(wfToSplit);
-        workflowWasNotEnded(workflowRoot);
-        WorkflowGraphStep fromStep = getStepForId(workflowRoot, fromStepId);
-        Identity ownIdentity = ownIdentityProvider.getOwnIdentity();
-        //originating handover step is leaf.
-        isLeafOfWorkflow(workflowRoot, fromStep);
-        //originating handover step belongs to us
-        workflowStepBelongsTo(fromStep, ownIdentity, false);
-        //originating handover step is not in a template state (i.e. was finished)
-        workflowStepIsNotInTemplateState(fromStep);
-        HandoverData splitPoint = bitcoinConnection.createSplitWFTransaction(
-                wfToSplit,
-                runtimeVerificationUtils.getCurrentTimeInUnixTimestamp(),
-                fromStep.getHandoverData(),
-                outputIndexOfPreviousTransactionToUse,
-                numberOfSplitPaths);
-
-        WorkflowGraphStep splitStep = new WorkflowGraphStep(ownIdentity, ownIdentity, splitPoint, Arrays.asList(fromStep), null, idProvider.getNextId());
-        addChildStep(fromStep, splitStep);
-        graphStorage.put(wfToSplit, workflowRoot);
-        saveHandoverStorage();
-        bitcoinConnection.publishHandoverPoint(splitPoint, false, maxBroadcastTries, waitMaxSecondsForBroadcast, depthUntilConfirmed);
+        WorkflowGraphStep splitStep;
+        ListenableFuture<Transaction> settlement;
+        synchronized (this) {
+            //workflow must exist
+            workflowExists(workflowId);
+            WorkflowInstance wfToSplit = new WorkflowInstance(workflowId);
+            WorkflowGraphStep workflowRoot = graphStorage.get(wfToSplit);
+            workflowWasNotEnded(workflowRoot);
+            WorkflowGraphStep fromStep = getStepForId(workflowRoot, fromStepId);
+            Identity ownIdentity = ownIdentityProvider.getOwnIdentity();
+            //originating handover step is leaf.
+            isLeafOfWorkflow(workflowRoot, fromStep);
+            //originating handover step belongs to us
+            workflowStepBelongsTo(fromStep, ownIdentity, false);
+            //originating handover step is not in a template state (i.e. was finished)
+            workflowStepIsNotInTemplateState(fromStep);
+            HandoverData splitPoint = bitcoinConnection.createSplitWFTransaction(
+                    wfToSplit,
+                    runtimeVerificationUtils.getCurrentTimeInUnixTimestamp(),
+                    fromStep.getHandoverData(),
+                    outputIndexOfPreviousTransactionToUse,
+                    numberOfSplitPaths);
+
+            splitStep = new WorkflowGraphStep(ownIdentity, ownIdentity, splitPoint, Arrays.asList(fromStep), null, idProvider.getNextId());
+            addChildStep(fromStep, splitStep);
+            graphStorage.put(wfToSplit, workflowRoot);
+            saveHandoverStorage();
+            settlement = settleHeldHandovers(Collections.singletonList(splitStep));
+        }
+        publishAfterSettlement(splitStep, settlement);
         logger.debug("Finished creating async split workflow");
         return splitStep.getId();
     }
 
     /**
      * Creates and publishes a split marker for the given workflow instance.
-     * Blocks until the published transaction is confirmed.
+     * Blocks until the published transaction is confirmed, the manager stays usable while waiting.
      * The workflow with the given id must already exist and the provided
      * fromStep must be a leaf under our control.
      * Returns the id of the newly created step.
      */
-    public synchronized int splitWorkflow(
+    public int splitWorkflow(
             short workflowId,
             int fromStepId,
             int outputIndexOfPreviousTransactionToUse,
@@ -404,13 +854,17 @@ public class WorkflowHandoverManager {
                 "" + outputIndexOfPreviousTransactionToUse,
                 "" + numberOfSplitPaths));
         int splitOfWFId = splitWorkflowAsync(workflowId, fromStepId, outputIndexOfPreviousTransactionToUse, numberOfSplitPaths);
-        logger.debug(String.format(
-                "Waiting for workflow split to reach depth (depthUntilConfirmed=%s)",
-                "" + depthUntilConfirmed));
-        bitcoinConnection.performAggressivePublishing(
-                getStepForId(graphStorage.get(
-                        new WorkflowInstance(workflowId)), splitOfWFId).getHandoverData(),
-                depthUntilConfirmed, waitMaxMinutesForConfirmation, true, waitMaxSecondsForBroadcast);
+        ListenableFuture<Boolean> confirmationFuture;
+        synchronized (this) {
+            logger.debug(String.format(
+                    "Waiting for workflow split to reach depth (depthUntilConfirmed=%s)",
+                    "" + depthUntilConfirmed));
+            confirmationFuture = bitcoinConnection.publishHandoverPointInBackground(
+                    getStepForId(graphStorage.get(
+                            new WorkflowInstance(workflowId)), splitOfWFId).getHandoverData(),
+                    depthUntilConfirmed, waitMaxMinutesForPublishing);
+        }
+        confirmationFuture.get();
         logger.debug("Finished creating split workflow");
         return splitOfWFId;
     }
@@ -418,11 +872,12 @@ public class WorkflowHandoverManager {
     /**
      * Creates and publishes a join marker for the given workflow instance.
      * Does not wait for the published transaction to be confirmed.
+     * Held preceding handovers are settled first, the manager stays usable while waiting for the settlement.
      * The workflow with the given id must already exist and the provided
      * fromStep must be a leafs under our control.
      * Returns the id of the newly created step.
      */
-    public synchronized int joinWorkflowAsync(
+    public int joinWorkflowAsync(
             short workflowId,
             List<Integer> fromStepIds,
             int timestamp,
@@ -432,55 +887,60 @@ public class WorkflowHandoverManager {
                         "outputIndicesOfPreviousTransactionToUse=%s)",
                 "" + workflowId, fromStepIds.toArray(), "" + timestamp,
                 "" + outputIndicesOfPreviousTransactionToUse.toArray()));
-        //workflow must exist
-        workflowExists(workflowId);
-        WorkflowInstance wfToJoin = new WorkflowInstance(workflowId);
-        WorkflowGraphStep workflowRoot = graphStorage.get(wfToJoin);
-        workflowWasNotEnded(workflowRoot);
-        Identity ownIdentity = ownIdentityProvider.getOwnIdentity();
-        if (fromStepIds.size() != outputIndicesOfPreviousTransactionToUse.size()) {
-            throw new RuntimeVerificationException(
-                    "Originating WfStepList and outputIndicesOfPreviousTransactionToUseList " +
-                            "must be of same size.");
-        }
-        List<HandoverData> previousTransactionData = new ArrayList<>();
-        List<WorkflowGraphStep> fromSteps = new ArrayList<>();
-        for (int fromStepId : fromStepIds) {
-            WorkflowGraphStep fromStep = getStepForId(workflowRoot, fromStepId);
-            fromSteps.add(fromStep);
-            //originating handover step is leaf.
-            isLeafOfWorkflow(workflowRoot, fromStep);
-            //originating handover step belongs to us
-            workflowStepBelongsTo(fromStep, ownIdentity, false);
-            //originating handover step is not in a template state (i.e. was finished)
-            workflowStepIsNotInTemplateState(fromStep);
-            previousTransactionData.add(fromStep.getHandoverData());
-        }
-        HandoverData joinPoint = bitcoinConnection.createJoinWFTransaction(
-                wfToJoin,
-                timestamp,
-                previousTransactionData,
-                outputIndicesOfPreviousTransactionToUse);
-
-        WorkflowGraphStep handover = new WorkflowGraphStep(ownIdentity, ownIdentity, joinPoint, fromSteps, null, idProvider.getNextId());
-        for (WorkflowGraphStep fromStep : fromSteps) {
-            addChildStep(fromStep, handover);
+        WorkflowGraphStep handover;
+        ListenableFuture<Transaction> settlement;
+        synchronized (this) {
+            //workflow must exist
+            workflowExists(workflowId);
+            WorkflowInstance wfToJoin = new WorkflowInstance(workflowId);
+            WorkflowGraphStep workflowRoot = graphStorage.get(wfToJoin);
+            workflowWasNotEnded(workflowRoot);
+            Identity ownIdentity = ownIdentityProvider.getOwnIdentity();
+            if (fromStepIds.size() != outputIndicesOfPreviousTransactionToUse.size()) {
+                throw new RuntimeVerificationException(
+                        "Originating WfStepList and outputIndicesOfPreviousTransactionToUseList " +
+                                "must be of same size.");
+            }
+            List<HandoverData> previousTransactionData = new ArrayList<>();
+            List<WorkflowGraphStep> fromSteps = new ArrayList<>();
+            for (int fromStepId : fromStepIds) {
+                WorkflowGraphStep fromStep = getStepForId(workflowRoot, fromStepId);
+                fromSteps.add(fromStep);
+                //originating handover step is leaf.
+                isLeafOfWorkflow(workflowRoot, fromStep);
+                //originating handover step belongs to us
+                workflowStepBelongsTo(fromStep, ownIdentity, false);
+                //originating handover step is not in a template state (i.e. was finished)
+                workflowStepIsNotInTemplateState(fromStep);
+                previousTransactionData.add(fromStep.getHandoverData());
+            }
+            HandoverData joinPoint = bitcoinConnection.createJoinWFTransaction(
+                    wfToJoin,
+                    timestamp,
+                    previousTransactionData,
+                    outputIndicesOfPreviousTransactionToUse);
+
+            handover = new WorkflowGraphStep(ownIdentity, ownIdentity, joinPoint, fromSteps, null, idProvider.getNextId());
+            for (WorkflowGraphStep fromStep : fromSteps) {
+                addChildStep(fromStep, handover);
+            }
+            graphStorage.put(wfToJoin, workflowRoot);
+            saveHandoverStorage();
+            settlement = settleHeldHandovers(Collections.singletonList(handover));
         }
-        graphStorage.put(wfToJoin, workflowRoot);
-        saveHandoverStorage();
-        bitcoinConnection.publishHandoverPoint(joinPoint, false, maxBroadcastTries, waitMaxSecondsForBroadcast, depthUntilConfirmed);
+        publishAfterSettlement(handover, settlement);
         logger.debug("Finished creating async join workflow");
         return handover.getId();
     }
 
     /**
      * Creates and publishes a join marker for the given workflow instance.
-     * Blocks until the published transaction is confirmed.
+     * Blocks until the published transaction is confirmed, the manager stays usable while waiting.
      * The workflow with the given id must already exist and the provided
      * fromStep must be a leafs under our control.
      * Returns the id of the newly created step.
      */
-    public synchronized int joinWorkflow(
+    public int joinWorkflow(
             short workflowId,
             List<Integer> fromStepIds,
             int timestamp,
@@ -491,14 +951,18 @@ public class WorkflowHandoverManager {
                 "" + workflowId, fromStepIds.toArray(), "" + timestamp,
                 "" + outputIndicesOfPreviousTransactionToUse.toArray()));
         int joinOfWFId = joinWorkflowAsync(workflowId, fromStepIds, timestamp, outputIndicesOfPreviousTransactionToUse);
-        logger.debug(String.format(
-                "Waiting for workflow join to reach depth (depthUntilConfirmed=%s)",
-                "" + depthUntilConfirmed));
-        WorkflowGraphStep joinOfWF = getStepForId(graphStorage.get(
-                new WorkflowInstance(workflowId)), joinOfWFId);
-        bitcoinConnection.performAggressivePublishing(joinOfWF.getHandoverData(), depthUntilConfirmed, waitMaxMinutesForConfirmation, true, waitMaxSecondsForBroadcast);
+        ListenableFuture<Boolean> confirmationFuture;
+        synchronized (this) {
+            logger.debug(String.format(
+                    "Waiting for workflow join to reach depth (depthUntilConfirmed=%s)",
+                    "" + depthUntilConfirmed));
+            WorkflowGraphStep joinOfWF = getStepForId(graphStorage.get(
+                    new WorkflowInstance(workflowId)), joinOfWFId);
+            confirmationFuture = bitcoinConnection.publishHandoverPointInBackground(joinOfWF.getHandoverData(), depthUntilConfirmed, waitMaxMinutesForPublishing);
+        }
+        confirmationFuture.get();
         logger.debug("Finished creating join workflow");
-        return joinOfWF.getId();
+        return joinOfWFId;
     }
 
     /**
@@ -519,6 +983,8 @@ public class WorkflowHandoverManager {
         //it must not have been already ended
         workflowWasNotEnded(wfDataRoot);
         WorkflowGraphStep wfStepPrecedingTheHandover = findRelatedLeafStepToPublicKeyOfIdentity(wfDataRoot, p2SHAddressOfSender);
+        //let the peers push the handover spending the exposed token
+        bitcoinConnection.watchHandoverAddresses(Collections.singletonList(p2SHAddressOfSender));
         workflowStepBelongsTo(wfStepPrecedingTheHandover, from, relaxOwnerCheck);
         WorkflowInstance expectedInstance = new WorkflowInstance(workflowId);
         Identity ownIdentity = ownIdentityProvider.getOwnIdentity();
@@ -683,6 +1149,9 @@ public class WorkflowHandoverManager {
         }
         wfStepWithHandover.setHandoverData(receivedHandover);
         saveHandoverStorage();
+        //let the peers push the handover as soon as the sender publishes it
+        bitcoinConnection.watchHandoverAddresses(Collections.singletonList(
+                receivedHandover.getTransactionReference().getBitcoinJTransaction().getOutput(0).getAddressFromP2SH(networkParameters)));
         logger.debug("Finished confirming handover template of workflow on receiver side (Returning off-chain signature)");
         return bitcoinConnection.offChainSignTransaction(receivedHandover, receiverKey);
     }
@@ -701,12 +1170,35 @@ public class WorkflowHandoverManager {
         return handoverInitPhaseLock.tryLock();
     }
 
+    /**
+     * Waits at most the given time for the lock, other threads waiting for it are served first.
+     */
+    public boolean tryToAcquireLock(long timeoutMS) {
+        try {
+            return handoverInitPhaseLock.tryLock(timeoutMS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
     public void acquireLock() {
         logger.debug("Waiting for lock.");
         handoverInitPhaseLock.lock();
         logger.debug("Acquired lock.");
     }
 
+    /**
+     * Returns true if handoverInitPhaseLock is currently held by any thread.
+     */
+    public boolean isLocked() {
+        return handoverInitPhaseLock.isLocked();
+    }
+
+    public void addLockReleaseListener(Runnable lockReleaseListener) {
+        lockReleaseListeners.add(lockReleaseListener);
+    }
+
     public void conditionallyReleaseLock() {
         if(handoverInitPhaseLock.isHeldByCurrentThread()) {
             releaseLock();
@@ -716,6 +1208,11 @@ public class WorkflowHandoverManager {
     private void releaseLock() {
         logger.debug("Releasing lock.");
         handoverInitPhaseLock.unlock();
+        if (!handoverInitPhaseLock.isHeldByCurrentThread()) {
+            for (Runnable lockReleaseListener : lockReleaseListeners) {
+                lockReleaseListener.run();
+            }
+        }
     }
 
     /**
@@ -744,6 +1241,7 @@ public class WorkflowHandoverManager {
      * Finishes and publishes a workflow handover for the given workflow
      * instance with the given received offChainSignature.
      * Does not wait for the published transaction to be confirmed.
+     * If handovers are held off-chain, the handover is held instead of being published.
      * The workflow with the given id must already exist
      * and the latest workflow entry must be an handover template.
      */
@@ -770,7 +1268,13 @@ public class WorkflowHandoverManager {
         HandoverData completeHandover = bitcoinConnection.finishHandoverTemplate(previousTransaction, wfTemplate.getHandoverData(), offChainSignature, outputIndexOfPreviousTransactionToUse);
         wfTemplate.setHandoverData(completeHandover);
         saveHandoverStorage();
-        bitcoinConnection.publishHandoverPoint(completeHandover, false, BitcoinConnection.maxNumOfBroadCastTries, waitMaxSecondsForBroadcast, depthUntilConfirmed);
+        if (isHoldingHandoversOffChain()) {
+            //settled at the next checkpoint or as soon as its token is spent on-chain
+            bitcoinConnection.holdHandoverPoint(completeHandover);
+            settleHeldHandoversAtCheckpoint(wfTemplate);
+        } else {
+            bitcoinConnection.publishHandoverPoint(completeHandover, false, BitcoinConnection.maxNumOfBroadCastTries, waitMaxSecondsForBroadcast, depthUntilConfirmed);
+        }
         releaseLock();
         logger.debug("Finished finalizing and publishing handover template of workflow async");
     }
@@ -778,11 +1282,12 @@ public class WorkflowHandoverManager {
     /**
      * Finishes and publishes a workflow handover for the given workflow
      * instance with the given received offChainSignature.
-     * Blocks until the published transaction is confirmed.
+     * Blocks until the published transaction is confirmed, the manager stays usable while waiting.
+     * If handovers are held off-chain, the handover is held and this method does not block.
      * The workflow with the given id must already exist
      * and the latest workflow entry must be an handover template.
      */
-    public synchronized void finishAndPublishHandoverWorkflowTemplate(
+    public void finishAndPublishHandoverWorkflowTemplate(
             short workflowId,
             Identity to,
             byte[] offChainSignature,
@@ -790,14 +1295,21 @@ public class WorkflowHandoverManager {
         logger.debug(String.format(
                 "Finalize and publish handover template of workflow (workflowId=%s, to=%s, offChainSignature=%s, outputIndexOfPreviousTransactionToUse=%s)",
                 "" + workflowId, "" + to, Arrays.toString(offChainSignature), "" + outputIndexOfPreviousTransactionToUse));
-        checkIfLockIsOwned();
-        finishAndPublishHandoverWorkflowTemplateAsync(workflowId, to, offChainSignature, outputIndexOfPreviousTransactionToUse);
-        HandoverData handoverOfWF = getLeafOriginatingFromUsAndDirectedAtReceiver(workflowId, to).getHandoverData();
-        saveHandoverStorage();
-        logger.debug(String.format(
-                "Waiting for workflow handover to reach depth (depthUntilConfirmed=%s)",
-                "" + depthUntilConfirmed));
-        bitcoinConnection.performAggressivePublishing(handoverOfWF, depthUntilConfirmed, waitMaxMinutesForConfirmation, true, waitMaxSecondsForBroadcast);
+        ListenableFuture<Boolean> confirmationFuture;
+        synchronized (this) {
+            checkIfLockIsOwned();
+            finishAndPublishHandoverWorkflowTemplateAsync(workflowId, to, offChainSignature, outputIndexOfPreviousTransactionToUse);
+            if (isHoldingHandoversOffChain()) {
+                return;
+            }
+            HandoverData handoverOfWF = getLeafOriginatingFromUsAndDirectedAtReceiver(workflowId, to).getHandoverData();
+            saveHandoverStorage();
+            logger.debug(String.format(
+                    "Waiting for workflow handover to reach depth (depthUntilConfirmed=%s)",
+                    "" + depthUntilConfirmed));
+            confirmationFuture = bitcoinConnection.publishHandoverPointInBackground(handoverOfWF, depthUntilConfirmed, waitMaxMinutesForPublishing);
+        }
+        confirmationFuture.get();
         logger.debug("Finished finalizing and publishing handover template of workflow");
     }
 
@@ -853,6 +1365,33 @@ public class WorkflowHandoverManager {
         return wfStepWithHandover.getId();
     }
 
+    /**
+     * Waits until the sender published the handover for the given workflow instance and finishes it on the receiver
+     * side. The published handover is looked up again whenever a peer pushes a transaction of a watched handover
+     * address, but at least every handoverObservationPollIntervalInMS.
+     * Must not be called synchronized on the manager, hence the manager is usable while waiting.
+     * Returns the id of the finalized WorkflowGraphStep or -1 if the handover was not found within the given time.
+     */
+    public int awaitAndFinishHandoverWorkflowTemplateOnReceiverSide(short workflowId, Identity from, long timeoutInMS) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutInMS;
+        while (true) {
+            long numOfObservedHandoversBeforeLookup;
+            synchronized (handoverObservationMonitor) {
+                numOfObservedHandoversBeforeLookup = numOfObservedHandoverTransactions;
+            }
+            int wfStepWithHandoverId = finishHandoverWorkflowTemplateOnReceiverSide(workflowId, from);
+            long remainingTimeInMS = deadline - System.currentTimeMillis();
+            if (wfStepWithHandoverId != -1 || remainingTimeInMS <= 0) {
+                return wfStepWithHandoverId;
+            }
+            synchronized (handoverObservationMonitor) {
+                if (numOfObservedHandoverTransactions == numOfObservedHandoversBeforeLookup) {
+                    handoverObservationMonitor.wait(Math.min(remainingTimeInMS, handoverObservationPollIntervalInMS));
+                }
+            }
+        }
+    }
+
     /**
      * Republishes all owned handovers if they where not found online.
      */
@@ -872,7 +1411,7 @@ public class WorkflowHandoverManager {
                 "Starting to republish owned handovers for workflow instance (workflowInstance=%s)", workflowInstance));
         workflowExists(workflowInstance.getId());
         for (WorkflowGraphStep workflowGraphStep : runtimeVerificationUtils.graphToList(graphStorage.get(workflowInstance))) {
-            if (workflowGraphStep.wasInitiatedByUs()) {
+            if (workflowGraphStep.wasInitiatedByUs() && !isHeldOwnHandover(workflowGraphStep)) {
                 bitcoinConnection.publishHandoverPoint(workflowGraphStep.getHandoverData(), true, maxBroadcastTries, waitMaxSecondsForBroadcast, depthUntilConfirmed);
             }
         }
@@ -882,13 +1421,18 @@ public class WorkflowHandoverManager {
 
     /**
      * Iterates over all WorkflowHandovers that contain a complete BitcoinJ transaction.
-     * Performs an performAggressivePublishing (3x waiting and publishing iterations)
-     * on all those transactions that are confirmed.
+     * Hands all those transactions over to the background rebroadcasting of the BitcoinConnection
+     * and waits until they are confirmed. Held transactions are settled first.
+     * The manager stays usable while waiting.
      * Throws a RuntimeVerificationException if the publishing does not succeed or throws an error.
      */
-    public synchronized void waitForConfirmationOnAllPossibleHandovers() throws IOException {
+    public void waitForConfirmationOnAllPossibleHandovers() throws IOException {
         logger.debug("Starting wait for confirmation on all possible handovers for which BitcoinJ transactions are accessible.");
-        for (WorkflowInstance workflowInstance : graphStorage.keySet()) {
+        List<WorkflowInstance> workflowInstances;
+        synchronized (this) {
+            workflowInstances = new ArrayList<>(graphStorage.keySet());
+        }
+        for (WorkflowInstance workflowInstance : workflowInstances) {
             waitForConfirmationOnPossibleHandoversForInstance(workflowInstance);
         }
         logger.debug("Finished wait for confirmation on all possible handovers for which BitcoinJ transactions are accessible.");
@@ -896,71 +1440,102 @@ public class WorkflowHandoverManager {
 
     /**
      * Iterates over all WorkflowHandovers of the given WorkflowInstance that contain a complete BitcoinJ transaction.
-     * Performs an performAggressivePublishing (3x waiting and publishing iterations)
-     * on all those transactions that are confirmed.
+     * Hands all those transactions over to the background rebroadcasting of the BitcoinConnection
+     * and waits until they are confirmed. Held transactions are settled first.
+     * The manager stays usable while waiting for the settlement and the confirmations.
      * Throws a RuntimeVerificationException if the publishing does not succeed or throws an error.
      */
-    public synchronized void waitForConfirmationOnPossibleHandoversForInstance(WorkflowInstance workflowInstance) throws IOException {
+    public void waitForConfirmationOnPossibleHandoversForInstance(WorkflowInstance workflowInstance) throws IOException {
         logger.debug(String.format(
                 "Starting to wait for confirmation on workflow instance (workflowInstance=%s) for which BitcoinJ transactions are accessible", workflowInstance));
-        workflowExists(workflowInstance.getId());
-        for (WorkflowGraphStep workflowHandover : runtimeVerificationUtils.graphToList(graphStorage.get(workflowInstance))) {
-            if (workflowHandover.getHandoverData().containsBitcoinJTransaction() &&
-                    !workflowHandover.getHandoverData().isTemplate()) {
-                boolean worked;
-                try {
-                    worked = bitcoinConnection.performAggressivePublishing(
+        //subscribe to all handovers first, they are published and confirmed in parallel
+        Map<WorkflowGraphStep, ListenableFuture<Boolean>> confirmationFutures = new LinkedHashMap<>();
+        List<WorkflowGraphStep> workflowHandovers;
+        ListenableFuture<Transaction> settlement;
+        synchronized (this) {
+            workflowExists(workflowInstance.getId());
+            workflowHandovers = runtimeVerificationUtils.graphToList(graphStorage.get(workflowInstance));
+            settlement = settleHeldHandovers(workflowHandovers);
+        }
+        try {
+            settlement.get(maxBroadcastTries * waitMaxSecondsForBroadcast, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            throw new RuntimeVerificationException("The held handovers of the WorkflowInstance " + workflowInstance + " could not be settled.", e);
+        }
+        synchronized (this) {
+            for (WorkflowGraphStep workflowHandover : workflowHandovers) {
+                if (workflowHandover.getHandoverData().containsBitcoinJTransaction() &&
+                        !workflowHandover.getHandoverData().isTemplate()) {
+                    confirmationFutures.put(workflowHandover, bitcoinConnection.publishHandoverPointInBackground(
                             workflowHandover.getHandoverData(),
                             depthUntilConfirmed,
-                            waitMaxMinutesForConfirmation,
-                            true,
-                            waitMaxSecondsForBroadcast);
-                } catch (Exception e) {
-                    throw new RuntimeVerificationException("Waiting for confirmation on WorkflowHandover " + workflowHandover + " of the WorkflowInstance " + workflowInstance + " failed.", e);
-                }
-                if (!worked) {
-                    throw new RuntimeVerificationException("Waiting for confirmation on WorkflowHandover " + workflowHandover + " of the WorkflowInstance " + workflowInstance + " failed.");
+                            waitMaxMinutesForConfirmation));
                 }
             }
         }
-        saveHandoverStorage();
+        for (Map.Entry<WorkflowGraphStep, ListenableFuture<Boolean>> confirmationFuture : confirmationFutures.entrySet()) {
+            WorkflowGraphStep workflowHandover = confirmationFuture.getKey();
+            boolean worked;
+            try {
+                worked = confirmationFuture.getValue().get();
+            } catch (Exception e) {
+                throw new RuntimeVerificationException("Waiting for confirmation on WorkflowHandover " + workflowHandover + " of the WorkflowInstance " + workflowInstance + " failed.", e);
+            }
+            if (!worked) {
+                throw new RuntimeVerificationException("Waiting for confirmation on WorkflowHandover " + workflowHandover + " of the WorkflowInstance " + workflowInstance + " failed.");
+            }
+        }
+        synchronized (this) {
+            saveHandoverStorage();
+        }
         logger.debug("Finished waiting for confirmation on workflow instance.");
     }
 
     /**
      * Fetches the given workflowStep from the given workflow instance.
-     * Performs an performAggressivePublishing (3x waiting and publishing iterations)
-     * on the contained BitcoinJ transaction.
+     * Hands the contained BitcoinJ transaction over to the background rebroadcasting of the BitcoinConnection
+     * and waits until it is confirmed. The transaction and its held ancestors are settled first.
+     * The manager stays usable while waiting for the settlement and the confirmation.
      * Throws a RuntimeVerificationException if the publishing does not succeed or throws an error.
      */
-    public synchronized void waitForConfirmationOnHandoverForInstance(WorkflowInstance workflowInstance, int wfStepWithHandoverId) throws IOException {
+    public void waitForConfirmationOnHandoverForInstance(WorkflowInstance workflowInstance, int wfStepWithHandoverId) throws IOException {
         logger.debug(String.format(
                 "Starting to wait for confirmation on handover of workflow instance (workflowInstance=%s,wfStepWithHandoverId=%s).", workflowInstance, wfStepWithHandoverId));
-        workflowExists(workflowInstance.getId());
-        WorkflowGraphStep graphStepToWaitOn = getStepForId(graphStorage.get(workflowInstance), wfStepWithHandoverId);
-        if (graphStepToWaitOn == null) {
-            throw new RuntimeVerificationException("Step with id " + wfStepWithHandoverId + " does not exist in workflow " + workflowInstance.getId());
+        WorkflowGraphStep graphStepToWaitOn;
+        ListenableFuture<Transaction> settlement;
+        synchronized (this) {
+            workflowExists(workflowInstance.getId());
+            graphStepToWaitOn = getStepForId(graphStorage.get(workflowInstance), wfStepWithHandoverId);
+            if (graphStepToWaitOn == null) {
+                throw new RuntimeVerificationException("Step with id " + wfStepWithHandoverId + " does not exist in workflow " + workflowInstance.getId());
+            }
+            if (!graphStepToWaitOn.getHandoverData().containsBitcoinJTransaction() ||
+                    graphStepToWaitOn.getHandoverData().isTemplate()) {
+                throw new RuntimeVerificationException("Step with id " + wfStepWithHandoverId + " from workflow " + workflowInstance.getId() +
+                        " can not be waited on. There is not enough information available.");
+            }
+            settlement = settleHeldHandovers(Collections.singletonList(graphStepToWaitOn));
         }
-        if (!graphStepToWaitOn.getHandoverData().containsBitcoinJTransaction() ||
-                graphStepToWaitOn.getHandoverData().isTemplate()) {
-            throw new RuntimeVerificationException("Step with id " + wfStepWithHandoverId + " from workflow " + workflowInstance.getId() +
-                    " can not be waited on. There is not enough information available.");
+        awaitSettlement(graphStepToWaitOn, settlement);
+        ListenableFuture<Boolean> confirmationFuture;
+        synchronized (this) {
+            confirmationFuture = bitcoinConnection.publishHandoverPointInBackground(
+                    graphStepToWaitOn.getHandoverData(),
+                    depthUntilConfirmed,
+                    waitMaxMinutesForConfirmation);
         }
         boolean worked;
         try {
-            worked = bitcoinConnection.performAggressivePublishing(
-                    graphStepToWaitOn.getHandoverData(),
-                    depthUntilConfirmed,
-                    waitMaxMinutesForConfirmation,
-                    true,
-                    waitMaxSecondsForBroadcast);
+            worked = confirmationFuture.get();
         } catch (Exception e) {
             throw new RuntimeVerificationException("Waiting for confirmation on WorkflowHandover " + graphStepToWaitOn + " of the WorkflowInstance " + workflowInstance + " failed.", e);
         }
         if (!worked) {
             throw new RuntimeVerificationException("Waiting for confirmation on WorkflowHandover " + graphStepToWaitOn + " of the WorkflowInstance " + workflowInstance + " failed.");
         }
-        saveHandoverStorage();
+        synchronized (this) {
+            saveHandoverStorage();
+        }
         logger.debug("Finished waiting for confirmation on handover of workflow instance.");
     }
 
@@ -1154,6 +1729,11 @@ public class WorkflowHandoverManager {
             logger.debug("Leaf was not of type INTERMEDIATE");
             return;
         }
+        //the handover paying to our token is not published anymore
+        if (wfStepWithHandover.getHandoverData().containsBitcoinJTransaction()) {
+            bitcoinConnection.unwatchHandoverAddresses(Collections.singletonList(
+                    wfStepWithHandover.getHandoverData().getTransactionReference().getBitcoinJTransaction().getOutput(0).getAddressFromP2SH(networkParameters)));
+        }
         //remove connections to graph
         if (wfStepWithHandover.getHandoverData().isTemplate()) {
             //A handover only has one parent
@@ -0,0 +1,47 @@
+package at.ac.tuwien.infosys.prybila.runtimeVerification.handoverFramework.core;
+
+import at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.core.MerkleRootDataBlockConverter;
+import at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.core.model.MerkleInclusionProof;
+import at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.crawler.BlockChainCrawler;
+import at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.crawler.model.ParsedTransaction;
+import at.ac.tuwien.infosys.prybila.runtimeVerification.utils.RuntimeVerificationException;
+
+import java.io.IOException;
+
+/**
+ * Verifies the anchoring proof of a handover transaction which is held off-chain against the anchor transaction
+ * found by the crawler.
+ */
+public class AnchoringProofVerifier {
+
+    private BlockChainCrawler blockChainCrawler;
+
+    private MerkleRootDataBlockConverter merkleRootDataBlockConverter;
+
+    public AnchoringProofVerifier(BlockChainCrawler blockChainCrawler) {
+        this.blockChainCrawler = blockChainCrawler;
+        merkleRootDataBlockConverter = new MerkleRootDataBlockConverter();
+    }
+
+    /**
+     * Returns true if the given proof belongs to the transaction with the given hash and its Merkle root is contained
+     * in the anchor transaction. Returns false if the anchor transaction was not found, i.e. it was not published yet.
+     * Throws a RuntimeVerificationException if the proof is invalid.
+     */
+    public boolean isAnchored(MerkleInclusionProof anchoringProof, String txHash) throws IOException {
+        if (!anchoringProof.isValidFor(txHash)) {
+            throw new RuntimeVerificationException("The anchoring proof does not lead from " + txHash + " to its Merkle root.");
+        }
+        ParsedTransaction anchorTransaction;
+        try {
+            anchorTransaction = blockChainCrawler.getTransactionInformation(anchoringProof.getAnchorTxHash(), true, false);
+        } catch (RuntimeVerificationException e) {
+            return false;
+        }
+        if (!merkleRootDataBlockConverter.anchorsMerkleRoot(anchorTransaction, anchoringProof.getMerkleRoot())) {
+            throw new RuntimeVerificationException("The anchor transaction " + anchoringProof.getAnchorTxHash()
+                    + " does not contain the Merkle root of the proof of " + txHash + ".");
+        }
+        return true;
+    }
+}
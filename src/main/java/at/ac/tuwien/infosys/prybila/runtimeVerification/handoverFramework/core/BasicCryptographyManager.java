@@ -6,27 +6,53 @@ import at.ac.tuwien.infosys.prybila.runtimeVerification.handoverFramework.core.m
 import at.ac.tuwien.infosys.prybila.runtimeVerification.utils.RuntimeVerificationException;
 import at.ac.tuwien.infosys.prybila.runtimeVerification.utils.RuntimeVerificationUtils;
 
+import org.bitcoinj.core.Sha256Hash;
+
 import javax.crypto.Cipher;
+import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
 import java.security.SecureRandom;
 import java.security.Signature;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * Provides basic cryptographic functionality like hashing, symmetrical encryption
  * and RSA-based asymmetrical signing.
+ * The JCA engines are reused per thread through the CryptographyEngines.
  */
 public class BasicCryptographyManager {
 
     private static final int lengthOfSymKey = 16; //16 byte String equals to 128 bit
 
+    /**
+     * Maximal number of successfully verified signatures which are remembered.
+     */
+    private static final int maxNumOfVerifiedSignatures = 1000;
+
     private SecureRandom random;
 
     private RSAPrivateKey privateKey;
     
     private RuntimeVerificationUtils utils;
 
+    /**
+     * Signer keys of already verified signatures by the hash of the length of the signed data, the signed data and
+     * the signature, least recently used first.
+     * Partners repeatedly sign the same data, e.g. their keys, which then needs no further RSA operation.
+     */
+    private final Map<Sha256Hash, PublicKey> verifiedSignatures = new LinkedHashMap<Sha256Hash, PublicKey>(16, 0.75f, true) {
+        private static final long serialVersionUID = 3528419066740245377L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, PublicKey> eldest) {
+            return size() > maxNumOfVerifiedSignatures;
+        }
+    };
+
     public BasicCryptographyManager(Identity ownIdentity) {
         this.privateKey = ownIdentity.getPrivateKey();
         random = new SecureRandom();
@@ -34,28 +60,60 @@ public class BasicCryptographyManager {
     }
 
     /**
-     * Returns the RSA signature of the given String as hex.
+     * Returns the raw RSA signature of the given data.
      */
-    public String getSignatureOfData(byte[] data) {
+    public byte[] signData(byte[] data) {
         try {
-            Signature dsa = Signature.getInstance("SHA256withRSA");
-            dsa.initSign(privateKey.getKey());
+            Signature dsa = CryptographyEngines.getSigner(privateKey.getKey());
             dsa.update(data);
-            return utils.byteArrayToHexString(dsa.sign());
+            return dsa.sign();
         } catch (Exception e) {
+            CryptographyEngines.invalidateSignatureEngines();
             throw new RuntimeVerificationException("Signing failed.", e);
         }
     }
 
-    public boolean verifySignature(byte[] data, String signature, RSAPublicKey publicKeyOfSender) {
+    /**
+     * Returns the RSA signature of the given data as hex.
+     */
+    public String getSignatureOfData(byte[] data) {
+        return utils.byteArrayToHexString(signData(data));
+    }
+
+    /**
+     * Returns true if the given raw RSA signature of the data was created by the owner of the given public key.
+     * Successful verifications are remembered, a repeated verification only costs a hash of the data.
+     */
+    public boolean verifySignature(byte[] data, byte[] signature, RSAPublicKey publicKeyOfSender) {
+        PublicKey signerKey = publicKeyOfSender.getKey();
+        MessageDigest digest = CryptographyEngines.getDigest();
+        //the length separates data and signature, bytes moved from the signature to the data change the hash
+        digest.update(ByteBuffer.allocate(4).putInt(data.length).array());
+        digest.update(data);
+        Sha256Hash verifiedSignature = Sha256Hash.wrap(digest.digest(signature));
+        synchronized (verifiedSignatures) {
+            if (signerKey.equals(verifiedSignatures.get(verifiedSignature))) {
+                return true;
+            }
+        }
         try {
-            Signature dsa = Signature.getInstance("SHA256withRSA");
-            dsa.initVerify(publicKeyOfSender.getKey());
+            Signature dsa = CryptographyEngines.getVerifier(signerKey);
             dsa.update(data);
-            return dsa.verify(utils.hexStringToByteArray(signature));
+            if (!dsa.verify(signature)) {
+                return false;
+            }
         } catch (Exception e) {
+            CryptographyEngines.invalidateSignatureEngines();
             throw new RuntimeVerificationException("Signing failed.", e);
         }
+        synchronized (verifiedSignatures) {
+            verifiedSignatures.put(verifiedSignature, signerKey);
+        }
+        return true;
+    }
+
+    public boolean verifySignature(byte[] data, String signature, RSAPublicKey publicKeyOfSender) {
+        return verifySignature(data, utils.hexStringToByteArray(signature), publicKeyOfSender);
     }
 
     /**
@@ -70,7 +128,7 @@ public class BasicCryptographyManager {
      */
     public byte[] symmetricallyEncryptData(byte[] data, String symKey) {
         try {
-            Cipher c = Cipher.getInstance("AES");
+            Cipher c = CryptographyEngines.getCipher();
             SecretKeySpec k =
                     new SecretKeySpec(symKey.getBytes(), "AES");
             c.init(Cipher.ENCRYPT_MODE, k);
@@ -85,7 +143,7 @@ public class BasicCryptographyManager {
      */
     public byte[] symmetricallyDecryptData(byte[] encryptedData, String symKey) {
         try {
-            Cipher c = Cipher.getInstance("AES");
+            Cipher c = CryptographyEngines.getCipher();
             SecretKeySpec k =
                     new SecretKeySpec(symKey.getBytes(), "AES");
             c.init(Cipher.DECRYPT_MODE, k);
@@ -96,16 +154,69 @@ public class BasicCryptographyManager {
     }
 
     /**
-     * Returns the hash of the given data in hex
+     * Returns the given number of random bytes, e.g. to be used as secret or nonce.
      */
-    public String hashData(byte[] data) {
+    public byte[] getRandomBytes(int numOfBytes) {
+        byte[] randomBytes = new byte[numOfBytes];
+        random.nextBytes(randomBytes);
+        return randomBytes;
+    }
+
+    /**
+     * Encrypts the given data with the given public RSA key, only the owner of the private key can decrypt it.
+     */
+    public byte[] asymmetricallyEncryptData(byte[] data, RSAPublicKey publicKeyOfReceiver) {
+        try {
+            Cipher c = CryptographyEngines.getAsymmetricCipher();
+            c.init(Cipher.ENCRYPT_MODE, publicKeyOfReceiver.getKey(), random);
+            return c.doFinal(data);
+        } catch (Exception e) {
+            throw new RuntimeVerificationException("Asymmetrical encryption failed.", e);
+        }
+    }
+
+    /**
+     * Decrypts the given data with the own private RSA key.
+     */
+    public byte[] asymmetricallyDecryptData(byte[] encryptedData) {
+        try {
+            Cipher c = CryptographyEngines.getAsymmetricCipher();
+            c.init(Cipher.DECRYPT_MODE, privateKey.getKey());
+            return c.doFinal(encryptedData);
+        } catch (Exception e) {
+            throw new RuntimeVerificationException("Asymmetrical decryption failed.", e);
+        }
+    }
+
+    /**
+     * Returns the HMAC of the concatenation of the given data parts with the given symmetric key.
+     */
+    public byte[] getMessageAuthenticationCode(byte[] key, byte[]... dataParts) {
         try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            md.update(data);
-            return utils.byteArrayToHexString(data);
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeVerificationException("Hashing failed.", e);
+            Mac mac = CryptographyEngines.getMac();
+            mac.init(new SecretKeySpec(key, CryptographyEngines.getMacAlgorithm()));
+            for (byte[] dataPart : dataParts) {
+                mac.update(dataPart);
+            }
+            return mac.doFinal();
+        } catch (Exception e) {
+            throw new RuntimeVerificationException("Computing the message authentication code failed.", e);
         }
     }
 
+    /**
+     * Returns true if the given MAC of the data parts was created with the given key.
+     * The comparison takes the same time for every mismatching position.
+     */
+    public boolean verifyMessageAuthenticationCode(byte[] mac, byte[] key, byte[]... dataParts) {
+        return MessageDigest.isEqual(mac, getMessageAuthenticationCode(key, dataParts));
+    }
+
+    /**
+     * Returns the hash of the given data in hex
+     */
+    public String hashData(byte[] data) {
+        return utils.byteArrayToHexString(CryptographyEngines.getDigest().digest(data));
+    }
+
 }
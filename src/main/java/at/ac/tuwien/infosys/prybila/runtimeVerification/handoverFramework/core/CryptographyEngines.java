@@ -0,0 +1,146 @@
+package at.ac.tuwien.infosys.prybila.runtimeVerification.handoverFramework.core;
+
+import at.ac.tuwien.infosys.prybila.runtimeVerification.utils.RuntimeVerificationException;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import java.security.*;
+
+/**
+ * Thread confined, reusable JCA engines.
+ * Signature, Cipher, Mac and MessageDigest instances are not thread safe and looking them up through the provider list is
+ * expensive. Every thread therefore keeps one instance per algorithm. Signature engines stay initialised with the
+ * key of their last operation and are only reinitialised if another key is used.
+ */
+class CryptographyEngines {
+
+    private static final String signatureAlgorithm = "SHA256withRSA";
+    private static final String cipherAlgorithm = "AES";
+    private static final String digestAlgorithm = "SHA-256";
+    private static final String asymmetricCipherAlgorithm = "RSA/ECB/OAEPWithSHA-256AndMGF1Padding";
+    private static final String macAlgorithm = "HmacSHA256";
+
+    private static final ThreadLocal<KeyedSignature> signers = ThreadLocal.withInitial(KeyedSignature::new);
+
+    private static final ThreadLocal<KeyedSignature> verifiers = ThreadLocal.withInitial(KeyedSignature::new);
+
+    private static final ThreadLocal<Cipher> ciphers = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance(cipherAlgorithm);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeVerificationException("The cipher " + cipherAlgorithm + " is not available.", e);
+        }
+    });
+
+    private static final ThreadLocal<Cipher> asymmetricCiphers = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance(asymmetricCipherAlgorithm);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeVerificationException("The cipher " + asymmetricCipherAlgorithm + " is not available.", e);
+        }
+    });
+
+    private static final ThreadLocal<Mac> macs = ThreadLocal.withInitial(() -> {
+        try {
+            return Mac.getInstance(macAlgorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeVerificationException("The MAC " + macAlgorithm + " is not available.", e);
+        }
+    });
+
+    private static final ThreadLocal<MessageDigest> digests = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance(digestAlgorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeVerificationException("The digest " + digestAlgorithm + " is not available.", e);
+        }
+    });
+
+    private CryptographyEngines() {
+    }
+
+    /**
+     * Returns the signature engine of the current thread, initialised for signing with the given key.
+     */
+    static Signature getSigner(PrivateKey privateKey) throws InvalidKeyException {
+        KeyedSignature signer = signers.get();
+        if (signer.key != privateKey) {
+            signer.signature.initSign(privateKey);
+            signer.key = privateKey;
+        }
+        return signer.signature;
+    }
+
+    /**
+     * Returns the signature engine of the current thread, initialised for verifying with the given key.
+     */
+    static Signature getVerifier(PublicKey publicKey) throws InvalidKeyException {
+        KeyedSignature verifier = verifiers.get();
+        if (verifier.key != publicKey) {
+            verifier.signature.initVerify(publicKey);
+            verifier.key = publicKey;
+        }
+        return verifier.signature;
+    }
+
+    /**
+     * Forces the reinitialisation of the signature engines of the current thread.
+     * Must be called after a failed operation, which may leave partial data in an engine.
+     */
+    static void invalidateSignatureEngines() {
+        signers.get().key = null;
+        verifiers.get().key = null;
+    }
+
+    /**
+     * Returns the cipher of the current thread. It must be initialised before every operation.
+     */
+    static Cipher getCipher() {
+        return ciphers.get();
+    }
+
+    /**
+     * Returns the RSA cipher of the current thread. It must be initialised before every operation.
+     */
+    static Cipher getAsymmetricCipher() {
+        return asymmetricCiphers.get();
+    }
+
+    /**
+     * Returns the MAC engine of the current thread. It must be initialised before every operation.
+     */
+    static Mac getMac() {
+        return macs.get();
+    }
+
+    static String getMacAlgorithm() {
+        return macAlgorithm;
+    }
+
+    /**
+     * Returns the reset message digest of the current thread.
+     */
+    static MessageDigest getDigest() {
+        MessageDigest digest = digests.get();
+        digest.reset();
+        return digest;
+    }
+
+    /**
+     * Signature engine together with the key it is currently initialised with, null if it must be reinitialised.
+     */
+    private static class KeyedSignature {
+
+        private final Signature signature;
+
+        private Key key;
+
+        private KeyedSignature() {
+            try {
+                signature = Signature.getInstance(signatureAlgorithm);
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeVerificationException("The signature " + signatureAlgorithm + " is not available.", e);
+            }
+        }
+    }
+}
@@ -62,4 +62,19 @@ public class TokenSizeEstimator {
         return Coin.valueOf(satoshis);
     }
 
+    /**
+     * Calculate an appropriate size of a wallet output which funds the start of a WF, i.e. the token and the
+     * fee of the start transaction.
+     */
+    public Coin calculateFundingCoinSizeForWF(int numOfSteps, int numOfSplits) {
+        return calculateAppropriateTokenSizeForWF(numOfSteps, numOfSplits).add(getFeeReserveForWFStart());
+    }
+
+    /**
+     * Returns the estimated fee of a start transaction.
+     */
+    public Coin getFeeReserveForWFStart() {
+        return Coin.valueOf(feeSizeStartWF);
+    }
+
 }
@@ -3,6 +3,7 @@ package at.ac.tuwien.infosys.prybila.runtimeVerification.handoverFramework.core;
 import at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.core.TransactionStructureVerifier;
 import at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.core.WorkflowDataBlockConverter;
 import at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.core.model.HandoverData;
+import at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.core.model.MerkleInclusionProof;
 import at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.core.model.TransactionReference;
 import at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.crawler.BlockChainCrawler;
 import at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.crawler.model.ParsedTransaction;
@@ -13,6 +14,8 @@ import at.ac.tuwien.infosys.prybila.runtimeVerification.utils.RuntimeVerificatio
 import at.ac.tuwien.infosys.prybila.runtimeVerification.utils.RuntimeVerificationUtils;
 import org.bitcoinj.core.NetworkParameters;
 import org.bitcoinj.script.Script;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.util.*;
@@ -21,9 +24,12 @@ import static org.bitcoinj.script.ScriptOpCodes.OP_RETURN;
 
 /**
  * Provides logic to update locally stored workflow data with information collected from online APIs.
+ * A handover transaction held off-chain keeps the anchoring proof reported by the crawler once it was verified.
  */
 public class WorkflowUpdater {
 
+    private final Logger logger = LoggerFactory.getLogger(WorkflowUpdater.class);
+
     private IdProvider idProvider;
     private BlockChainCrawler blockChainCrawler;
     private WorkflowGraphStep graphRoot;
@@ -31,6 +37,12 @@ public class WorkflowUpdater {
     private NetworkParameters networkParameters;
     private Map<Integer, WorkflowGraphStep> templateLeafs;
     private boolean shouldLogRequest;
+    private AnchoringProofVerifier anchoringProofVerifier;
+
+    /**
+     * Transactions of the current BFS frontier that were fetched in one batch during the current update run.
+     */
+    private Map<String, ParsedTransaction> prefetchedTransactions;
 
     public WorkflowUpdater(BlockChainCrawler blockChainCrawler, String address, NetworkParameters networkParameters, IdProvider idProvider) throws IOException {
         this.blockChainCrawler = blockChainCrawler;
@@ -39,10 +51,12 @@ public class WorkflowUpdater {
         RuntimeVerificationUtils utils = new RuntimeVerificationUtils();
         utils.notNull(blockChainCrawler);
         utils.notNull(networkParameters);
+        anchoringProofVerifier = new AnchoringProofVerifier(blockChainCrawler);
         List<String> txHashesToAddress = blockChainCrawler.getTxHashesOfAddress(address);
         if (txHashesToAddress.isEmpty()) {
             throw new RuntimeVerificationException("No transaction was found for the given address " + address);
         }
+        prefetchedTransactions = new HashMap<>();
         graphRoot = findWorkflowHandoverOnline(txHashesToAddress.get(0));
         templateLeafs = new HashMap<>();
     }
@@ -56,7 +70,9 @@ public class WorkflowUpdater {
         utils.notNull(blockChainCrawler);
         utils.notNull(networkParameters);
         utils.notNull(graphRoot);
+        anchoringProofVerifier = new AnchoringProofVerifier(blockChainCrawler);
         templateLeafs = new HashMap<>();
+        prefetchedTransactions = new HashMap<>();
     }
 
     public WorkflowGraphStep updateWorkflowDataWithOnlineInformation() throws IOException {
@@ -79,7 +95,14 @@ public class WorkflowUpdater {
         }
         Queue<WorkflowGraphStep> uncheckedNodes = new LinkedList<>();
         uncheckedNodes.add(graphRoot);
+        int remainingNodesOfFrontier = 0;
         while (!uncheckedNodes.isEmpty()) {
+            if (remainingNodesOfFrontier == 0) {
+                //all nodes of the previous BFS level were processed, the queue now holds exactly the next frontier
+                remainingNodesOfFrontier = uncheckedNodes.size();
+                prefetchTransactionsOfFrontier(uncheckedNodes);
+            }
+            remainingNodesOfFrontier--;
             WorkflowGraphStep currentWF = uncheckedNodes.poll();
             //parent nodes should be in graph because it is a breadth first search mode
             if (!currentWF.isStart() && parentReferencesNeedToBeUpdated(currentWF)) {
@@ -118,10 +141,73 @@ public class WorkflowUpdater {
 
         //Assert that all old elements are included in the new list
         allOldElementsExistInNewGraph(oldWFElements);
+        prefetchedTransactions.clear();
         blockChainCrawler.deactivateCache();
         return graphRoot;
     }
 
+    /**
+     * Fetches all transactions required to process the given BFS frontier with batched crawler requests.
+     * First the transactions of all frontier steps whose children need to be updated are fetched,
+     * afterwards the transactions of all following steps which are not yet stored in the graph.
+     */
+    private void prefetchTransactionsOfFrontier(Collection<WorkflowGraphStep> frontier) {
+        List<WorkflowGraphStep> stepsToUpdate = new ArrayList<>();
+        Set<String> txHashesOfFrontier = new LinkedHashSet<>();
+        for (WorkflowGraphStep step : frontier) {
+            if (!step.isEnd() && childrenReferencesNeedToBeUpdated(step)) {
+                stepsToUpdate.add(step);
+                txHashesOfFrontier.add(step.getHandoverData().getTransactionReference().getTxHash());
+            }
+        }
+        prefetchTransactions(txHashesOfFrontier);
+        Set<String> txHashesOfChildren = new LinkedHashSet<>();
+        for (WorkflowGraphStep step : stepsToUpdate) {
+            ParsedTransaction parsedTransaction = prefetchedTransactions.get(step.getHandoverData().getTransactionReference().getTxHash());
+            if (parsedTransaction == null || parsedTransaction.getOutputs() == null) {
+                continue;
+            }
+            for (int index : step.getHandoverData().getTransactionReference().getIndicesOfTokenOutputs()) {
+                if (index < 0 || index >= parsedTransaction.getOutputs().size()) {
+                    continue;
+                }
+                String childTxHash = parsedTransaction.getOutputs().get(index).getSpent_by();
+                if (childTxHash != null && findHandoverInWFDataStorage(childTxHash) == null) {
+                    txHashesOfChildren.add(childTxHash);
+                }
+            }
+        }
+        prefetchTransactions(txHashesOfChildren);
+    }
+
+    /**
+     * Fetches the given transactions which were not already prefetched in one batch.
+     * Failures are ignored, the affected transactions are requested again when they are processed.
+     */
+    private void prefetchTransactions(Set<String> txHashes) {
+        txHashes.removeAll(prefetchedTransactions.keySet());
+        if (txHashes.isEmpty()) {
+            return;
+        }
+        try {
+            prefetchedTransactions.putAll(blockChainCrawler.getTransactionInformation(txHashes, false, shouldLogRequest));
+        } catch (IOException e) {
+            //the transactions are requested one by one when they are processed
+            logger.debug("Prefetching " + txHashes.size() + " transactions failed.", e);
+        }
+    }
+
+    /**
+     * Returns the transaction with the given hash from the prefetched transactions or from the crawler.
+     */
+    private ParsedTransaction getTransactionInformation(String txHash) throws IOException {
+        ParsedTransaction prefetchedTransaction = prefetchedTransactions.remove(txHash);
+        if (prefetchedTransaction != null) {
+            return prefetchedTransaction;
+        }
+        return blockChainCrawler.getTransactionInformation(txHash, false, shouldLogRequest);
+    }
+
     /**
      * Add template leafs if necessary to graph.
      */
@@ -444,8 +530,30 @@ public class WorkflowUpdater {
      * Assumes that the workflowHandover exists online.
      */
     private void updateSpecificWorkflowHandover(WorkflowGraphStep workflowHandover) throws IOException {
-        ParsedTransaction transactionUpdate = blockChainCrawler.getTransactionInformation(workflowHandover.getHandoverData().getTransactionReference().getTxHash(), false, shouldLogRequest);
+        ParsedTransaction transactionUpdate = getTransactionInformation(workflowHandover.getHandoverData().getTransactionReference().getTxHash());
         workflowHandover.getHandoverData().getTransactionReference().setTransactionFromCrawler(transactionUpdate);
+        MerkleInclusionProof anchoringProof = getVerifiedAnchoringProof(transactionUpdate);
+        if (anchoringProof != null) {
+            workflowHandover.setAnchoringProof(anchoringProof);
+        }
+    }
+
+    /**
+     * Returns the anchoring proof of the given transaction, which is held off-chain, if its anchor transaction was
+     * found. Returns null for transactions without a proof, they are either published or not anchored yet.
+     * Throws a RuntimeVerificationException if the proof is invalid.
+     */
+    private MerkleInclusionProof getVerifiedAnchoringProof(ParsedTransaction parsedTransaction) {
+        MerkleInclusionProof anchoringProof = parsedTransaction.getAnchoringProof();
+        if (anchoringProof == null) {
+            return null;
+        }
+        try {
+            return anchoringProofVerifier.isAnchored(anchoringProof, parsedTransaction.getHash()) ? anchoringProof : null;
+        } catch (IOException e) {
+            logger.debug("The anchor transaction of " + parsedTransaction.getHash() + " could not be requested.", e);
+            return null;
+        }
     }
 
     /**
@@ -458,7 +566,7 @@ public class WorkflowUpdater {
         //fetch the transaction data from the online api instead
         ParsedTransaction parsedTransaction;
         try {
-            parsedTransaction = blockChainCrawler.getTransactionInformation(txHash, false, shouldLogRequest);
+            parsedTransaction = getTransactionInformation(txHash);
         } catch (Exception e) {
             return null;
         }
@@ -481,12 +589,14 @@ public class WorkflowUpdater {
                 workflowDataBlockConverter.getWorkflowHandoverData(),
                 transactionReference,
                 null, null, false, false, networkParameters);
-        return new WorkflowGraphStep(Identity.getUnknownCompanyIdentity(),
+        WorkflowGraphStep workflowGraphStep = new WorkflowGraphStep(Identity.getUnknownCompanyIdentity(),
                 Identity.getUnknownCompanyIdentity(),
                 handoverData,
                 null,
                 null,
                 idProvider.getNextId());
+        workflowGraphStep.setAnchoringProof(getVerifiedAnchoringProof(parsedTransaction));
+        return workflowGraphStep;
     }
 
     /**
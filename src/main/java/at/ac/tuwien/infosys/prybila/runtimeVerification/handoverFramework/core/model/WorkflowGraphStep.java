@@ -1,6 +1,7 @@
 package at.ac.tuwien.infosys.prybila.runtimeVerification.handoverFramework.core.model;
 
 import at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.core.model.HandoverData;
+import at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.core.model.MerkleInclusionProof;
 import at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.core.model.WorkflowHandoverType;
 
 import java.io.Serializable;
@@ -11,6 +12,11 @@ import java.util.List;
  */
 public class WorkflowGraphStep implements Serializable {
 
+    /**
+     * Fixed to the UID of the stored graphs prior to the anchoringProof, hence they remain readable.
+     */
+    private static final long serialVersionUID = 8390315950049493398L;
+
     /**
      * Unique id for this graphstep
      */
@@ -34,6 +40,12 @@ public class WorkflowGraphStep implements Serializable {
 
     private List<WorkflowGraphStep> children;
 
+    /**
+     * Proof that the transaction of this step is part of a batch anchored in the block chain.
+     * Null if the transaction was published itself or was not anchored yet.
+     */
+    private MerkleInclusionProof anchoringProof;
+
     public WorkflowGraphStep() {
 
     }
@@ -71,6 +83,14 @@ public class WorkflowGraphStep implements Serializable {
         this.children = children;
     }
 
+    public MerkleInclusionProof getAnchoringProof() {
+        return anchoringProof;
+    }
+
+    public void setAnchoringProof(MerkleInclusionProof anchoringProof) {
+        this.anchoringProof = anchoringProof;
+    }
+
     public Identity getFrom() {
         return from;
     }
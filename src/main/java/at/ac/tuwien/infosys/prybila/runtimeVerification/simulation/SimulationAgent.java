@@ -227,6 +227,14 @@ public class SimulationAgent extends Thread {
         this.agentStorage = agentStorage;
     }
 
+    public void setBatchedAnchoringWindowInMS(long batchedAnchoringWindowInMS) {
+        workflowHandoverManager.setBatchedAnchoringWindowInMS(batchedAnchoringWindowInMS);
+    }
+
+    public void setOffChainHandoversPerSettlement(int offChainHandoversPerSettlement) {
+        workflowHandoverManager.setOffChainHandoversPerSettlement(offChainHandoversPerSettlement);
+    }
+
     /**
      * Collects all required executions, owned by this company.
      */
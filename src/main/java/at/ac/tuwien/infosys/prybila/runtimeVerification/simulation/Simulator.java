@@ -27,6 +27,21 @@ public class Simulator {
 
     public static final int waitForFinishIntervalMS = 3000;
 
+    /**
+     * Lifetime of the authenticated sessions between agents, a lifetime of 0 authenticates every message with RSA.
+     */
+    private static final long defaultSessionLifetimeInMS = 10 * 60 * 1000;
+
+    /**
+     * Number of incoming handovers an agent processes concurrently, further handovers wait or are rejected.
+     */
+    private static final int defaultMaxInFlightHandovers = 32;
+
+    /**
+     * Number of partner connections an agent keeps open, further connections are refused and their handovers retried.
+     */
+    private static final int defaultMaxOpenConnections = 64;
+
     private static Random random;
 
     private static ApplicationContext context;
@@ -48,6 +63,11 @@ public class Simulator {
     public static String agentSet;
     public static String netToUse;
     public static int agentWithMoney;
+    public static long batchedAnchoringWindowInMS;
+    public static int offChainHandoversPerSettlement;
+    public static long sessionLifetimeInMS;
+    public static int maxInFlightHandovers = defaultMaxInFlightHandovers;
+    public static int maxOpenConnections = defaultMaxOpenConnections;
 
     public static AtomicInteger andJoinPathsWaiting = new AtomicInteger(0);
     public static ConcurrentSkipListSet<Short> workflowsFinished = new ConcurrentSkipListSet<>();
@@ -64,8 +84,8 @@ public class Simulator {
                         "Seed=%s, " +
                         "UsingRuntimeVerification=%s," +
                         "ImmediatelyWaitForConfirmation=%s, " +
-                        "AgentSet=%s, netToUse=%s agentWithMoney=%s", testNumber, bpName, executionPathVariant, includeFaultInProcess,
-                seedForRandom, useRuntimeVerification, !greedyPublishing, agentSet, netToUse, agentWithMoney));
+                        "AgentSet=%s, netToUse=%s agentWithMoney=%s, batchedAnchoringWindowInMS=%s, offChainHandoversPerSettlement=%s, sessionLifetimeInMS=%s, maxInFlightHandovers=%s, maxOpenConnections=%s", testNumber, bpName, executionPathVariant, includeFaultInProcess,
+                seedForRandom, useRuntimeVerification, !greedyPublishing, agentSet, netToUse, agentWithMoney, batchedAnchoringWindowInMS, offChainHandoversPerSettlement, sessionLifetimeInMS, maxInFlightHandovers, maxOpenConnections));
 
         executionPathVariant--;
 
@@ -163,6 +183,20 @@ public class Simulator {
         System.exit(0);
     }
 
+    /**
+     * Returns true if completed handovers are held off-chain and have to be passed on to the receiver directly.
+     */
+    public static boolean holdsHandoversOffChain() {
+        return batchedAnchoringWindowInMS > 0 || offChainHandoversPerSettlement > 0;
+    }
+
+    /**
+     * Returns true if agents authenticate their connections with sessions instead of signing every message.
+     */
+    public static boolean usesAuthenticatedSessions() {
+        return sessionLifetimeInMS > 0;
+    }
+
     private static void initRandom() {
         random = new Random(seedForRandom);
         //mix testruns with their testnumber
@@ -183,9 +217,9 @@ public class Simulator {
     }
 
     private static void fetchInputParameters(String[] args) {
-        if (args.length != 10) {
+        if (args.length < 10 || args.length > 15) {
             configFileLogger();
-            logger.info("Usage: Simulator <testNumber> <BP_Name> <Variant> <Corrupt> <Seed> <UsingRuntimeVerification> <ImmediatelyWaitForConfirmation> <agentSet> <netToUse> <agentWithMoney>");
+            logger.info("Usage: Simulator <testNumber> <BP_Name> <Variant> <Corrupt> <Seed> <UsingRuntimeVerification> <ImmediatelyWaitForConfirmation> <agentSet> <netToUse> <agentWithMoney> [<batchedAnchoringWindowInMS> [<offChainHandoversPerSettlement> [<sessionLifetimeInMS> [<maxInFlightHandovers> [<maxOpenConnections>]]]]]");
             System.exit(1);
         }
         testNumber = Integer.parseInt(args[0]);
@@ -198,6 +232,11 @@ public class Simulator {
         agentSet = args[7].trim();
         netToUse = args[8].trim();
         agentWithMoney = Integer.parseInt(args[9]);
+        batchedAnchoringWindowInMS = args.length > 10 ? Long.parseLong(args[10]) : 0;
+        offChainHandoversPerSettlement = args.length > 11 ? Integer.parseInt(args[11]) : 0;
+        sessionLifetimeInMS = args.length > 12 ? Long.parseLong(args[12]) : defaultSessionLifetimeInMS;
+        maxInFlightHandovers = args.length > 13 ? Integer.parseInt(args[13]) : defaultMaxInFlightHandovers;
+        maxOpenConnections = args.length > 14 ? Integer.parseInt(args[14]) : defaultMaxOpenConnections;
     }
 
     private static void initSimulationAgents() {
@@ -210,6 +249,8 @@ public class Simulator {
         //init required variables of simulationAgents
         for (SimulationAgent simulationAgent : agents) {
             simulationAgent.setAgentStorage(agentStorage);
+            simulationAgent.setBatchedAnchoringWindowInMS(batchedAnchoringWindowInMS);
+            simulationAgent.setOffChainHandoversPerSettlement(offChainHandoversPerSettlement);
         }
 
         //test if specified start agent has enough money
@@ -0,0 +1,49 @@
+package at.ac.tuwien.infosys.prybila.runtimeVerification.simulation.core;
+
+/**
+ * Session between two companies, established by one full RSA exchange.
+ * Subsequent connections within the lifetime of the session authenticate their messages with MACs derived from the
+ * session key instead of RSA signatures.
+ */
+public class AuthenticatedSession {
+
+    /**
+     * Random identifier chosen by the server of the full exchange.
+     */
+    private final byte[] sessionId;
+
+    /**
+     * Company name of the communication partner.
+     */
+    private final String partnerCompany;
+
+    /**
+     * Secret shared by both companies, transferred RSA encrypted and signed.
+     */
+    private final byte[] sessionKey;
+
+    private final long expiresAtMS;
+
+    public AuthenticatedSession(byte[] sessionId, String partnerCompany, byte[] sessionKey, long lifetimeInMS) {
+        this.sessionId = sessionId;
+        this.partnerCompany = partnerCompany;
+        this.sessionKey = sessionKey;
+        this.expiresAtMS = System.currentTimeMillis() + lifetimeInMS;
+    }
+
+    public byte[] getSessionId() {
+        return sessionId;
+    }
+
+    public String getPartnerCompany() {
+        return partnerCompany;
+    }
+
+    public byte[] getSessionKey() {
+        return sessionKey;
+    }
+
+    public boolean isExpired() {
+        return System.currentTimeMillis() >= expiresAtMS;
+    }
+}
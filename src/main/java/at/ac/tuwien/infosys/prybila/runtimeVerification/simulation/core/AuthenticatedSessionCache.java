@@ -0,0 +1,64 @@
+package at.ac.tuwien.infosys.prybila.runtimeVerification.simulation.core;
+
+import at.ac.tuwien.infosys.prybila.runtimeVerification.utils.RuntimeVerificationUtils;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Sessions of one company with its handover partners.
+ * Sessions established as client are found by the partner's company name, sessions established as server by their id.
+ * Every company of the simulation has its own cache, since the session keys are secrets of both partners.
+ */
+public class AuthenticatedSessionCache {
+
+    private static final Map<String, AuthenticatedSessionCache> cachesOfCompanies = new ConcurrentHashMap<>();
+
+    private final Map<String, AuthenticatedSession> sessionsAsClient = new ConcurrentHashMap<>();
+
+    private final Map<String, AuthenticatedSession> sessionsAsServer = new ConcurrentHashMap<>();
+
+    private final RuntimeVerificationUtils utils = new RuntimeVerificationUtils();
+
+    /**
+     * Returns the session cache of the given own company.
+     */
+    public static AuthenticatedSessionCache getCacheOfCompany(String ownCompany) {
+        return cachesOfCompanies.computeIfAbsent(ownCompany, company -> new AuthenticatedSessionCache());
+    }
+
+    /**
+     * Returns the unexpired session established as client with the given partner or null.
+     */
+    public AuthenticatedSession getSessionAsClient(String partnerCompany) {
+        return getUnexpiredSession(sessionsAsClient, partnerCompany);
+    }
+
+    public void addSessionAsClient(AuthenticatedSession session) {
+        sessionsAsClient.put(session.getPartnerCompany(), session);
+    }
+
+    /**
+     * Returns the unexpired session with the given id established as server with the given partner or null.
+     */
+    public AuthenticatedSession getSessionAsServer(byte[] sessionId, String partnerCompany) {
+        AuthenticatedSession session = getUnexpiredSession(sessionsAsServer, utils.byteArrayToHexString(sessionId));
+        if (session == null || !session.getPartnerCompany().equals(partnerCompany)) {
+            return null;
+        }
+        return session;
+    }
+
+    public void addSessionAsServer(AuthenticatedSession session) {
+        sessionsAsServer.put(utils.byteArrayToHexString(session.getSessionId()), session);
+    }
+
+    private AuthenticatedSession getUnexpiredSession(Map<String, AuthenticatedSession> sessions, String key) {
+        AuthenticatedSession session = sessions.get(key);
+        if (session != null && session.isExpired()) {
+            sessions.remove(key, session);
+            return null;
+        }
+        return session;
+    }
+}
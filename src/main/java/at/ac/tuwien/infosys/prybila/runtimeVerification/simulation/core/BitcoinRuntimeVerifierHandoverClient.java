@@ -5,6 +5,7 @@ import at.ac.tuwien.infosys.prybila.runtimeVerification.handoverFramework.core.B
 import at.ac.tuwien.infosys.prybila.runtimeVerification.handoverFramework.core.model.Identity;
 import at.ac.tuwien.infosys.prybila.runtimeVerification.simulation.Simulator;
 import at.ac.tuwien.infosys.prybila.runtimeVerification.simulation.core.exceptions.HandoverFailureException;
+import at.ac.tuwien.infosys.prybila.runtimeVerification.simulation.core.exceptions.HandoverRejectedException;
 import at.ac.tuwien.infosys.prybila.runtimeVerification.simulation.core.sharedStorages.AgentStorage;
 import at.ac.tuwien.infosys.prybila.runtimeVerification.simulation.core.sharedStorages.IdentityStorage;
 import at.ac.tuwien.infosys.prybila.runtimeVerification.simulation.model.businessProcessDescription.*;
@@ -16,7 +17,6 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.net.InetAddress;
-import java.net.Socket;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -27,6 +27,13 @@ public class BitcoinRuntimeVerifierHandoverClient {
 
     private Logger logger = LoggerFactory.getLogger(BitcoinRuntimeVerifierHandoverClient.class);
 
+    /**
+     * A handover rejected by an overloaded partner is retried with a linearly increasing delay.
+     */
+    private static final int maxAttemptsOfRejectedHandover = 10;
+    private static final long retryDelayOfRejectedHandoverMS = 1000;
+    private static final long reacquireOwnLockTimeoutMS = 100;
+
     private SocketCommunicator socketCommunicator;
 
     private BasicCryptographyManager basicCryptographyManager;
@@ -228,10 +235,13 @@ public class BitcoinRuntimeVerifierHandoverClient {
         }
     }
 
-    private void openConnection(InetAddress partner, int port) throws IOException {
-        Socket socket = new Socket(partner, port);
-        socketCommunicator = new SocketCommunicator(basicCryptographyManager, socket);
-        socketCommunicator.openConnection();
+    /**
+     * Opens a new stream on the connection to the partner, the connection is shared by all handovers to the partner.
+     */
+    private void openConnection(Identity ownIdentity, InetAddress partner, int port) throws IOException {
+        MultiplexedStream stream = MultiplexedConnectionManager.getManagerOfCompany(ownIdentity.getCompanyName())
+                .openStream(partner, port);
+        socketCommunicator = new SocketCommunicator(basicCryptographyManager, stream);
     }
 
     private void closeConnection() throws IOException {
@@ -248,21 +258,53 @@ public class BitcoinRuntimeVerifierHandoverClient {
                                    Activity activityToHandover,
                                    int previousStepId,
                                    int outputIndexOfPreviousStepToUse) {
+        for (int attempt = 1; ; attempt++) {
+            boolean wasRejected = tryHandoverWorkflowTo(workflowHandoverManager, ownIdentity, identityStorage, agentStorage,
+                    executionPath, processOwner, previousTask, activityToHandover, previousStepId,
+                    outputIndexOfPreviousStepToUse, attempt < maxAttemptsOfRejectedHandover);
+            if (!wasRejected) {
+                return;
+            }
+            logger.info(logPrefix + "The handover was rejected by the overloaded partner, retrying it shortly.");
+            try {
+                Thread.sleep(attempt * retryDelayOfRejectedHandoverMS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeVerificationException(logPrefix + "Interrupted while waiting to retry the rejected handover.", e);
+            }
+        }
+    }
+
+    /**
+     * Performs the handover, returns true if it was rejected by the partner and may be retried.
+     */
+    private boolean tryHandoverWorkflowTo(WorkflowHandoverManager workflowHandoverManager,
+                                          Identity ownIdentity,
+                                          IdentityStorage identityStorage,
+                                          AgentStorage agentStorage,
+                                          ExecutionPath executionPath,
+                                          String processOwner,
+                                          BusinessProcessElement previousTask,
+                                          Activity activityToHandover,
+                                          int previousStepId,
+                                          int outputIndexOfPreviousStepToUse,
+                                          boolean mayBeRetried) {
         try {
             //Search activity is skipped since it was predetermined by the simulation.
             String agentToHandOver = activityToHandover.getAgentId();
-            openConnection(InetAddress.getByName("0.0.0.0"), agentStorage.getPortOfAgent(agentToHandOver));
+            openConnection(ownIdentity, InetAddress.getByName("0.0.0.0"), agentStorage.getPortOfAgent(agentToHandOver));
 
             //Mutual identification
             Identity identityOfHandoverPartner = identityStorage.getPublicIdentificationDataOfCompany(agentToHandOver);
             if (agentToHandOver.equals(ownIdentity.getCompanyName())) {
                 identityOfHandoverPartner = ownIdentity;
             }
-            mutualIdentification(ownIdentity, identityOfHandoverPartner);
+            boolean isPipelined = socketCommunicator.usesPipelinedProtocol();
+            mutualIdentification(ownIdentity, identityOfHandoverPartner, isPipelined);
 
             //negotiate handover meta data
             int timestamp = new RuntimeVerificationUtils().getCurrentTimeInUnixTimestamp();
-            negotiateTakeoverOfWorkflowInstance(executionPath, activityToHandover, timestamp, processOwner);
+            negotiateTakeoverOfWorkflowInstance(executionPath, activityToHandover, timestamp, processOwner, isPipelined);
 
             byte[] previousExecutionResult = null;
             byte[] encryptedData = null;
@@ -277,7 +319,52 @@ public class BitcoinRuntimeVerifierHandoverClient {
             }
             transferEncryptedWorkflowData(encryptedData);
 
-            if (Simulator.useRuntimeVerification) {
+            if (isPipelined) {
+                //the answer shows that the partner admitted the handover, the own lock is not held while it is waiting
+                receiveResponseToPipelinedRequest(ownIdentity);
+            }
+
+            if (Simulator.useRuntimeVerification && isPipelined) {
+                //send the lock result and all handover data not depending on the partner at once
+                workflowHandoverManager.acquireLock();
+                socketCommunicator.sendObject(SocketCommunicator.lockSuccess);
+                if (Simulator.holdsHandoversOffChain()) {
+                    sendHeldHandovers(workflowHandoverManager, executionPath.getInstanceId());
+                }
+                socketCommunicator.sendObject(workflowHandoverManager.getDataIncludedInWFStepOutput(executionPath.getInstanceId(), previousStepId, outputIndexOfPreviousStepToUse));
+                socketCommunicator.sendDataWithSignature(workflowHandoverManager.getBitcoinPublicKeyToWFStepOutput(
+                        executionPath.getInstanceId(), previousStepId, outputIndexOfPreviousStepToUse));
+
+                String resultOfPartner = (String) socketCommunicator.receiveObject();
+                if (resultOfPartner.equals(SocketCommunicator.lockQueued)) {
+                    //the own lock is released while queued, otherwise partners handing over to each other could deadlock
+                    workflowHandoverManager.conditionallyReleaseLock();
+                    receiveLockGranted();
+                    while (!workflowHandoverManager.tryToAcquireLock(reacquireOwnLockTimeoutMS)) {
+                        if (Thread.currentThread().isInterrupted()) {
+                            throw new InterruptedException("Interrupted while reacquiring the own lock.");
+                        }
+                        socketCommunicator.sendObject(SocketCommunicator.lockFail);
+                        receiveLockGranted();
+                    }
+                    socketCommunicator.sendObject(SocketCommunicator.lockSuccess);
+                    if (Simulator.holdsHandoversOffChain()) {
+                        sendHeldHandovers(workflowHandoverManager, executionPath.getInstanceId());
+                    }
+                    resultOfPartner = SocketCommunicator.lockSuccess;
+                }
+                while (!resultOfPartner.equals(SocketCommunicator.lockSuccess)) {
+                    workflowHandoverManager.conditionallyReleaseLock();
+                    workflowHandoverManager.acquireLock();
+                    socketCommunicator.sendObject(SocketCommunicator.lockSuccess);
+                    //the held handovers may have changed while the lock was released
+                    if (Simulator.holdsHandoversOffChain()) {
+                        sendHeldHandovers(workflowHandoverManager, executionPath.getInstanceId());
+                    }
+                    resultOfPartner = (String) socketCommunicator.receiveObject();
+                }
+                logger.info(logPrefix + "Start performing handover");
+            } else if (Simulator.useRuntimeVerification) {
                 //lock negotiation
                 workflowHandoverManager.acquireLock();
                 socketCommunicator.sendObject(SocketCommunicator.lockSuccess);
@@ -292,6 +379,11 @@ public class BitcoinRuntimeVerifierHandoverClient {
                 //the previous stuff is considered a common requirement for any choreography
                 logger.info(logPrefix + "Start performing handover");
 
+                //send the preceding handovers which may still be held off-chain
+                if (Simulator.holdsHandoversOffChain()) {
+                    sendHeldHandovers(workflowHandoverManager, executionPath.getInstanceId());
+                }
+
                 //send the own Bitcoin address
                 byte[] bitcoinPubKeyOfStep = workflowHandoverManager.getBitcoinPublicKeyToWFStepOutput(executionPath.getInstanceId(), previousStepId, outputIndexOfPreviousStepToUse);
                 socketCommunicator.sendDataWithSignature(bitcoinPubKeyOfStep);
@@ -299,6 +391,9 @@ public class BitcoinRuntimeVerifierHandoverClient {
                 //send the previously included data that is recorded in the P2SH
                 List<byte[]> previousIncludedData = workflowHandoverManager.getDataIncludedInWFStepOutput(executionPath.getInstanceId(), previousStepId, outputIndexOfPreviousStepToUse);
                 socketCommunicator.sendObject(previousIncludedData);
+            }
+
+            if (Simulator.useRuntimeVerification) {
 
                 //receive the other Bitcoin address
                 byte[] bitcoinPublicKeyOfReceiver = socketCommunicator.receiveDataWithSignature();
@@ -320,9 +415,18 @@ public class BitcoinRuntimeVerifierHandoverClient {
                     workflowHandoverManager.finishAndPublishHandoverWorkflowTemplate(
                             executionPath.getInstanceId(), identityOfHandoverPartner, offChainSignature, outputIndexOfPreviousStepToUse);
                 }
+                //the held handover can not be observed on the network by the receiver
+                if (Simulator.holdsHandoversOffChain()) {
+                    sendHeldHandovers(workflowHandoverManager, executionPath.getInstanceId());
+                }
                 logger.info(logPrefix + "End performing handover");
             }
         } catch (HandoverFailureException e) {
+            if (e instanceof HandoverRejectedException && mayBeRetried) {
+                //the partner did not process any message, hence only the lock of the pipelined request is released
+                workflowHandoverManager.conditionallyReleaseLock();
+                return true;
+            }
             if (activityToHandover.isPerformedIncorrectly()) {
                 logger.warn(logPrefix + "The other client noticed a fault. This is expected behaviour");
             } else {
@@ -370,15 +474,54 @@ public class BitcoinRuntimeVerifierHandoverClient {
                 //Ignore
             }
         }
+        return false;
     }
 
     /**
      * Mutually identifies both participants
+     * The identity is authenticated by the following signed data, within a session by its MACs.
+     * In the pipelined protocol the session is only requested, the response is received with the Ok.
      */
-    private void mutualIdentification(Identity ownIdentity, Identity otherIdentity) throws IOException {
-        //security features not required in this simplified simulation, just send own identity
+    private void mutualIdentification(Identity ownIdentity, Identity otherIdentity, boolean isPipelined)
+            throws IOException, HandoverFailureException {
         socketCommunicator.sendObject(ownIdentity.getCompanyName());
         socketCommunicator.setPartnerIdentity(otherIdentity);
+        if (Simulator.usesAuthenticatedSessions() && isPipelined) {
+            socketCommunicator.sendSessionRequest(AuthenticatedSessionCache.getCacheOfCompany(ownIdentity.getCompanyName()));
+        } else if (Simulator.usesAuthenticatedSessions()) {
+            socketCommunicator.establishSessionAsClient(
+                    AuthenticatedSessionCache.getCacheOfCompany(ownIdentity.getCompanyName()), Simulator.sessionLifetimeInMS);
+        }
+    }
+
+    /**
+     * Receives the session response and the Ok answering the first part of the request of the pipelined protocol.
+     */
+    private void receiveResponseToPipelinedRequest(Identity ownIdentity) throws IOException, HandoverFailureException {
+        if (Simulator.usesAuthenticatedSessions()) {
+            socketCommunicator.receiveSessionResponse(
+                    AuthenticatedSessionCache.getCacheOfCompany(ownIdentity.getCompanyName()), Simulator.sessionLifetimeInMS);
+        }
+        String receiveOk = (String) socketCommunicator.receiveObject();
+        if (!"Ok".equals(receiveOk)) {
+            logger.warn("Sanity check failed. No Ok was sent.");
+        }
+    }
+
+    private void receiveLockGranted() throws IOException, HandoverFailureException {
+        String lockResult = (String) socketCommunicator.receiveObject();
+        if (!lockResult.equals(SocketCommunicator.lockGranted)) {
+            logger.warn("Sanity check failed. No LockGranted was sent.");
+        }
+    }
+
+    /**
+     * Sends the held transactions of the given instance followed by the anchoring proofs of those which were
+     * anchored already, the receiver verifies the proofs.
+     */
+    private void sendHeldHandovers(WorkflowHandoverManager workflowHandoverManager, short instanceId) throws IOException {
+        socketCommunicator.sendObject(workflowHandoverManager.getSerializedHeldTransactionsOfInstance(instanceId));
+        socketCommunicator.sendObject(workflowHandoverManager.getSerializedAnchoringProofsOfInstance(instanceId));
     }
 
 
@@ -389,7 +532,8 @@ public class BitcoinRuntimeVerifierHandoverClient {
     protected void negotiateTakeoverOfWorkflowInstance(ExecutionPath executionPath,
                                                        Activity activityToHandover,
                                                        int timestamp,
-                                                       String processOwner) throws IOException, HandoverFailureException, ClassNotFoundException {
+                                                       String processOwner,
+                                                       boolean isPipelined) throws IOException, HandoverFailureException {
         socketCommunicator.sendObject(executionPath.getBusinessProcessDescription().getName());
         socketCommunicator.sendObject(executionPath.getInstanceId());
         socketCommunicator.sendObject(processOwner);
@@ -398,7 +542,9 @@ public class BitcoinRuntimeVerifierHandoverClient {
         } else {
             socketCommunicator.sendObject(activityToHandover.getId());
         }
-        String receiveOk = (String) socketCommunicator.receiveObject();
+        if (!isPipelined) {
+            String receiveOk = (String) socketCommunicator.receiveObject();
+        }
         socketCommunicator.sendObject(timestamp);
     }
 
@@ -2,6 +2,7 @@ package at.ac.tuwien.infosys.prybila.runtimeVerification.simulation.core;
 
 import at.ac.tuwien.infosys.prybila.runtimeVerification.handoverFramework.WorkflowHandoverManager;
 import at.ac.tuwien.infosys.prybila.runtimeVerification.handoverFramework.core.OwnIdentityProvider;
+import at.ac.tuwien.infosys.prybila.runtimeVerification.simulation.Simulator;
 import at.ac.tuwien.infosys.prybila.runtimeVerification.simulation.core.sharedStorages.AgentStorage;
 import at.ac.tuwien.infosys.prybila.runtimeVerification.simulation.core.sharedStorages.ExecutionPathStorage;
 import at.ac.tuwien.infosys.prybila.runtimeVerification.simulation.core.sharedStorages.IdentityStorage;
@@ -11,14 +12,21 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Server listener for a bitcoin handover
+ * The handovers are processed by a bounded HandoverExecutor, the number of partner connections is limited as well.
+ * Every partner keeps one connection, connections beyond Simulator.maxOpenConnections are refused. The partner then
+ * retries its handovers like rejected ones.
  */
 public class BitcoinRuntimeVerifierServer extends Thread {
 
     private Logger logger = LoggerFactory.getLogger(BitcoinRuntimeVerifierServer.class);
 
+    private static final int waitingHandoversPerInFlightHandover = 4;
+
     private int port;
 
     private boolean shouldRun;
@@ -35,11 +43,19 @@ public class BitcoinRuntimeVerifierServer extends Thread {
 
     private AgentStorage agentStorage;
 
+    private HandoverExecutor handoverExecutor;
+
+    private HandoverLockQueue handoverLockQueue;
+
+    private final List<MultiplexedConnection> openConnections = new ArrayList<>();
+
     public BitcoinRuntimeVerifierServer(int port, OwnIdentityProvider ownIdentityProvider,
                                         WorkflowHandoverManager workflowHandoverManager) {
         this.port = port;
         this.ownIdentityProvider = ownIdentityProvider;
         this.workflowHandoverManager = workflowHandoverManager;
+        handoverLockQueue = new HandoverLockQueue(workflowHandoverManager,
+                waitingHandoversPerInFlightHandover * Simulator.maxInFlightHandovers);
         shouldRun = false;
     }
 
@@ -52,17 +68,33 @@ public class BitcoinRuntimeVerifierServer extends Thread {
             return;
         }
         String logPrefix = "VerificationServer (" + ownIdentityProvider.getOwnIdentity().getCompanyName() + "): ";
+        handoverExecutor = new HandoverExecutor("HandoverExecutor-" + port, Simulator.maxInFlightHandovers,
+                waitingHandoversPerInFlightHandover * Simulator.maxInFlightHandovers);
         logger.info(logPrefix + "started to listen on port");
         shouldRun = true;
         while (shouldRun) {
             Socket connectionSocket;
             try {
                 connectionSocket = serverSocket.accept();
+                openConnections.removeIf(connection -> !connection.isOpen());
+                if (openConnections.size() >= Simulator.maxOpenConnections) {
+                    logger.warn(logPrefix + "Refused a connection, " + openConnections.size() + " connections are open.");
+                    MultiplexedConnection.refuse(connectionSocket);
+                    continue;
+                }
                 logger.info(logPrefix + "Opened a new connection.");
-                ServerConnectionThread serverConnectionThread
-                        = new ServerConnectionThread(connectionSocket, ownIdentityProvider,
-                        identityStorage, workflowHandoverManager, agentStorage, executionPathStorage);
-                serverConnectionThread.start();
+                //the partner keeps the connection open and starts every handover on a new stream
+                openConnections.add(new MultiplexedConnection(connectionSocket, stream -> {
+                    ServerConnectionThread serverConnectionThread
+                            = new ServerConnectionThread(stream, ownIdentityProvider,
+                            identityStorage, workflowHandoverManager, agentStorage, executionPathStorage,
+                            handoverLockQueue, handoverExecutor);
+                    if (!handoverExecutor.submit(stream, serverConnectionThread)) {
+                        logger.warn(logPrefix + "Rejected a handover, " + handoverExecutor.getNumOfInFlightHandovers()
+                                + " handovers are in flight, " + handoverExecutor.getNumOfWaitingHandovers() + " are waiting and "
+                                + handoverExecutor.getNumOfPendingHandovers() + " are pending including their continuation.");
+                    }
+                }, SocketCommunicator.latestProtocolVersion));
             } catch (IOException e) {
                 if (!e.getMessage().equals("socket closed")) {
                     logger.warn("Error while waiting for communication channel.", e);
@@ -70,7 +102,19 @@ public class BitcoinRuntimeVerifierServer extends Thread {
                 continue;
             }
         }
-        logger.info(logPrefix + "stopped to listen on port");
+        handoverExecutor.shutdown();
+        for (MultiplexedConnection connection : openConnections) {
+            connection.close();
+        }
+        openConnections.clear();
+        logger.info(logPrefix + "stopped to listen on port. Accepted handovers: " + handoverExecutor.getNumOfAcceptedHandovers()
+                + ", rejected handovers: " + handoverExecutor.getNumOfRejectedHandovers()
+                + ", peak of in-flight handovers: " + handoverExecutor.getPeakOfInFlightHandovers()
+                + ", waits for the lock: " + handoverLockQueue.getNumOfWaits()
+                + ", timed out waits: " + handoverLockQueue.getNumOfTimeouts()
+                + ", mean and max waiting time: " + handoverLockQueue.getMeanWaitingTimeMS() + " / "
+                + handoverLockQueue.getMaxWaitingTimeMS() + " ms"
+                + ", peak of waiting handovers: " + handoverLockQueue.getPeakOfWaitingHandovers());
     }
 
     public void stopThread() {
@@ -81,6 +125,14 @@ public class BitcoinRuntimeVerifierServer extends Thread {
         }
     }
 
+    public HandoverExecutor getHandoverExecutor() {
+        return handoverExecutor;
+    }
+
+    public HandoverLockQueue getHandoverLockQueue() {
+        return handoverLockQueue;
+    }
+
     public boolean isRunning() {
         return shouldRun;
     }
@@ -0,0 +1,262 @@
+package at.ac.tuwien.infosys.prybila.runtimeVerification.simulation.core;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Encodes the messages of the handover protocol into length-prefixed binary frames and back.
+ * A frame is {type:1byte}{lengthOfPayload:varint}{payload}. The type identifies the Java type of the message, hence
+ * neither class descriptors nor back references are exchanged. Not thread safe, every connection has its own codec.
+ */
+public class FramedMessageCodec {
+
+    /**
+     * Received instead of a message if the partner ended the communication.
+     */
+    public static final Object killCommand = new Object();
+
+    private static final byte typeNull = 0;
+    private static final byte typeKillCommand = 1;
+    private static final byte typeString = 2;
+    private static final byte typeByte = 3;
+    private static final byte typeShort = 4;
+    private static final byte typeInteger = 5;
+    private static final byte typeByteArray = 6;
+    private static final byte typeByteArrayList = 7;
+
+    /**
+     * Maximal size of a frame header: the type and a varint of five bytes at most.
+     */
+    private static final int maxSizeOfFrameHeader = 6;
+
+    /**
+     * Upper bound of the payload of a received frame, protects against corrupted length fields.
+     */
+    private static final int maxLengthOfPayload = 16 * 1024 * 1024;
+
+    /**
+     * Reused encoding buffer, grows to the largest frame sent.
+     */
+    private ByteBuffer buffer = ByteBuffer.allocate(512);
+
+    /**
+     * Writes the given message as one frame. Supported are null, String, Byte, Short, Integer, byte[] and
+     * lists of byte[] which may contain null.
+     */
+    public void writeMessage(Object message, OutputStream out) throws IOException {
+        buffer.clear();
+        if (message == null) {
+            putFrame(typeNull, 0);
+        } else if (message == killCommand) {
+            putFrame(typeKillCommand, 0);
+        } else if (message instanceof String) {
+            byte[] encodedString = ((String) message).getBytes(StandardCharsets.UTF_8);
+            putFrame(typeString, encodedString.length);
+            buffer.put(encodedString);
+        } else if (message instanceof Byte) {
+            putFrame(typeByte, 1);
+            buffer.put((Byte) message);
+        } else if (message instanceof Short) {
+            putFrame(typeShort, 2);
+            buffer.putShort((Short) message);
+        } else if (message instanceof Integer) {
+            putFrame(typeInteger, 4);
+            buffer.putInt((Integer) message);
+        } else if (message instanceof byte[]) {
+            byte[] data = (byte[]) message;
+            putFrame(typeByteArray, data.length);
+            buffer.put(data);
+        } else if (message instanceof List) {
+            putByteArrayListFrame((List<?>) message);
+        } else {
+            throw new ProtocolException("Messages of type " + message.getClass().getName() + " can not be sent.");
+        }
+        out.write(buffer.array(), 0, buffer.position());
+    }
+
+    /**
+     * Reads the next frame and returns its message, or killCommand if the partner ended the communication.
+     * The type and the length of the payload are validated before the payload is read.
+     */
+    public Object readMessage(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        int expectedLengthOfPayload = getExpectedLengthOfPayload(type);
+        int lengthOfPayload = readVarInt(in);
+        if (lengthOfPayload > maxLengthOfPayload) {
+            throw new ProtocolException("The received frame of " + lengthOfPayload + " bytes exceeds the maximal size.");
+        }
+        if (expectedLengthOfPayload != -1 && lengthOfPayload != expectedLengthOfPayload) {
+            throw new ProtocolException("The received frame of type " + type + " has " + lengthOfPayload + " instead of " + expectedLengthOfPayload + " bytes.");
+        }
+        byte[] payload = new byte[lengthOfPayload];
+        in.readFully(payload);
+        switch (type) {
+            case typeNull:
+                return null;
+            case typeKillCommand:
+                return killCommand;
+            case typeString:
+                return new String(payload, StandardCharsets.UTF_8);
+            case typeByte:
+                return ByteBuffer.wrap(payload).get();
+            case typeShort:
+                return ByteBuffer.wrap(payload).getShort();
+            case typeInteger:
+                return ByteBuffer.wrap(payload).getInt();
+            case typeByteArray:
+                return payload;
+            case typeByteArrayList:
+                return decodeByteArrayList(payload);
+            default:
+                throw new ProtocolException("The received frame has the unknown type " + type + ".");
+        }
+    }
+
+    /**
+     * Returns the length of the payload of the given fixed size type, -1 for types of variable size.
+     * Throws a ProtocolException for unknown types.
+     */
+    private static int getExpectedLengthOfPayload(byte type) throws ProtocolException {
+        switch (type) {
+            case typeNull:
+            case typeKillCommand:
+                return 0;
+            case typeByte:
+                return 1;
+            case typeShort:
+                return 2;
+            case typeInteger:
+                return 4;
+            case typeString:
+            case typeByteArray:
+            case typeByteArrayList:
+                return -1;
+            default:
+                throw new ProtocolException("The received frame has the unknown type " + type + ".");
+        }
+    }
+
+    /**
+     * The payload is {numOfElements:varint} followed by every element as {lengthOfElement+1:varint}{element},
+     * a length of 0 stands for null.
+     */
+    private void putByteArrayListFrame(List<?> elements) throws ProtocolException {
+        int lengthOfPayload = sizeOfVarInt(elements.size());
+        for (Object element : elements) {
+            if (element != null && !(element instanceof byte[])) {
+                throw new ProtocolException("Lists of " + element.getClass().getName() + " can not be sent.");
+            }
+            int lengthOfElement = element == null ? 0 : ((byte[]) element).length;
+            lengthOfPayload += sizeOfVarInt(lengthOfElement + 1) + lengthOfElement;
+        }
+        putFrame(typeByteArrayList, lengthOfPayload);
+        putVarInt(elements.size());
+        for (Object element : elements) {
+            if (element == null) {
+                putVarInt(0);
+            } else {
+                putVarInt(((byte[]) element).length + 1);
+                buffer.put((byte[]) element);
+            }
+        }
+    }
+
+    private List<byte[]> decodeByteArrayList(byte[] payload) throws ProtocolException {
+        ByteBuffer payloadBuffer = ByteBuffer.wrap(payload);
+        int numOfElements = getVarInt(payloadBuffer);
+        List<byte[]> elements = new ArrayList<>(Math.min(numOfElements, payload.length));
+        for (int i = 0; i < numOfElements; i++) {
+            int lengthOfElement = getVarInt(payloadBuffer) - 1;
+            if (lengthOfElement < 0) {
+                elements.add(null);
+                continue;
+            }
+            if (lengthOfElement > payloadBuffer.remaining()) {
+                throw new ProtocolException("An element of the received list exceeds its frame.");
+            }
+            byte[] element = new byte[lengthOfElement];
+            payloadBuffer.get(element);
+            elements.add(element);
+        }
+        return elements;
+    }
+
+    /**
+     * Puts the type and length of a frame and ensures that the buffer can hold its payload.
+     */
+    private void putFrame(byte type, int lengthOfPayload) {
+        if (buffer.capacity() < maxSizeOfFrameHeader + lengthOfPayload) {
+            buffer = ByteBuffer.allocate(Math.max(2 * buffer.capacity(), maxSizeOfFrameHeader + lengthOfPayload));
+        }
+        buffer.put(type);
+        putVarInt(lengthOfPayload);
+    }
+
+    /**
+     * Puts the given non-negative value as unsigned LEB128 varint, seven bits per byte.
+     */
+    private void putVarInt(int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private static int sizeOfVarInt(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Writes the given non-negative value as unsigned LEB128 varint.
+     */
+    static void writeVarInt(int value, OutputStream out) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = in.readByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return checkVarInt(value);
+            }
+        }
+        throw new ProtocolException("The received varint is too long.");
+    }
+
+    private static int getVarInt(ByteBuffer in) throws ProtocolException {
+        int value = 0;
+        for (int shift = 0; shift < 35 && in.hasRemaining(); shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return checkVarInt(value);
+            }
+        }
+        throw new ProtocolException("The received varint is malformed.");
+    }
+
+    private static int checkVarInt(int value) throws ProtocolException {
+        if (value < 0) {
+            throw new ProtocolException("The received varint exceeds the range of an int.");
+        }
+        return value;
+    }
+}
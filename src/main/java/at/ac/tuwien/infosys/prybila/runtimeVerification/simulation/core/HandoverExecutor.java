@@ -0,0 +1,154 @@
+package at.ac.tuwien.infosys.prybila.runtimeVerification.simulation.core;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded executor for the incoming handovers of a server.
+ * At most maxInFlightHandovers handovers are processed concurrently, further handovers wait in a bounded queue.
+ * If the queue is full, the stream of the handover is rejected and the sender retries it later.
+ * The continuation of a received handover, i.e. the task and the next handover, runs on a second pool of the same
+ * size. An accepted handover counts against the admission of further handovers until its continuation is finished.
+ * A handover waiting in the HandoverLockQueue holds no thread and is admitted by the queue instead, it is resumed on
+ * the pool of the in-flight handovers.
+ */
+public class HandoverExecutor {
+
+    private final ThreadPoolExecutor executor;
+
+    private final ThreadPoolExecutor continuationExecutor;
+
+    /**
+     * Maximal number of accepted handovers whose processing or continuation is not finished yet.
+     */
+    private final int maxPendingHandovers;
+
+    private final AtomicInteger numOfPendingHandovers = new AtomicInteger();
+
+    private final AtomicInteger numOfInFlightHandovers = new AtomicInteger();
+
+    private final AtomicInteger peakOfInFlightHandovers = new AtomicInteger();
+
+    private final AtomicLong numOfAcceptedHandovers = new AtomicLong();
+
+    private final AtomicLong numOfRejectedHandovers = new AtomicLong();
+
+    public HandoverExecutor(String name, int maxInFlightHandovers, int maxWaitingHandovers) {
+        maxPendingHandovers = maxInFlightHandovers + maxWaitingHandovers;
+        //the queue is bounded by the admission of the handovers and of the HandoverLockQueue
+        executor = new ThreadPoolExecutor(maxInFlightHandovers, maxInFlightHandovers, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), createThreadFactory(name));
+        executor.allowCoreThreadTimeOut(true);
+        //the queue is bounded by the admission of the handovers
+        continuationExecutor = new ThreadPoolExecutor(maxInFlightHandovers, maxInFlightHandovers, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), createThreadFactory(name + "-Continuation"));
+        continuationExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private static ThreadFactory createThreadFactory(String name) {
+        AtomicInteger numOfThreads = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + numOfThreads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Schedules the handover received on the given stream or rejects the stream if too many handovers are pending.
+     * Returns true if the handover was accepted.
+     */
+    public boolean submit(MultiplexedStream stream, Runnable handover) {
+        if (numOfPendingHandovers.incrementAndGet() > maxPendingHandovers) {
+            return reject(stream);
+        }
+        try {
+            executor.execute(() -> {
+                peakOfInFlightHandovers.accumulateAndGet(numOfInFlightHandovers.incrementAndGet(), Math::max);
+                try {
+                    handover.run();
+                } finally {
+                    numOfInFlightHandovers.decrementAndGet();
+                    numOfPendingHandovers.decrementAndGet();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            return reject(stream);
+        }
+        numOfAcceptedHandovers.incrementAndGet();
+        return true;
+    }
+
+    private boolean reject(MultiplexedStream stream) {
+        numOfPendingHandovers.decrementAndGet();
+        numOfRejectedHandovers.incrementAndGet();
+        stream.reject();
+        return false;
+    }
+
+    /**
+     * Resumes a handover that waited without a thread, e.g. in the HandoverLockQueue.
+     * The resumption is never rejected, the waiting handovers are admitted by their queue.
+     */
+    public void resumeHandover(Runnable resumption) {
+        executor.execute(() -> {
+            peakOfInFlightHandovers.accumulateAndGet(numOfInFlightHandovers.incrementAndGet(), Math::max);
+            try {
+                resumption.run();
+            } finally {
+                numOfInFlightHandovers.decrementAndGet();
+            }
+        });
+    }
+
+    /**
+     * Schedules the continuation of the handover processed by the current thread.
+     * The continuation is never rejected, it counts against the admission of further handovers until it is finished.
+     */
+    public void continueHandover(Runnable continuation) {
+        numOfPendingHandovers.incrementAndGet();
+        try {
+            continuationExecutor.execute(() -> {
+                try {
+                    continuation.run();
+                } finally {
+                    numOfPendingHandovers.decrementAndGet();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            //only after the shutdown
+            numOfPendingHandovers.decrementAndGet();
+            throw e;
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+        continuationExecutor.shutdown();
+    }
+
+    public int getNumOfInFlightHandovers() {
+        return numOfInFlightHandovers.get();
+    }
+
+    public int getPeakOfInFlightHandovers() {
+        return peakOfInFlightHandovers.get();
+    }
+
+    public int getNumOfPendingHandovers() {
+        return numOfPendingHandovers.get();
+    }
+
+    public int getNumOfWaitingHandovers() {
+        return executor.getQueue().size();
+    }
+
+    public long getNumOfAcceptedHandovers() {
+        return numOfAcceptedHandovers.get();
+    }
+
+    public long getNumOfRejectedHandovers() {
+        return numOfRejectedHandovers.get();
+    }
+}
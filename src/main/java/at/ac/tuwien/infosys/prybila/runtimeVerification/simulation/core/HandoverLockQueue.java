@@ -0,0 +1,220 @@
+package at.ac.tuwien.infosys.prybila.runtimeVerification.simulation.core;
+
+import at.ac.tuwien.infosys.prybila.runtimeVerification.handoverFramework.WorkflowHandoverManager;
+
+import java.util.Deque;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Wait queue of the incoming handovers for the handover lock of a server.
+ * A handover that can not acquire the lock immediately is parked here without a thread, its stream stays open.
+ * Whenever the lock is released, the longest waiting handover is resumed on the HandoverExecutor, which acquires the
+ * lock for it. The queue and the wait are bounded, a handover that does not fit or is not granted in time is rejected
+ * and retried by its sender. The waiting times and the number of waiting handovers are recorded to make lock
+ * contention visible.
+ */
+public class HandoverLockQueue {
+
+    /**
+     * Expires the waits and delays the queuing of backed off handovers, the tasks only hand over to the executor.
+     */
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "HandoverLockQueueScheduler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final WorkflowHandoverManager workflowHandoverManager;
+
+    private final int maxNumOfWaitingHandovers;
+
+    private final Deque<QueuedHandover> queuedHandovers = new ConcurrentLinkedDeque<>();
+
+    private final AtomicInteger numOfWaitingHandovers = new AtomicInteger();
+
+    private final AtomicInteger peakOfWaitingHandovers = new AtomicInteger();
+
+    private final AtomicLong numOfWaits = new AtomicLong();
+
+    private final AtomicLong sumOfWaitingTimesMS = new AtomicLong();
+
+    private final AtomicLong maxWaitingTimeMS = new AtomicLong();
+
+    private final AtomicLong numOfTimeouts = new AtomicLong();
+
+    public HandoverLockQueue(WorkflowHandoverManager workflowHandoverManager, int maxNumOfWaitingHandovers) {
+        this.workflowHandoverManager = workflowHandoverManager;
+        this.maxNumOfWaitingHandovers = maxNumOfWaitingHandovers;
+        workflowHandoverManager.addLockReleaseListener(this::grantLockToNextHandover);
+    }
+
+    /**
+     * Handover waiting in the queue, its callbacks are called on a thread of the HandoverExecutor.
+     */
+    public interface WaitingHandover {
+
+        /**
+         * Called with the waiting time in milliseconds, the current thread holds the lock.
+         */
+        void lockGranted(long waitingTimeMS);
+
+        /**
+         * Called if the lock was not granted in time, the current thread does not hold the lock.
+         */
+        void lockTimedOut();
+    }
+
+    /**
+     * Parks the given handover until the lock is granted to it or the timeout expired.
+     * The handover is queued after the given delay, which counts against the timeout as well.
+     * Returns false without queuing the handover if too many handovers are waiting already.
+     */
+    public boolean enqueue(WaitingHandover waitingHandover, HandoverExecutor handoverExecutor, long timeoutMS, long delayMS) {
+        if (numOfWaitingHandovers.incrementAndGet() > maxNumOfWaitingHandovers) {
+            numOfWaitingHandovers.decrementAndGet();
+            return false;
+        }
+        peakOfWaitingHandovers.accumulateAndGet(numOfWaitingHandovers.get(), Math::max);
+        QueuedHandover queuedHandover = new QueuedHandover(waitingHandover, handoverExecutor);
+        queuedHandover.timeout = scheduler.schedule(() -> expire(queuedHandover), timeoutMS, TimeUnit.MILLISECONDS);
+        if (delayMS > 0) {
+            scheduler.schedule(() -> addAndGrantIfFree(queuedHandover, false), delayMS, TimeUnit.MILLISECONDS);
+        } else {
+            addAndGrantIfFree(queuedHandover, false);
+        }
+        return true;
+    }
+
+    /**
+     * Adds the handover to the queue and grants the lock if it is free. Otherwise the release of the lock grants it.
+     */
+    private void addAndGrantIfFree(QueuedHandover queuedHandover, boolean asFirst) {
+        if (asFirst) {
+            queuedHandovers.addFirst(queuedHandover);
+        } else {
+            queuedHandovers.addLast(queuedHandover);
+        }
+        if (!workflowHandoverManager.isLocked()) {
+            grantLockToNextHandover();
+        }
+    }
+
+    /**
+     * Resumes the longest waiting handover, called whenever the lock was released.
+     */
+    private void grantLockToNextHandover() {
+        QueuedHandover queuedHandover = queuedHandovers.poll();
+        while (queuedHandover != null && queuedHandover.isFinished.get()) {
+            queuedHandover = queuedHandovers.poll();
+        }
+        if (queuedHandover == null) {
+            return;
+        }
+        QueuedHandover nextHandover = queuedHandover;
+        try {
+            nextHandover.handoverExecutor.resumeHandover(() -> acquireLockFor(nextHandover));
+        } catch (RejectedExecutionException e) {
+            //the server was stopped, its connections are closed
+        }
+    }
+
+    /**
+     * Acquires the lock for the given handover on the thread that continues it.
+     * The handover returns to the front of the queue if another thread took the lock in the meantime.
+     */
+    private void acquireLockFor(QueuedHandover queuedHandover) {
+        if (!workflowHandoverManager.tryToAcquireLock()) {
+            if (!queuedHandover.isFinished.get()) {
+                addAndGrantIfFree(queuedHandover, true);
+            }
+            return;
+        }
+        if (!queuedHandover.finish()) {
+            //the wait expired in the meantime
+            workflowHandoverManager.conditionallyReleaseLock();
+            return;
+        }
+        long waitingTimeMS = (System.nanoTime() - queuedHandover.startOfWait) / 1000000;
+        numOfWaits.incrementAndGet();
+        sumOfWaitingTimesMS.addAndGet(waitingTimeMS);
+        maxWaitingTimeMS.accumulateAndGet(waitingTimeMS, Math::max);
+        queuedHandover.waitingHandover.lockGranted(waitingTimeMS);
+    }
+
+    private void expire(QueuedHandover queuedHandover) {
+        if (!queuedHandover.finish()) {
+            return;
+        }
+        queuedHandovers.remove(queuedHandover);
+        numOfTimeouts.incrementAndGet();
+        try {
+            queuedHandover.handoverExecutor.resumeHandover(queuedHandover.waitingHandover::lockTimedOut);
+        } catch (RejectedExecutionException e) {
+            //the server was stopped, its connections are closed
+        }
+    }
+
+    private class QueuedHandover {
+
+        private final WaitingHandover waitingHandover;
+
+        private final HandoverExecutor handoverExecutor;
+
+        private final long startOfWait = System.nanoTime();
+
+        /**
+         * Set once the lock was granted or the wait expired, only one of both happens.
+         */
+        private final AtomicBoolean isFinished = new AtomicBoolean();
+
+        private volatile ScheduledFuture<?> timeout;
+
+        private QueuedHandover(WaitingHandover waitingHandover, HandoverExecutor handoverExecutor) {
+            this.waitingHandover = waitingHandover;
+            this.handoverExecutor = handoverExecutor;
+        }
+
+        /**
+         * Returns true if the wait was finished by the current call.
+         */
+        private boolean finish() {
+            if (!isFinished.compareAndSet(false, true)) {
+                return false;
+            }
+            numOfWaitingHandovers.decrementAndGet();
+            ScheduledFuture<?> timeoutOfWait = timeout;
+            if (timeoutOfWait != null) {
+                timeoutOfWait.cancel(false);
+            }
+            return true;
+        }
+    }
+
+    public int getNumOfWaitingHandovers() {
+        return numOfWaitingHandovers.get();
+    }
+
+    public int getPeakOfWaitingHandovers() {
+        return peakOfWaitingHandovers.get();
+    }
+
+    public long getNumOfWaits() {
+        return numOfWaits.get();
+    }
+
+    public long getNumOfTimeouts() {
+        return numOfTimeouts.get();
+    }
+
+    public long getMeanWaitingTimeMS() {
+        long waits = numOfWaits.get();
+        return waits == 0 ? 0 : sumOfWaitingTimesMS.get() / waits;
+    }
+
+    public long getMaxWaitingTimeMS() {
+        return maxWaitingTimeMS.get();
+    }
+}
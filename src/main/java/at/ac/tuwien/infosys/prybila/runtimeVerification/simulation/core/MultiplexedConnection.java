@@ -0,0 +1,299 @@
+package at.ac.tuwien.infosys.prybila.runtimeVerification.simulation.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.Consumer;
+
+/**
+ * Long-lived connection between two participants carrying multiple concurrent handover conversations.
+ * Every message is sent as {streamId:varint}{kindOfFrame:1byte} followed by a FramedMessageCodec frame for data.
+ * Streams are only opened by the side that established the connection. Frames of unknown or closed streams are
+ * dropped. A reader thread distributes the received messages to the streams.
+ * Before the first frame both sides send the highest protocol version they support, the lower one is used.
+ * A partner that refuses the connection sends refusedConnection instead, all streams are then rejected.
+ */
+public class MultiplexedConnection {
+
+    private static final Logger logger = LoggerFactory.getLogger(MultiplexedConnection.class);
+
+    private static final byte frameOpen = 0;
+    private static final byte frameData = 1;
+    private static final byte frameClose = 2;
+    private static final byte frameReject = 3;
+
+    /**
+     * Sent instead of the protocol version by a partner that refuses the connection, e.g. due to overload.
+     */
+    public static final int refusedConnection = 0;
+
+    /**
+     * Time for which a refused partner may still send frames, until it noticed the refusal and closed its side.
+     */
+    private static final int maxRefusalLingerMS = 1000;
+
+    private final Socket socket;
+
+    private final DataInputStream in;
+
+    private final DataOutputStream out;
+
+    /**
+     * Encodes the sent messages, only used while holding the lock of out.
+     */
+    private final FramedMessageCodec framedMessageCodec = new FramedMessageCodec();
+
+    private final Map<Integer, MultiplexedStream> streams = new ConcurrentHashMap<>();
+
+    /**
+     * Only modified while holding the lock of out, hence the open frames are sent in the order of their ids.
+     */
+    private int lastOpenedStreamId;
+
+    /**
+     * Handles the streams opened by the partner, null if the partner may not open streams.
+     */
+    private final Consumer<MultiplexedStream> acceptedStreamHandler;
+
+    private volatile boolean isOpen = true;
+
+    /**
+     * Only set while holding the lock of out, hence no stream is opened or sent to after the refusal.
+     */
+    private volatile boolean isRefusedByPartner;
+
+    private final int ownProtocolVersion;
+
+    private volatile int negotiatedProtocolVersion;
+
+    private final CountDownLatch protocolVersionNegotiated = new CountDownLatch(1);
+
+    /**
+     * Creates the connection, sends the highest supported protocol version and starts the reader thread.
+     */
+    public MultiplexedConnection(Socket socket, Consumer<MultiplexedStream> acceptedStreamHandler, int ownProtocolVersion)
+            throws IOException {
+        this.socket = socket;
+        this.acceptedStreamHandler = acceptedStreamHandler;
+        this.ownProtocolVersion = ownProtocolVersion;
+        //the protocol consists of small request response pairs, which must not wait for delayed acknowledgements
+        socket.setTcpNoDelay(true);
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        synchronized (out) {
+            FramedMessageCodec.writeVarInt(ownProtocolVersion, out);
+            out.flush();
+        }
+        Thread readerThread = new Thread(this::readFrames, "MultiplexedConnectionReader-" + socket.getRemoteSocketAddress());
+        readerThread.setDaemon(true);
+        readerThread.start();
+    }
+
+    /**
+     * Opens a new stream to the partner.
+     * The open frame is not flushed on its own, it is sent together with the first message of the stream.
+     */
+    public MultiplexedStream openStream() throws IOException {
+        synchronized (out) {
+            if (isRefusedByPartner) {
+                MultiplexedStream stream = new MultiplexedStream(this, ++lastOpenedStreamId);
+                stream.rejectedByPartner();
+                return stream;
+            }
+            if (!isOpen) {
+                throw new IOException("The connection to " + socket.getRemoteSocketAddress() + " is closed.");
+            }
+            MultiplexedStream stream = new MultiplexedStream(this, ++lastOpenedStreamId);
+            streams.put(stream.getStreamId(), stream);
+            FramedMessageCodec.writeVarInt(stream.getStreamId(), out);
+            out.write(frameOpen);
+            return stream;
+        }
+    }
+
+    public boolean isOpen() {
+        return isOpen;
+    }
+
+    /**
+     * Returns the protocol version supported by both sides, blocks until the version of the partner is received.
+     * Returns refusedConnection if the partner refused the connection.
+     */
+    public int getProtocolVersion() throws IOException {
+        try {
+            protocolVersionNegotiated.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while negotiating the protocol version.");
+        }
+        if (isRefusedByPartner) {
+            return refusedConnection;
+        }
+        if (negotiatedProtocolVersion == 0) {
+            throw new IOException("The connection to " + socket.getRemoteSocketAddress() + " was lost before the protocol version was negotiated.");
+        }
+        return negotiatedProtocolVersion;
+    }
+
+    public int getNumOfOpenStreams() {
+        return streams.size();
+    }
+
+    /**
+     * Closes the socket, all streams receive an IOException.
+     */
+    public void close() {
+        isOpen = false;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            //ignore
+        }
+    }
+
+    /**
+     * Refuses the accepted socket instead of creating a connection for it.
+     * The frames the partner sent before it noticed the refusal are drained, since closing a socket with unread data
+     * resets the connection and the partner might not read the refusal. Blocks for at most maxRefusalLingerMS.
+     */
+    public static void refuse(Socket socket) {
+        try {
+            socket.setSoTimeout(maxRefusalLingerMS);
+            OutputStream out = socket.getOutputStream();
+            FramedMessageCodec.writeVarInt(refusedConnection, out);
+            out.flush();
+            socket.shutdownOutput();
+            InputStream in = socket.getInputStream();
+            byte[] buffer = new byte[1024];
+            while (in.read(buffer) >= 0) {
+                //drain until the partner closed its side
+            }
+        } catch (IOException e) {
+            //the partner notices the failed connection itself
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                //ignore
+            }
+        }
+    }
+
+    void sendMessage(int streamId, Object message) throws IOException {
+        synchronized (out) {
+            if (isRefusedByPartner) {
+                //the stream is rejected, hence its messages are dropped
+                return;
+            }
+            FramedMessageCodec.writeVarInt(streamId, out);
+            out.write(frameData);
+            framedMessageCodec.writeMessage(message, out);
+            out.flush();
+        }
+    }
+
+    /**
+     * Removes the stream, the partner is informed unless it already closed the stream itself.
+     */
+    void closeStream(MultiplexedStream stream, boolean informPartner) {
+        streams.remove(stream.getStreamId());
+        if (informPartner) {
+            sendControlFrame(stream.getStreamId(), frameClose);
+        }
+    }
+
+    /**
+     * Removes a stream opened by the partner before any of its messages was processed.
+     */
+    void rejectStream(MultiplexedStream stream) {
+        streams.remove(stream.getStreamId());
+        sendControlFrame(stream.getStreamId(), frameReject);
+    }
+
+    private void sendControlFrame(int streamId, byte kindOfFrame) {
+        if (!isOpen) {
+            return;
+        }
+        try {
+            synchronized (out) {
+                FramedMessageCodec.writeVarInt(streamId, out);
+                out.write(kindOfFrame);
+                out.flush();
+            }
+        } catch (IOException e) {
+            //the partner notices the failed connection itself
+        }
+    }
+
+    private void readFrames() {
+        FramedMessageCodec readingCodec = new FramedMessageCodec();
+        try {
+            int partnerProtocolVersion = FramedMessageCodec.readVarInt(in);
+            if (partnerProtocolVersion == refusedConnection) {
+                refusedByPartner();
+                return;
+            }
+            negotiatedProtocolVersion = Math.min(ownProtocolVersion, partnerProtocolVersion);
+            protocolVersionNegotiated.countDown();
+            while (true) {
+                int streamId = FramedMessageCodec.readVarInt(in);
+                byte kindOfFrame = in.readByte();
+                if (kindOfFrame == frameOpen) {
+                    acceptStream(streamId);
+                } else if (kindOfFrame == frameData) {
+                    Object message = readingCodec.readMessage(in);
+                    MultiplexedStream stream = streams.get(streamId);
+                    if (stream != null) {
+                        stream.received(message);
+                    }
+                } else if (kindOfFrame == frameClose || kindOfFrame == frameReject) {
+                    MultiplexedStream stream = streams.get(streamId);
+                    if (stream != null && kindOfFrame == frameClose) {
+                        stream.closedByPartner();
+                    } else if (stream != null) {
+                        stream.rejectedByPartner();
+                    }
+                } else {
+                    throw new ProtocolException("The received frame has the unknown kind " + kindOfFrame + ".");
+                }
+            }
+        } catch (IOException e) {
+            if (isOpen) {
+                logger.debug("The connection to " + socket.getRemoteSocketAddress() + " was lost.", e);
+            }
+        } finally {
+            protocolVersionNegotiated.countDown();
+            close();
+            for (MultiplexedStream stream : streams.values()) {
+                stream.connectionLost();
+            }
+            streams.clear();
+        }
+    }
+
+    private void refusedByPartner() {
+        synchronized (out) {
+            isRefusedByPartner = true;
+            isOpen = false;
+            for (MultiplexedStream stream : streams.values()) {
+                stream.rejectedByPartner();
+            }
+            streams.clear();
+        }
+    }
+
+    private void acceptStream(int streamId) throws ProtocolException {
+        if (acceptedStreamHandler == null || streams.containsKey(streamId)) {
+            throw new ProtocolException("The partner may not open the stream " + streamId + ".");
+        }
+        MultiplexedStream stream = new MultiplexedStream(this, streamId);
+        streams.put(streamId, stream);
+        acceptedStreamHandler.accept(stream);
+    }
+}
@@ -0,0 +1,57 @@
+package at.ac.tuwien.infosys.prybila.runtimeVerification.simulation.core;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps one long-lived MultiplexedConnection of a company to each of its handover partners.
+ * A connection is reestablished with the next stream after it was lost.
+ * Every company of the simulation has its own manager, like every participant would have its own connections.
+ */
+public class MultiplexedConnectionManager {
+
+    private static final Map<String, MultiplexedConnectionManager> managersOfCompanies = new ConcurrentHashMap<>();
+
+    /**
+     * Connections by the address and port of the partner.
+     */
+    private final Map<String, MultiplexedConnection> connections = new ConcurrentHashMap<>();
+
+    /**
+     * Locks by the address and port of the partner, only the streams to the same partner wait for its connect.
+     */
+    private final Map<String, Object> connectLocksOfPartners = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the connection manager of the given own company.
+     */
+    public static MultiplexedConnectionManager getManagerOfCompany(String ownCompany) {
+        return managersOfCompanies.computeIfAbsent(ownCompany, company -> new MultiplexedConnectionManager());
+    }
+
+    /**
+     * Opens a new stream to the partner listening on the given address and port.
+     */
+    public MultiplexedStream openStream(InetAddress partner, int port) throws IOException {
+        return getConnection(partner, port).openStream();
+    }
+
+    private MultiplexedConnection getConnection(InetAddress partner, int port) throws IOException {
+        String addressOfPartner = partner.getHostAddress() + ":" + port;
+        MultiplexedConnection connection = connections.get(addressOfPartner);
+        if (connection != null && connection.isOpen()) {
+            return connection;
+        }
+        synchronized (connectLocksOfPartners.computeIfAbsent(addressOfPartner, address -> new Object())) {
+            connection = connections.get(addressOfPartner);
+            if (connection == null || !connection.isOpen()) {
+                connection = new MultiplexedConnection(new Socket(partner, port), null, SocketCommunicator.latestProtocolVersion);
+                connections.put(addressOfPartner, connection);
+            }
+            return connection;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package at.ac.tuwien.infosys.prybila.runtimeVerification.simulation.core;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * One handover conversation within a MultiplexedConnection.
+ * Received messages are queued by the reader thread of the connection until they are taken by the conversation.
+ * The queue is bounded, a stream whose partner sends more than maxNumOfQueuedMessages unprocessed messages is closed.
+ */
+public class MultiplexedStream {
+
+    /**
+     * Received instead of a message if the partner rejected the stream before its messages changed any state.
+     */
+    public static final Object rejectedByPartner = new Object();
+
+    /**
+     * The protocol is a sequence of small request response pairs, hence only a few messages are in flight per stream.
+     */
+    private static final int maxNumOfQueuedMessages = 64;
+
+    private static final Object nullMessage = new Object();
+    private static final Object endOfStream = new Object();
+    private static final Object lostConnection = new Object();
+    private static final Object overflow = new Object();
+
+    private final MultiplexedConnection connection;
+
+    private final int streamId;
+
+    private final BlockingQueue<Object> receivedMessages = new LinkedBlockingQueue<>();
+
+    private volatile boolean isClosedByPartner;
+
+    private volatile boolean isRejectedByPartner;
+
+    private volatile boolean isOverflowed;
+
+    private boolean isClosed;
+
+    MultiplexedStream(MultiplexedConnection connection, int streamId) {
+        this.connection = connection;
+        this.streamId = streamId;
+    }
+
+    /**
+     * Sends the given message. Messages of a rejected stream are dropped, the rejection is received instead.
+     */
+    public void sendMessage(Object message) throws IOException {
+        if (isRejectedByPartner) {
+            return;
+        }
+        if (isClosed || isClosedByPartner || isOverflowed) {
+            throw new EOFException("The stream " + streamId + " is closed.");
+        }
+        connection.sendMessage(streamId, message);
+    }
+
+    /**
+     * Blocks until the next message of the partner is received, or returns rejectedByPartner.
+     */
+    public Object receiveMessage() throws IOException {
+        Object message;
+        try {
+            message = receivedMessages.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a message of stream " + streamId + ".");
+        }
+        if (message == rejectedByPartner) {
+            receivedMessages.add(message);
+            return message;
+        }
+        if (message == endOfStream || message == lostConnection || message == overflow) {
+            //following calls fail as well
+            receivedMessages.add(message);
+            if (message == endOfStream) {
+                throw new EOFException("The stream " + streamId + " was closed by the partner.");
+            }
+            if (message == overflow) {
+                throw new IOException("The stream " + streamId + " was closed, the partner sent more than " + maxNumOfQueuedMessages + " unprocessed messages.");
+            }
+            throw new IOException("The connection of stream " + streamId + " was lost.");
+        }
+        return message == nullMessage ? null : message;
+    }
+
+    /**
+     * Closes the stream, the connection stays open for further streams.
+     */
+    public void close() {
+        if (!isClosed) {
+            isClosed = true;
+            connection.closeStream(this, !isClosedByPartner && !isRejectedByPartner && !isOverflowed);
+        }
+    }
+
+    /**
+     * Rejects a stream opened by the partner, its messages must not have changed any state yet.
+     */
+    public void reject() {
+        if (!isClosed) {
+            isClosed = true;
+            connection.rejectStream(this);
+        }
+    }
+
+    /**
+     * Returns the protocol version negotiated for the connection of this stream.
+     * Returns MultiplexedConnection.refusedConnection if the partner refused the connection, the stream is then rejected.
+     */
+    public int getProtocolVersion() throws IOException {
+        return connection.getProtocolVersion();
+    }
+
+    public int getStreamId() {
+        return streamId;
+    }
+
+    /**
+     * Queues the given message, called by the reader thread of the connection.
+     * Closes the stream instead of blocking the reader thread if the queue is full, the conversation fails with an
+     * IOException.
+     */
+    void received(Object message) {
+        if (isOverflowed) {
+            return;
+        }
+        if (receivedMessages.size() >= maxNumOfQueuedMessages) {
+            isOverflowed = true;
+            receivedMessages.clear();
+            receivedMessages.add(overflow);
+            connection.closeStream(this, true);
+            return;
+        }
+        receivedMessages.add(message == null ? nullMessage : message);
+    }
+
+    void closedByPartner() {
+        isClosedByPartner = true;
+        receivedMessages.add(endOfStream);
+    }
+
+    void rejectedByPartner() {
+        isRejectedByPartner = true;
+        receivedMessages.add(rejectedByPartner);
+    }
+
+    void connectionLost() {
+        receivedMessages.add(lostConnection);
+    }
+}
@@ -7,6 +7,7 @@ import at.ac.tuwien.infosys.prybila.runtimeVerification.handoverFramework.core.O
 import at.ac.tuwien.infosys.prybila.runtimeVerification.handoverFramework.core.model.Identity;
 import at.ac.tuwien.infosys.prybila.runtimeVerification.simulation.Simulator;
 import at.ac.tuwien.infosys.prybila.runtimeVerification.simulation.core.exceptions.HandoverFailureException;
+import at.ac.tuwien.infosys.prybila.runtimeVerification.simulation.core.exceptions.HandoverRejectedException;
 import at.ac.tuwien.infosys.prybila.runtimeVerification.simulation.core.exceptions.RecognizedFaultException;
 import at.ac.tuwien.infosys.prybila.runtimeVerification.simulation.core.sharedStorages.AgentStorage;
 import at.ac.tuwien.infosys.prybila.runtimeVerification.simulation.core.sharedStorages.ExecutionPathStorage;
@@ -20,16 +21,31 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.net.Socket;
 import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * Server functionality for a bitcoin handover
+ * Handles one stream opened by the partner on a MultiplexedConnection and runs on the HandoverExecutor of the server.
+ * A handover waiting for the lock is parked in the HandoverLockQueue without a thread and continued by the queue.
+ * The subsequent task and the next handover are performed as continuation on the HandoverExecutor.
  */
-public class ServerConnectionThread extends Thread {
+public class ServerConnectionThread implements Runnable, HandoverLockQueue.WaitingHandover {
 
     private Logger logger = LoggerFactory.getLogger(ServerConnectionThread.class);
 
+    private static final long waitForPublishedHandoverMS = 6000;
+
+    /**
+     * Maximal time a handover waits in the HandoverLockQueue before it is rejected.
+     */
+    private static final long maxWaitForLockMS = 30000;
+
+    /**
+     * Upper bound of the random back-off before a handover is queued again after the partner answered lockFail.
+     */
+    private static final long maxLockBackOffMS = 200;
+
     private SocketCommunicator socketCommunicator;
 
     private OwnIdentityProvider ownIdentityProvider;
@@ -44,137 +60,100 @@ public class ServerConnectionThread extends Thread {
 
     private WorkflowHandoverManager workflowHandoverManager;
 
+    private HandoverLockQueue handoverLockQueue;
+
+    private HandoverExecutor handoverExecutor;
+
     private RuntimeVerificationUtils utils;
 
     boolean shouldPerformRelaxedIdentityCheck;
 
-    public ServerConnectionThread(Socket socket, OwnIdentityProvider ownIdentityProvider,
+    //state of the handover, kept between the phases before and after waiting for the lock
+
+    private Short instanceId = -1;
+
+    private String processOwner;
+
+    private int wfStepWithHandoverId = -1;
+
+    private ExecutionPath currentExecutionPath;
+
+    private BusinessProcessElement executionReferenceOfCurrentTask;
+
+    private String logPrefix = "";
+
+    private Identity identityOfSender;
+
+    private Identity ownIdentity;
+
+    private boolean isPipelined;
+
+    private Byte taskIdToProcess;
+
+    private Integer timestamp;
+
+    private byte[] encryptedWfData;
+
+    private List<byte[]> heldHandovers;
+
+    private List<byte[]> anchoringProofsOfHeldHandovers;
+
+    private List<byte[]> previousIncludedData;
+
+    private byte[] bitcoinPublicKeyOfSender;
+
+    public ServerConnectionThread(MultiplexedStream stream, OwnIdentityProvider ownIdentityProvider,
                                   IdentityStorage identityStorage, WorkflowHandoverManager workflowHandoverManager,
-                                  AgentStorage agentStorage, ExecutionPathStorage executionPathStorage) {
+                                  AgentStorage agentStorage, ExecutionPathStorage executionPathStorage,
+                                  HandoverLockQueue handoverLockQueue, HandoverExecutor handoverExecutor) {
         this.ownIdentityProvider = ownIdentityProvider;
         this.identityStorage = identityStorage;
         this.agentStorage = agentStorage;
         this.executionPathStorage = executionPathStorage;
         this.workflowHandoverManager = workflowHandoverManager;
+        this.handoverLockQueue = handoverLockQueue;
+        this.handoverExecutor = handoverExecutor;
         utils = new RuntimeVerificationUtils();
         basicCryptographyManager = new BasicCryptographyManager(ownIdentityProvider.getOwnIdentity());
-        socketCommunicator = new SocketCommunicator(basicCryptographyManager, socket);
+        socketCommunicator = new SocketCommunicator(basicCryptographyManager, stream);
     }
 
     @Override
     public void run() {
-        Short instanceId = -1;
-        String processOwner = null;
-        int wfStepWithHandoverId = -1;
-        ExecutionPath currentExecutionPath = null;
-        BusinessProcessElement executionReferenceOfCurrentTask = null;
-        String logPrefix = "";
-        Identity identityOfSender = null;
-        try {
-            shouldPerformRelaxedIdentityCheck = true;
-            socketCommunicator.openConnection();
-
-            //receive identity
-            String agentIdOfSender = (String) socketCommunicator.receiveObject();
-
-            identityOfSender = identityStorage.getPublicIdentificationDataOfCompany(agentIdOfSender);
-            Identity ownIdentity = ownIdentityProvider.getOwnIdentity();
-            socketCommunicator.setPartnerIdentity(identityOfSender);
-
-            //receive business process information
-            String businessProcess = (String) socketCommunicator.receiveObject();
-
-            //receive workflow meta data
-            instanceId = (Short) socketCommunicator.receiveObject();
-            currentExecutionPath = executionPathStorage.getExecutionPathOfInstance(instanceId);
-            logPrefix = "ServerConnectionThread(" + ownIdentity.getCompanyName() + ",wfId:" + currentExecutionPath.getInstanceId() + "): ";
-
-
-            processOwner = (String) socketCommunicator.receiveObject();
-
-            Byte taskIdToProcess = (Byte) socketCommunicator.receiveObject();
-            executionReferenceOfCurrentTask = getPlannedExecutionReferenceOfTheCurrentTask(currentExecutionPath, taskIdToProcess);
-            socketCommunicator.sendObject("Ok");
+        performPhase(this::receiveRequestAndNegotiateLock);
+    }
 
-            Integer timestamp = (Integer) socketCommunicator.receiveObject();
+    @Override
+    public void lockGranted(long waitingTimeMS) {
+        performPhase(() -> confirmGrantedLock(waitingTimeMS));
+    }
 
-            //receive encrypted workflow data
-            byte[] encryptedWfData = (byte[]) socketCommunicator.receiveObject();
-            logger.info("Receiving handover task "
-                    + ((Activity) executionReferenceOfCurrentTask).getName() + ":" + taskIdToProcess);
+    @Override
+    public void lockTimedOut() {
+        performPhase(() -> {
+            throw new HandoverRejectedException("The lock was not granted within " + maxWaitForLockMS + " ms.");
+        });
+    }
 
+    /**
+     * Performs the given phase of the handover. Unless the phase parked the handover in the HandoverLockQueue, the rest
+     * of the handover is received, the stream is closed and the next task is continued on the HandoverExecutor.
+     */
+    private void performPhase(HandoverPhase phase) {
+        boolean isParked = false;
+        try {
+            isParked = !phase.perform();
+            if (isParked) {
+                return;
+            }
             if (Simulator.useRuntimeVerification) {
-                //lock negotiation
-                receiveLockSuccess();
-                while(!workflowHandoverManager.tryToAcquireLock()) {
-                    socketCommunicator.sendObject(SocketCommunicator.lockFail);
-                    receiveLockSuccess();
-                }
-                socketCommunicator.sendObject(SocketCommunicator.lockSuccess);
-
-                //the previous stuff is considered a common requirement for any choreography
-                logger.info(logPrefix + "Start receiving handover");
-
-                //receive PKI signed bitcoin address of sender
-                byte[] bitcoinPublicKeyOfSender = socketCommunicator.receiveDataWithSignature();
-                identityOfSender.setBitcoinPublicKey(bitcoinPublicKeyOfSender);
-
-                //receive data required to unlock p2sh output
-                List<byte[]> previousIncludedData = (List<byte[]>) socketCommunicator.receiveObject();
-
-                //init the expected handover.
-                byte[] pubKeyOfReceiverForHandover = workflowHandoverManager.initHandoverOnReceiverSide(
-                        instanceId,
-                        identityOfSender,
-                        timestamp,
-                        taskIdToProcess,
-                        encryptedWfData,
-                        previousIncludedData,
-                        shouldPerformRelaxedIdentityCheck);
-
-                //return own PKI signed bitcoin address
-                socketCommunicator.sendDataWithSignature(pubKeyOfReceiverForHandover);
-
-                //receive transaction template
-                byte[] transactionToSign = socketCommunicator.receiveDataWithSignature();
-                //receive symKey and decrypt transaction data
-                String symKey = (String) socketCommunicator.receiveObject();
-                if (encryptedWfData != null && !symKey.equals("")) {
-                    workflowHandoverManager.decryptHandoverWorkflowDataWithSymmetricalKeyOnReceiverSide(instanceId, identityOfSender, symKey);
-                }
-
-                //validate and sign off chain signature
-                //Verifies that Output#1 can be retrieved and that Output#2 contains the negotiated terms
-                byte[] offChainSignature = workflowHandoverManager.confirmHandoverWorkflowTemplateOnReceiverSide(instanceId, identityOfSender, transactionToSign);
-
-                SimulationExecutionVerification simulationExecutionVerification = new SimulationExecutionVerification(
-                        currentExecutionPath, workflowHandoverManager, false, false);
-                try {
-                    simulationExecutionVerification.validateExecution();
-                } catch (Exception e) {
-                    System.out.println();
-                }
-
-                socketCommunicator.sendObject(offChainSignature);
-
-                //try three times if the handover was finished
-                boolean finishWasSuccessfull = false;
-                for (int i = 0; i < 3; i++) {
-                    Thread.sleep(2000);
-                    wfStepWithHandoverId = workflowHandoverManager.finishHandoverWorkflowTemplateOnReceiverSide(instanceId, identityOfSender);
-                    if (wfStepWithHandoverId != -1) {
-                        finishWasSuccessfull = true;
-                        break;
-                    }
-                }
-                if (!finishWasSuccessfull) {
-                    throw new HandoverFailureException("The handover was not published by the sender.");
-                }
-                if (!Simulator.greedyPublishing) {
-                    workflowHandoverManager.waitForConfirmationOnHandoverForInstance(new WorkflowInstance(instanceId), wfStepWithHandoverId);
-                }
-                logger.info(logPrefix + "End receiving handover");
+                receiveHandover();
             }
+        } catch (HandoverRejectedException e) {
+            logger.warn(logPrefix + "Rejected the handover. " + e.getMessage());
+            workflowHandoverManager.conditionallyReleaseLock();
+            socketCommunicator.rejectConnection();
+            return;
         } catch (RecognizedFaultException e) {
             logger.error("A faulty handover was recognized.");
             workflowHandoverManager.conditionallyReleaseLock();
@@ -205,9 +184,225 @@ public class ServerConnectionThread extends Thread {
             }
             return;
         } finally {
-            socketCommunicator.closeConnection();
+            if (!isParked) {
+                socketCommunicator.closeConnection();
+            }
+        }
+
+        handoverExecutor.continueHandover(() -> performTaskAndNextStep(currentExecutionPath, executionReferenceOfCurrentTask,
+                processOwner, wfStepWithHandoverId, logPrefix));
+    }
+
+    private interface HandoverPhase {
+
+        /**
+         * Returns false if the handover was parked in the HandoverLockQueue, it is then continued by the queue.
+         */
+        boolean perform() throws Exception;
+    }
+
+    /**
+     * Receives the request of the partner, in case of the pipelined protocol including the first part of the handover.
+     */
+    private boolean receiveRequestAndNegotiateLock() throws Exception {
+        shouldPerformRelaxedIdentityCheck = true;
+
+        //receive identity
+        String agentIdOfSender = (String) socketCommunicator.receiveObject();
+        isPipelined = socketCommunicator.usesPipelinedProtocol();
+
+        identityOfSender = identityStorage.getPublicIdentificationDataOfCompany(agentIdOfSender);
+        ownIdentity = ownIdentityProvider.getOwnIdentity();
+        socketCommunicator.setPartnerIdentity(identityOfSender);
+        if (Simulator.usesAuthenticatedSessions() && isPipelined) {
+            socketCommunicator.receiveSessionRequest(
+                    AuthenticatedSessionCache.getCacheOfCompany(ownIdentity.getCompanyName()));
+        } else if (Simulator.usesAuthenticatedSessions()) {
+            socketCommunicator.establishSessionAsServer(
+                    AuthenticatedSessionCache.getCacheOfCompany(ownIdentity.getCompanyName()), Simulator.sessionLifetimeInMS);
         }
 
+        //receive business process information
+        String businessProcess = (String) socketCommunicator.receiveObject();
+
+        //receive workflow meta data
+        instanceId = (Short) socketCommunicator.receiveObject();
+        currentExecutionPath = executionPathStorage.getExecutionPathOfInstance(instanceId);
+        logPrefix = "ServerConnectionThread(" + ownIdentity.getCompanyName() + ",wfId:" + currentExecutionPath.getInstanceId() + "): ";
+
+
+        processOwner = (String) socketCommunicator.receiveObject();
+
+        taskIdToProcess = (Byte) socketCommunicator.receiveObject();
+        executionReferenceOfCurrentTask = getPlannedExecutionReferenceOfTheCurrentTask(currentExecutionPath, taskIdToProcess);
+        if (!isPipelined) {
+            socketCommunicator.sendObject("Ok");
+        }
+
+        timestamp = (Integer) socketCommunicator.receiveObject();
+
+        //receive encrypted workflow data
+        encryptedWfData = (byte[]) socketCommunicator.receiveObject();
+        logger.info("Receiving handover task "
+                + ((Activity) executionReferenceOfCurrentTask).getName() + ":" + taskIdToProcess);
+
+        //the first part of the pipelined request is answered at once, the partner acquires its lock afterwards
+        if (isPipelined) {
+            if (Simulator.usesAuthenticatedSessions()) {
+                socketCommunicator.sendSessionResponse(
+                        AuthenticatedSessionCache.getCacheOfCompany(ownIdentity.getCompanyName()), Simulator.sessionLifetimeInMS);
+            }
+            socketCommunicator.sendObject("Ok");
+            if (Simulator.useRuntimeVerification) {
+                receiveLockSuccess();
+                if (Simulator.holdsHandoversOffChain()) {
+                    receiveHeldHandovers();
+                }
+                previousIncludedData = socketCommunicator.receiveByteArrays();
+                bitcoinPublicKeyOfSender = socketCommunicator.receiveDataWithSignature();
+            }
+        }
+
+        if (!Simulator.useRuntimeVerification) {
+            return true;
+        }
+        //lock negotiation
+        if (!isPipelined) {
+            receiveLockSuccess();
+        }
+        boolean hasLock = workflowHandoverManager.tryToAcquireLock();
+        if (!hasLock && socketCommunicator.usesLockWaitQueue()) {
+            socketCommunicator.sendObject(SocketCommunicator.lockQueued);
+            enqueueForLock(0);
+            return false;
+        }
+        while (!hasLock) {
+            socketCommunicator.sendObject(SocketCommunicator.lockFail);
+            receiveLockSuccess();
+            if (isPipelined && Simulator.holdsHandoversOffChain()) {
+                receiveHeldHandovers();
+            }
+            hasLock = workflowHandoverManager.tryToAcquireLock();
+        }
+        socketCommunicator.sendObject(SocketCommunicator.lockSuccess);
+        return true;
+    }
+
+    /**
+     * Pushes lockGranted to the partner after the HandoverLockQueue granted the lock to this handover.
+     * The handover is queued again after a random back-off if the partner could not get its own lock back in time.
+     * This happens if the partner waits for a handover of ours, the back-off lets one of two partners handing over to
+     * each other take both locks. The held handovers are sent by the partner along with its lockSuccess.
+     */
+    private boolean confirmGrantedLock(long waitingTimeMS) throws Exception {
+        logger.info(logPrefix + "Acquired lock after waiting " + waitingTimeMS + " ms in the queue");
+        socketCommunicator.sendObject(SocketCommunicator.lockGranted);
+        String resultOfPartner = (String) socketCommunicator.receiveObject();
+        if (!resultOfPartner.equals(SocketCommunicator.lockSuccess)) {
+            workflowHandoverManager.conditionallyReleaseLock();
+            enqueueForLock(ThreadLocalRandom.current().nextLong(maxLockBackOffMS));
+            return false;
+        }
+        if (Simulator.holdsHandoversOffChain()) {
+            receiveHeldHandovers();
+        }
+        return true;
+    }
+
+    /**
+     * Parks the handover in the HandoverLockQueue, the stream stays open without occupying a thread.
+     * Must be the last action of a phase, since the queue may continue the handover on another thread at once.
+     */
+    private void enqueueForLock(long delayMS) throws HandoverRejectedException {
+        if (!handoverLockQueue.enqueue(this, handoverExecutor, maxWaitForLockMS, delayMS)) {
+            throw new HandoverRejectedException("Too many handovers are waiting for the lock.");
+        }
+    }
+
+    /**
+     * Receives the rest of the handover while holding the lock.
+     */
+    private void receiveHandover() throws Exception {
+        //the previous stuff is considered a common requirement for any choreography
+        logger.info(logPrefix + "Start receiving handover");
+
+        if (isPipelined) {
+            if (Simulator.holdsHandoversOffChain()) {
+                workflowHandoverManager.holdReceivedHandovers(heldHandovers, anchoringProofsOfHeldHandovers);
+            }
+        } else {
+            //receive the preceding handovers which may still be held off-chain
+            if (Simulator.holdsHandoversOffChain()) {
+                receiveHeldHandovers();
+                workflowHandoverManager.holdReceivedHandovers(heldHandovers, anchoringProofsOfHeldHandovers);
+            }
+
+            //receive PKI signed bitcoin address of sender
+            bitcoinPublicKeyOfSender = socketCommunicator.receiveDataWithSignature();
+
+            //receive data required to unlock p2sh output
+            previousIncludedData = socketCommunicator.receiveByteArrays();
+        }
+        identityOfSender.setBitcoinPublicKey(bitcoinPublicKeyOfSender);
+
+        //init the expected handover.
+        byte[] pubKeyOfReceiverForHandover = workflowHandoverManager.initHandoverOnReceiverSide(
+                instanceId,
+                identityOfSender,
+                timestamp,
+                taskIdToProcess,
+                encryptedWfData,
+                previousIncludedData,
+                shouldPerformRelaxedIdentityCheck);
+
+        //return own PKI signed bitcoin address
+        socketCommunicator.sendDataWithSignature(pubKeyOfReceiverForHandover);
+
+        //receive transaction template
+        byte[] transactionToSign = socketCommunicator.receiveDataWithSignature();
+        //receive symKey and decrypt transaction data
+        String symKey = (String) socketCommunicator.receiveObject();
+        if (encryptedWfData != null && !symKey.equals("")) {
+            workflowHandoverManager.decryptHandoverWorkflowDataWithSymmetricalKeyOnReceiverSide(instanceId, identityOfSender, symKey);
+        }
+
+        //validate and sign off chain signature
+        //Verifies that Output#1 can be retrieved and that Output#2 contains the negotiated terms
+        byte[] offChainSignature = workflowHandoverManager.confirmHandoverWorkflowTemplateOnReceiverSide(instanceId, identityOfSender, transactionToSign);
+
+        SimulationExecutionVerification simulationExecutionVerification = new SimulationExecutionVerification(
+                currentExecutionPath, workflowHandoverManager, false, false);
+        try {
+            simulationExecutionVerification.validateExecution();
+        } catch (Exception e) {
+            System.out.println();
+        }
+
+        socketCommunicator.sendObject(offChainSignature);
+
+        //a held handover is received directly from the sender and can be finished immediately
+        if (Simulator.holdsHandoversOffChain()) {
+            receiveHeldHandovers();
+            workflowHandoverManager.holdReceivedHandovers(heldHandovers, anchoringProofsOfHeldHandovers);
+        }
+
+        //wait until the handover was published, the peers push it as soon as it enters their mempool
+        wfStepWithHandoverId = workflowHandoverManager.awaitAndFinishHandoverWorkflowTemplateOnReceiverSide(
+                instanceId, identityOfSender, waitForPublishedHandoverMS);
+        if (wfStepWithHandoverId == -1) {
+            throw new HandoverFailureException("The handover was not published by the sender.");
+        }
+        if (!Simulator.greedyPublishing && !Simulator.holdsHandoversOffChain()) {
+            workflowHandoverManager.waitForConfirmationOnHandoverForInstance(new WorkflowInstance(instanceId), wfStepWithHandoverId);
+        }
+        logger.info(logPrefix + "End receiving handover");
+    }
+
+    private void performTaskAndNextStep(ExecutionPath currentExecutionPath,
+                                        BusinessProcessElement executionReferenceOfCurrentTask,
+                                        String processOwner,
+                                        int wfStepWithHandoverId,
+                                        String logPrefix) {
         //############### The normal task execution would start here
 
         //filler tasks are not executed
@@ -243,7 +438,16 @@ public class ServerConnectionThread extends Thread {
         }
     }
 
-    private void receiveLockSuccess() throws HandoverFailureException, IOException, ClassNotFoundException {
+    /**
+     * Receives the held transactions of the instance and the anchoring proofs of those which were anchored already.
+     * Both are verified when they are held.
+     */
+    private void receiveHeldHandovers() throws HandoverFailureException, IOException {
+        heldHandovers = socketCommunicator.receiveByteArrays();
+        anchoringProofsOfHeldHandovers = socketCommunicator.receiveByteArrays();
+    }
+
+    private void receiveLockSuccess() throws HandoverFailureException, IOException {
         String lockResult = (String) socketCommunicator.receiveObject();
         if(!lockResult.equals(SocketCommunicator.lockSuccess)) {
             logger.warn("Sanity check failed. No LockSuccess was sent.");
@@ -3,105 +3,369 @@ package at.ac.tuwien.infosys.prybila.runtimeVerification.simulation.core;
 import at.ac.tuwien.infosys.prybila.runtimeVerification.handoverFramework.core.BasicCryptographyManager;
 import at.ac.tuwien.infosys.prybila.runtimeVerification.handoverFramework.core.model.Identity;
 import at.ac.tuwien.infosys.prybila.runtimeVerification.simulation.core.exceptions.HandoverFailureException;
+import at.ac.tuwien.infosys.prybila.runtimeVerification.simulation.core.exceptions.HandoverRejectedException;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
- * Sends and receives data from a socket.
+ * Sends and receives the data of one handover conversation.
+ * Messages are exchanged as binary frames on a stream of a MultiplexedConnection, see FramedMessageCodec.
  */
 public class SocketCommunicator {
 
     public static final String lockSuccess = "lockSuccess";
     public static final String lockFail = "lockFail";
+    public static final String lockQueued = "lockQueued";
+    public static final String lockGranted = "lockGranted";
 
     /**
-     * Message to send to partner when handover failed.
+     * Protocol exchanging the handover messages in sequential request response pairs.
      */
-    private static final String killHandoverMessage = "KILL_COMMAND";
+    public static final int protocolVersionSequential = 1;
 
-    private Socket socket;
-    public ObjectInputStream in;
-    public ObjectOutputStream out;
+    /**
+     * Protocol sending everything independent of the partner's answers in one request, see usesPipelinedProtocol.
+     */
+    public static final int protocolVersionPipelined = 2;
+
+    /**
+     * Pipelined protocol in which the server queues a handover for its lock instead of failing, see usesLockWaitQueue.
+     */
+    public static final int protocolVersionLockWaitQueue = 3;
+
+    public static final int latestProtocolVersion = protocolVersionLockWaitQueue;
+
+    private static final String sessionResumed = "sessionResumed";
+    private static final String sessionRequired = "sessionRequired";
+
+    private static final int sizeOfNonce = 16;
+    private static final int sizeOfSessionKey = 32;
+    private static final int sizeOfSessionId = 16;
+
+    private MultiplexedStream stream;
     private BasicCryptographyManager basicCryptographyManager;
     private Identity partnerIdentity;
 
-    public SocketCommunicator(BasicCryptographyManager basicCryptographyManager, Socket socket) {
+    /**
+     * MAC key of this connection derived from the session key and the nonces of both sides, null without session.
+     */
+    private byte[] connectionKey;
+
+    /**
+     * Flag indicating if this side opened the connection, the MACs of both directions differ.
+     */
+    private boolean isClient;
+
+    private long numOfSentAuthenticatedMessages;
+
+    private long numOfReceivedAuthenticatedMessages;
+
+    /**
+     * State of a pipelined session establishment between sending the request and receiving the response.
+     */
+    private AuthenticatedSession pendingSession;
+    private byte[] pendingClientNonce;
+    private String pendingSessionStatus;
+
+    public SocketCommunicator(BasicCryptographyManager basicCryptographyManager, MultiplexedStream stream) {
         this.basicCryptographyManager = basicCryptographyManager;
-        this.socket = socket;
+        this.stream = stream;
     }
 
-    public void openConnection() throws IOException {
-        out = new ObjectOutputStream(socket.getOutputStream());
-        in = new ObjectInputStream(socket.getInputStream());
+    /**
+     * Closes the stream of this conversation, the underlying connection is kept for further handovers.
+     */
+    public void closeConnection() {
+        stream.close();
     }
 
+    /**
+     * Rejects the handover, the partner may retry it later.
+     */
+    public void rejectConnection() {
+        stream.reject();
+    }
 
-    public void closeConnection() {
-        if (in != null) {
-            try {
-                in.close();
-            } catch (IOException e) {
-                //ignore
-            }
+    public Object receiveObject() throws IOException, HandoverFailureException {
+        Object receivedObject = stream.receiveMessage();
+        testForCommunicationKillCommand(receivedObject);
+        return receivedObject;
+    }
+
+    /**
+     * Receives a list of byte arrays, e.g. held handovers, and checks the type of each element.
+     * Null elements and a null list are passed on.
+     */
+    public List<byte[]> receiveByteArrays() throws IOException, HandoverFailureException {
+        Object receivedObject = receiveObject();
+        if (receivedObject == null) {
+            return null;
         }
-        if (out != null) {
-            try {
-                out.close();
-            } catch (IOException e) {
-                //ignore
-            }
+        if (!(receivedObject instanceof List)) {
+            throw new HandoverFailureException("Expected a list of byte arrays from " + partnerIdentity + " but received " + receivedObject.getClass().getSimpleName());
         }
-        if (socket != null) {
-            try {
-                socket.close();
-            } catch (IOException e) {
-                //ignore
+        List<byte[]> byteArrays = new ArrayList<>();
+        for (Object element : (List<?>) receivedObject) {
+            if (element != null && !(element instanceof byte[])) {
+                throw new HandoverFailureException("Expected a list of byte arrays from " + partnerIdentity + " but it contained " + element.getClass().getSimpleName());
             }
+            byteArrays.add((byte[]) element);
         }
+        return byteArrays;
     }
 
-    public Object receiveObject() throws IOException, ClassNotFoundException, HandoverFailureException {
-        Object receivedObject = in.readObject();
-        testForCommunicationKillCommand(receivedObject);
-        return receivedObject;
+    private void testForCommunicationKillCommand(Object receivedObject) throws HandoverFailureException {
+        if (receivedObject == MultiplexedStream.rejectedByPartner) {
+            throw new HandoverRejectedException("The handover was rejected by the overloaded communication partner " + partnerIdentity);
+        }
+        if (receivedObject == FramedMessageCodec.killCommand) {
+            throw new HandoverFailureException("The communication was ended by the communication partner " + partnerIdentity);
+        }
     }
 
-    private void testForCommunicationKillCommand(Object receivedObject) throws HandoverFailureException {
-        if (receivedObject instanceof String) {
-            String receivedString = (String) receivedObject;
-            if (receivedString.equals(killHandoverMessage)) {
-                throw new HandoverFailureException("The communication was ended by the communication partner " + partnerIdentity);
-            }
+    /**
+     * Returns true if the pipelined protocol is supported by both sides.
+     * The client sends its identification, the session request, the workflow meta data and the encrypted workflow
+     * data at once. The server answers with the session response and the Ok, which shows that it admitted the handover.
+     * Only then the client acquires its lock and sends the lock result, the held handovers, the previously included
+     * data and its signed Bitcoin key at once. The server answers with its lock result and its signed Bitcoin key.
+     * Hence the handover takes three round trips, plus one if a new session has to be established.
+     */
+    public boolean usesPipelinedProtocol() throws IOException, HandoverFailureException {
+        return getProtocolVersion() >= protocolVersionPipelined;
+    }
+
+    /**
+     * Returns true if the server queues a handover for its lock, which requires the pipelined protocol.
+     * If the lock is taken, the server answers lockQueued and pushes lockGranted once it holds the lock, instead of
+     * answering lockFail to every retry of the client. The client releases its own lock while it is queued and
+     * answers the grant with lockSuccess if it got its own lock back in time, or with lockFail to be queued again
+     * after a random back-off. A handover not granted within a time limit is rejected.
+     */
+    public boolean usesLockWaitQueue() throws IOException, HandoverFailureException {
+        return getProtocolVersion() >= protocolVersionLockWaitQueue;
+    }
+
+    private int getProtocolVersion() throws IOException, HandoverFailureException {
+        int protocolVersion = stream.getProtocolVersion();
+        if (protocolVersion == MultiplexedConnection.refusedConnection) {
+            throw new HandoverRejectedException("The connection was refused by the overloaded communication partner " + partnerIdentity);
         }
+        return protocolVersion;
     }
 
+    /**
+     * Sends the given message, see FramedMessageCodec for the supported types.
+     */
     public void sendObject(Object object) throws IOException {
-        out.writeObject(object);
-        out.flush();
+        stream.sendMessage(object);
     }
 
+    /**
+     * Sends the kill command, the partner's next receive throws a HandoverFailureException.
+     */
     public void sendHandoverError() throws IOException {
-        sendObject(killHandoverMessage);
+        sendObject(FramedMessageCodec.killCommand);
     }
 
+    /**
+     * Sends the given data followed by its authentication.
+     * Within an authenticated session this is a MAC, otherwise the raw RSA signature.
+     */
     public void sendDataWithSignature(byte[] data) throws IOException {
-        String signatureOfData = basicCryptographyManager.getSignatureOfData(data);
+        byte[] signatureOfData;
+        if (connectionKey != null) {
+            signatureOfData = basicCryptographyManager.getMessageAuthenticationCode(
+                    connectionKey, getMessagePosition(isClient, numOfSentAuthenticatedMessages++), data);
+        } else {
+            signatureOfData = basicCryptographyManager.signData(data);
+        }
         sendObject(data);
         sendObject(signatureOfData);
     }
 
-    public byte[] receiveDataWithSignature() throws IOException, ClassNotFoundException, HandoverFailureException {
+    public byte[] receiveDataWithSignature() throws IOException, HandoverFailureException {
         byte[] receivedData = (byte[]) receiveObject();
-        String signatureOfData = (String) receiveObject();
-        if (!basicCryptographyManager.verifySignature(receivedData, signatureOfData, partnerIdentity.getPublicKey())) {
+        byte[] signatureOfData = (byte[]) receiveObject();
+        if (connectionKey != null) {
+            byte[] position = getMessagePosition(!isClient, numOfReceivedAuthenticatedMessages++);
+            if (!basicCryptographyManager.verifyMessageAuthenticationCode(signatureOfData, connectionKey, position, receivedData)) {
+                throw new HandoverFailureException("The message authentication code of the session with " + partnerIdentity + " did not validate.");
+            }
+        } else if (!basicCryptographyManager.verifySignature(receivedData, signatureOfData, partnerIdentity.getPublicKey())) {
             throw new HandoverFailureException("The signature during Bitcoin address sharing did not validate.");
         }
         return receivedData;
     }
 
+    /**
+     * Establishes an authenticated session with the server, the partner identity must already be set.
+     * A cached session is resumed if the server still knows it, otherwise a new session key is sent RSA encrypted and
+     * signed together with the nonces of both sides. The following signed data of this connection is authenticated
+     * with MACs.
+     */
+    public void establishSessionAsClient(AuthenticatedSessionCache sessionCache, long sessionLifetimeInMS)
+            throws IOException, HandoverFailureException {
+        AuthenticatedSession session = sessionCache.getSessionAsClient(partnerIdentity.getCompanyName());
+        byte[] clientNonce = basicCryptographyManager.getRandomBytes(sizeOfNonce);
+        sendObject(session == null ? null : session.getSessionId());
+        sendObject(clientNonce);
+        byte[] serverNonce = (byte[]) receiveObject();
+        session = completeSessionAsClient(sessionCache, sessionLifetimeInMS, session, receiveObject(), clientNonce, serverNonce);
+        startAuthenticatedConnection(session, true, clientNonce, serverNonce);
+    }
+
+    /**
+     * Establishes an authenticated session with the client, the partner identity must already be set.
+     * Counterpart of establishSessionAsClient.
+     */
+    public void establishSessionAsServer(AuthenticatedSessionCache sessionCache, long sessionLifetimeInMS)
+            throws IOException, HandoverFailureException {
+        byte[] sessionId = (byte[]) receiveObject();
+        byte[] clientNonce = (byte[]) receiveObject();
+        byte[] serverNonce = basicCryptographyManager.getRandomBytes(sizeOfNonce);
+        sendObject(serverNonce);
+        AuthenticatedSession session = sessionId == null
+                ? null : sessionCache.getSessionAsServer(sessionId, partnerIdentity.getCompanyName());
+        if (session != null) {
+            sendObject(sessionResumed);
+        } else {
+            sendObject(sessionRequired);
+            session = createSessionAsServer(receiveNewSessionKey(clientNonce, serverNonce), sessionLifetimeInMS);
+            sendDataWithSignature(session.getSessionId());
+            sessionCache.addSessionAsServer(session);
+        }
+        startAuthenticatedConnection(session, false, clientNonce, serverNonce);
+    }
+
+    /**
+     * First part of the session establishment of the pipelined protocol, sends the request without waiting.
+     * The session key is bound to the nonce of the server, hence a new session costs one additional round trip.
+     */
+    public void sendSessionRequest(AuthenticatedSessionCache sessionCache) throws IOException {
+        pendingSession = sessionCache.getSessionAsClient(partnerIdentity.getCompanyName());
+        pendingClientNonce = basicCryptographyManager.getRandomBytes(sizeOfNonce);
+        sendObject(pendingSession == null ? null : pendingSession.getSessionId());
+        sendObject(pendingClientNonce);
+    }
+
+    /**
+     * Second part of the session establishment of the pipelined protocol, completes the session requested before.
+     * If the server does not know the cached session, a new session key is sent.
+     */
+    public void receiveSessionResponse(AuthenticatedSessionCache sessionCache, long sessionLifetimeInMS)
+            throws IOException, HandoverFailureException {
+        byte[] serverNonce = (byte[]) receiveObject();
+        pendingSession = completeSessionAsClient(sessionCache, sessionLifetimeInMS, pendingSession, receiveObject(), pendingClientNonce, serverNonce);
+        startAuthenticatedConnection(pendingSession, true, pendingClientNonce, serverNonce);
+    }
+
+    /**
+     * Server side counterpart of sendSessionRequest, receives the request without answering it.
+     */
+    public void receiveSessionRequest(AuthenticatedSessionCache sessionCache) throws IOException, HandoverFailureException {
+        byte[] sessionId = (byte[]) receiveObject();
+        pendingClientNonce = (byte[]) receiveObject();
+        pendingSession = sessionId == null
+                ? null : sessionCache.getSessionAsServer(sessionId, partnerIdentity.getCompanyName());
+        pendingSessionStatus = pendingSession == null ? sessionRequired : sessionResumed;
+    }
+
+    /**
+     * Server side counterpart of receiveSessionResponse, answers the request received before.
+     */
+    public void sendSessionResponse(AuthenticatedSessionCache sessionCache, long sessionLifetimeInMS)
+            throws IOException, HandoverFailureException {
+        byte[] serverNonce = basicCryptographyManager.getRandomBytes(sizeOfNonce);
+        sendObject(serverNonce);
+        sendObject(pendingSessionStatus);
+        if (sessionRequired.equals(pendingSessionStatus)) {
+            pendingSession = createSessionAsServer(receiveNewSessionKey(pendingClientNonce, serverNonce), sessionLifetimeInMS);
+            sendDataWithSignature(pendingSession.getSessionId());
+            sessionCache.addSessionAsServer(pendingSession);
+        }
+        startAuthenticatedConnection(pendingSession, false, pendingClientNonce, serverNonce);
+    }
+
+    /**
+     * Resumes the given cached session if the server answered sessionResumed, otherwise sends a new session key and
+     * returns the new session.
+     */
+    private AuthenticatedSession completeSessionAsClient(AuthenticatedSessionCache sessionCache, long sessionLifetimeInMS,
+                                                         AuthenticatedSession cachedSession, Object sessionStatus,
+                                                         byte[] clientNonce, byte[] serverNonce)
+            throws IOException, HandoverFailureException {
+        if (sessionResumed.equals(sessionStatus)) {
+            if (cachedSession == null) {
+                throw new HandoverFailureException("The partner " + partnerIdentity + " resumed a session which was not requested.");
+            }
+            return cachedSession;
+        }
+        byte[] sessionKey = basicCryptographyManager.getRandomBytes(sizeOfSessionKey);
+        byte[] encryptedSessionKey = basicCryptographyManager.asymmetricallyEncryptData(sessionKey, partnerIdentity.getPublicKey());
+        sendObject(encryptedSessionKey);
+        sendObject(basicCryptographyManager.signData(getSignedSessionKeyData(encryptedSessionKey, clientNonce, serverNonce)));
+        byte[] sessionId = receiveDataWithSignature();
+        AuthenticatedSession session = new AuthenticatedSession(sessionId, partnerIdentity.getCompanyName(), sessionKey, sessionLifetimeInMS);
+        sessionCache.addSessionAsClient(session);
+        return session;
+    }
+
+    /**
+     * Receives the encrypted session key and verifies its signature, which covers the nonces of this connection.
+     * A session key signed for another connection is therefore rejected.
+     */
+    private byte[] receiveNewSessionKey(byte[] clientNonce, byte[] serverNonce) throws IOException, HandoverFailureException {
+        byte[] encryptedSessionKey = (byte[]) receiveObject();
+        byte[] signature = (byte[]) receiveObject();
+        if (encryptedSessionKey == null || clientNonce == null ||
+                !basicCryptographyManager.verifySignature(getSignedSessionKeyData(encryptedSessionKey, clientNonce, serverNonce),
+                        signature, partnerIdentity.getPublicKey())) {
+            throw new HandoverFailureException("The signature of the session key of " + partnerIdentity + " did not validate.");
+        }
+        return encryptedSessionKey;
+    }
+
+    private byte[] getSignedSessionKeyData(byte[] encryptedSessionKey, byte[] clientNonce, byte[] serverNonce) {
+        return ByteBuffer.allocate(encryptedSessionKey.length + clientNonce.length + serverNonce.length)
+                .put(encryptedSessionKey).put(clientNonce).put(serverNonce).array();
+    }
+
+    private AuthenticatedSession createSessionAsServer(byte[] encryptedSessionKey, long sessionLifetimeInMS)
+            throws HandoverFailureException {
+        byte[] sessionKey = basicCryptographyManager.asymmetricallyDecryptData(encryptedSessionKey);
+        if (sessionKey.length != sizeOfSessionKey) {
+            throw new HandoverFailureException("The session key of " + partnerIdentity + " is not well formed.");
+        }
+        return new AuthenticatedSession(basicCryptographyManager.getRandomBytes(sizeOfSessionId),
+                partnerIdentity.getCompanyName(), sessionKey, sessionLifetimeInMS);
+    }
+
+    /**
+     * Derives the MAC key of this connection from the session key and the fresh nonces of both sides.
+     * Messages of previous connections of the same session are therefore rejected.
+     */
+    private void startAuthenticatedConnection(AuthenticatedSession session, boolean isClient, byte[] clientNonce, byte[] serverNonce)
+            throws HandoverFailureException {
+        if (clientNonce == null || clientNonce.length != sizeOfNonce || serverNonce == null || serverNonce.length != sizeOfNonce) {
+            throw new HandoverFailureException("The session nonces exchanged with " + partnerIdentity + " are not well formed.");
+        }
+        this.isClient = isClient;
+        this.connectionKey = basicCryptographyManager.getMessageAuthenticationCode(session.getSessionKey(), clientNonce, serverNonce);
+        this.numOfSentAuthenticatedMessages = 0;
+        this.numOfReceivedAuthenticatedMessages = 0;
+    }
+
+    /**
+     * Returns the direction and the number of a message, covered by its MAC to reject reflected or reordered messages.
+     */
+    private byte[] getMessagePosition(boolean sentByClient, long messageNumber) {
+        return ByteBuffer.allocate(9).put((byte) (sentByClient ? 1 : 0)).putLong(messageNumber).array();
+    }
+
     public void setPartnerIdentity(Identity partnerIdentity) {
         this.partnerIdentity = partnerIdentity;
     }
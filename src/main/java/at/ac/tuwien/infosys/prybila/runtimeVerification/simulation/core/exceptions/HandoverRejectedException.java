@@ -0,0 +1,30 @@
+package at.ac.tuwien.infosys.prybila.runtimeVerification.simulation.core.exceptions;
+
+/**
+ * Exception to throw if the handover receiver rejected the handover before processing it, e.g. due to overload.
+ * Nothing was changed by the handover, hence it can be retried.
+ */
+public class HandoverRejectedException extends HandoverFailureException {
+
+    private static final long serialVersionUID = 4310972520894336419L;
+
+    public HandoverRejectedException() {
+        super();
+    }
+
+    public HandoverRejectedException(String message) {
+        super(message);
+    }
+
+    public HandoverRejectedException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+    public HandoverRejectedException(Throwable cause) {
+        super(cause);
+    }
+
+    protected HandoverRejectedException(String message, Throwable cause, boolean enableSuppression, boolean writableStackTrace) {
+        super(message, cause, enableSuppression, writableStackTrace);
+    }
+}
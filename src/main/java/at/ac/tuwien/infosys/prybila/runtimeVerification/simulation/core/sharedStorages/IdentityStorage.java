@@ -5,30 +5,37 @@ import at.ac.tuwien.infosys.prybila.runtimeVerification.handoverFramework.core.m
 import at.ac.tuwien.infosys.prybila.runtimeVerification.utils.RuntimeVerificationUtils;
 
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Distributes the RSA information of all agents
  */
 public class IdentityStorage {
 
-    private List<OwnIdentityProvider> availableIdentities;
+    /**
+     * Directory of the public identities by company name, built once from the available identities.
+     * All lookups of a company share the same key object, hence the signature engines need no reinitialisation.
+     */
+    private final Map<String, Identity> publicIdentitiesOfCompanies = new ConcurrentHashMap<>();
 
     public IdentityStorage(List<OwnIdentityProvider> availableIdentities) {
-        this.availableIdentities = availableIdentities;
         new RuntimeVerificationUtils().notNull(availableIdentities);
+        for (OwnIdentityProvider ownIdentityProvider : availableIdentities) {
+            Identity publicIdentity = ownIdentityProvider.getOwnIdentityToShareWithPartner();
+            publicIdentitiesOfCompanies.putIfAbsent(publicIdentity.getCompanyName(), publicIdentity);
+        }
     }
 
     /**
      * Returns the publicly available identity data of the given company or null.
+     * Every call returns a new instance since the handover enriches it with the partner's Bitcoin key.
      */
-    public synchronized Identity getPublicIdentificationDataOfCompany(String company) {
-        for (OwnIdentityProvider ownIdentityProvider : availableIdentities) {
-            Identity publicIdentity =
-                    ownIdentityProvider.getOwnIdentityToShareWithPartner();
-            if (company.equals(publicIdentity.getCompanyName())) {
-                return publicIdentity;
-            }
+    public Identity getPublicIdentificationDataOfCompany(String company) {
+        Identity publicIdentity = publicIdentitiesOfCompanies.get(company);
+        if (publicIdentity == null) {
+            return null;
         }
-        return null;
+        return new Identity(company, publicIdentity.getPublicKey(), null, false);
     }
 }
@@ -21,6 +21,21 @@ import java.util.*;
  */
 public class RuntimeVerificationUtils {
 
+    private static final char[] hexChars = "0123456789ABCDEF".toCharArray();
+
+    /**
+     * Value of every hex character indexed by the character, -1 for all other characters.
+     */
+    private static final byte[] hexValues = new byte['f' + 1];
+
+    static {
+        Arrays.fill(hexValues, (byte) -1);
+        for (int i = 0; i < 16; i++) {
+            hexValues[hexChars[i]] = (byte) i;
+            hexValues[Character.toLowerCase(hexChars[i])] = (byte) i;
+        }
+    }
+
     /**
      * Throws a RuntimeVerificationException when the given Object is null.
      */
@@ -68,18 +83,28 @@ public class RuntimeVerificationUtils {
         int len = s.length();
         byte[] data = new byte[len / 2];
         for (int i = 0; i < len; i += 2) {
-            data[i / 2] = (byte) ((Character.digit(s.charAt(i), 16) << 4)
-                    + Character.digit(s.charAt(i + 1), 16));
+            data[i / 2] = (byte) ((hexDigit(s.charAt(i)) << 4) + hexDigit(s.charAt(i + 1)));
         }
         return data;
     }
 
+    /**
+     * Returns the value of the given upper or lower case hex character or -1 like Character.digit().
+     */
+    private static int hexDigit(char c) {
+        return c < hexValues.length ? hexValues[c] : -1;
+    }
+
+    /**
+     * Returns the upper case hex representation of the given bytes.
+     */
     public String byteArrayToHexString(byte[] array) {
-        StringBuilder sb = new StringBuilder();
-        for (byte b : array) {
-            sb.append(String.format("%02X", b));
+        char[] hex = new char[array.length * 2];
+        for (int i = 0; i < array.length; i++) {
+            hex[2 * i] = hexChars[(array[i] >> 4) & 0x0F];
+            hex[2 * i + 1] = hexChars[array[i] & 0x0F];
         }
-        return sb.toString();
+        return new String(hex);
     }
 
     public String generateRandomStringWithLength(Random random, int length) {
@@ -289,4 +314,31 @@ public class RuntimeVerificationUtils {
             return 0;
         }
     }
+
+    public int readCrawlerBatchSizeFromProperties() {
+        try {
+            ResourceBundle propertyFile = ResourceBundle.getBundle("crawler");
+            return Integer.parseInt(propertyFile.getString("batchSize"));
+        } catch (Exception e) {
+            return 1;
+        }
+    }
+
+    public boolean readCrawlerPersistentAddressIndexFromProperties() {
+        try {
+            ResourceBundle propertyFile = ResourceBundle.getBundle("crawler");
+            return Boolean.parseBoolean(propertyFile.getString("persistAddressPageIndex"));
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    public int readCrawlerMaxRetriesFromProperties() {
+        try {
+            ResourceBundle propertyFile = ResourceBundle.getBundle("crawler");
+            return Integer.parseInt(propertyFile.getString("maxRetriesOnRateLimit"));
+        } catch (Exception e) {
+            return 5;
+        }
+    }
 }
@@ -0,0 +1,239 @@
+package at.ac.tuwien.infosys.prybila.runtimeVerification.test.simulation.preparation;
+
+import at.ac.tuwien.infosys.prybila.runtimeVerification.simulation.core.HandoverExecutor;
+import at.ac.tuwien.infosys.prybila.runtimeVerification.simulation.core.MultiplexedConnection;
+import at.ac.tuwien.infosys.prybila.runtimeVerification.simulation.core.MultiplexedStream;
+import at.ac.tuwien.infosys.prybila.runtimeVerification.simulation.core.SocketCommunicator;
+import org.apache.log4j.Logger;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Load test of the handover server under a connection storm.
+ * Many partners connect at the same time and start several handovers each. A handover consists of a few request
+ * response rounds and a blocking wait standing in for a Bitcoin broadcast. The bounded HandoverExecutor is compared
+ * with the previous server, which started a thread per handover. Rejected handovers are retried like in the client.
+ * Connections beyond the connection limit of the server are refused, their handovers are retried as well.
+ */
+public class ConnectionStormBenchmark {
+
+    private static final Logger logger = Logger.getLogger(ConnectionStormBenchmark.class);
+
+    private int numOfPartners = 100;
+    private int handoversPerPartner = 10;
+    private int roundsPerHandover = 4;
+    private long broadcastDurationMS = 200;
+
+    private int maxInFlightHandovers = 16;
+    private int maxWaitingHandovers = 64;
+    private long retryDelayMS = 50;
+
+    private int maxOpenConnections = 10;
+    private int numOfConnectingPartners = 40;
+
+    private ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+    @Test
+    public void connectionStorm() throws Exception {
+        runStorm("thread per handover", stream -> new Thread(() -> handleHandover(stream)).start());
+
+        HandoverExecutor handoverExecutor = new HandoverExecutor("StormExecutor", maxInFlightHandovers, maxWaitingHandovers);
+        runStorm("bounded handover executor", stream -> handoverExecutor.submit(stream, () -> handleHandover(stream)));
+        handoverExecutor.shutdown();
+        logger.info(String.format("Executor: %d accepted, %d rejected handovers, peak of %d in-flight handovers",
+                handoverExecutor.getNumOfAcceptedHandovers(), handoverExecutor.getNumOfRejectedHandovers(),
+                handoverExecutor.getPeakOfInFlightHandovers()));
+        assertTrue(handoverExecutor.getPeakOfInFlightHandovers() <= maxInFlightHandovers);
+        assertEquals(numOfPartners * handoversPerPartner,
+                handoverExecutor.getNumOfAcceptedHandovers());
+    }
+
+    /**
+     * Every partner connects for a single handover and closes its connection afterwards, while the server keeps at
+     * most maxOpenConnections connections. All handovers must succeed through retries.
+     */
+    @Test
+    public void refusedConnectionsAreRetried() throws Exception {
+        ServerSocket serverSocket = new ServerSocket(0, numOfConnectingPartners);
+        List<MultiplexedConnection> serverConnections = new CopyOnWriteArrayList<>();
+        AtomicInteger numOfRefusals = new AtomicInteger();
+        Thread acceptingThread = new Thread(() -> {
+            try {
+                while (true) {
+                    Socket socket = serverSocket.accept();
+                    serverConnections.removeIf(connection -> !connection.isOpen());
+                    if (serverConnections.size() >= maxOpenConnections) {
+                        numOfRefusals.incrementAndGet();
+                        MultiplexedConnection.refuse(socket);
+                        continue;
+                    }
+                    serverConnections.add(new MultiplexedConnection(socket,
+                            stream -> new Thread(() -> handleHandover(stream)).start(), SocketCommunicator.latestProtocolVersion));
+                }
+            } catch (Exception e) {
+                //server socket closed
+            }
+        });
+        acceptingThread.start();
+
+        ExecutorService partners = Executors.newFixedThreadPool(numOfConnectingPartners);
+        AtomicInteger numOfRejections = new AtomicInteger();
+        List<Future<?>> handovers = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < numOfConnectingPartners; i++) {
+            handovers.add(partners.submit(() -> {
+                for (int attempt = 1; ; attempt++) {
+                    MultiplexedConnection connection = new MultiplexedConnection(
+                            new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort()), null, SocketCommunicator.latestProtocolVersion);
+                    try {
+                        MultiplexedStream stream = connection.openStream();
+                        boolean wasRejected = stream.getProtocolVersion() == MultiplexedConnection.refusedConnection;
+                        for (int round = 0; round < roundsPerHandover && !wasRejected; round++) {
+                            stream.sendMessage(round);
+                            Object answer = stream.receiveMessage();
+                            wasRejected = answer == MultiplexedStream.rejectedByPartner;
+                        }
+                        if (!wasRejected) {
+                            return null;
+                        }
+                    } finally {
+                        connection.close();
+                    }
+                    numOfRejections.incrementAndGet();
+                    Thread.sleep(attempt * retryDelayMS);
+                }
+            }));
+        }
+        for (Future<?> handover : handovers) {
+            handover.get();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        logger.info(String.format("Connection limit of %d: %d handovers of connecting partners in %.2f s, %d refused connections, %d retries",
+                maxOpenConnections, numOfConnectingPartners, seconds, numOfRefusals.get(), numOfRejections.get()));
+        partners.shutdown();
+        serverSocket.close();
+        for (MultiplexedConnection serverConnection : serverConnections) {
+            serverConnection.close();
+        }
+        assertEquals(numOfRefusals.get(), numOfRejections.get());
+    }
+
+    private void runStorm(String description, Consumer<MultiplexedStream> acceptedStreamHandler) throws Exception {
+        ServerSocket serverSocket = new ServerSocket(0, numOfPartners);
+        List<MultiplexedConnection> serverConnections = new CopyOnWriteArrayList<>();
+        Thread acceptingThread = new Thread(() -> {
+            try {
+                while (true) {
+                    serverConnections.add(new MultiplexedConnection(serverSocket.accept(), acceptedStreamHandler,
+                            SocketCommunicator.latestProtocolVersion));
+                }
+            } catch (Exception e) {
+                //server socket closed
+            }
+        });
+        acceptingThread.start();
+
+        //the threads of the partners are started in advance, they are not part of the measured thread count
+        ThreadPoolExecutor partners = new ThreadPoolExecutor(numOfPartners, numOfPartners, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        ThreadPoolExecutor handoversOfPartners = new ThreadPoolExecutor(numOfPartners * handoversPerPartner,
+                numOfPartners * handoversPerPartner, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        partners.prestartAllCoreThreads();
+        handoversOfPartners.prestartAllCoreThreads();
+        int threadsBefore = threadMXBean.getThreadCount();
+        threadMXBean.resetPeakThreadCount();
+        AtomicInteger numOfRejections = new AtomicInteger();
+        List<Future<MultiplexedConnection>> connections = new ArrayList<>();
+        List<Future<Long>> latencies = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < numOfPartners; i++) {
+            //every partner connects at the same time and starts all of its handovers concurrently
+            Future<MultiplexedConnection> connection = partners.submit(() -> new MultiplexedConnection(
+                    new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort()), null, SocketCommunicator.latestProtocolVersion));
+            connections.add(connection);
+            for (int j = 0; j < handoversPerPartner; j++) {
+                latencies.add(handoversOfPartners.submit(() -> {
+                    long handoverStart = System.nanoTime();
+                    performHandover(connection.get(), numOfRejections);
+                    return (System.nanoTime() - handoverStart) / 1000000;
+                }));
+            }
+        }
+        long maxLatencyMS = 0;
+        for (Future<Long> latency : latencies) {
+            maxLatencyMS = Math.max(maxLatencyMS, latency.get());
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        logger.info(String.format("%s: %d handovers of %d partners in %.2f s, %d rejections, max latency %d ms, "
+                        + "peak of %d additional threads including the %d connection readers of both sides",
+                description, latencies.size(), numOfPartners, seconds, numOfRejections.get(), maxLatencyMS,
+                threadMXBean.getPeakThreadCount() - threadsBefore, 2 * numOfPartners));
+
+        partners.shutdown();
+        handoversOfPartners.shutdown();
+        serverSocket.close();
+        for (Future<MultiplexedConnection> connection : connections) {
+            connection.get().close();
+        }
+        for (MultiplexedConnection serverConnection : serverConnections) {
+            serverConnection.close();
+        }
+    }
+
+    /**
+     * Client side of a handover, retried if it is rejected.
+     */
+    private void performHandover(MultiplexedConnection connection, AtomicInteger numOfRejections) throws Exception {
+        for (int attempt = 1; ; attempt++) {
+            MultiplexedStream stream = connection.openStream();
+            try {
+                boolean wasRejected = false;
+                for (int round = 0; round < roundsPerHandover && !wasRejected; round++) {
+                    stream.sendMessage(round);
+                    Object answer = stream.receiveMessage();
+                    wasRejected = answer == MultiplexedStream.rejectedByPartner;
+                    if (!wasRejected) {
+                        assertEquals(round, answer);
+                    }
+                }
+                if (!wasRejected) {
+                    return;
+                }
+            } finally {
+                stream.close();
+            }
+            numOfRejections.incrementAndGet();
+            Thread.sleep(attempt * retryDelayMS);
+        }
+    }
+
+    /**
+     * Server side of a handover.
+     */
+    private void handleHandover(MultiplexedStream stream) {
+        try {
+            for (int round = 0; round < roundsPerHandover; round++) {
+                stream.sendMessage(stream.receiveMessage());
+                if (round == roundsPerHandover / 2) {
+                    Thread.sleep(broadcastDurationMS);
+                }
+            }
+        } catch (Exception e) {
+            logger.warn("Handover failed.", e);
+        } finally {
+            stream.close();
+        }
+    }
+}
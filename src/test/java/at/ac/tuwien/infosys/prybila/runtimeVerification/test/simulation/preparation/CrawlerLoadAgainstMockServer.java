@@ -0,0 +1,232 @@
+package at.ac.tuwien.infosys.prybila.runtimeVerification.test.simulation.preparation;
+
+import at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.core.TransactionBuilder;
+import at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.core.WorkflowExecutionPointFactory;
+import at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.core.model.WorkflowInstance;
+import at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.crawler.BlockChainCrawler;
+import at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.crawler.model.ParsedTransaction;
+import at.ac.tuwien.infosys.prybila.runtimeVerification.handoverFramework.core.WorkflowUpdater;
+import at.ac.tuwien.infosys.prybila.runtimeVerification.handoverFramework.core.model.IdProvider;
+import at.ac.tuwien.infosys.prybila.runtimeVerification.handoverFramework.core.model.WorkflowGraphStep;
+import at.ac.tuwien.infosys.prybila.runtimeVerification.test.testingSources.BlockcypherMockCrawler;
+import at.ac.tuwien.infosys.prybila.runtimeVerification.test.testingSources.BlockcypherMockServer;
+import org.apache.log4j.Logger;
+import org.bitcoinj.core.*;
+import org.bitcoinj.params.TestNet3Params;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.wallet.SendRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Runs the BlockcypherBlockChainCrawler and the WorkflowUpdater offline against a local BlockcypherMockServer.
+ * The chain model consists of workflow instances created by the TransactionBuilder, where the last handover
+ * of every instance is still unconfirmed and can only be found through the address pages.
+ * Reports the achieved request rate for single, batched and complete lookups and for complete workflow updates.
+ */
+public class CrawlerLoadAgainstMockServer {
+
+    private static final Logger logger = Logger.getLogger(CrawlerLoadAgainstMockServer.class);
+
+    private int numberOfInstances = 200;
+    private int handoversPerInstance = 4;
+    private int numberOfThreads = 8;
+    private int lookupsPerThread = 2000;
+
+    private NetworkParameters networkParameters = TestNet3Params.get();
+    private BlockcypherMockServer mockServer;
+
+    /**
+     * All transaction hashes of the chain model, the last handover of every instance is unconfirmed.
+     */
+    private List<String> txHashes;
+
+    /**
+     * The last confirmed handover of every instance, its output is spent by an unconfirmed transaction.
+     */
+    private List<String> txHashesWithUnconfirmedSpender;
+
+    /**
+     * The P2SH address of the workflow start of every instance.
+     */
+    private List<String> addressesOfInstances;
+
+    @Before
+    public void before() {
+        Context.propagate(new Context(networkParameters));
+        mockServer = new BlockcypherMockServer(0, numberOfThreads);
+        mockServer.start();
+        txHashes = new ArrayList<>();
+        txHashesWithUnconfirmedSpender = new ArrayList<>();
+        addressesOfInstances = new ArrayList<>();
+        for (int i = 0; i < numberOfInstances; i++) {
+            addWorkflowInstanceToMockServer((short) i);
+        }
+        logger.info("Created " + mockServer.getNumberOfTransactions() + " transactions at chain height " + mockServer.getChainHeight());
+    }
+
+    @After
+    public void after() {
+        mockServer.stop();
+    }
+
+    @Test
+    public void singleLookups() throws Exception {
+        runLoad("single lookups", (crawler, offset) -> {
+            for (int i = 0; i < lookupsPerThread; i++) {
+                assertNotNull(crawler.getTransactionInformation(txHashes.get((offset + i) % txHashes.size()), true, false));
+            }
+            return lookupsPerThread;
+        });
+    }
+
+    @Test
+    public void batchedLookups() throws Exception {
+        runLoad("batched lookups", (crawler, offset) -> {
+            int lookups = 0;
+            for (int i = 0; i < lookupsPerThread; i += 10) {
+                List<String> batch = new ArrayList<>();
+                for (int j = 0; j < 10; j++) {
+                    batch.add(txHashes.get((offset + i + j) % txHashes.size()));
+                }
+                assertEquals(batch.size(), crawler.getTransactionInformation(batch, true, false).size());
+                lookups += batch.size();
+            }
+            return lookups;
+        });
+    }
+
+    @Test
+    public void completeLookupsThroughAddressPages() throws Exception {
+        runLoad("complete lookups", (crawler, offset) -> {
+            int lookupsOfThread = lookupsPerThread / 10;
+            for (int i = 0; i < lookupsOfThread; i++) {
+                String txHash = txHashesWithUnconfirmedSpender.get((offset + i) % txHashesWithUnconfirmedSpender.size());
+                ParsedTransaction parsedTransaction = crawler.getTransactionInformation(txHash, false, false);
+                assertNotNull(parsedTransaction.getOutputs().get(0).getSpent_by());
+            }
+            return lookupsOfThread;
+        });
+    }
+
+    @Test
+    public void singleLookupsWithInjectedRateLimits() throws Exception {
+        mockServer.setLatencyInMS(5);
+        mockServer.setRateLimitEveryNthRequest(500);
+        mockServer.setRetryAfterInSeconds(1);
+        runLoad("single lookups with 5 ms latency and rate limits", (crawler, offset) -> {
+            int lookupsOfThread = lookupsPerThread / 4;
+            for (int i = 0; i < lookupsOfThread; i++) {
+                assertNotNull(crawler.getTransactionInformation(txHashes.get((offset + i) % txHashes.size()), true, false));
+            }
+            return lookupsOfThread;
+        });
+        logger.info(mockServer.getRateLimitedRequestCount() + " requests were answered with 429");
+    }
+
+    /**
+     * Reconstructs the complete workflow graph of an instance from its address, like the
+     * WorkflowHandoverManager does for a received workflow.
+     */
+    @Test
+    public void workflowUpdatesFromAddress() throws Exception {
+        runLoad("workflow updates", (crawler, offset) -> {
+            int updatesOfThread = lookupsPerThread / 50;
+            for (int i = 0; i < updatesOfThread; i++) {
+                String address = addressesOfInstances.get((offset + i) % addressesOfInstances.size());
+                WorkflowUpdater workflowUpdater = new WorkflowUpdater(crawler, address, networkParameters, new IdProvider());
+                WorkflowGraphStep graphRoot = workflowUpdater.updateWorkflowDataWithOnlineInformation(false);
+                assertEquals(handoversPerInstance + 1, getNumberOfStepsOfChain(graphRoot));
+            }
+            return updatesOfThread;
+        });
+    }
+
+    private int getNumberOfStepsOfChain(WorkflowGraphStep graphRoot) {
+        int numberOfSteps = 0;
+        WorkflowGraphStep step = graphRoot;
+        while (step != null) {
+            numberOfSteps++;
+            step = step.getChildren() == null || step.getChildren().isEmpty() ? null : step.getChildren().get(0);
+        }
+        return numberOfSteps;
+    }
+
+    /**
+     * Creates a workflow start and a chain of handovers for the given instance.
+     * All but the last handover are confirmed.
+     */
+    private void addWorkflowInstanceToMockServer(short instanceId) {
+        TransactionBuilder transactionBuilder = new TransactionBuilder();
+        WorkflowExecutionPointFactory workflowExecutionPointFactory = new WorkflowExecutionPointFactory();
+        WorkflowInstance workflowInstance = new WorkflowInstance(instanceId);
+        ECKey key = new ECKey();
+        Address address = key.toAddress(networkParameters);
+
+        //funding transaction without inputs, the mock server does not verify the funds
+        Transaction fundingTransaction = new Transaction(networkParameters);
+        fundingTransaction.addOutput(Coin.MILLICOIN, address);
+        mockServer.addConfirmedTransaction(fundingTransaction);
+
+        SendRequest startRequest = transactionBuilder.createWorkflowStartTransaction(address, Coin.valueOf(100000),
+                workflowExecutionPointFactory.createWorkflowStartPoint(workflowInstance, 0), networkParameters);
+        startRequest.tx.addInput(fundingTransaction.getOutput(0));
+        mockServer.addConfirmedTransaction(startRequest.tx);
+        txHashes.add(startRequest.tx.getHashAsString());
+        addressesOfInstances.add(startRequest.tx.getOutput(0).getAddressFromP2SH(networkParameters).toBase58());
+
+        TransactionOutput tokenOutput = startRequest.tx.getOutput(0);
+        for (int i = 0; i < handoversPerInstance; i++) {
+            Script redeemScriptWithoutSignature = transactionBuilder.createP2SHRedeemScriptCombinedWithPublicKeyButWithoutSignature(address, key);
+            Transaction handover = transactionBuilder.createWorkflowHandOverTransactionTemplate(
+                    workflowExecutionPointFactory.createWorkflowHandoverPoint(workflowInstance, i + 1, (byte) (i + 1)),
+                    tokenOutput, redeemScriptWithoutSignature, address, networkParameters);
+            if (i < handoversPerInstance - 1) {
+                mockServer.addConfirmedTransaction(handover);
+            } else {
+                mockServer.addTransaction(handover);
+                txHashesWithUnconfirmedSpender.add(tokenOutput.getParentTransaction().getHashAsString());
+            }
+            txHashes.add(handover.getHashAsString());
+            tokenOutput = handover.getOutput(0);
+        }
+    }
+
+    private void runLoad(String description, LoadOfThread loadOfThread) throws Exception {
+        Collections.shuffle(txHashes);
+        mockServer.resetRequestCounters();
+        ExecutorService executorService = Executors.newFixedThreadPool(numberOfThreads);
+        List<Future<Integer>> futures = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < numberOfThreads; i++) {
+            final int offset = i * lookupsPerThread;
+            futures.add(executorService.submit(() -> loadOfThread.perform(new BlockcypherMockCrawler(mockServer), offset)));
+        }
+        int lookups = 0;
+        for (Future<Integer> future : futures) {
+            lookups += future.get();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        executorService.shutdown();
+        executorService.awaitTermination(10, TimeUnit.SECONDS);
+        logger.info(String.format("%s: %d lookups with %d requests in %.2f s (%.0f lookups/s, %.0f requests/s)",
+                description, lookups, mockServer.getRequestCount(), seconds, lookups / seconds, mockServer.getRequestCount() / seconds));
+    }
+
+    private interface LoadOfThread {
+        int perform(BlockChainCrawler crawler, int offset) throws Exception;
+    }
+
+}
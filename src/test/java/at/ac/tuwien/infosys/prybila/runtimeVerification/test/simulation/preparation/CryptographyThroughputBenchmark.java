@@ -0,0 +1,134 @@
+package at.ac.tuwien.infosys.prybila.runtimeVerification.test.simulation.preparation;
+
+import at.ac.tuwien.infosys.prybila.runtimeVerification.handoverFramework.core.BasicCryptographyManager;
+import at.ac.tuwien.infosys.prybila.runtimeVerification.handoverFramework.core.model.Identity;
+import at.ac.tuwien.infosys.prybila.runtimeVerification.handoverFramework.core.model.RSAPrivateKey;
+import at.ac.tuwien.infosys.prybila.runtimeVerification.handoverFramework.core.model.RSAPublicKey;
+import at.ac.tuwien.infosys.prybila.runtimeVerification.utils.RuntimeVerificationUtils;
+import org.apache.log4j.Logger;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures the throughput of signing, verifying and encrypting with the BasicCryptographyManager and compares it with
+ * the previous approach of looking up a new JCA engine for every operation.
+ * Repeated verifications are answered by the verified signature cache of the manager.
+ */
+public class CryptographyThroughputBenchmark {
+
+    private static final Logger logger = Logger.getLogger(CryptographyThroughputBenchmark.class);
+
+    private int keySize = 2048;
+    private int numberOfThreads = 4;
+    private int signaturesPerThread = 500;
+    private int encryptionsPerThread = 20000;
+    private int hexConversionsPerThread = 20000;
+
+    /**
+     * Size of the signed and encrypted data, about the size of a serialized handover template.
+     */
+    private int dataSize = 400;
+
+    private KeyPair keyPair;
+    private RSAPublicKey publicKey;
+    private BasicCryptographyManager basicCryptographyManager;
+    private RuntimeVerificationUtils utils = new RuntimeVerificationUtils();
+    private byte[] data;
+    private String symKey;
+
+    @Before
+    public void before() throws Exception {
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+        keyPairGenerator.initialize(keySize);
+        keyPair = keyPairGenerator.generateKeyPair();
+        publicKey = new RSAPublicKey(keyPair.getPublic());
+        basicCryptographyManager = new BasicCryptographyManager(
+                new Identity("Benchmark", publicKey, new RSAPrivateKey(keyPair.getPrivate()), true));
+        data = new byte[dataSize];
+        new Random(0).nextBytes(data);
+        symKey = basicCryptographyManager.getRandomSymmetricEncryptionKey();
+    }
+
+    @Test
+    public void sign() throws Exception {
+        measure("sign with an engine lookup per call", signaturesPerThread, () -> {
+            Signature dsa = Signature.getInstance("SHA256withRSA");
+            dsa.initSign(keyPair.getPrivate());
+            dsa.update(data);
+            utils.byteArrayToHexString(dsa.sign());
+        });
+        measure("sign with thread confined engines", signaturesPerThread, () -> basicCryptographyManager.signData(data));
+    }
+
+    @Test
+    public void verify() throws Exception {
+        byte[] signature = basicCryptographyManager.signData(data);
+        String hexSignature = utils.byteArrayToHexString(signature);
+        assertTrue(basicCryptographyManager.verifySignature(data, hexSignature, publicKey));
+        byte[] tamperedSignature = signature.clone();
+        tamperedSignature[0] ^= 1;
+        assertFalse(basicCryptographyManager.verifySignature(data, tamperedSignature, publicKey));
+        measure("verify with an engine lookup per call", signaturesPerThread * 10, () -> {
+            Signature dsa = Signature.getInstance("SHA256withRSA");
+            dsa.initVerify(keyPair.getPublic());
+            dsa.update(data);
+            assertTrue(dsa.verify(utils.hexStringToByteArray(hexSignature)));
+        });
+        measure("verify a repeated signature with the verified signature cache", signaturesPerThread * 10,
+                () -> assertTrue(basicCryptographyManager.verifySignature(data, signature, publicKey)));
+    }
+
+    @Test
+    public void encryptAndDecrypt() throws Exception {
+        assertArrayEquals(data, basicCryptographyManager.symmetricallyDecryptData(
+                basicCryptographyManager.symmetricallyEncryptData(data, symKey), symKey));
+        measure("encrypt with an engine lookup per call", encryptionsPerThread, () -> {
+            Cipher c = Cipher.getInstance("AES");
+            c.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(symKey.getBytes(), "AES"));
+            c.doFinal(data);
+        });
+        measure("encrypt with thread confined engines", encryptionsPerThread,
+                () -> basicCryptographyManager.symmetricallyEncryptData(data, symKey));
+    }
+
+    @Test
+    public void hexConversion() throws Exception {
+        byte[] signature = basicCryptographyManager.signData(data);
+        assertEquals(formatAsHex(signature), utils.byteArrayToHexString(signature));
+        assertArrayEquals(signature, utils.hexStringToByteArray(utils.byteArrayToHexString(signature).toLowerCase()));
+        measure("hex encoding with String.format", hexConversionsPerThread, () -> formatAsHex(signature));
+        measure("hex encoding with lookup table", hexConversionsPerThread, () -> utils.byteArrayToHexString(signature));
+    }
+
+    /**
+     * The hex encoding used before the lookup table.
+     */
+    private String formatAsHex(byte[] array) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : array) {
+            sb.append(String.format("%02X", b));
+        }
+        return sb.toString();
+    }
+
+    private void measure(String description, int operationsPerThread, MicroBenchmark.Operation operation) throws Exception {
+        //the same threads are used for the warm up and the measurement, they keep their engines
+        double seconds = MicroBenchmark.measureOnThreads(numberOfThreads, operationsPerThread, operation);
+        int operations = operationsPerThread * numberOfThreads;
+        logger.info(String.format("%s: %d operations on %d threads in %.2f s (%.0f operations/s)",
+                description, operations, numberOfThreads, seconds, operations / seconds));
+    }
+
+}
@@ -0,0 +1,278 @@
+package at.ac.tuwien.infosys.prybila.runtimeVerification.test.simulation.preparation;
+
+import at.ac.tuwien.infosys.prybila.runtimeVerification.handoverFramework.core.BasicCryptographyManager;
+import at.ac.tuwien.infosys.prybila.runtimeVerification.handoverFramework.core.model.Identity;
+import at.ac.tuwien.infosys.prybila.runtimeVerification.handoverFramework.core.model.RSAPrivateKey;
+import at.ac.tuwien.infosys.prybila.runtimeVerification.handoverFramework.core.model.RSAPublicKey;
+import at.ac.tuwien.infosys.prybila.runtimeVerification.simulation.core.AuthenticatedSessionCache;
+import at.ac.tuwien.infosys.prybila.runtimeVerification.simulation.core.MultiplexedConnection;
+import at.ac.tuwien.infosys.prybila.runtimeVerification.simulation.core.MultiplexedStream;
+import at.ac.tuwien.infosys.prybila.runtimeVerification.simulation.core.SocketCommunicator;
+import org.apache.log4j.Logger;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the latency of the sequential and the pipelined handover protocol on a link with a one-way delay.
+ * The connections run through a proxy delaying every chunk of data. The conversations exchange the messages of a
+ * handover within an authenticated session in the order of BitcoinRuntimeVerifierHandoverClient and
+ * ServerConnectionThread, the workflow processing in between is left out.
+ */
+public class HandoverProtocolLatencyBenchmark {
+
+    private static final Logger logger = Logger.getLogger(HandoverProtocolLatencyBenchmark.class);
+
+    private long oneWayDelayMS = 10;
+    private int handoversPerMeasurement = 20;
+
+    private Identity sender;
+    private Identity receiver;
+    private Identity publicIdentityOfSender;
+    private Identity publicIdentityOfReceiver;
+
+    /**
+     * First failure of a receiving thread, rethrown on the test thread.
+     */
+    private final AtomicReference<Throwable> failureOfReceiver = new AtomicReference<>();
+
+    @Before
+    public void before() throws Exception {
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+        keyPairGenerator.initialize(2048);
+        sender = createIdentity("LatencySender", keyPairGenerator.generateKeyPair());
+        receiver = createIdentity("LatencyReceiver", keyPairGenerator.generateKeyPair());
+        publicIdentityOfSender = new Identity(sender.getCompanyName(), sender.getPublicKey(), null, false);
+        publicIdentityOfReceiver = new Identity(receiver.getCompanyName(), receiver.getPublicKey(), null, false);
+    }
+
+    @Test
+    public void handoverLatency() throws Exception {
+        double sequentialMS = measure(SocketCommunicator.protocolVersionSequential, SocketCommunicator.latestProtocolVersion);
+        double pipelinedMS = measure(SocketCommunicator.latestProtocolVersion, SocketCommunicator.latestProtocolVersion);
+        logger.info(String.format("One-way delay of %d ms: sequential protocol %.1f ms (%.1f round trips), "
+                        + "pipelined protocol %.1f ms (%.1f round trips) per handover", oneWayDelayMS,
+                sequentialMS, sequentialMS / (2 * oneWayDelayMS), pipelinedMS, pipelinedMS / (2 * oneWayDelayMS)));
+        assertTrue(pipelinedMS < sequentialMS);
+    }
+
+    /**
+     * Returns the mean duration of a handover in milliseconds, the first handover establishes the session.
+     */
+    private double measure(int protocolVersionOfReceiver, int protocolVersionOfSender) throws Exception {
+        ServerSocket serverSocket = new ServerSocket(0);
+        ServerSocket proxySocket = new ServerSocket(0);
+        startDelayingProxy(proxySocket, serverSocket.getLocalPort());
+        Thread acceptingThread = new Thread(() -> {
+            try {
+                new MultiplexedConnection(serverSocket.accept(), stream -> new Thread(() -> receiveHandover(stream)).start(),
+                        protocolVersionOfReceiver);
+            } catch (Exception e) {
+                logger.warn("Failed to accept the connection.", e);
+            }
+        });
+        acceptingThread.start();
+        MultiplexedConnection connection = new MultiplexedConnection(
+                new Socket(InetAddress.getLoopbackAddress(), proxySocket.getLocalPort()), null, protocolVersionOfSender);
+        try {
+            assertEquals(Math.min(protocolVersionOfReceiver, protocolVersionOfSender), connection.getProtocolVersion());
+
+            sendHandover(connection.openStream());
+            long start = System.nanoTime();
+            for (int i = 0; i < handoversPerMeasurement; i++) {
+                sendHandover(connection.openStream());
+            }
+            double durationMS = (System.nanoTime() - start) / 1e6 / handoversPerMeasurement;
+            rethrowFailureOfReceiver();
+            return durationMS;
+        } catch (Exception e) {
+            //the stream of a failed receiver is closed, hence the sender fails as well
+            rethrowFailureOfReceiver();
+            throw e;
+        } finally {
+            connection.close();
+            serverSocket.close();
+            proxySocket.close();
+        }
+    }
+
+    private void rethrowFailureOfReceiver() {
+        Throwable failure = failureOfReceiver.get();
+        if (failure != null) {
+            throw new AssertionError("The receiver failed.", failure);
+        }
+    }
+
+    private void sendHandover(MultiplexedStream stream) throws Exception {
+        SocketCommunicator communicator = new SocketCommunicator(new BasicCryptographyManager(sender), stream);
+        AuthenticatedSessionCache sessionCache = AuthenticatedSessionCache.getCacheOfCompany(sender.getCompanyName());
+        boolean isPipelined = communicator.usesPipelinedProtocol();
+        communicator.sendObject(sender.getCompanyName());
+        communicator.setPartnerIdentity(publicIdentityOfReceiver);
+        if (isPipelined) {
+            communicator.sendSessionRequest(sessionCache);
+        } else {
+            communicator.establishSessionAsClient(sessionCache, 60000);
+        }
+        communicator.sendObject("BusinessProcess");
+        communicator.sendObject((short) 1);
+        communicator.sendObject(sender.getCompanyName());
+        communicator.sendObject((byte) 2);
+        if (!isPipelined) {
+            assertEquals("Ok", communicator.receiveObject());
+        }
+        communicator.sendObject(1466000000);
+        communicator.sendObject(new byte[208]);
+        if (isPipelined) {
+            communicator.receiveSessionResponse(sessionCache, 60000);
+            assertEquals("Ok", communicator.receiveObject());
+        }
+        communicator.sendObject(SocketCommunicator.lockSuccess);
+        if (isPipelined) {
+            communicator.sendObject(Arrays.asList(new byte[32], new byte[32]));
+            communicator.sendDataWithSignature(new byte[33]);
+        }
+        assertEquals(SocketCommunicator.lockSuccess, communicator.receiveObject());
+        if (!isPipelined) {
+            communicator.sendDataWithSignature(new byte[33]);
+            communicator.sendObject(Arrays.asList(new byte[32], new byte[32]));
+        }
+        assertArrayEquals(new byte[33], communicator.receiveDataWithSignature());
+        communicator.sendDataWithSignature(new byte[330]);
+        communicator.sendObject("ABCDEFGHIJKLMNOP");
+        assertEquals(71, ((byte[]) communicator.receiveObject()).length);
+        communicator.closeConnection();
+    }
+
+    private void receiveHandover(MultiplexedStream stream) {
+        try {
+            SocketCommunicator communicator = new SocketCommunicator(new BasicCryptographyManager(receiver), stream);
+            AuthenticatedSessionCache sessionCache = AuthenticatedSessionCache.getCacheOfCompany(receiver.getCompanyName());
+            assertEquals(sender.getCompanyName(), communicator.receiveObject());
+            boolean isPipelined = communicator.usesPipelinedProtocol();
+            communicator.setPartnerIdentity(publicIdentityOfSender);
+            if (isPipelined) {
+                communicator.receiveSessionRequest(sessionCache);
+            } else {
+                communicator.establishSessionAsServer(sessionCache, 60000);
+            }
+            for (int i = 0; i < 4; i++) {
+                communicator.receiveObject();
+            }
+            if (!isPipelined) {
+                communicator.sendObject("Ok");
+            }
+            communicator.receiveObject();
+            communicator.receiveObject();
+            if (isPipelined) {
+                communicator.sendSessionResponse(sessionCache, 60000);
+                communicator.sendObject("Ok");
+            }
+            assertEquals(SocketCommunicator.lockSuccess, communicator.receiveObject());
+            byte[] bitcoinPublicKeyOfSender = null;
+            if (isPipelined) {
+                communicator.receiveObject();
+                bitcoinPublicKeyOfSender = communicator.receiveDataWithSignature();
+            }
+            communicator.sendObject(SocketCommunicator.lockSuccess);
+            if (!isPipelined) {
+                bitcoinPublicKeyOfSender = communicator.receiveDataWithSignature();
+                communicator.receiveObject();
+            }
+            communicator.sendDataWithSignature(bitcoinPublicKeyOfSender);
+            communicator.receiveDataWithSignature();
+            assertFalse(((String) communicator.receiveObject()).isEmpty());
+            communicator.sendObject(new byte[71]);
+        } catch (Throwable e) {
+            failureOfReceiver.compareAndSet(null, e);
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Forwards the connections accepted on the given socket to the given port, delaying every chunk of data.
+     */
+    private void startDelayingProxy(ServerSocket proxySocket, int port) {
+        Thread proxyThread = new Thread(() -> {
+            try {
+                Socket client = proxySocket.accept();
+                Socket server = new Socket(InetAddress.getLoopbackAddress(), port);
+                client.setTcpNoDelay(true);
+                server.setTcpNoDelay(true);
+                forwardDelayed(client.getInputStream(), server.getOutputStream());
+                forwardDelayed(server.getInputStream(), client.getOutputStream());
+            } catch (Exception e) {
+                logger.warn("Failed to start the proxy.", e);
+            }
+        });
+        proxyThread.setDaemon(true);
+        proxyThread.start();
+    }
+
+    private void forwardDelayed(InputStream in, OutputStream out) {
+        BlockingQueue<DelayedChunk> chunks = new LinkedBlockingQueue<>();
+        Thread readingThread = new Thread(() -> {
+            byte[] buffer = new byte[65536];
+            try {
+                int length;
+                while ((length = in.read(buffer)) != -1) {
+                    chunks.add(new DelayedChunk(System.nanoTime() + oneWayDelayMS * 1000000, Arrays.copyOf(buffer, length)));
+                }
+            } catch (Exception e) {
+                //connection closed
+            }
+        });
+        Thread writingThread = new Thread(() -> {
+            try {
+                while (true) {
+                    DelayedChunk chunk = chunks.take();
+                    long remainingNanos = chunk.dueAtNanos - System.nanoTime();
+                    if (remainingNanos > 0) {
+                        Thread.sleep(remainingNanos / 1000000, (int) (remainingNanos % 1000000));
+                    }
+                    out.write(chunk.data);
+                    out.flush();
+                }
+            } catch (Exception e) {
+                //connection closed
+            }
+        });
+        readingThread.setDaemon(true);
+        writingThread.setDaemon(true);
+        readingThread.start();
+        writingThread.start();
+    }
+
+    private Identity createIdentity(String companyName, KeyPair keyPair) {
+        return new Identity(companyName, new RSAPublicKey(keyPair.getPublic()), new RSAPrivateKey(keyPair.getPrivate()), true);
+    }
+
+    private static class DelayedChunk {
+
+        private final long dueAtNanos;
+
+        private final byte[] data;
+
+        private DelayedChunk(long dueAtNanos, byte[] data) {
+            this.dueAtNanos = dueAtNanos;
+            this.data = data;
+        }
+    }
+}
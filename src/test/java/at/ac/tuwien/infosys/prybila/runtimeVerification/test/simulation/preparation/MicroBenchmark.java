@@ -0,0 +1,72 @@
+package at.ac.tuwien.infosys.prybila.runtimeVerification.test.simulation.preparation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the operations of the micro benchmarks in this package.
+ * Every measurement is preceded by a warm up run of the same size, hence the JIT has compiled the hot paths.
+ * JMH is not part of the build, the numbers are meant for relative comparisons on the same machine.
+ */
+public final class MicroBenchmark {
+
+    private MicroBenchmark() {
+    }
+
+    /**
+     * Runs the operation numOfRuns times for warm up and numOfRuns times measured.
+     * Returns the duration of the measured runs in seconds.
+     */
+    public static double measure(int numOfRuns, Operation operation) throws Exception {
+        for (int i = 0; i < numOfRuns; i++) {
+            operation.perform();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < numOfRuns; i++) {
+            operation.perform();
+        }
+        return (System.nanoTime() - start) / 1e9;
+    }
+
+    /**
+     * Runs the operation operationsPerThread times on each of numberOfThreads threads, once for warm up and once
+     * measured. The same threads are used for both runs, hence they keep their thread confined state.
+     * Returns the duration of the measured run in seconds.
+     */
+    public static double measureOnThreads(int numberOfThreads, int operationsPerThread, Operation operation) throws Exception {
+        ExecutorService executorService = Executors.newFixedThreadPool(numberOfThreads);
+        try {
+            runOnThreads(executorService, numberOfThreads, operationsPerThread, operation);
+            long start = System.nanoTime();
+            runOnThreads(executorService, numberOfThreads, operationsPerThread, operation);
+            return (System.nanoTime() - start) / 1e9;
+        } finally {
+            executorService.shutdown();
+            executorService.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+    private static void runOnThreads(ExecutorService executorService, int numberOfThreads, int operationsPerThread,
+                                     Operation operation) throws Exception {
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < numberOfThreads; i++) {
+            futures.add(executorService.submit(() -> {
+                for (int j = 0; j < operationsPerThread; j++) {
+                    operation.perform();
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+    }
+
+    public interface Operation {
+        void perform() throws Exception;
+    }
+}
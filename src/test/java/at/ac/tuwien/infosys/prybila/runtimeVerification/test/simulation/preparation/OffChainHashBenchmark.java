@@ -0,0 +1,114 @@
+package at.ac.tuwien.infosys.prybila.runtimeVerification.test.simulation.preparation;
+
+import at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.core.TransactionBuilder;
+import at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.core.TransactionOffChainProcessor;
+import at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.core.WorkflowDataBlockConverter;
+import at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.core.model.WorkflowHandoverData;
+import at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.core.model.WorkflowHandoverType;
+import at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.core.model.WorkflowInstance;
+import org.apache.log4j.Logger;
+import org.bitcoinj.core.*;
+import org.bitcoinj.params.TestNet3Params;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.bitcoinj.script.ScriptChunk;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares the streamed off-chain hash of the TransactionOffChainProcessor with the previous approach of copying and
+ * adjusting the transaction before serializing it.
+ * Handover transactions have exactly one input, they grow with the data blocks included in the P2SH redeem script.
+ * The benchmark therefore uses transactions with 1 to 20 included data blocks, signed and unsigned.
+ */
+public class OffChainHashBenchmark {
+
+    private static final Logger logger = Logger.getLogger(OffChainHashBenchmark.class);
+
+    private int maxNumOfIncludedDataBlocks = 20;
+    private int hashesPerMeasurement = 20000;
+
+    private NetworkParameters parameters = TestNet3Params.get();
+    private TransactionBuilder transactionBuilder = new TransactionBuilder();
+    private TransactionOffChainProcessor transactionOffChainProcessor = new TransactionOffChainProcessor();
+    private ECKey key = new ECKey();
+
+    @Test
+    public void offChainHash() throws Exception {
+        for (int numOfIncludedDataBlocks = 1; numOfIncludedDataBlocks <= maxNumOfIncludedDataBlocks; numOfIncludedDataBlocks++) {
+            for (boolean signed : new boolean[]{false, true}) {
+                Transaction transaction = createHandoverTransaction(numOfIncludedDataBlocks, signed);
+                assertEquals(copyAndHash(transaction), transactionOffChainProcessor.getOffChainHashOfTransaction(transaction, parameters));
+                String description = numOfIncludedDataBlocks + " included data blocks, " + (signed ? "signed" : "template");
+                measure(description + ", copy and adjust", () -> copyAndHash(transaction));
+                measure(description + ", streamed", () -> transactionOffChainProcessor.getOffChainHashOfTransaction(transaction, parameters));
+            }
+        }
+    }
+
+    /**
+     * Creates a handover transaction whose redeem script contains the given number of data blocks.
+     * A signed transaction contains an on-chain signature in its sigScript and an off-chain signature in its data block.
+     */
+    private Transaction createHandoverTransaction(int numOfIncludedDataBlocks, boolean signed) {
+        byte[][] includedData = new byte[numOfIncludedDataBlocks][];
+        for (int i = 0; i < numOfIncludedDataBlocks; i++) {
+            includedData[i] = Sha256Hash.of(new byte[]{(byte) i}).getBytes();
+        }
+        Address address = key.toAddress(parameters);
+        Script redeemScript = transactionBuilder.createRedeemScript(address, includedData);
+        Script sigScript;
+        if (signed) {
+            sigScript = transactionBuilder.createP2SHRedeemScriptCombinedWithPublicKeyAndSignature(
+                    redeemScript, key, key.sign(Sha256Hash.of(redeemScript.getProgram())));
+        } else {
+            sigScript = transactionBuilder.createP2SHRedeemScriptCombinedWithPublicKeyButWithoutSignature(address, key, includedData);
+        }
+        Transaction transaction = new Transaction(parameters);
+        transaction.addInput(new TransactionInput(parameters, transaction, sigScript.getProgram(),
+                new TransactionOutPoint(parameters, 0, Sha256Hash.of(sigScript.getProgram()))));
+        transaction.addOutput(Coin.MILLICOIN, ScriptBuilder.createP2SHOutputScript(redeemScript));
+        WorkflowDataBlockConverter workflowDataBlockConverter = new WorkflowDataBlockConverter(new WorkflowHandoverData(
+                new WorkflowInstance((short) 1), (byte) 2, WorkflowHandoverType.INTERMEDIATE, 1466000000));
+        if (signed) {
+            workflowDataBlockConverter.setSignature(key.sign(Sha256Hash.of(new byte[]{1})).encodeToDER());
+        }
+        transactionBuilder.addDatablockOutputToTransaction(transaction, workflowDataBlockConverter.serializeToSignedDataBlock(signed));
+        return transaction;
+    }
+
+    /**
+     * The off-chain hash as computed before streaming, the adjusted transaction is a full copy.
+     */
+    private Sha256Hash copyAndHash(Transaction transaction) throws Exception {
+        Transaction copy = parameters.getDefaultSerializer().makeTransaction(transaction.bitcoinSerialize());
+        TransactionInput transactionInput = copy.getInput(0);
+        List<ScriptChunk> chunks = transactionInput.getScriptSig().getChunks();
+        if (chunks.get(0).data.length != 33) {
+            ScriptBuilder scriptBuilderForReducedScript = new ScriptBuilder();
+            for (int i = 1; i < chunks.size(); i++) {
+                scriptBuilderForReducedScript.addChunk(chunks.get(i));
+            }
+            transactionInput.setScriptSig(scriptBuilderForReducedScript.build());
+        }
+        byte[] opReturnData = copy.getOutput(1).getScriptPubKey().getChunks().get(1).data;
+        WorkflowDataBlockConverter workflowDataBlockConverter = new WorkflowDataBlockConverter(opReturnData);
+        if (workflowDataBlockConverter.getSignature() != null) {
+            transactionBuilder.replaceOpReturnBlockWithNewOne(workflowDataBlockConverter.serializeToSignedDataBlock(false), copy);
+        }
+        ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(
+                copy.getMessageSize() == Message.UNKNOWN_LENGTH ? 256 : copy.getMessageSize());
+        copy.bitcoinSerialize(bos);
+        return Sha256Hash.twiceOf(bos.toByteArray());
+    }
+
+    private void measure(String description, MicroBenchmark.Operation operation) throws Exception {
+        double microsPerHash = MicroBenchmark.measure(hashesPerMeasurement, operation) * 1e6 / hashesPerMeasurement;
+        logger.info(String.format("%s: %.2f us per hash", description, microsPerHash));
+    }
+
+}
@@ -0,0 +1,158 @@
+package at.ac.tuwien.infosys.prybila.runtimeVerification.test.simulation.preparation;
+
+import at.ac.tuwien.infosys.prybila.runtimeVerification.simulation.core.FramedMessageCodec;
+import org.apache.log4j.Logger;
+import org.junit.Test;
+
+import java.io.*;
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+/**
+ * Compares the message throughput of the FramedMessageCodec with the previously used Java serialization.
+ * Every connection exchanges the messages of one handover, the sizes resemble those of a real handover.
+ * Only the encoding is measured, the messages are written to and read from memory.
+ */
+public class WireProtocolBenchmark {
+
+    private static final Logger logger = Logger.getLogger(WireProtocolBenchmark.class);
+
+    private int connectionsPerMeasurement = 20000;
+
+    private List<Object> handoverMessages = createHandoverMessages();
+
+    @Test
+    public void messageThroughput() throws Exception {
+        byte[] framedHandover = writeFramed();
+        List<Object> readMessages = readFramed(framedHandover);
+        assertEquals(handoverMessages.size(), readMessages.size());
+        for (int i = 0; i < handoverMessages.size(); i++) {
+            assertMessageEquals(handoverMessages.get(i), readMessages.get(i));
+        }
+        assertSame(FramedMessageCodec.killCommand, readFramed(writeFramed(FramedMessageCodec.killCommand)).get(0));
+        //a Short frame with a one byte payload and a frame of an unknown type
+        assertMalformed(new byte[]{4, 1, 0});
+        assertMalformed(new byte[]{99, 0});
+
+        logger.info("Bytes per handover with Java serialization: " + writeSerialized().length);
+        logger.info("Bytes per handover with framed messages: " + framedHandover.length);
+        measure("Java serialization", () -> readSerialized(writeSerialized()));
+        measure("framed messages", () -> readFramed(writeFramed()));
+    }
+
+    private List<Object> createHandoverMessages() {
+        Random random = new Random(0);
+        List<Object> messages = new ArrayList<>();
+        messages.add("Company_A");
+        messages.add("BusinessProcess_1");
+        messages.add((short) 42);
+        messages.add("Company_A");
+        messages.add((byte) 3);
+        messages.add("Ok");
+        messages.add(1466000000);
+        messages.add(randomBytes(random, 208));
+        messages.add("lockSuccess");
+        messages.add("lockSuccess");
+        messages.add(Arrays.asList(randomBytes(random, 330), randomBytes(random, 330)));
+        messages.add(randomBytes(random, 33));
+        messages.add(randomBytes(random, 32));
+        messages.add(Arrays.asList(randomBytes(random, 32), null, randomBytes(random, 80)));
+        messages.add(randomBytes(random, 33));
+        messages.add(randomBytes(random, 32));
+        messages.add(randomBytes(random, 330));
+        messages.add(randomBytes(random, 32));
+        messages.add("ABCDEFGHIJKLMNOP");
+        messages.add(randomBytes(random, 71));
+        messages.add(null);
+        return messages;
+    }
+
+    private byte[] randomBytes(Random random, int size) {
+        byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    private void assertMessageEquals(Object expected, Object actual) {
+        if (expected == null) {
+            assertNull(actual);
+        } else if (expected instanceof byte[]) {
+            assertArrayEquals((byte[]) expected, (byte[]) actual);
+        } else if (expected instanceof List) {
+            List<?> expectedList = (List<?>) expected;
+            List<?> actualList = (List<?>) actual;
+            assertEquals(expectedList.size(), actualList.size());
+            for (int i = 0; i < expectedList.size(); i++) {
+                assertMessageEquals(expectedList.get(i), actualList.get(i));
+            }
+        } else {
+            assertEquals(expected, actual);
+        }
+    }
+
+    private void assertMalformed(byte[] frame) throws IOException {
+        try {
+            readFramed(frame);
+            fail("The malformed frame " + Arrays.toString(frame) + " was accepted.");
+        } catch (ProtocolException e) {
+            //expected
+        }
+    }
+
+    private byte[] writeFramed(Object... messages) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bos);
+        FramedMessageCodec codec = new FramedMessageCodec();
+        for (Object message : messages.length > 0 ? Arrays.asList(messages) : handoverMessages) {
+            codec.writeMessage(message, out);
+        }
+        out.flush();
+        return bos.toByteArray();
+    }
+
+    private List<Object> readFramed(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        FramedMessageCodec codec = new FramedMessageCodec();
+        List<Object> messages = new ArrayList<>();
+        while (in.available() > 0) {
+            messages.add(codec.readMessage(in));
+        }
+        return messages;
+    }
+
+    private byte[] writeSerialized() throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bos);
+        for (Object message : handoverMessages) {
+            out.writeObject(message);
+            out.flush();
+        }
+        return bos.toByteArray();
+    }
+
+    private List<Object> readSerialized(byte[] data) throws IOException, ClassNotFoundException {
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data));
+        List<Object> messages = new ArrayList<>();
+        for (int i = 0; i < handoverMessages.size(); i++) {
+            messages.add(in.readObject());
+        }
+        return messages;
+    }
+
+    private void measure(String description, MicroBenchmark.Operation operation) throws Exception {
+        double seconds = MicroBenchmark.measure(connectionsPerMeasurement, operation);
+        double messages = (double) connectionsPerMeasurement * handoverMessages.size();
+        logger.info(String.format("%s: %.0f messages/s, %.1f us per handover",
+                description, messages / seconds, seconds * 1e6 / connectionsPerMeasurement));
+    }
+
+}
@@ -0,0 +1,22 @@
+package at.ac.tuwien.infosys.prybila.runtimeVerification.test.testingSources;
+
+import at.ac.tuwien.infosys.prybila.runtimeVerification.bitcoin.crawler.BlockcypherBlockChainCrawler;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Blockchain crawler based on BlockcypherBlockChainCrawler, pointing to a local BlockcypherMockServer.
+ * The requests are not throttled by default.
+ */
+public class BlockcypherMockCrawler extends BlockcypherBlockChainCrawler {
+
+    public BlockcypherMockCrawler(BlockcypherMockServer mockServer) {
+        this(mockServer, 0);
+    }
+
+    public BlockcypherMockCrawler(BlockcypherMockServer mockServer, int speedThrottle) {
+        //a token per server and throttle, the rate limiters are shared per token
+        super(mockServer.getTransactionURL(), mockServer.getAddressURL(), "mock" + mockServer.getPort() + "x" + speedThrottle, speedThrottle);
+        logger = LoggerFactory.getLogger(BlockcypherMockCrawler.class);
+    }
+
+}
@@ -0,0 +1,496 @@
+package at.ac.tuwien.infosys.prybila.runtimeVerification.test.testingSources;
+
+import at.ac.tuwien.infosys.prybila.runtimeVerification.utils.RuntimeVerificationException;
+import at.ac.tuwien.infosys.prybila.runtimeVerification.utils.RuntimeVerificationUtils;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.log4j.Logger;
+import org.bitcoinj.core.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Embeddable stand-in for the REST API of https://api.blockcypher.com
+ * Serves the transactions (txs/h1;h2;h3) and address pages (addrs/address) of an in-memory chain model
+ * which is fed with the transactions created by the local transaction builders.
+ * Supports a configurable latency per request, the injection of "429 Too Many Requests" responses
+ * and confirmations through mined blocks.
+ * Allows to run the crawlers and the WorkflowUpdater offline at high request rates.
+ */
+public class BlockcypherMockServer {
+
+    private static final Logger logger = Logger.getLogger(BlockcypherMockServer.class);
+
+    private static final String BASE_PATH = "/v1/btc/test3";
+
+    static {
+        //avoid the delayed ACKs of kept-alive connections, must be set before the HttpServer is loaded
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final RuntimeVerificationUtils utils;
+
+    private HttpServer httpServer;
+    private ExecutorService executorService;
+    private int port;
+    private int numberOfThreads;
+
+    /**
+     * Chain model. All transactions known to the server with the block height they were confirmed in.
+     * Unconfirmed transactions are not contained in blockHeightOfTransaction.
+     */
+    private final Map<String, Transaction> transactions = new LinkedHashMap<>();
+    private final Map<String, Integer> blockHeightOfTransaction = new HashMap<>();
+    private final Map<String, String> spentByOfOutput = new HashMap<>();
+    private final Map<String, Set<String>> txHashesOfAddress = new HashMap<>();
+    private int chainHeight;
+
+    private volatile long latencyInMS;
+    private volatile int rateLimitEveryNthRequest;
+    private volatile int retryAfterInSeconds;
+    private final AtomicInteger injectedRateLimitResponses = new AtomicInteger();
+
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong rateLimitedRequestCount = new AtomicLong();
+
+    /**
+     * Creates a server on the given port, 0 selects a free port.
+     * Requests are answered by the given number of threads.
+     */
+    public BlockcypherMockServer(int port, int numberOfThreads) {
+        this.utils = new RuntimeVerificationUtils();
+        this.port = port;
+        this.numberOfThreads = Math.max(1, numberOfThreads);
+        this.chainHeight = 0;
+        this.retryAfterInSeconds = 1;
+    }
+
+    public BlockcypherMockServer() {
+        this(0, 8);
+    }
+
+    public synchronized void start() {
+        if (httpServer != null) {
+            return;
+        }
+        try {
+            httpServer = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+        } catch (IOException e) {
+            throw new RuntimeVerificationException("Could not start the blockcypher mock server.", e);
+        }
+        executorService = Executors.newFixedThreadPool(numberOfThreads);
+        httpServer.setExecutor(executorService);
+        httpServer.createContext(BASE_PATH + "/txs/", this::handleTransactionRequest);
+        httpServer.createContext(BASE_PATH + "/addrs/", this::handleAddressRequest);
+        httpServer.start();
+        port = httpServer.getAddress().getPort();
+        logger.info("Started blockcypher mock server on port " + port);
+    }
+
+    public synchronized void stop() {
+        if (httpServer == null) {
+            return;
+        }
+        httpServer.stop(0);
+        executorService.shutdownNow();
+        try {
+            executorService.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        httpServer = null;
+        executorService = null;
+        logger.info("Stopped blockcypher mock server after " + requestCount.get() + " requests");
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * URL pattern to retrieve transactions, as expected by the BlockcypherBlockChainCrawler.
+     */
+    public String getTransactionURL() {
+        return "http://localhost:" + port + BASE_PATH + "/txs/%s";
+    }
+
+    /**
+     * URL pattern to retrieve address pages, as expected by the BlockcypherBlockChainCrawler.
+     */
+    public String getAddressURL() {
+        return "http://localhost:" + port + BASE_PATH + "/addrs/%s";
+    }
+
+    /**
+     * Adds the given transaction as unconfirmed transaction to the chain model.
+     * The outputs referenced by its inputs are marked as spent by this transaction.
+     */
+    public synchronized void addTransaction(Transaction transaction) {
+        String txHash = transaction.getHashAsString();
+        if (transactions.containsKey(txHash)) {
+            return;
+        }
+        transactions.put(txHash, transaction);
+        for (TransactionInput input : transaction.getInputs()) {
+            if (input.isCoinBase()) {
+                continue;
+            }
+            TransactionOutPoint outPoint = input.getOutpoint();
+            spentByOfOutput.put(getKey(outPoint.getHash().toString(), (int) outPoint.getIndex()), txHash);
+            String address = getAddressOfOutput(getConnectedOutput(input));
+            if (address != null) {
+                getTxHashesOfAddress(address).add(txHash);
+            }
+        }
+        for (TransactionOutput output : transaction.getOutputs()) {
+            String address = getAddressOfOutput(output);
+            if (address != null) {
+                getTxHashesOfAddress(address).add(txHash);
+            }
+        }
+    }
+
+    /**
+     * Adds the given transaction and confirms it immediately in a new block.
+     */
+    public synchronized void addConfirmedTransaction(Transaction transaction) {
+        addTransaction(transaction);
+        mineBlock(Arrays.asList(transaction.getHashAsString()));
+    }
+
+    /**
+     * Confirms all unconfirmed transactions in a new block.
+     */
+    public synchronized void mineBlock() {
+        mineBlock(new ArrayList<>(transactions.keySet()));
+    }
+
+    /**
+     * Confirms the given unconfirmed transactions in a new block.
+     * Already confirmed or unknown transactions are ignored. Adds an empty block if nothing was confirmed.
+     */
+    public synchronized void mineBlock(Collection<String> txHashes) {
+        chainHeight++;
+        for (String txHash : txHashes) {
+            if (transactions.containsKey(txHash) && !blockHeightOfTransaction.containsKey(txHash)) {
+                blockHeightOfTransaction.put(txHash, chainHeight);
+            }
+        }
+    }
+
+    public synchronized int getChainHeight() {
+        return chainHeight;
+    }
+
+    public synchronized int getNumberOfTransactions() {
+        return transactions.size();
+    }
+
+    /**
+     * Every request is delayed by the given latency before it is answered.
+     */
+    public void setLatencyInMS(long latencyInMS) {
+        this.latencyInMS = Math.max(0, latencyInMS);
+    }
+
+    /**
+     * Every n-th request is answered with "429 Too Many Requests". 0 disables the periodic injection.
+     */
+    public void setRateLimitEveryNthRequest(int rateLimitEveryNthRequest) {
+        this.rateLimitEveryNthRequest = Math.max(0, rateLimitEveryNthRequest);
+    }
+
+    /**
+     * The next given number of requests are answered with "429 Too Many Requests".
+     */
+    public void injectRateLimitedResponses(int numberOfResponses) {
+        injectedRateLimitResponses.addAndGet(Math.max(0, numberOfResponses));
+    }
+
+    /**
+     * Value of the Retry-After header sent with the "429 Too Many Requests" responses. A negative value omits the header.
+     */
+    public void setRetryAfterInSeconds(int retryAfterInSeconds) {
+        this.retryAfterInSeconds = retryAfterInSeconds;
+    }
+
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    public long getRateLimitedRequestCount() {
+        return rateLimitedRequestCount.get();
+    }
+
+    public void resetRequestCounters() {
+        requestCount.set(0);
+        rateLimitedRequestCount.set(0);
+    }
+
+    private void handleTransactionRequest(HttpExchange exchange) throws IOException {
+        try {
+            if (delayAndCheckRateLimit(exchange)) {
+                return;
+            }
+            String[] txHashes = getLastPathSegment(exchange, "/txs/").split(";");
+            if (txHashes.length == 1) {
+                JsonObject transaction = getTransactionAsJson(txHashes[0]);
+                if (transaction == null) {
+                    sendResponse(exchange, 404, getErrorAsJson("Transaction " + txHashes[0] + " not found."));
+                    return;
+                }
+                sendResponse(exchange, 200, transaction);
+                return;
+            }
+            JsonArray transactionArray = new JsonArray();
+            for (String txHash : txHashes) {
+                JsonObject transaction = getTransactionAsJson(txHash);
+                transactionArray.add(transaction != null ? transaction : getErrorAsJson("Transaction " + txHash + " not found."));
+            }
+            sendResponse(exchange, 200, transactionArray);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void handleAddressRequest(HttpExchange exchange) throws IOException {
+        try {
+            if (delayAndCheckRateLimit(exchange)) {
+                return;
+            }
+            sendResponse(exchange, 200, getAddressPageAsJson(getLastPathSegment(exchange, "/addrs/")));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Applies the configured latency and answers the request with "429 Too Many Requests" if a rate limit is injected.
+     * Returns true if the request was already answered.
+     */
+    private boolean delayAndCheckRateLimit(HttpExchange exchange) throws IOException {
+        long requestNumber = requestCount.incrementAndGet();
+        if (latencyInMS > 0) {
+            try {
+                Thread.sleep(latencyInMS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        boolean rateLimited = injectedRateLimitResponses.getAndUpdate(remaining -> Math.max(0, remaining - 1)) > 0;
+        int everyNth = rateLimitEveryNthRequest;
+        if (everyNth > 0 && requestNumber % everyNth == 0) {
+            rateLimited = true;
+        }
+        if (!rateLimited) {
+            return false;
+        }
+        rateLimitedRequestCount.incrementAndGet();
+        if (retryAfterInSeconds >= 0) {
+            exchange.getResponseHeaders().add("Retry-After", String.valueOf(retryAfterInSeconds));
+        }
+        sendResponse(exchange, 429, getErrorAsJson("Limits reached."));
+        return true;
+    }
+
+    private String getLastPathSegment(HttpExchange exchange, String prefix) {
+        String path = exchange.getRequestURI().getPath();
+        return path.substring(path.indexOf(prefix) + prefix.length());
+    }
+
+    private void sendResponse(HttpExchange exchange, int statusCode, JsonElement body) throws IOException {
+        byte[] content = body.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(statusCode, content.length);
+        try (OutputStream outputStream = exchange.getResponseBody()) {
+            outputStream.write(content);
+        }
+    }
+
+    private JsonObject getErrorAsJson(String message) {
+        JsonObject error = new JsonObject();
+        error.addProperty("error", message);
+        return error;
+    }
+
+    /**
+     * Serializes the transaction like the blockcypher API.
+     * The spent_by field of an output is only set once the spending transaction has been confirmed.
+     */
+    private synchronized JsonObject getTransactionAsJson(String txHash) {
+        Transaction transaction = transactions.get(txHash);
+        if (transaction == null) {
+            return null;
+        }
+        JsonObject transactionJson = new JsonObject();
+        transactionJson.addProperty("hash", txHash);
+        Integer blockHeight = blockHeightOfTransaction.get(txHash);
+        transactionJson.addProperty("block_height", blockHeight != null ? blockHeight : -1);
+        transactionJson.addProperty("confirmations", getConfirmations(blockHeight));
+        transactionJson.addProperty("total", transaction.getOutputSum().getValue());
+
+        Set<String> addressesOfTransaction = new LinkedHashSet<>();
+        JsonArray inputs = new JsonArray();
+        for (TransactionInput input : transaction.getInputs()) {
+            JsonObject inputJson = new JsonObject();
+            inputJson.addProperty("prev_hash", input.getOutpoint().getHash().toString());
+            inputJson.addProperty("output_index", input.getOutpoint().getIndex());
+            inputJson.addProperty("script", utils.byteArrayToHexString(input.getScriptBytes()).toLowerCase());
+            TransactionOutput connectedOutput = getConnectedOutput(input);
+            if (connectedOutput != null) {
+                inputJson.addProperty("output_value", connectedOutput.getValue().getValue());
+                String address = getAddressOfOutput(connectedOutput);
+                if (address != null) {
+                    inputJson.add("addresses", getAsJsonArray(address));
+                    addressesOfTransaction.add(address);
+                }
+            }
+            inputs.add(inputJson);
+        }
+        transactionJson.add("inputs", inputs);
+
+        JsonArray outputs = new JsonArray();
+        for (int i = 0; i < transaction.getOutputs().size(); i++) {
+            TransactionOutput output = transaction.getOutput(i);
+            JsonObject outputJson = new JsonObject();
+            outputJson.addProperty("value", output.getValue().getValue());
+            outputJson.addProperty("script", utils.byteArrayToHexString(output.getScriptBytes()).toLowerCase());
+            String address = getAddressOfOutput(output);
+            if (address != null) {
+                outputJson.add("addresses", getAsJsonArray(address));
+                addressesOfTransaction.add(address);
+            }
+            String spentBy = spentByOfOutput.get(getKey(txHash, i));
+            if (spentBy != null && blockHeightOfTransaction.containsKey(spentBy)) {
+                outputJson.addProperty("spent_by", spentBy);
+            }
+            outputs.add(outputJson);
+        }
+        transactionJson.add("outputs", outputs);
+        transactionJson.add("addresses", getAsJsonArray(addressesOfTransaction.toArray(new String[addressesOfTransaction.size()])));
+        return transactionJson;
+    }
+
+    /**
+     * Serializes the address page like the blockcypher API.
+     * Each output to and each input from the address is listed as separate txref.
+     */
+    private synchronized JsonObject getAddressPageAsJson(String address) {
+        JsonArray txrefs = new JsonArray();
+        JsonArray unconfirmedTxrefs = new JsonArray();
+        Set<String> txHashes = txHashesOfAddress.containsKey(address) ? txHashesOfAddress.get(address) : Collections.emptySet();
+        for (String txHash : txHashes) {
+            Transaction transaction = transactions.get(txHash);
+            Integer blockHeight = blockHeightOfTransaction.get(txHash);
+            JsonArray refsOfTransaction = blockHeight != null ? txrefs : unconfirmedTxrefs;
+            for (int i = 0; i < transaction.getInputs().size(); i++) {
+                if (address.equals(getAddressOfOutput(getConnectedOutput(transaction.getInput(i))))) {
+                    JsonObject txref = getTxRefAsJson(txHash, blockHeight, i, -1, getConnectedOutput(transaction.getInput(i)).getValue());
+                    refsOfTransaction.add(txref);
+                }
+            }
+            for (int i = 0; i < transaction.getOutputs().size(); i++) {
+                TransactionOutput output = transaction.getOutput(i);
+                if (address.equals(getAddressOfOutput(output))) {
+                    JsonObject txref = getTxRefAsJson(txHash, blockHeight, -1, i, output.getValue());
+                    String spentBy = spentByOfOutput.get(getKey(txHash, i));
+                    txref.addProperty("spent", spentBy != null);
+                    if (spentBy != null) {
+                        txref.addProperty("spent_by", spentBy);
+                    }
+                    refsOfTransaction.add(txref);
+                }
+            }
+        }
+        JsonObject addressPage = new JsonObject();
+        addressPage.addProperty("address", address);
+        addressPage.addProperty("n_tx", txHashes.size());
+        addressPage.add("txrefs", txrefs);
+        addressPage.add("unconfirmed_txrefs", unconfirmedTxrefs);
+        return addressPage;
+    }
+
+    private JsonObject getTxRefAsJson(String txHash, Integer blockHeight, int inputIndex, int outputIndex, Coin value) {
+        JsonObject txref = new JsonObject();
+        txref.addProperty("tx_hash", txHash);
+        txref.addProperty("block_height", blockHeight != null ? blockHeight : -1);
+        txref.addProperty("tx_input_n", inputIndex);
+        txref.addProperty("tx_output_n", outputIndex);
+        txref.addProperty("value", value.getValue());
+        txref.addProperty("confirmations", getConfirmations(blockHeight));
+        return txref;
+    }
+
+    private int getConfirmations(Integer blockHeight) {
+        if (blockHeight == null) {
+            return 0;
+        }
+        return chainHeight - blockHeight + 1;
+    }
+
+    /**
+     * Returns the output referenced by the given input from the chain model or,
+     * if the previous transaction is unknown to the server, from the connected transaction of bitcoinJ.
+     */
+    private TransactionOutput getConnectedOutput(TransactionInput input) {
+        Transaction previousTransaction = transactions.get(input.getOutpoint().getHash().toString());
+        int outputIndex = (int) input.getOutpoint().getIndex();
+        if (previousTransaction != null && outputIndex < previousTransaction.getOutputs().size()) {
+            return previousTransaction.getOutput(outputIndex);
+        }
+        return input.getConnectedOutput();
+    }
+
+    /**
+     * Returns the P2SH or P2PKH address of the given output or null.
+     */
+    private String getAddressOfOutput(TransactionOutput output) {
+        if (output == null) {
+            return null;
+        }
+        NetworkParameters networkParameters = output.getParams();
+        try {
+            if (output.getScriptPubKey().isPayToScriptHash()) {
+                return output.getAddressFromP2SH(networkParameters).toBase58();
+            } else if (output.getScriptPubKey().isSentToAddress()) {
+                return output.getAddressFromP2PKHScript(networkParameters).toBase58();
+            }
+        } catch (ScriptException e) {
+            //not a standard output, e.g. the OP_RETURN data block
+        }
+        return null;
+    }
+
+    private Set<String> getTxHashesOfAddress(String address) {
+        Set<String> txHashes = txHashesOfAddress.get(address);
+        if (txHashes == null) {
+            txHashes = new LinkedHashSet<>();
+            txHashesOfAddress.put(address, txHashes);
+        }
+        return txHashes;
+    }
+
+    private JsonArray getAsJsonArray(String... entries) {
+        JsonArray array = new JsonArray();
+        for (String entry : entries) {
+            array.add(entry);
+        }
+        return array;
+    }
+
+    private String getKey(String txHash, int outputIndex) {
+        return txHash + ":" + outputIndex;
+    }
+}